@@ -0,0 +1,431 @@
+/*
+ Part of the ReplicatorG project - http://www.replicat.org
+
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software Foundation,
+ Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.j3d.loaders.stl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a whole ASCII STL file in one pass. The file is read in chunks that end
+ * just after an "endfacet", so no facet is split between two chunks, and the
+ * chunks are parsed on a pool of threads while the next ones are read. Their
+ * facets are then copied, in order, into the one coordinate and normal array.
+ *
+ * Numbers are parsed straight from the bytes. Where that can't be done exactly
+ * they are handed to Double.parseDouble, so the geometry comes out the same,
+ * bit for bit, as it does through STLASCIIParser2.
+ */
+public class STLASCIIBlockReader extends STLBlockReader {
+	// Bytes read from the file at a time; a chunk is a little less
+	private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+	private static final byte[] SOLID = "solid".getBytes();
+	private static final byte[] FACET = "facet".getBytes();
+	private static final byte[] ENDFACET = "endfacet".getBytes();
+	private static final byte[] NORMAL = "normal".getBytes();
+	private static final byte[] VERTEX = "vertex".getBytes();
+
+	// Powers of ten that doubles hold exactly
+	private static final double[] POWERS = new double[23];
+	static {
+		POWERS[0] = 1;
+		for (int i = 1; i < POWERS.length; i++) {
+			POWERS[i] = POWERS[i - 1] * 10;
+		}
+	}
+
+	/**
+	 * Tell whether a file looks like ASCII STL: its first word is "solid".
+	 * Binary files may start the same way, so check for those first.
+	 */
+	public static boolean isASCII(File file) throws IOException {
+		byte[] start = new byte[256];
+		int length = 0;
+		InputStream in = new FileInputStream(file);
+		try {
+			int n;
+			while (length < start.length && (n = in.read(start, length, start.length - length)) != -1) {
+				length += n;
+			}
+		} finally {
+			in.close();
+		}
+		int i = 0;
+		while (i < length && isSpace(start[i])) {
+			i++;
+		}
+		return matches(start, i, length, SOLID) && (i + SOLID.length == length || isSpace(start[i + SOLID.length]));
+	}
+
+	/**
+	 * Read every facet in the given ASCII STL file, on as many threads as there
+	 * are processors.
+	 * @throws IOException if the file can't be read or isn't ASCII STL
+	 */
+	public STLASCIIBlockReader(File file) throws IOException {
+		this(file, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Read every facet in the given ASCII STL file, parsing on up to the given
+	 * number of threads.
+	 * @throws IOException if the file can't be read or isn't ASCII STL
+	 */
+	public STLASCIIBlockReader(File file, int threads) throws IOException {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		ExecutorService pool = (threads < 2) ? null : Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+			int done = 0;
+			InputStream in = new FileInputStream(file);
+			try {
+				byte[] carry = new byte[0];
+				long unread = file.length();
+				boolean eof = false;
+				while (!eof) {
+					// One more than is left, so small files are read in one go
+					byte[] bytes = new byte[carry.length + (int)Math.min(CHUNK_SIZE, unread + 1)];
+					System.arraycopy(carry, 0, bytes, 0, carry.length);
+					int length = carry.length;
+					int n = 0;
+					while (length < bytes.length && (n = in.read(bytes, length, bytes.length - length)) != -1) {
+						length += n;
+						unread -= n;
+					}
+					eof = (n == -1);
+					int cut = eof ? length : endOfLastFacet(bytes, length);
+					carry = new byte[length - cut];
+					System.arraycopy(bytes, cut, carry, 0, carry.length);
+					if (cut == 0) {
+						continue;
+					}
+
+					Chunk chunk = new Chunk(bytes, cut);
+					chunks.add(chunk);
+					if (pool == null) {
+						chunk.call();
+						continue;
+					}
+					futures.add(pool.submit(chunk));
+					// Don't read too far ahead of the parsing
+					if (futures.size() - done > 2 * threads) {
+						futures.get(done++).get();
+					}
+				}
+			} finally {
+				in.close();
+			}
+			while (done < futures.size()) {
+				futures.get(done++).get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading " + file);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+		}
+		merge(chunks);
+	}
+
+	// Join the chunks' facets into the one array, and work out the objects
+	private void merge(List<Chunk> chunks) throws IOException {
+		int total = 0;
+		for (Chunk chunk : chunks) {
+			total += chunk.facets;
+		}
+		coordinates = new float[9 * total];
+		normals = new float[9 * total];
+
+		List<String> objectNames = new ArrayList<String>();
+		List<Integer> objectStarts = new ArrayList<Integer>();
+		int offset = 0;
+		for (Chunk chunk : chunks) {
+			System.arraycopy(chunk.coordinates, 0, coordinates, 9 * offset, 9 * chunk.facets);
+			System.arraycopy(chunk.normals, 0, normals, 9 * offset, 9 * chunk.facets);
+			for (int i = 0; i < chunk.names.size(); i++) {
+				objectNames.add(chunk.names.get(i));
+				objectStarts.add(offset + chunk.starts.get(i));
+			}
+			offset += chunk.facets;
+		}
+		if (objectStarts.isEmpty() || objectStarts.get(0) != 0) {
+			throw new IOException("Not an ASCII STL file.");
+		}
+
+		names = objectNames.toArray(new String[objectNames.size()]);
+		facets = new int[names.length];
+		for (int i = 0; i < facets.length; i++) {
+			int end = (i + 1 < facets.length) ? objectStarts.get(i + 1) : total;
+			facets[i] = end - objectStarts.get(i);
+		}
+	}
+
+	// Find where the last whole "endfacet" in the bytes ends, or 0 if there isn't one
+	private static int endOfLastFacet(byte[] bytes, int length) {
+		for (int i = length - ENDFACET.length - 1; i >= 0; i--) {
+			if (matches(bytes, i, length, ENDFACET) && isSpace(bytes[i + ENDFACET.length])
+					&& (i == 0 || isSpace(bytes[i - 1]))) {
+				return i + ENDFACET.length;
+			}
+		}
+		return 0;
+	}
+
+	private static boolean isSpace(byte b) {
+		return (b & 0xff) <= ' ';
+	}
+
+	private static boolean matches(byte[] bytes, int start, int end, byte[] word) {
+		if (end - start < word.length) {
+			return false;
+		}
+		for (int i = 0; i < word.length; i++) {
+			if (bytes[start + i] != word[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parse a number, as Double.parseDouble would. Numbers of up to 18 digits,
+	 * times a power of ten up to 22, are worked out with one multiply or divide,
+	 * which rounds the same way.
+	 */
+	static double parseDouble(byte[] bytes, int start, int end) throws IOException {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+			negative = (bytes[i] == '-');
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean any = false;
+		boolean point = false;
+		for (; i < end; i++) {
+			int c = bytes[i];
+			if (c >= '0' && c <= '9') {
+				any = true;
+				if (mantissa == 0 && c == '0') {
+					// Leading zero
+					if (point) {
+						scale--;
+					}
+					continue;
+				}
+				if (digits == 18) {
+					return parseDoubleSlowly(bytes, start, end);
+				}
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (point) {
+					scale--;
+				}
+			} else if (c == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		if (!any) {
+			return parseDoubleSlowly(bytes, start, end);
+		}
+		if (i < end) {
+			if (bytes[i] != 'e' && bytes[i] != 'E') {
+				return parseDoubleSlowly(bytes, start, end);
+			}
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+				negativeExponent = (bytes[i] == '-');
+				i++;
+			}
+			if (i == end) {
+				return parseDoubleSlowly(bytes, start, end);
+			}
+			int exponent = 0;
+			for (; i < end; i++) {
+				int c = bytes[i];
+				if (c < '0' || c > '9' || exponent > 1000) {
+					return parseDoubleSlowly(bytes, start, end);
+				}
+				exponent = exponent * 10 + (c - '0');
+			}
+			scale += negativeExponent ? -exponent : exponent;
+		}
+
+		double value;
+		if (mantissa == 0) {
+			value = 0;
+		} else if (mantissa >= (1L << 53) || scale > 22 || scale < -22) {
+			return parseDoubleSlowly(bytes, start, end);
+		} else if (scale >= 0) {
+			value = mantissa * POWERS[scale];
+		} else {
+			value = mantissa / POWERS[-scale];
+		}
+		return negative ? -value : value;
+	}
+
+	private static double parseDoubleSlowly(byte[] bytes, int start, int end) throws IOException {
+		String number = new String(bytes, start, end - start, "US-ASCII");
+		try {
+			return Double.parseDouble(number);
+		} catch (NumberFormatException e) {
+			throw new IOException("Bad number in STL file: " + number);
+		}
+	}
+
+	/**
+	 * A run of whole facets, parsed on its own.
+	 */
+	private static class Chunk implements Callable<Chunk> {
+		private byte[] bytes;
+		private final int length;
+
+		// Where the parse has got to, and the last word read
+		private int pos = 0;
+		private int wordStart;
+		private int wordEnd;
+
+		int facets = 0;
+		float[] coordinates;
+		float[] normals;
+
+		private final double[] vertices = new double[9];
+
+		// Objects starting in this chunk: their names and first facets
+		final List<String> names = new ArrayList<String>();
+		final List<Integer> starts = new ArrayList<Integer>();
+
+		Chunk(byte[] bytes, int length) {
+			this.bytes = bytes;
+			this.length = length;
+			// A facet is usually a little over 200 bytes
+			int guess = length / 200 + 1;
+			coordinates = new float[9 * guess];
+			normals = new float[9 * guess];
+		}
+
+		public Chunk call() throws IOException {
+			while (nextWord()) {
+				if (isWord(FACET)) {
+					readFacet();
+				} else if (isWord(SOLID)) {
+					starts.add(facets);
+					names.add(readName());
+				}
+			}
+			bytes = null;
+			return this;
+		}
+
+		private void readFacet() throws IOException {
+			if (coordinates.length < 9 * (facets + 1)) {
+				int size = Math.max(9 * (facets + 1), 2 * coordinates.length);
+				float[] c = new float[size];
+				System.arraycopy(coordinates, 0, c, 0, 9 * facets);
+				coordinates = c;
+				float[] n = new float[size];
+				System.arraycopy(normals, 0, n, 0, 9 * facets);
+				normals = n;
+			}
+			int index = 9 * facets;
+			scanForWord(NORMAL);
+			float nx = (float)readNumber();
+			float ny = (float)readNumber();
+			float nz = (float)readNumber();
+			for (int v = 0; v < 9; v += 3) {
+				scanForWord(VERTEX);
+				vertices[v] = readNumber();
+				vertices[v + 1] = readNumber();
+				vertices[v + 2] = readNumber();
+			}
+			setFacet(coordinates, normals, index, vertices, nx, ny, nz);
+			facets++;
+		}
+
+		// The rest of the line, with runs of spaces made single
+		private String readName() throws IOException {
+			int end = pos;
+			while (end < length && bytes[end] != '\n' && bytes[end] != '\r') {
+				end++;
+			}
+			String line = new String(bytes, pos, end - pos, "US-ASCII").trim();
+			pos = end;
+			return line.replaceAll("\\s+", " ");
+		}
+
+		private boolean nextWord() {
+			while (pos < length && isSpace(bytes[pos])) {
+				pos++;
+			}
+			if (pos == length) {
+				return false;
+			}
+			wordStart = pos;
+			while (pos < length && !isSpace(bytes[pos])) {
+				pos++;
+			}
+			wordEnd = pos;
+			return true;
+		}
+
+		private boolean isWord(byte[] word) {
+			return wordEnd - wordStart == word.length && matches(bytes, wordStart, wordEnd, word);
+		}
+
+		private void scanForWord(byte[] word) throws IOException {
+			while (nextWord()) {
+				if (isWord(word)) {
+					return;
+				}
+			}
+			throw new IOException("Unexpected end of facet in STL file.");
+		}
+
+		private double readNumber() throws IOException {
+			if (!nextWord()) {
+				throw new IOException("Unexpected end of facet in STL file.");
+			}
+			return parseDouble(bytes, wordStart, wordEnd);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ Part of the ReplicatorG project - http://www.replicat.org
+
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software Foundation,
+ Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.j3d.loaders.stl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a whole binary STL file in one go, decoding the records straight into
+ * the coordinate and normal arrays. A binary file holds one object, with no
+ * name.
+ *
+ * The file is read through its channel a block of records at a time, rather than
+ * mapped, so it isn't held open once reading is done; models are saved back
+ * over the file they came from.
+ *
+ * STLBinaryParser reads the same files a facet at a time.
+ */
+public class STLBinaryBlockReader extends STLBlockReader {
+	private static final int HEADER_SIZE = 84;
+	private static final int COMMENT_SIZE = 80;
+	private static final int RECORD_SIZE = 50;
+
+	// Records read from the file at a time
+	private static final int BLOCK_RECORDS = 2048;
+
+	private final double[] vertices = new double[9];
+
+	/**
+	 * Tell whether a file is binary STL, by checking that its size matches the
+	 * facet count in its header. ASCII files, even ones starting "solid" as some
+	 * binary files also do, practically never pass.
+	 */
+	public static boolean isBinary(File file) throws IOException {
+		long length = file.length();
+		if (length < HEADER_SIZE) {
+			return false;
+		}
+		FileInputStream in = new FileInputStream(file);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			FileChannel channel = in.getChannel();
+			channel.position(COMMENT_SIZE);
+			while (header.hasRemaining() && channel.read(header) != -1) {}
+			if (header.hasRemaining()) {
+				return false;
+			}
+			long count = header.getInt(0) & 0xffffffffL;
+			return length == HEADER_SIZE + count * RECORD_SIZE;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read every facet in the given binary STL file.
+	 * @throws IOException if the file can't be read, or its size doesn't match
+	 * its header
+	 */
+	public STLBinaryBlockReader(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_RECORDS * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+			buffer.limit(HEADER_SIZE);
+			fill(channel, buffer);
+			long count = buffer.getInt(COMMENT_SIZE) & 0xffffffffL;
+			if (channel.size() != HEADER_SIZE + count * RECORD_SIZE || count > Integer.MAX_VALUE / 9) {
+				throw new IOException("File size does not match.");
+			}
+			int total = (int)count;
+			names = new String[1];
+			facets = new int[] { total };
+			coordinates = new float[9 * total];
+			normals = new float[9 * total];
+
+			int facet = 0;
+			while (facet < total) {
+				int records = Math.min(BLOCK_RECORDS, total - facet);
+				buffer.clear();
+				buffer.limit(records * RECORD_SIZE);
+				fill(channel, buffer);
+				for (int r = 0; r < records; r++) {
+					decode(buffer, r * RECORD_SIZE, 9 * facet++);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) == -1) {
+				throw new IOException("Unexpected end of file.");
+			}
+		}
+	}
+
+	// Decode one record: a normal, three vertices and two bytes we don't use
+	private void decode(ByteBuffer buffer, int record, int index) {
+		float nx = buffer.getFloat(record);
+		float ny = buffer.getFloat(record + 4);
+		float nz = buffer.getFloat(record + 8);
+		for (int i = 0; i < 9; i++) {
+			vertices[i] = buffer.getFloat(record + 12 + 4 * i);
+		}
+		setFacet(coordinates, normals, index, vertices, nx, ny, nz);
+	}
+}
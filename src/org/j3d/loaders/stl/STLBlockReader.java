@@ -0,0 +1,103 @@
+/*
+ Part of the ReplicatorG project - http://www.replicat.org
+
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software Foundation,
+ Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.j3d.loaders.stl;
+
+import java.util.Arrays;
+
+/**
+ * A whole STL file, read in one go into float arrays laid out the way Java3D
+ * takes them by reference: three vertices per facet, three floats per vertex,
+ * with the facet's normal repeated for each vertex. Facets without a normal get
+ * one worked out from their vertices, as STLLoader does for STLFileReader.
+ *
+ * The facets of all the objects in the file are held one after the other.
+ */
+public abstract class STLBlockReader {
+	protected String[] names;
+	// Facets in each object
+	protected int[] facets;
+	protected float[] coordinates;
+	protected float[] normals;
+
+	public int getNumOfObjects() {
+		return facets.length;
+	}
+
+	/** @return the name of each object; null where the file doesn't give one */
+	public String[] getObjectNames() {
+		return names;
+	}
+
+	public int[] getNumOfFacets() {
+		return facets;
+	}
+
+	/** @return x, y and z of each vertex of each facet of the object in turn */
+	public float[] getCoordinates(int object) {
+		return slice(coordinates, object);
+	}
+
+	/** @return the normal of each vertex of the object, the same for all three of a facet */
+	public float[] getNormals(int object) {
+		return slice(normals, object);
+	}
+
+	// The object's part of the array; the array itself if it holds only the one object
+	private float[] slice(float[] values, int object) {
+		if (facets.length == 1) {
+			return values;
+		}
+		int start = 0;
+		for (int i = 0; i < object; i++) {
+			start += 9 * facets[i];
+		}
+		return Arrays.copyOfRange(values, start, start + 9 * facets[object]);
+	}
+
+	/**
+	 * Set the vertices and normals of the facet starting at the given index,
+	 * working out the normal if the given one is zero. The normal is worked out
+	 * from the vertices as they were read, before they're cut down to floats.
+	 * @param vertices x, y and z of each of the facet's three vertices
+	 */
+	static void setFacet(float[] coordinates, float[] normals, int index, double[] vertices,
+			float nx, float ny, float nz) {
+		for (int i = 0; i < 9; i++) {
+			coordinates[index + i] = (float)vertices[i];
+		}
+		if (nx == 0 && ny == 0 && nz == 0) {
+			// Calculate normal, as (v1 - v0) x (v2 - v0)
+			double x0 = vertices[0], y0 = vertices[1], z0 = vertices[2];
+			double ax = vertices[3] - x0, ay = vertices[4] - y0, az = vertices[5] - z0;
+			double bx = vertices[6] - x0, by = vertices[7] - y0, bz = vertices[8] - z0;
+			double cx = ay * bz - az * by;
+			double cy = az * bx - ax * bz;
+			double cz = ax * by - ay * bx;
+			double norm = 1.0 / Math.sqrt(cx * cx + cy * cy + cz * cz);
+			nx = (float)(cx * norm);
+			ny = (float)(cy * norm);
+			nz = (float)(cz * norm);
+		}
+		for (int i = 0; i < 9; i += 3) {
+			normals[index + i] = nx;
+			normals[index + i + 1] = ny;
+			normals[index + i + 2] = nz;
+		}
+	}
+}
@@ -19,13 +19,18 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.io.Reader;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
 
 import javax.media.j3d.BranchGroup;
+import javax.media.j3d.GeometryArray;
 import javax.media.j3d.Shape3D;
 import javax.media.j3d.TriangleArray;
 import javax.vecmath.Vector3d;
 
+import org.j3d.loaders.stl.STLASCIIBlockReader;
+import org.j3d.loaders.stl.STLBinaryBlockReader;
+import org.j3d.loaders.stl.STLBlockReader;
 import org.j3d.loaders.stl.STLFileReader;
 
 import com.sun.j3d.loaders.IncorrectFormatException;
@@ -39,6 +44,9 @@ import com.sun.j3d.loaders.SceneBase;
  * In case that the file uses the binary STL format, no check can be done to
  * assure that the file is in STL format. A wrong format will only be
  * recognized if an invalid amount of data is contained in the file.<p>
+ * Files on disk are read in one go, when progress isn't shown, into geometry
+ * that refers to the loaded arrays rather than copying them. ASCII files are
+ * parsed on several threads.<p>
  * @author  Dipl. Ing. Paul Szawlowski -
  *          University of Vienna, Dept. of Medical Computer Sciences
  * @version $Revision: 1.2 $
@@ -107,6 +115,11 @@ public class STLLoader extends LoaderBase
         STLFileReader reader = null;
         try
         {
+            final STLBlockReader blockReader = getBlockReader( url );
+            if( blockReader != null )
+            {
+                return createScene( blockReader );
+            }
             if( itsShowProgress )
             {
                 reader = new STLFileReader( url, itsParentComponent );
@@ -128,6 +141,41 @@ public class STLLoader extends LoaderBase
         }
     }
 
+    /**
+     * Reads the file the URL points to in one go, if it can be.
+     * @return the file's contents, or <code>null</code> if it isn't a file on
+     *      disk or progress is to be shown
+     */
+    private STLBlockReader getBlockReader( final URL url ) throws IOException
+    {
+        if( itsShowProgress || !"file".equals( url.getProtocol( ) ) )
+        {
+            return null;
+        }
+        final File file;
+        try
+        {
+            file = new File( url.toURI( ) );
+        }
+        catch( URISyntaxException e )
+        {
+            return null;
+        }
+        catch( IllegalArgumentException e )
+        {
+            return null;
+        }
+        if( STLBinaryBlockReader.isBinary( file ) )
+        {
+            return new STLBinaryBlockReader( file );
+        }
+        if( STLASCIIBlockReader.isASCII( file ) )
+        {
+            return new STLASCIIBlockReader( file );
+        }
+        return null;
+    }
+
     /**
      * Loading from a <code>Reader</code> object not supported.
      * @return <code>null</code>
@@ -238,4 +286,58 @@ public class STLLoader extends LoaderBase
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Creates a <code>Scene</code> object with the contents of an STL file
+     * read in one go.
+     * @param reader <code>STLBlockReader</code> holding the file's facets.
+     */
+    public static Scene createScene( final STLBlockReader reader )
+    {
+        final SceneBase scene = new SceneBase( );
+        final BranchGroup bg = new BranchGroup( );
+        final String[ ] names = reader.getObjectNames( );
+        for( int i = 0; i < reader.getNumOfObjects( ); i ++ )
+        {
+            final Shape3D shape = new Shape3D( createGeometry
+            (
+                reader.getCoordinates( i ),
+                reader.getNormals( i )
+            ) );
+            bg.addChild( shape );
+            String name = names[ i ];
+            if( name == null )
+            {
+                name = "Unknown_" + i;
+            }
+            scene.addNamedObject( name, shape );
+        }
+        scene.setSceneGroup( bg );
+        return scene;
+    }
+
+    /**
+     * Creates a <code>TriangleArray</code> that uses the given coordinate
+     * and normal arrays by reference. They can be read back through
+     * <code>getCoordRefFloat</code> and <code>getNormalRefFloat</code>, but
+     * not <code>getCoordinate</code>.
+     * @param coordinates x, y and z of each vertex in turn.
+     * @param normals the normal of each vertex in turn.
+     */
+    public static TriangleArray createGeometry( final float[ ] coordinates,
+        final float[ ] normals )
+    {
+        final TriangleArray geometry = new TriangleArray
+        (
+            coordinates.length / 3,
+            GeometryArray.NORMALS | GeometryArray.COORDINATES |
+            GeometryArray.BY_REFERENCE
+        );
+        geometry.setCapability( GeometryArray.ALLOW_REF_DATA_READ );
+        geometry.setCapability( GeometryArray.ALLOW_FORMAT_READ );
+        geometry.setCapability( GeometryArray.ALLOW_COUNT_READ );
+        geometry.setCoordRefFloat( coordinates );
+        geometry.setNormalRefFloat( normals );
+        return geometry;
+    }
+}
@@ -1,83 +1,101 @@
 package replicatorg.app;
 
+import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 
-import replicatorg.machine.MachineListener;
-import replicatorg.machine.MachineProgressEvent;
-import replicatorg.machine.MachineStateChangeEvent;
-import replicatorg.machine.MachineToolStatusEvent;
+import replicatorg.machine.TelemetryStore;
+import replicatorg.machine.TelemetryStore.Channel;
 
 
 /**
  * Basic DataLogger class.
- * This is a quick and dirty class to open, close, and store data to disk. 
- * Registers as a Machine Listener, and watches for events and logs temperature from those events
- */ 
-public class DataCapture implements MachineListener {
-	
-	
-	FileWriter outFile; /// Manages our output file
+ * Writes every sample recorded by the machine loader's TelemetryStore to disk,
+ * as a line of CSV: the time in milliseconds, the tool index, then a column
+ * for each channel, named in the header line. Channels the tool doesn't have
+ * are left empty. Notes are written as lines starting with '#'.
+ *
+ * Output is buffered, and flushed at most every FLUSH_MILLIS, when the capture
+ * is closed, and after each note.
+ */
+public class DataCapture implements TelemetryStore.Listener {
+
+	/** The longest a sample waits in the buffer, as long as samples keep coming */
+	public static final long FLUSH_MILLIS = 5000;
+
+	Writer outFile; /// Manages our output file
+
+	private long lastFlush = System.currentTimeMillis();
 
 	/**
-	* Generic Constructor.  Creates an output file and registers as a machineListener
+	* Generic Constructor.  Creates an output file, writes the header and
+	* registers with the telemetry store
 	* @filename : desired output file
-	*/ 	
+	*/
 	public DataCapture(String filename) {
-		 try {
-			outFile = new FileWriter(filename);
+		try {
+			outFile = new BufferedWriter(new FileWriter(filename));
+			StringBuilder header = new StringBuilder("time,tool");
+			for (Channel channel : Channel.values()) {
+				header.append(',').append(channel.getKey());
+			}
+			outFile.write(header.append('\n').toString());
 		} catch (IOException e) {
 			Base.logger.severe("Couldn't open data capture file for writing:" + e.getMessage());
+			outFile = null;
+			return;
 		}
-		// Listen to the machine, do you hear what it is telling you? 
-		Base.getMachineLoader().addMachineListener(this);
+		Base.getMachineLoader().getTelemetry().addListener(this);
 	}
 
 	/**
-	*  apppends the string to our log file 
-	* @message logfile string, please pass JSON dicts only
-	*/	
-	public void WriteMessage(String message) {
+	*  apppends the string to our log file as a note
+	* @message logfile string
+	*/
+	public synchronized void WriteMessage(String message) {
+		if (outFile == null) return;
 		try {
-			outFile.write(message + "\n");
+			outFile.write("# " + message + "\n");
 			outFile.flush();
+			lastFlush = System.currentTimeMillis();
 		} catch (IOException e) {
 			Base.logger.severe("Couldn't write to data capture file:" + e.getMessage());
 		}
 	}
 
+	/** on each sample, write it into the log file as a CSV line */
 	@Override
-	public void machineStateChanged(MachineStateChangeEvent evt) {
-	}
-
-	@Override
-	public void machineProgress(MachineProgressEvent event) {
-	}
-	
-	/* Converts a name/value pair to a mini json string */
-	private String jsonString(String name, double value) {
-		return "\"" + name + "\" : " + Double.toString(value);
+	public synchronized void sampleRecorded(int tool, long time, double[] values) {
+		if (outFile == null) return;
+		try {
+			StringBuilder line = new StringBuilder(64);
+			line.append(time).append(',').append(tool);
+			for (double value : values) {
+				line.append(',');
+				if (!Double.isNaN(value)) {
+					line.append(value);
+				}
+			}
+			outFile.write(line.append('\n').toString());
+			if (time - lastFlush >= FLUSH_MILLIS) {
+				outFile.flush();
+				lastFlush = time;
+			}
+		} catch (IOException e) {
+			Base.logger.severe("Couldn't write to data capture file:" + e.getMessage());
+		}
 	}
 
-	/* Converts a name/value pair to a mini json string */
-	private String jsonString(String name, String value) {
-		return "\"" + name + "\" : \"" + value + "\"";
-	}
-	
-	/** on toolStatus changes, write the temperature info into the log file
-	* in json format
-	*/
-	@Override
-	public void toolStatusChanged(MachineToolStatusEvent event) {
-		WriteMessage(
-				"{"
-				+ jsonString("time", event.getDateString())
-				+ ", " + jsonString("tool_index", event.getTool().getIndex())
-				+ ", " + jsonString("bed_temp", event.getTool().getPlatformCurrentTemperature())
-				+ ", " + jsonString("ext_temp", event.getTool().getCurrentTemperature())
-				+ "}"
-				+ "\n"
-		);
-		
+	/** Stop listening, and write out and close the file */
+	public synchronized void close() {
+		Base.getMachineLoader().getTelemetry().removeListener(this);
+		if (outFile == null) return;
+		try {
+			outFile.close();
+		} catch (IOException e) {
+			Base.logger.severe("Couldn't close data capture file:" + e.getMessage());
+		}
+		outFile = null;
 	}
 }
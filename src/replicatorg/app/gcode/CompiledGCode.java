@@ -0,0 +1,461 @@
+package replicatorg.app.gcode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.logging.Level;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.app.Base;
+import replicatorg.app.util.FileUtils;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.MultiTool;
+import replicatorg.drivers.commands.CommandCodec;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.HomeAxes;
+import replicatorg.drivers.commands.InvalidatePosition;
+import replicatorg.drivers.commands.QueuePoint;
+import replicatorg.drivers.commands.RecallHomePositions;
+import replicatorg.drivers.commands.SetAxisOffset;
+import replicatorg.drivers.commands.SetCurrentPosition;
+import replicatorg.machine.model.ToolModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.GCodeSourceCollection;
+import replicatorg.model.MappedGCodeSource;
+import replicatorg.util.Point5d;
+
+/**
+ * A GCodeSource along with the DriverCommands it parses to, compiled once and
+ * cached on disk so that building the same file again skips all the text work.
+ *
+ * The commands are stored as opcodes and primitive fields (see CommandCodec),
+ * grouped by the line they came from. The cache file sits next to the gcode
+ * file and is keyed by a hash of the gcode and of everything about the driver
+ * that the parser reads; if either changes the cache is rebuilt. A mapped file
+ * is hashed as the bytes already in memory, without decoding it into lines.
+ *
+ * Not every file can be compiled ahead of time. The parser reads the machine's
+ * position, which isn't known at the start of a build or after homing. The
+ * compiler tracks the position itself, with NaN for unknown axes. An absolute
+ * move that leaves an unknown axis alone is stored with that axis as NaN, and
+ * picks up the machine's position for it when replayed, just as the parser
+ * would have. Anything that would compute with an unknown axis (relative moves,
+ * rapid moves that work out their own feedrate, arcs) can't be compiled, and
+ * neither can gcode that reads back an offset it has set with G10. Files that
+ * can't be compiled are remembered as such, and built from text.
+ *
+ * The text is still available through iterator(), for the safety check.
+ */
+public class CompiledGCode implements GCodeSource {
+
+	private static final int MAGIC = 0x52474343; // "RGCC"
+	private static final int VERSION = 1;
+
+	// Record types besides commands; see CommandCodec.FIRST_OPCODE
+	private static final int END = 0;
+	private static final int LINE = 1;
+
+	/** Suffix added to the gcode file name to get the cache file name. */
+	public static final String SUFFIX = ".cache";
+
+	private final GCodeSource source;
+	private final File cacheFile;
+	private final long bodyOffset;
+
+	private CompiledGCode(GCodeSource source, File cacheFile, long bodyOffset) {
+		this.source = source;
+		this.cacheFile = cacheFile;
+		this.bodyOffset = bodyOffset;
+	}
+
+	/**
+	 * Reads the compiled commands back, one at a time.
+	 */
+	public class CommandReader {
+		private final DataInputStream in;
+		private DriverCommand command = null;
+		private int line = 0;
+
+		CommandReader() throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 65536));
+			long skip = bodyOffset;
+			while (skip > 0) {
+				long skipped = in.skip(skip);
+				if (skipped <= 0) {
+					throw new EOFException();
+				}
+				skip -= skipped;
+			}
+		}
+
+		/**
+		 * Move to the next command.
+		 * @return false at the end of the stream
+		 */
+		public boolean next() throws IOException {
+			while (true) {
+				int opcode = in.readUnsignedByte();
+				if (opcode == END) {
+					command = null;
+					line = getLineCount();
+					return false;
+				}
+				if (opcode == LINE) {
+					line = in.readInt();
+					continue;
+				}
+				command = CommandCodec.read(opcode, in);
+				return true;
+			}
+		}
+
+		/** @return the current command */
+		public DriverCommand getCommand() {
+			return command;
+		}
+
+		/** @return the number of lines that had been read when the current command was parsed */
+		public int getLine() {
+			return line;
+		}
+
+		public void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Nothing we can do
+			}
+		}
+	}
+
+	public CommandReader commands() throws IOException {
+		return new CommandReader();
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return source.iterator();
+	}
+
+	@Override
+	public List<String> asList() {
+		return source.asList();
+	}
+
+	@Override
+	public int getLineCount() {
+		return source.getLineCount();
+	}
+
+	public static File getCacheFile(File gcodeFile) {
+		return new File(gcodeFile.getPath() + SUFFIX);
+	}
+
+	/**
+	 * Get the compiled form of the given source, from the cache next to gcodeFile if
+	 * it's up to date, or by compiling it and updating the cache.
+	 *
+	 * @param source the gcode to compile; it must be what gcodeFile held, plus any
+	 * start and end code
+	 * @param driver the driver the commands will be run on
+	 * @return the compiled source, or null if it can't be compiled ahead of time
+	 */
+	public static CompiledGCode load(GCodeSource source, File gcodeFile, DriverQueryInterface driver) {
+		if (driver.isPassthroughDriver()) {
+			return null;
+		}
+		File cacheFile = getCacheFile(gcodeFile);
+		byte[] key = computeKey(source, driver);
+
+		// Header: magic, version, key, whether it compiled, body
+		if (cacheFile.exists()) {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+				try {
+					if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+						byte[] cachedKey = new byte[key.length];
+						in.readFully(cachedKey);
+						if (Arrays.equals(key, cachedKey)) {
+							if (!in.readBoolean()) {
+								Base.logger.fine("GCode can't be compiled ahead of time (cached)");
+								return null;
+							}
+							Base.logger.fine("Using compiled gcode from " + cacheFile);
+							return new CompiledGCode(source, cacheFile, 8 + key.length + 1);
+						}
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				Base.logger.log(Level.FINE, "Could not read " + cacheFile, e);
+			}
+		}
+
+		return compile(source, cacheFile, key, driver);
+	}
+
+	private static CompiledGCode compile(GCodeSource source, File cacheFile, byte[] key, DriverQueryInterface driver) {
+		File temp = new File(cacheFile.getPath() + ".tmp");
+		boolean compiled = false;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.write(key);
+				out.writeBoolean(true);
+
+				Compiler compiler = new Compiler(driver, out);
+				compiled = compiler.compile(source);
+				out.writeByte(END);
+			} finally {
+				out.close();
+			}
+
+			if (!compiled) {
+				// Remember that this one can't be done, so we don't try again next time.
+				out = new DataOutputStream(new FileOutputStream(temp));
+				try {
+					out.writeInt(MAGIC);
+					out.writeInt(VERSION);
+					out.write(key);
+					out.writeBoolean(false);
+				} finally {
+					out.close();
+				}
+			}
+
+			FileUtils.replaceFile(temp, cacheFile);
+		} catch (IOException e) {
+			Base.logger.log(Level.WARNING, "Could not write compiled gcode to " + cacheFile, e);
+			temp.delete();
+			return null;
+		}
+		return compiled ? new CompiledGCode(source, cacheFile, 8 + key.length + 1) : null;
+	}
+
+	/**
+	 * Hash the gcode and everything about the driver that changes how it parses.
+	 */
+	private static byte[] computeKey(GCodeSource source, DriverQueryInterface driver) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		StringBuilder context = new StringBuilder();
+		context.append(driver.getClass().getName()).append('\n');
+		context.append(driver.getMaximumFeedrates()).append('\n');
+		for (int i = 0; i < 7; i++) {
+			context.append(driver.getOffset(i)).append('\n');
+		}
+		if (driver.getMachine() != null) {
+			for (ToolModel tool : driver.getMachine().getTools()) {
+				context.append(tool.getMotorStepperAxis()).append('\n');
+			}
+		}
+		context.append(driver.hasAutomatedBuildPlatform()).append('\n');
+		context.append(driver instanceof MultiTool && ((MultiTool)driver).supportsSimultaneousTools()).append('\n');
+		context.append(GCodeParser.curveSectionMM).append('\n');
+		try {
+			digest.update(context.toString().getBytes("UTF-8"));
+			addToKey(digest, source);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		return digest.digest();
+	}
+
+	private static void addToKey(MessageDigest digest, GCodeSource source) throws UnsupportedEncodingException {
+		if (source instanceof GCodeSourceCollection) {
+			for (GCodeSource part : ((GCodeSourceCollection)source).getSources()) {
+				addToKey(digest, part);
+			}
+		} else if (source instanceof MappedGCodeSource) {
+			// Sized, so the bytes can't be confused with the lines around them
+			MappedGCodeSource mapped = (MappedGCodeSource)source;
+			digest.update(("\0" + mapped.getSize() + "\0").getBytes("UTF-8"));
+			digest.update(mapped.getBytes());
+		} else {
+			for (String line : source) {
+				digest.update(line.getBytes("UTF-8"));
+				digest.update((byte)'\n');
+			}
+		}
+	}
+
+	/**
+	 * Thrown when the gcode depends on something we can't know ahead of time.
+	 */
+	private static class NotCompilableException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		NotCompilableException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Parses gcode ahead of time, tracking the machine position and offsets itself.
+	 */
+	private static class Compiler extends GCodeParser {
+		private final DataOutputStream out;
+
+		// Where the machine will be; NaN for axes we don't know
+		private Point5d position = unknownPosition();
+		private boolean positionKnown = false;
+
+		// Set once the gcode changes an offset; we can't read offsets after that.
+		private boolean offsetsChanged = false;
+
+		private final GCodeCommand check = new GCodeCommand();
+
+		// Unknown axes that the current line leaves alone, or null. While parsing a
+		// rapid move these read as 0, so the feedrate is worked out from the axes
+		// that do move, and are put back to unknown in the move it produces.
+		private boolean[] masked = null;
+
+		private static Point5d unknownPosition() {
+			return new Point5d(Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+		}
+
+		Compiler(DriverQueryInterface driver, DataOutputStream out) {
+			this.out = out;
+			init(driver);
+		}
+
+		@Override
+		protected Point5d getCurrentPosition() {
+			Point5d current = new Point5d(position);
+			if (masked != null) {
+				for (int i = 0; i < 5; i++) {
+					if (masked[i]) {
+						current.set(i, 0);
+					}
+				}
+			}
+			return current;
+		}
+
+		@Override
+		protected Point3d getOffset(int index) {
+			if (offsetsChanged) {
+				throw new NotCompilableException("reads an offset it has changed");
+			}
+			return new Point3d(driver.getOffset(index));
+		}
+
+		/** @return true if compiled, false if the gcode can't be compiled ahead of time */
+		boolean compile(GCodeSource source) throws IOException {
+			Queue<DriverCommand> commands = new LinkedList<DriverCommand>();
+			int line = 0;
+			try {
+				for (String text : source) {
+					line++;
+					masked = positionKnown ? null : checkUnknownPosition(text);
+					parse(text, commands);
+					if (masked != null) {
+						for (DriverCommand command : commands) {
+							if (command instanceof QueuePoint) {
+								Point5d destination = ((QueuePoint)command).getDestination();
+								for (int i = 0; i < 5; i++) {
+									if (masked[i]) {
+										destination.set(i, Double.NaN);
+									}
+								}
+							}
+						}
+					}
+					if (commands.isEmpty()) {
+						continue;
+					}
+					out.writeByte(LINE);
+					out.writeInt(line);
+					for (DriverCommand command : commands) {
+						CommandCodec.write(command, out);
+						track(command);
+					}
+					commands.clear();
+				}
+			} catch (CommandCodec.UnsupportedCommandException e) {
+				Base.logger.fine("GCode can't be compiled ahead of time: line " + line + ": " + e.getMessage());
+				return false;
+			} catch (NotCompilableException e) {
+				Base.logger.fine("GCode can't be compiled ahead of time: line " + line + " " + e.getMessage());
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Reject moves that would compute with an unknown axis.
+		 * @return the axes to mask for a rapid move, or null
+		 */
+		private boolean[] checkUnknownPosition(String text) {
+			check.parse(text);
+			if (!check.hasCode('G')) {
+				return null;
+			}
+			int g = (int)check.getCodeValue('G');
+			if (g == 2 || g == 3) {
+				throw new NotCompilableException("has an arc from an unknown position");
+			}
+			if ((g == 0 || g == 1) && !absoluteMode) {
+				throw new NotCompilableException("has a relative move from an unknown position");
+			}
+			if (g != 0 || check.hasCode('F')) {
+				return null;
+			}
+
+			// A rapid move works out its feedrate from the distance moved
+			final char[] letters = { 'X', 'Y', 'Z', 'A', 'B' };
+			boolean[] mask = new boolean[5];
+			for (int i = 0; i < 5; i++) {
+				if (Double.isNaN(position.get(i))) {
+					// E moves A or B, depending on the tool
+					if (check.hasCode(letters[i]) || (i >= 3 && check.hasCode('E'))) {
+						throw new NotCompilableException("has a rapid move from an unknown position");
+					}
+					mask[i] = true;
+				}
+			}
+			return mask;
+		}
+
+		private void track(DriverCommand command) {
+			if (command instanceof QueuePoint) {
+				position = new Point5d(((QueuePoint)command).getDestination());
+			} else if (command instanceof SetCurrentPosition) {
+				position = new Point5d(((SetCurrentPosition)command).getPoint());
+			} else if (command instanceof HomeAxes
+					|| command instanceof RecallHomePositions
+					|| command instanceof InvalidatePosition) {
+				position = unknownPosition();
+			} else if (command instanceof SetAxisOffset) {
+				offsetsChanged = true;
+			}
+			positionKnown = true;
+			for (int i = 0; i < 5; i++) {
+				if (Double.isNaN(position.get(i))) {
+					positionKnown = false;
+				}
+			}
+		}
+	}
+}
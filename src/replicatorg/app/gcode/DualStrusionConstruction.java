@@ -1,9 +1,16 @@
 package replicatorg.app.gcode;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -12,6 +19,7 @@ import java.util.logging.Level;
 import javax.swing.JOptionPane;
 
 import replicatorg.app.Base;
+import replicatorg.app.util.FileUtils;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolheadAlias;
 import replicatorg.machine.model.WipeModel;
@@ -40,7 +48,11 @@ public class DualStrusionConstruction
 	private final WipeModel leftWipe;
 	private final WipeModel rightWipe;
 	private final MachineType machineType;
-	private MutableGCodeSource  result;
+
+	// where the merge is being written, and how far through the input we are
+	private BufferedWriter out;
+	private long startBytes, totalBytes, writtenBytes;
+	private int lastPercent;
 	
 	public DualStrusionConstruction(File leftFile, File rightFile,
 									MutableGCodeSource startSource, MutableGCodeSource endSource,
@@ -73,50 +85,61 @@ public class DualStrusionConstruction
 			rightWipe = null;
 		}
 	}
-	public MutableGCodeSource getCombinedFile()
-	{
-		return result;	
-	}
-
 	/**
-	 * This method handles shuffling together two gcodes, it first executes
-	 * preprocessing and then hands the gcodes off to Layer_Helper
+	 * This method handles shuffling together two gcodes. Both are read a layer
+	 * at a time and the merge is written as it goes, so only the next layer
+	 * from each file and the last one written are ever held in memory.
+	 * 
+	 * The merge goes to a temporary file next to dest, which is only moved
+	 * over dest once it's complete; if the merge fails, dest is left alone.
 	 * 
+	 * @param dest the file to write the combined gcode to; not either input
 	 */
-	public void combine()
+	public void combine(File dest) throws IOException
 	{
-		MutableGCodeSource left, right;
+		final String destPath = dest.getCanonicalPath();
+		if(destPath.equals(leftFile.getCanonicalPath()) || destPath.equals(rightFile.getCanonicalPath()))
+			throw new IOException("Can't write the combined gcode over one of the files being combined: " + dest);
 
-		// load our layers into something we can use 
-		left = new MutableGCodeSource(leftFile);
-		right = new MutableGCodeSource(rightFile);
+		final File temp = File.createTempFile(dest.getName(), ".tmp", dest.getAbsoluteFile().getParentFile());
+		final LayerReader left = new LayerReader(leftFile);
+		final LayerReader right = new LayerReader(rightFile);
+		try
+		{
+			// modify the start code based on settings
+			final MutableGCodeSource start = SkeinforgePostProcessor.modifyStartCode(startGCode);
 
-		// remove  some tags we don't want/get 
-		SkeinforgePostProcessor.stripNonLayerTagComments(left);
-		SkeinforgePostProcessor.stripNonLayerTagComments(right);
+			out = new BufferedWriter(new FileWriter(temp));
+			startBytes = byteCount(start);
+			totalBytes = startBytes + leftFile.length() + rightFile.length() + byteCount(endGCode);
+			writtenBytes = 0;
+			lastPercent = 0;
 
-		// load our layers into something we can *really* use
-		LinkedList<Layer> leftLayers = parseLayers(left);
-		LinkedList<Layer> rightLayers = parseLayers(right);
+			for(String line : start)
+				write(line, true);
 
-		// merge our layers into one list
-		final LinkedList<Layer> layers = doMerge(leftLayers, rightLayers);
+			// merge our layers into the output
+			doMerge(left, right);
 
-		// refresh and repopulate our result
-		result = new MutableGCodeSource();
-		for(Layer l : layers) {
-			result.add(l.getCommands());
-		}
+			// add end code
+			for(String line : endGCode)
+				write(line, true);
 
-		// add start gcode, updated based on settings
-		SkeinforgePostProcessor.prependAndModifyStartCode(result, startGCode);
-		// add end code
-		Layer endLayer = new Layer(Double.MAX_VALUE, endGCode.asList());
-		result.add(endLayer.toString());
-		// interlace progress updates
-		result.addProgressUpdates();
+			out.close();
+			out = null;
+			FileUtils.replaceFile(temp, dest);
+		}
+		finally
+		{
+			left.close();
+			right.close();
+			if(out != null)
+				out.close();
+			out = null;
+			temp.delete();
+		}
 	}
-	
+
 //	/**
 //	 * removes all lines that are skeinforge tag comments, but not layer tags.
 //	 */
@@ -220,51 +243,201 @@ public class DualStrusionConstruction
 	}
 	
 	/**
-	 * parseLayers is an improvement on the old parseLayers from Noah, etc. 's dualstrusion,
+	 * LayerReader is an improvement on the old parseLayers from Noah, etc. 's dualstrusion,
 	 * but uses the same basic method because skeinforge is what it is.
 	 * look for layer tags, break up the file using those tags.
-	 * @param source
-	 * @return
+	 * 
+	 * Skeinforge tag comments other than the layer tags are dropped as they are read,
+	 * and layers with nothing in them are skipped. peek() is the next layer of the file,
+	 * or null once there are no more.
 	 */
-	private LinkedList<Layer> parseLayers(GCodeSource source)
+	private static class LayerReader
 	{
-		final LinkedList<Layer> result = new LinkedList<Layer>();
-		String line;
-		
-		for(Iterator<String> it = source.iterator(); it.hasNext();)
+		private final CountingInputStream in;
+		private final BufferedReader reader;
+		private Layer next;
+		// bytes read up to the end of next, and up to the end of the last layer popped
+		private long nextEnd, position;
+
+		public LayerReader(File file) throws IOException
+		{
+			in = new CountingInputStream(new FileInputStream(file));
+			reader = new BufferedReader(new InputStreamReader(in));
+			advance();
+		}
+
+		public boolean isEmpty()
+		{
+			return next == null;
+		}
+
+		public Layer peek()
+		{
+			return next;
+		}
+
+		public Layer pop() throws IOException
+		{
+			final Layer result = next;
+			position = nextEnd;
+			advance();
+			return result;
+		}
+
+		/**
+		 * @return how much of the file, in bytes, has been popped. This is
+		 * what the reader has taken from the file, so it runs a buffer ahead
+		 * of the lines, but it's in the same bytes as the file's length.
+		 */
+		public long getPosition()
+		{
+			return position;
+		}
+
+		public void close() throws IOException
 		{
-			line = it.next();
-			if(line.startsWith("(<layer>"))
+			reader.close();
+		}
+
+		private String readLine() throws IOException
+		{
+			String line;
+			do
 			{
-				// Get the layer height (or whatever SF claims it is)
-				float layerHeight = 0;
-				try
-				{
-					layerHeight = Float.parseFloat(line.split(" ")[1]);
-				}
-				catch(NumberFormatException e)
-				{
-					Base.logger.log(Level.SEVERE, "one of your layer heights was unparseable, " +
-							"please check and make sure all of them are in the format (<layer> 0.00)");
-				}
-				
-				//collect every command up to the end of the layer 
-				final List<String> accumulate = new ArrayList<String>();
-//				String next = it.next(); actually, let's keep the initial layer tag
-				String next = line;
-				while(!next.startsWith("(</layer>)"))
+				line = reader.readLine();
+				if(line == null)
+					return null;
+			}
+			// remove some tags we don't want/get
+			while(line.startsWith("(<") && !(line.startsWith("(<layer>") || line.startsWith("(</layer")));
+			return line;
+		}
+
+		private void advance() throws IOException
+		{
+			next = null;
+			String line;
+			while(next == null && (line = readLine()) != null)
+			{
+				if(line.startsWith("(<layer>"))
 				{
-					accumulate.add(next);
-					next = it.next();
+					// Get the layer height (or whatever SF claims it is)
+					float layerHeight = 0;
+					try
+					{
+						layerHeight = Float.parseFloat(line.split(" ")[1]);
+					}
+					catch(NumberFormatException e)
+					{
+						Base.logger.log(Level.SEVERE, "one of your layer heights was unparseable, " +
+								"please check and make sure all of them are in the format (<layer> 0.00)");
+					}
+
+					//collect every command up to the end of the layer, keeping the initial layer tag
+					final List<String> accumulate = new ArrayList<String>();
+					String nextLine = line;
+					while(nextLine != null && !nextLine.startsWith("(</layer>)"))
+					{
+						accumulate.add(nextLine);
+						nextLine = readLine();
+					}
+					//skip empty layers
+					if(accumulate.size() > 1)
+						next = new Layer(layerHeight, accumulate);
 				}
-				//skip empty layers
-				if(accumulate.size() > 1)
-					result.add(new Layer(layerHeight, accumulate));
 			}
+			nextEnd = in.getCount();
+		}
+	}
+
+	// Counts the bytes read through it
+	private static class CountingInputStream extends FilterInputStream
+	{
+		private long count;
+
+		CountingInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		public long getCount()
+		{
+			return count;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			final int b = super.read();
+			if(b != -1)
+				count++;
+			return b;
 		}
 
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			final int n = super.read(b, off, len);
+			if(n > 0)
+				count += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			final long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+
+	private static long byteCount(final GCodeSource source)
+	{
+		long result = 0;
+		for(String line : source)
+			result += line.length() + 1;
 		return result;
 	}
+
+	/**
+	 * Writes a line to the output, preceded by an M73 whenever the percent done
+	 * changes. How far along we are is measured in bytes of the input; counts
+	 * says whether this line came from the input, or was made up by the merge.
+	 */
+	private void write(final String line, final boolean counts) throws IOException
+	{
+		/// TRICKY: M73 P0 is required by The Replicator to enable % display
+		// and M73 P100. is required at the end. These are in TheReplicator start.gcode
+		// and end.gcode.  P0 and P100 are flags to send the build_start and build_end  notifications
+		// to the firmware, so the only ones should be the ones there. See MutableGCodeSource.addProgressUpdates()
+		int percentDone = totalBytes == 0 ? 0 : (int)(writtenBytes*100/totalBytes);
+		if(percentDone != lastPercent)
+		{
+			lastPercent = percentDone;
+			if(percentDone == 0)	percentDone = 1;
+			if(percentDone >= 100)	percentDone = 99;
+			out.write("M73 P"+percentDone+" (display progress)\n");
+		}
+		out.write(line);
+		out.write('\n');
+		if(counts)
+			writtenBytes += line.length() + 1;
+	}
+
+	/**
+	 * Writes a layer popped from the given reader, and catches our progress up
+	 * with the lines in the file around it that were dropped.
+	 */
+	private Layer writeLayer(final LayerReader from, final LayerReader other) throws IOException
+	{
+		for(String line : from.peek().getCommands())
+			write(line, true);
+		final Layer result = from.pop();
+		writtenBytes = startBytes + from.getPosition() + other.getPosition();
+		return result;
+	}
+
 	/**
 	 * A toolchange is the code that goes in between commands for one head and commands for the other
 	 * this function creates a toolchange from a tool doing one layer to a tool doing another layer
@@ -495,12 +668,12 @@ public class DualStrusionConstruction
 	}
 	
 	/**
-	 * This will consume two LinkedLists of Layers and return a combined List of Layers
+	 * This will consume two LayerReaders and write out a combined gcode
 	 * representing a dualstrusion print, with all the appropriate toolchanges inserted. 
 	 * @param left
 	 * @param right
 	 */
-	private LinkedList<Layer> doMerge(final LinkedList<Layer> left, final LinkedList<Layer> right)
+	private void doMerge(final LayerReader left, final LayerReader right) throws IOException
 	{
 		/*
 		 *   Merging layers should look something like this:
@@ -540,26 +713,25 @@ public class DualStrusionConstruction
 		 *     
 		 *           
 		 */
-		// using a LinkedList means we can getLast()
-		final LinkedList<Layer> result = new LinkedList<Layer>();
+		// the last layer we wrote, the one a toolchange comes from
+		Layer last = null;
 
 		// this is just a handy way to keep track of where our last layer came from
-		Object lastLayer = null;
+		LayerReader lastLayer = null;
 		
 		
 		final ToolheadAlias initialTool;
 		// Start by selecting the correct toolhead
 		// This mimics how the selection happens in the loop below
-		if(right.peek().getHeight() < left.peek().getHeight())
+		if(!right.isEmpty() &&
+				(left.isEmpty() || right.peek().getHeight() < left.peek().getHeight()))
 			initialTool = ToolheadAlias.RIGHT;
 		else
 			initialTool = ToolheadAlias.LEFT;
 
 		// Prepend the switch to correct tool to the whole thing
-		result.add(new Layer(0, new ArrayList<String>(){{
-			add(initialTool.getRecallOffsetGcodeCommand());
-			add("M108 "+initialTool.getTcode() + "(Set tool)");
-		}}));
+		write(initialTool.getRecallOffsetGcodeCommand(), false);
+		write("M108 "+initialTool.getTcode() + "(Set tool)", false);
 		
 		// loop while we still have layers to merge
 		while((!left.isEmpty()) || (!right.isEmpty()))
@@ -568,33 +740,33 @@ public class DualStrusionConstruction
 			if(right.isEmpty())
 			{
 				// if last layer tool != next layer tool, add a toolchange
-				if(right.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.RIGHT, result.getLast(), ToolheadAlias.LEFT, left.peek()));
-				result.add(left.pop());
+				if(lastLayer == right)
+					writeToolchange(ToolheadAlias.RIGHT, last, ToolheadAlias.LEFT, left.peek());
+				last = writeLayer(left, right);
 				lastLayer = left;
 			}
 			else if(left.isEmpty()) // used all left layers, keep grabbing from right
 			{
 				// if last layer tool != next layer tool, add a toolchange
-				if(left.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.LEFT, result.getLast(), ToolheadAlias.RIGHT, right.peek()));
-				result.add(right.pop());
+				if(lastLayer == left)
+					writeToolchange(ToolheadAlias.LEFT, last, ToolheadAlias.RIGHT, right.peek());
+				last = writeLayer(right, left);
 				lastLayer = right;
 			}
 			else if(left.peek().getHeight() < right.peek().getHeight()) // left has a lower layer, grab it
 			{
 				// if last layer tool != next layer tool, add a toolchange
-				if(right.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.RIGHT, result.getLast(), ToolheadAlias.LEFT, left.peek()));
-				result.add(left.pop());
+				if(lastLayer == right)
+					writeToolchange(ToolheadAlias.RIGHT, last, ToolheadAlias.LEFT, left.peek());
+				last = writeLayer(left, right);
 				lastLayer = left;
 			}
 			else if(right.peek().getHeight() < left.peek().getHeight()) // right has lower layer
 			{
 				// if last layer tool != next layer tool, add a toolchange
-				if(left.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.LEFT, result.getLast(), ToolheadAlias.RIGHT, right.peek()));
-				result.add(right.pop());
+				if(lastLayer == left)
+					writeToolchange(ToolheadAlias.LEFT, last, ToolheadAlias.RIGHT, right.peek());
+				last = writeLayer(right, left);
 				lastLayer = right;
 			}
 			else //equal height
@@ -602,20 +774,24 @@ public class DualStrusionConstruction
 				if(lastLayer == null)
 				{
 					//arbitrary
-					result.add(left.pop());
+					last = writeLayer(left, right);
 					lastLayer = left;
 				}
 				else
 				{
 					if(lastLayer == left)
-						result.add(left.pop());
+						last = writeLayer(left, right);
 					else// if(lastLayer == right)
-						result.add(right.pop());
+						last = writeLayer(right, left);
 				}
 			}
 		}
-		
-		return result;
+	}
+
+	private void writeToolchange(final ToolheadAlias fromTool, final Layer fromLayer, final ToolheadAlias toTool, final Layer toLayer) throws IOException
+	{
+		for(String line : toolchange(fromTool, fromLayer, toTool, toLayer).getCommands())
+			write(line, false);
 	}
 	
 //	// This is a hack, really we should be getting the dual-head start code
@@ -1,151 +1,254 @@
 package replicatorg.app.gcode;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
+/**
+ * A single line of GCode, split into its command, comment and letter codes.
+ *
+ * Lines are tokenized by a hand-written single-pass lexer rather than regular
+ * expressions. The letter codes are kept in a primitive table: a presence
+ * bitmask plus one double slot per letter, so hasCode() and getCodeValue()
+ * are constant time. A GCodeCommand can be refilled with parse() so that hot
+ * loops (the parser, the safety check) don't allocate a new table per line.
+ *
+ * The results are the same as the old regex based parser: one comment per
+ * line, in either () or ; style, with ; winning if both are present; the
+ * value of a code is the first number directly following that letter; and a
+ * letter with no number following it is present with a value of 0.
+ */
 public class GCodeCommand {
 
 	// These are the letter codes that we understand
-	static protected char[] codes = { 
+	static protected char[] codes = {
 		'A', 'B', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L',
 		'M', 'P', 'Q', 'R', 'S', 'T', 'X', 'Y', 'Z' };
-	
-	// pattern matchers.
-	static Pattern parenPattern  = Pattern.compile("\\((.*)\\)");
-	static Pattern semiPattern = Pattern.compile(";(.*)");
-	static Pattern deleteBlockPattern = Pattern.compile("^(\\.*)");
-	
-	
+
+	// Bit (c - 'A') is set for every letter c in codes
+	private static final int CODE_MASK;
+	static {
+		int mask = 0;
+		for (char code : codes)
+			mask |= 1 << (code - 'A');
+		CODE_MASK = mask;
+	}
+
+	// Powers of ten that are exactly representable as doubles
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	// Largest mantissa for which mantissa / 10^n is still correctly rounded
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
 	// The actual GCode command string
 	private String command;
 
 	// Parsed out comment
-	private String comment = new String();
-
-	private class gCodeParameter {
-		final public char code;
-		final public Double value;
-		gCodeParameter(char code, Double value) {
-			this.code = code;
-			this.value = value;
-		}
+	private String comment = "";
+
+	// Bit (c - 'A') is set if code c appears in this line
+	private int present;
+
+	// Value of each code, indexed by (c - 'A'); only valid if present
+	private final double[] values = new double[26];
+
+	/**
+	 * Create an empty command, to be filled in with parse().
+	 */
+	public GCodeCommand() {
+		command = "";
 	}
-	
-	// The set of parameters in this GCode
-	private List<gCodeParameter> parameters;
 
 	public GCodeCommand(String command) {
-		// Copy over the command
-		this.command = new String(command);
-		
-		// Initialize the present and value tables
-		this.parameters = new ArrayList<gCodeParameter>();
-		
+		parse(command);
+	}
+
+	/**
+	 * Replace the contents of this command with the given line.
+	 *
+	 * @param line a single line of GCode
+	 * @return this command
+	 * @throws NumberFormatException if a code is followed by a malformed number
+	 */
+	public GCodeCommand parse(String line) {
+		command = line;
+		comment = "";
+		present = 0;
+
 		// Parse (and strip) any comments out into a comment string
-		parseComments();
+		if (line.indexOf('(') >= 0 || line.indexOf(';') >= 0)
+			parseComments();
 
 		// Parse any codes out into the code tables
 		parseCodes();
+		return this;
+	}
+
+	// Java regex '.' doesn't match these, so neither do we
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
+	// Index of the next line terminator at or after from, or the string length
+	private static int endOfLine(String s, int from) {
+		int len = s.length();
+		while (from < len && !isLineTerminator(s.charAt(from)))
+			from++;
+		return from;
 	}
-	
-	// Find any comments, store them, then remove them from the command 
+
+	// Find any comments, store them, then remove them from the command
 	private void parseComments() {
-		Matcher parenMatcher = parenPattern.matcher(command);
-		Matcher semiMatcher = semiPattern.matcher(command);
+		String line = command;
+		int len = line.length();
+		StringBuilder stripped = null;
+		int copied = 0;
 
-		// Note that we only support one style of comments, and only one comment per row. 
-		if (parenMatcher.find())
-			comment = parenMatcher.group(1);
+		// Note that we only support one style of comments, and only one comment per row.
+		// A () comment runs from a '(' to the last ')' on the same line.
+		for (int i = 0; i < len; i++) {
+			if (line.charAt(i) != '(')
+				continue;
+			int eol = endOfLine(line, i + 1);
+			int close = eol - 1;
+			while (close > i && line.charAt(close) != ')')
+				close--;
+			if (close == i)
+				continue;
+			if (stripped == null) {
+				comment = line.substring(i + 1, close);
+				stripped = new StringBuilder(len);
+			}
+			stripped.append(line, copied, i);
+			copied = close + 1;
+			i = close;
+		}
+		String withoutParens = line;
+		if (stripped != null) {
+			stripped.append(line, copied, len);
+			withoutParens = stripped.toString();
+		}
 
-		if (semiMatcher.find())
-			comment = semiMatcher.group(1);
+		// A ; comment runs to the end of the line, and wins over a () comment
+		int semi = line.indexOf(';');
+		if (semi >= 0)
+			comment = line.substring(semi + 1, endOfLine(line, semi + 1));
 
 		// clean it up.
-		comment = comment.trim();
-		comment = comment.replace('|', '\n');
-
-		// Finally, remove the comments from the command string
-		command = parenMatcher.replaceAll("");
-		
-		semiMatcher = semiPattern.matcher(command);
-		command = semiMatcher.replaceAll("");
+		comment = comment.trim().replace('|', '\n');
+
+		// Finally, remove the ; comments from the command string
+		semi = withoutParens.indexOf(';');
+		if (semi >= 0) {
+			len = withoutParens.length();
+			stripped = new StringBuilder(len);
+			copied = 0;
+			while (semi >= 0) {
+				stripped.append(withoutParens, copied, semi);
+				copied = endOfLine(withoutParens, semi + 1);
+				semi = withoutParens.indexOf(';', copied);
+			}
+			stripped.append(withoutParens, copied, len);
+			withoutParens = stripped.toString();
+		}
+		command = withoutParens;
+	}
+
+	private static boolean isNumberChar(char c) {
+		return (c >= '0' && c <= '9') || c == '.' || c == '+' || c == '-';
 	}
 
 	// Find any codes, and store them
 	private void parseCodes() {
-		for (char code : codes) {
-			Pattern myPattern = Pattern.compile(code + "([0-9.+-]+)");
-			Matcher myMatcher = myPattern.matcher(command);
-
-			if (command.indexOf(code) >= 0) {
-				double value = 0;
-				
-				if (myMatcher.find()) {
-					String match = myMatcher.group(1);
-					value = Double.parseDouble(match);
-				}
-				
-				parameters.add(new gCodeParameter(code, value));
+		String cmd = command;
+		int len = cmd.length();
+		int valued = 0;
+
+		int i = 0;
+		while (i < len) {
+			char c = cmd.charAt(i++);
+			int index = c - 'A';
+			if (index < 0 || index >= 26)
+				continue;
+			int bit = 1 << index;
+			if ((CODE_MASK & bit) == 0)
+				continue;
+
+			if ((present & bit) == 0) {
+				present |= bit;
+				values[index] = 0;
 			}
+
+			// Only the first number following a code counts
+			if ((valued & bit) != 0 || i >= len || !isNumberChar(cmd.charAt(i)))
+				continue;
+			int start = i;
+			while (i < len && isNumberChar(cmd.charAt(i)))
+				i++;
+			values[index] = parseNumber(cmd, start, i);
+			valued |= bit;
 		}
 	}
 
+	/**
+	 * Parse a run of [0-9.+-] characters. Plain decimals short enough to be
+	 * converted exactly are handled inline; anything else is handed to
+	 * Double.parseDouble(), so results and errors match it exactly.
+	 */
+	private static double parseNumber(String s, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		char c = s.charAt(i);
+		if (c == '-' || c == '+') {
+			negative = (c == '-');
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = 0;
+		boolean seenPoint = false;
+		for (; i < end; i++) {
+			c = s.charAt(i);
+			if (c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (seenPoint)
+					fractionDigits++;
+				if (mantissa > MAX_EXACT_MANTISSA)
+					return Double.parseDouble(s.substring(start, end));
+			} else if (c == '.' && !seenPoint) {
+				seenPoint = true;
+			} else {
+				return Double.parseDouble(s.substring(start, end));
+			}
+		}
+		if (digits == 0 || fractionDigits >= POW10.length)
+			return Double.parseDouble(s.substring(start, end));
+
+		double value = (double) mantissa;
+		if (fractionDigits > 0)
+			value /= POW10[fractionDigits];
+		return negative ? -value : value;
+	}
+
 	public String getCommand() {
 		// TODO: Note that this is the command minus any comments.
-		return new String(command);
+		return command;
 	}
-	
+
 	public String getComment() {
-		return new String(comment);
+		return comment;
 	}
-	
+
 	public boolean hasCode(char searchCode) {
-		for (gCodeParameter parameter : parameters) {
-			if (parameter.code == searchCode) {
-				return true;
-			}
-		}
-		
-		return false;
+		int index = searchCode - 'A';
+		if (index < 0 || index >= 26)
+			return false;
+		return (present & (1 << index)) != 0;
 	}
 
 	public double getCodeValue(char searchCode) {
-		for (gCodeParameter parameter : parameters) {
-			if (parameter.code == searchCode) {
-				return parameter.value;
-			}
-		}
-		
-		return -1;	// TODO: What do we return if there is no code?
+		if (!hasCode(searchCode))
+			return -1;	// TODO: What do we return if there is no code?
+		return values[searchCode - 'A'];
 	}
-	
-//	public Double removeCode(Character searchCode) {
-//		for (Iterator<gCodeParameter> i = parameters.iterator(); i.hasNext();)
-//		{
-//			gCodeParameter gcp = i.next();
-//			if(gcp.code == searchCode)
-//			{
-//				i.remove();
-//				return gcp.value;
-//			}
-//		}
-//		return null;
-//	}
-//	
-//	public void addCode(Character code, Double value)
-//	{
-//		parameters.add(new gCodeParameter(code, value));
-//		command += " ";
-//		command = command.concat(code.toString()).concat(value.toString());
-//	}
-//	
-//	public void addCode(Character code, Integer value)
-//	{
-//		parameters.add(new gCodeParameter(code, ((Number)value).doubleValue()));
-//		command += " ";
-//		command = command.concat(code.toString()).concat(value.toString());
-//	}
-}
\ No newline at end of file
+}
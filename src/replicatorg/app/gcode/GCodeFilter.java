@@ -0,0 +1,216 @@
+package replicatorg.app.gcode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import replicatorg.machine.model.ToolheadAlias;
+
+/**
+ * One stage of a GCodePipeline. A filter is handed the gcode a line at a time
+ * and passes on whatever it wants the next stage to see with emit(): the same
+ * line, a changed one, extra lines, or nothing.
+ *
+ * A filter works on the output of the filters before it. So a filter that
+ * prepends code emits it from start(), which is called on the last filter
+ * first, and one that appends code emits it from finish(), which is called
+ * on the first filter first.
+ *
+ * The filters for the usual post-processing steps are here too.
+ */
+public abstract class GCodeFilter {
+
+	private GCodeFilter next;
+
+	void setNext(GCodeFilter next) {
+		this.next = next;
+	}
+
+	/**
+	 * Called before the first line.
+	 * @param size roughly how many bytes of gcode (counting a newline per line)
+	 *   will come through this filter
+	 */
+	protected void start(long size) throws IOException { }
+
+	/** Called for each line; by default passes it on unchanged */
+	protected void line(String line) throws IOException {
+		emit(line);
+	}
+
+	/** Called after the last line */
+	protected void finish() throws IOException { }
+
+	/** @return roughly how many bytes this filter adds to the gcode, so later stages can size their start() */
+	protected long getAddedBytes() {
+		return 0;
+	}
+
+	/** Pass a line on to the next stage */
+	protected final void emit(String line) throws IOException {
+		next.line(line);
+	}
+
+	/** @return the size of the given lines in bytes, with a newline after each */
+	public static long byteCount(Iterable<String> lines) {
+		long result = 0;
+		for (String line : lines)
+			result += line.length() + 1;
+		return result;
+	}
+
+	/** Puts some code before the gcode */
+	public static class Prepend extends GCodeFilter {
+		private final List<String> code;
+
+		public Prepend(Iterable<String> code) {
+			this.code = copy(code);
+		}
+
+		protected void start(long size) throws IOException {
+			for (String line : code)
+				emit(line);
+		}
+
+		protected long getAddedBytes() {
+			return byteCount(code);
+		}
+	}
+
+	/** Puts some code after the gcode */
+	public static class Append extends GCodeFilter {
+		private final List<String> code;
+
+		public Append(Iterable<String> code) {
+			this.code = copy(code);
+		}
+
+		protected void finish() throws IOException {
+			for (String line : code)
+				emit(line);
+		}
+
+		protected long getAddedBytes() {
+			return byteCount(code);
+		}
+	}
+
+	private static List<String> copy(Iterable<String> code) {
+		if (code instanceof Collection<?>)
+			return new ArrayList<String>((Collection<String>)code);
+		List<String> result = new ArrayList<String>();
+		for (String line : code)
+			result.add(line);
+		return result;
+	}
+
+	/**
+	 * Swaps all references to the the other toolhead to instead reference the
+	 * given one. Alters select G, M and T Codes.
+	 */
+	public static class ChangeToolhead extends GCodeFilter {
+		private final ToolheadAlias tool;
+		private final String offset;
+		private final GCodeCommand gcode = new GCodeCommand();
+
+		public ChangeToolhead(ToolheadAlias tool) {
+			this.tool = tool;
+			offset = tool.getRecallOffsetGcodeCommand();
+		}
+
+		protected void line(String line) throws IOException {
+			emit(change(line));
+		}
+
+		String change(String line) {
+			gcode.parse(line);
+
+			if (gcode.hasCode('T')) {
+				int value = (int)gcode.getCodeValue('T');
+				if (value != tool.number) {
+					if (value == 0)
+						line = line.replace("T0", "T1");
+					else if (value == 1)
+						line = line.replace("T1", "T0");
+				}
+			}
+			double g = gcode.getCodeValue('G');
+			if (g == 54 && !offset.equals("G54"))
+				line = line.replace("G54", offset);
+			if (g == 55 && !offset.equals("G55"))
+				line = line.replace("G55", offset);
+			return line;
+		}
+	}
+
+	/** Removes all lines that are skeinforge tag comments, but not layer tags */
+	public static class StripNonLayerTagComments extends GCodeFilter {
+		protected void line(String line) throws IOException {
+			if (line.startsWith("(<") && !(line.startsWith("(<layer>") || line.startsWith("(</layer")))
+				return;
+			emit(line);
+		}
+	}
+
+	/*
+	 * TRICKY: M73 P0 is required by The Replicator to enable % display
+	 * and M73 P100 is required at the end. These are in TheReplicator start.gcode
+	 * and end.gcode. P0 and P100 are flags to send the build_start and build_end
+	 * notifications to the firmware, and more than one BUILD_DONE causes problems
+	 * for it, so the updates added here are kept between P1 and P99.
+	 */
+	private static String progressUpdate(long done, long size) {
+		int percentDone = size == 0 ? 0 : (int)(done * 100 / size);
+		if (percentDone <= 0) percentDone = 1;
+		if (percentDone >= 100) percentDone = 99;
+		return "M73 P" + percentDone + " (display progress)";
+	}
+
+	/**
+	 * Adds an M73 for approx % done whenever the percentage changes, going by
+	 * how many bytes of gcode have gone by.
+	 */
+	public static class ProgressUpdates extends GCodeFilter {
+		private long size;
+		private long done;
+		private int lastPercent;
+
+		protected void start(long size) {
+			this.size = size;
+			done = 0;
+			lastPercent = 0;
+		}
+
+		protected void line(String line) throws IOException {
+			int percentDone = size == 0 ? 0 : (int)(done * 100 / size);
+			if (percentDone != lastPercent) {
+				emit(progressUpdate(done, size));
+				lastPercent = percentDone;
+			}
+			emit(line);
+			done += line.length() + 1;
+		}
+	}
+
+	/**
+	 * Adds an M73 for approx % done at the start of each layer, going by how
+	 * many bytes of gcode have gone by.
+	 */
+	public static class LayerProgressUpdates extends GCodeFilter {
+		private long size;
+		private long done;
+
+		protected void start(long size) {
+			this.size = size;
+			done = 0;
+		}
+
+		protected void line(String line) throws IOException {
+			if (line.startsWith("(<layer>"))
+				emit(progressUpdate(done, size));
+			emit(line);
+			done += line.length() + 1;
+		}
+	}
+}
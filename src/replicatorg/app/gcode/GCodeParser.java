@@ -98,7 +98,7 @@ public class GCodeParser {
 		double bY;
 
 		// figure out our deltas
-		Point5d current = driver.getCurrentPosition(false);
+		Point5d current = getCurrentPosition();
 		aX = current.x() - center.x();
 		aY = current.y() - center.y();
 		bX = endpoint.x() - center.x();
@@ -167,13 +167,13 @@ public class GCodeParser {
 	protected Point3d currentOffset;
 
 	// false = incremental; true = absolute
-	boolean absoluteMode = false;
+	protected boolean absoluteMode = false;
 
 	// our feedrate variables.
 	/**
 	 * Feedrate in mm/minute.
 	 */
-	double feedrate = 0.0;
+	protected double feedrate = 0.0;
 
 	// current selected tool
 	protected int tool = ToolheadAlias.SINGLE.number;
@@ -184,6 +184,9 @@ public class GCodeParser {
 	public static int UNITS_INCHES = 1;
 
 	protected int units;
+
+	// Reused for every line we parse, to keep the per-line work allocation free
+	private final GCodeCommand gcode = new GCodeCommand();
 	
 	/**
 	 * Creates the driver object.
@@ -208,6 +211,22 @@ public class GCodeParser {
 		return driver.getMaximumFeedrates().x();
 	}
 
+	/**
+	 * Get the position that the next command will start from. By default this is the
+	 * driver's current position; parsers that run ahead of the driver override this.
+	 */
+	protected Point5d getCurrentPosition() {
+		return driver.getCurrentPosition(false);
+	}
+
+	/**
+	 * Get the given offset system from the driver: 0 is the master offset, 1-6 are
+	 * the fixture offsets. Parsers that run ahead of the driver override this.
+	 */
+	protected Point3d getOffset(int index) {
+		return driver.getOffset(index);
+	}
+
 	/**
 	 * initialize parser with values from the driver
 	 */
@@ -216,7 +235,7 @@ public class GCodeParser {
 		driver = drv;
 		
 		// init our offset variables
-		currentOffset = driver.getOffset(0);
+		currentOffset = getOffset(0);
 	}
 
 	/**
@@ -228,7 +247,16 @@ public class GCodeParser {
 	public boolean parse(String cmd, Queue< DriverCommand > commandQueue) {
 		
 		// First, parse the GCode string into an object we can query.
-		GCodeCommand gcode = new GCodeCommand(cmd);
+		return parse(gcode.parse(cmd), commandQueue);
+	}
+
+	/**
+	 * Package a line of GCode that has already been parsed into driver commands,
+	 * and queue them for execution.
+	 * 
+	 * @param gcode the parsed line. Only read while this call runs, so it may be reused.
+	 */
+	public boolean parse(GCodeCommand gcode, Queue< DriverCommand > commandQueue) {
 
 		// Now, convert the GCode instruction into a series of driver commands,
 		// that will be executed by execute()
@@ -285,7 +313,7 @@ public class GCodeParser {
 
 		tool = (int) gcode.getCodeValue('T');
 		commands.add(new replicatorg.drivers.commands.SelectTool(tool));
-		currentOffset = driver.getOffset(tool+1);
+		currentOffset = getOffset(tool+1);
 	}
 
 	private void buildMCodes(GCodeCommand gcode, Queue< DriverCommand > commands) throws GCodeException {
@@ -619,7 +647,7 @@ public class GCodeParser {
 		}
 		
 		// start us off at our current position...
-		Point5d pos = driver.getCurrentPosition(false);
+		Point5d pos = getCurrentPosition();
 
 		// initialize our points, etc.
 		double iVal = convertToMM(gcode.getCodeValue('I'), units); // / X offset
@@ -723,7 +751,7 @@ public class GCodeParser {
 				commands.add(new replicatorg.drivers.commands.SetFeedrate(feedrate));
 			} else {
 				// Compute the most rapid possible rate for this move.
-				Point5d diff = driver.getCurrentPosition(false);
+				Point5d diff = getCurrentPosition();
 				diff.sub(pos);
 				diff.absolute();
 				double length = diff.length();
@@ -760,7 +788,7 @@ public class GCodeParser {
 			if (gcode.hasCode('I') || gcode.hasCode('J')) {
 				// our centerpoint
 				Point5d center = new Point5d();
-				Point5d current = driver.getCurrentPosition(false);
+				Point5d current = getCurrentPosition();
 				center.setX(current.x() + iVal);
 				center.setY(current.y() + jVal);
 
@@ -851,31 +879,31 @@ public class GCodeParser {
 			break;
 		// master offset
 		case G53:
-			currentOffset = driver.getOffset(0);
+			currentOffset = getOffset(0);
 			break;
 		// fixture offset 1
 		case G54:
-			currentOffset = driver.getOffset(1);
+			currentOffset = getOffset(1);
 			break;
 		// fixture offset 2
 		case G55:
-			currentOffset = driver.getOffset(2);
+			currentOffset = getOffset(2);
 			break;
 		// fixture offset 3
 		case G56:
-			currentOffset = driver.getOffset(3);
+			currentOffset = getOffset(3);
 			break;
 		// fixture offset 4
 		case G57:
-			currentOffset = driver.getOffset(4);
+			currentOffset = getOffset(4);
 			break;
 		// fixture offset 5
 		case G58:
-			currentOffset = driver.getOffset(5);
+			currentOffset = getOffset(5);
 			break;
 		// fixture offset 6
 		case G59:
-			currentOffset = driver.getOffset(6);
+			currentOffset = getOffset(6);
 			break;
 		// Absolute Positioning
 		case G90:
@@ -887,7 +915,7 @@ public class GCodeParser {
 			break;
 		// Set position
 		case G92:
-			Point5d current = driver.getCurrentPosition(false);
+			Point5d current = getCurrentPosition();
 
 			if (gcode.hasCode('X'))
 				current.setX(xVal);
@@ -0,0 +1,119 @@
+package replicatorg.app.gcode;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import replicatorg.app.util.FileUtils;
+
+/**
+ * A chain of GCodeFilters, run over a gcode in a single pass. Each line is
+ * read, handed through every filter in turn and written out before the next
+ * one is read, so running more filters doesn't mean more passes over the
+ * file, or more copies of it in memory.
+ */
+public class GCodePipeline {
+
+	private final List<GCodeFilter> filters = new ArrayList<GCodeFilter>();
+
+	/** Adds a filter to the end of the pipeline */
+	public GCodePipeline add(GCodeFilter filter) {
+		filters.add(filter);
+		return this;
+	}
+
+	public boolean isEmpty() {
+		return filters.isEmpty();
+	}
+
+	/**
+	 * Runs the gcode in source through the pipeline into dest. They may be the
+	 * same file; the result is written next to dest and then moved over it.
+	 */
+	public void run(File source, File dest) throws IOException {
+		File temp = File.createTempFile(dest.getName(), ".tmp", dest.getAbsoluteFile().getParentFile());
+		try {
+			final BufferedWriter writer = new BufferedWriter(new FileWriter(temp));
+			try {
+				BufferedReader reader = new BufferedReader(new FileReader(source));
+				try {
+					run(reader, source.length(), new GCodeFilter() {
+						protected void line(String line) throws IOException {
+							writer.write(line);
+							writer.write('\n');
+						}
+					});
+				} finally {
+					reader.close();
+				}
+			} finally {
+				writer.close();
+			}
+			FileUtils.replaceFile(temp, dest);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/** Runs the gcode in source through the pipeline, replacing it with the result */
+	public void run(MutableGCodeSource source) {
+		final ArrayList<String> result = new ArrayList<String>(source.source.size());
+		try {
+			run(source.source, GCodeFilter.byteCount(source.source), new GCodeFilter() {
+				protected void line(String line) {
+					result.add(line);
+				}
+			});
+		} catch (IOException e) {
+			// Nothing here does any IO
+			throw new RuntimeException(e);
+		}
+		source.source = result;
+	}
+
+	private void run(Iterable<String> lines, long size, GCodeFilter sink) throws IOException {
+		GCodeFilter first = connect(sink, size);
+		for (String line : lines)
+			first.line(line);
+		finish();
+	}
+
+	private void run(BufferedReader reader, long size, GCodeFilter sink) throws IOException {
+		GCodeFilter first = connect(sink, size);
+		for (String line = reader.readLine(); line != null; line = reader.readLine())
+			first.line(line);
+		finish();
+	}
+
+	/**
+	 * Chains the filters together and into the sink, and starts them.
+	 * @return the first stage
+	 */
+	private GCodeFilter connect(GCodeFilter sink, long size) throws IOException {
+		for (int i = 0; i < filters.size(); i++)
+			filters.get(i).setNext(i + 1 < filters.size() ? filters.get(i + 1) : sink);
+
+		// each filter is told how much will reach it, which includes whatever
+		// the filters before it add
+		long[] sizes = new long[filters.size()];
+		for (int i = 0; i < filters.size(); i++) {
+			sizes[i] = size;
+			size += filters.get(i).getAddedBytes();
+		}
+		// the last one first, so that anything a filter prepends goes
+		// through a filter that's ready for it
+		for (int i = filters.size() - 1; i >= 0; i--)
+			filters.get(i).start(sizes[i]);
+		return filters.isEmpty() ? sink : filters.get(0);
+	}
+
+	private void finish() throws IOException {
+		for (GCodeFilter filter : filters)
+			filter.finish();
+	}
+}
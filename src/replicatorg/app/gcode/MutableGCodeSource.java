@@ -1,6 +1,7 @@
 package replicatorg.app.gcode;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -12,6 +13,7 @@ import java.util.List;
 import java.util.logging.Level;
 
 import replicatorg.app.Base;
+import replicatorg.app.util.FileUtils;
 import replicatorg.machine.model.ToolheadAlias;
 import replicatorg.model.GCodeSource;
 
@@ -111,17 +113,26 @@ public class MutableGCodeSource implements GCodeSource {
 	}
 	
 	/// writes the gcode to file, no path expansion or file testing happens before write attempt.
+	/// The gcode goes to a temporary file that is then moved over f, so f may be the file
+	/// the editor has mapped.
 	public void writeToFile(File f) {
-
+		File temp = null;
 		try {
-			FileWriter bwr = new FileWriter(f);
-
-			for (String s : source) {
-				bwr.write(s + "\n");
+			temp = File.createTempFile(f.getName(), ".tmp", f.getAbsoluteFile().getParentFile());
+			BufferedWriter bwr = new BufferedWriter(new FileWriter(temp));
+			try {
+				for (String s : source) {
+					bwr.write(s + "\n");
+				}
+			} finally {
+				bwr.close();
 			}
-			bwr.close();
+			FileUtils.replaceFile(temp, f);
 		} catch (IOException e) {
 			Base.logger.log(Level.SEVERE, "Could not write MutableGCodeSource to file.", e);
+		} finally {
+			if (temp != null)
+				temp.delete();
 		}
 	}
 	
@@ -141,39 +152,7 @@ public class MutableGCodeSource implements GCodeSource {
 	/// Runs through this gcode file, swapping all references to the the current toolhead 
 	/// to instread reference the specified toolhead.  Alters select G, M and T Codes.
 	public void changeToolhead(ToolheadAlias tool) {
-		GCodeCommand gcode;
-		int value;
-		String line;
-		///FUTURE: create a synchronize block here someday
-		ArrayList<String> newSource = new ArrayList<String>(source.size());
-		for(Iterator<String> it = source.iterator(); it.hasNext(); )
-		{
-			line = it.next();
-			gcode = new GCodeCommand(line);
-
-			if(gcode.hasCode('T'))
-			{
-				value = (int)gcode.getCodeValue('T');
-				if(value != tool.number)
-				{
-					if(value == 0)
-						line = line.replace("T0", "T1");
-					else if(value == 1)
-						line = line.replace("T1", "T0");
-				}
-			}
-			if(gcode.getCodeValue('G') == 54 && !(tool.getRecallOffsetGcodeCommand().equals("G54")))
-			{
-				line = line.replace("G54", tool.getRecallOffsetGcodeCommand());
-			}
-			if(gcode.getCodeValue('G') == 55 && !(tool.getRecallOffsetGcodeCommand().equals("G55")))
-			{
-				line = line.replace("G55", tool.getRecallOffsetGcodeCommand());
-			}
-			newSource.add(line);
-		}
-		
-		source = newSource;
+		new GCodePipeline().add(new GCodeFilter.ChangeToolhead(tool)).run(this);
 	}
 	
 	/**
@@ -220,69 +199,19 @@ public class MutableGCodeSource implements GCodeSource {
 		
 	}
 	/// Scans gcode for layer start/ends. Adds gcode for approx % done 
-	/// by that layer via using line count
+	/// by that layer. See GCodeFilter.LayerProgressUpdates
 	public void addSlic3rProgressUpdates()
 	{
-		int index = 0;
-		int sourceSize = source.size();
-		ArrayList<String> newSource = new ArrayList<String>();
-		/// TRICKY: M73 P0 is required by The Replicator to enable % display
-		// and M73 P100. is required at the end. These are in TheReplicator start.gcode
-		// and end.gcode.  P0 and P100 are flags to send the build_start and build_end  notifications
-		// to the firmware.  A possible less tricky fix is to make a separate command for these
-		for(String line : source)
-		{
-			if( line.startsWith("(<layer>") )
-			{
-				int percentDone = (int)(index*100)/sourceSize;
-				if(percentDone == 0) percentDone = 1; 
-				if(percentDone == 100)	percentDone = 99; 
-				//^^See Footnote 1
-				newSource.add("M73 P"+percentDone+" (display progress)");
-			}
-			newSource.add(line);
-			index++;
-		}
-		source = newSource;
+		new GCodePipeline().add(new GCodeFilter.LayerProgressUpdates()).run(this);
 	}
-	// Footnote 1: The only 'M37 100' that should happen is part of the end.gcode, since 
-	// 'M73 100' sends an s3g 'BUILD_DONE', and more than 1 'BUILD_DONE' message 
-	// causes problems for the firmware.
-    // the only M73 0 that happens should be part of the start gcode to specify the filename
 
-	
-	/// Scans gcode for layer start/ends. Adds gcode for approx % done 
-	/// by that layer via using line count
+	/// Adds gcode for approx % done whenever the percentage changes.
+	/// See GCodeFilter.ProgressUpdates
 	public void addProgressUpdates()
 	{
-		int index = 0;
-		int sourceSize = source.size();
-		ArrayList<String> newSource = new ArrayList<String>();
-		/// TRICKY: M73 P0 is required by The Replicator to enable % display
-		// and M73 P100. is required at the end. These are in TheReplicator start.gcode
-		// and end.gcode.  P0 and P100 are flags to send the build_start and build_end  notifications
-		// to the firmware.  A possible less tricky fix is to make a separate command for these
-    int last_percent = 0;
-		for(String line : source)
-		{
-      
-      int percentDone = (int)(index*100)/sourceSize;
-      if (percentDone != last_percent)
-			{
-				if(percentDone == 0)	percentDone = 1; 
-				if(percentDone == 100)	percentDone = 99; 
-				//^^See Footnote 1
-				newSource.add("M73 P"+percentDone+" (display progress)");
-        last_percent = percentDone;
-			}
-			newSource.add(line);
-			index++;
-		}
-		source = newSource;
+		new GCodePipeline().add(new GCodeFilter.ProgressUpdates()).run(this);
 	}
 
-
-	
 	/// Make a deep copy of this MutableGCodeSource and returns it to the caller.
 	public MutableGCodeSource copy() {
 		MutableGCodeSource newSource = new MutableGCodeSource();
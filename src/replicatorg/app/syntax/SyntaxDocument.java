@@ -25,6 +25,19 @@ import javax.swing.undo.UndoableEdit;
  */
 public class SyntaxDocument extends PlainDocument
 {
+        public SyntaxDocument()
+        {
+        }
+
+        /**
+         * Creates a document that keeps its text in the given content,
+         * for subclasses that don't hold it all in memory.
+         */
+        protected SyntaxDocument(Content content)
+        {
+                super(content);
+        }
+
         /**
          * Returns the token marker that is to be used to split lines
          * of this document up into tokens. May return null if this
@@ -38,7 +51,8 @@ public class SyntaxDocument extends PlainDocument
         /**
          * Sets the token marker that is to be used to split lines of
          * this document up into tokens. May throw an exception if
-         * this is not supported for this type of document.
+         * this is not supported for this type of document. Lines are
+         * tokenized as they are painted, not here.
          * @param tm The new token marker
          */
         public void setTokenMarker(TokenMarker tm)
@@ -46,15 +60,15 @@ public class SyntaxDocument extends PlainDocument
                 tokenMarker = tm;
                 if(tm == null)
                         return;
+                tm.document = this;
                 tokenMarker.insertLines(0,getDefaultRootElement()
                         .getElementCount());
-                tokenizeLines();
         }
 
         /**
          * Reparses the document, by passing all lines to the token
-         * marker. This should be called after the document is first
-         * loaded.
+         * marker. The token marker does this itself for the lines it
+         * is asked for, so this is seldom needed.
          */
         public void tokenizeLines()
         {
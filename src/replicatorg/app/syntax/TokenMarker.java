@@ -9,6 +9,8 @@
 
 package replicatorg.app.syntax;
 
+import java.util.BitSet;
+
 import javax.swing.text.Segment;
 
 /**
@@ -19,7 +21,14 @@ import javax.swing.text.Segment;
  * For performance reasons, the linked list of tokens is reused after each
  * line is tokenized. Therefore, the return value of <code>markTokens</code>
  * should only be used for immediate painting. Notably, it cannot be
- * cached.
+ * cached.<p>
+ *
+ * Lines are tokenized as they are asked for, not when the document is
+ * loaded. Each line keeps only the token it ends with, one byte, which is
+ * what the next line starts from. Asking for a line whose predecessors
+ * haven't been tokenized yet tokenizes them first, but looks no further
+ * back than <code>MAX_CATCH_UP</code> lines; a jump into the middle of a
+ * large file starts from <code>Token.NULL</code> at that point instead.
  *
  * @author Slava Pestov
  * @version $Id: TokenMarker.java 85 2006-01-12 23:24:12Z mellis $
@@ -42,20 +51,28 @@ public abstract class TokenMarker
                                 + lineIndex);
                 }
 
+                if(lineIndex > 0 && !known.get(lineIndex - 1)
+                        && document != null && !catchingUp
+                        && supportsMultilineTokens())
+                        catchUp(lineIndex);
+
                 lastToken = null;
 
-                LineInfo info = lineInfo[lineIndex];
-                LineInfo prev;
-                if(lineIndex == 0)
-                        prev = null;
+                byte prev;
+                if(lineIndex == 0 || !known.get(lineIndex - 1))
+                        prev = Token.NULL;
                 else
-                        prev = lineInfo[lineIndex - 1];
+                        prev = lineTokens[lineIndex - 1];
 
-                byte oldToken = info.token;
-                byte token = markTokensImpl(prev == null ?
-                        Token.NULL : prev.token,line,lineIndex);
+                byte oldToken = lineTokens[lineIndex];
+                byte token = markTokensImpl(prev,line,lineIndex);
 
-                info.token = token;
+                lineTokens[lineIndex] = token;
+                known.set(lineIndex);
+
+                // The lines below were tokenized from the old state
+                if(oldToken != token)
+                        known.clear(lineIndex + 1,length);
 
                 /*
                  * This is a foul hack. It stops nextLineRequested
@@ -105,6 +122,29 @@ public abstract class TokenMarker
                 return firstToken;
         }
 
+        /**
+         * Tokenizes the lines above <code>lineIndex</code> that haven't
+         * been yet, back to the last one that has or at most
+         * <code>MAX_CATCH_UP</code> lines.
+         */
+        private void catchUp(int lineIndex)
+        {
+                int limit = Math.max(0,lineIndex - MAX_CATCH_UP);
+                int start = lineIndex - 1;
+                while(start > limit && !known.get(start - 1))
+                        start--;
+
+                catchingUp = true;
+                try
+                {
+                        document.tokenizeLines(start,lineIndex - start);
+                }
+                finally
+                {
+                        catchingUp = false;
+                }
+        }
+
         /**
          * An abstract method that splits a line up into tokens. It
          * should parse the line, and call <code>addToken()</code> to
@@ -141,8 +181,9 @@ public abstract class TokenMarker
 
         /**
          * Informs the token marker that lines have been inserted into
-         * the document. This inserts a gap in the <code>lineInfo</code>
-         * array.
+         * the document. This inserts a gap in the <code>lineTokens</code>
+         * array; the lines from <code>index</code> on are tokenized again
+         * when they are next asked for.
          * @param index The first line number
          * @param lines The number of lines
          */
@@ -153,19 +194,21 @@ public abstract class TokenMarker
                 length += lines;
                 ensureCapacity(length);
                 int len = index + lines;
-                System.arraycopy(lineInfo,index,lineInfo,len,
-                        lineInfo.length - len);
+                System.arraycopy(lineTokens,index,lineTokens,len,
+                        length - len);
 
                 for(int i = index + lines - 1; i >= index; i--)
                 {
-                        lineInfo[i] = new LineInfo();
+                        lineTokens[i] = Token.NULL;
                 }
+                known.clear(index,length);
         }
 
         /**
          * Informs the token marker that line have been deleted from
          * the document. This removes the lines in question from the
-         * <code>lineInfo</code> array.
+         * <code>lineTokens</code> array; the lines from <code>index</code>
+         * on are tokenized again when they are next asked for.
          * @param index The first line number
          * @param lines The number of lines
          */
@@ -174,9 +217,10 @@ public abstract class TokenMarker
                 if (lines <= 0)
                         return;
                 int len = index + lines;
+                known.clear(index,length);
                 length -= lines;
-                System.arraycopy(lineInfo,len,lineInfo,
-                        index,lineInfo.length - len);
+                System.arraycopy(lineTokens,len,lineTokens,
+                        index,length - index);
         }
 
         /**
@@ -212,15 +256,19 @@ public abstract class TokenMarker
         protected Token lastToken;
 
         /**
-         * An array for storing information about lines. It is enlarged and
-         * shrunk automatically by the <code>insertLines()</code> and
-         * <code>deleteLines()</code> methods.
+         * The id of the last token of each line. It is enlarged
+         * automatically by the <code>insertLines()</code> method.
+         */
+        protected byte[] lineTokens;
+
+        /**
+         * The lines whose entry in <code>lineTokens</code> is up to date.
          */
-        protected LineInfo[] lineInfo;
+        protected BitSet known = new BitSet();
 
         /**
          * The number of lines in the model being tokenized. This can be
-         * less than the length of the <code>lineInfo</code> array.
+         * less than the length of the <code>lineTokens</code> array.
          */
         protected int length;
 
@@ -234,9 +282,24 @@ public abstract class TokenMarker
          */
         protected boolean nextLineRequested;
 
+        /**
+         * The most lines tokenized to catch up before a line that is
+         * asked for.
+         */
+        protected static final int MAX_CATCH_UP = 1000;
+
+        /**
+         * The document being tokenized, set by
+         * <code>SyntaxDocument.setTokenMarker()</code>. Lines are fetched
+         * from it to catch up.
+         */
+        SyntaxDocument document;
+
+        private boolean catchingUp;
+
         /**
          * Creates a new <code>TokenMarker</code>. This DOES NOT create
-         * a lineInfo array; an initial call to <code>insertLines()</code>
+         * a lineTokens array; an initial call to <code>insertLines()</code>
          * does that.
          */
         protected TokenMarker()
@@ -245,26 +308,26 @@ public abstract class TokenMarker
         }
 
         /**
-         * Ensures that the <code>lineInfo</code> array can contain the
+         * Ensures that the <code>lineTokens</code> array can contain the
          * specified index. This enlarges it if necessary. No action is
          * taken if the array is large enough already.<p>
          *
          * It should be unnecessary to call this under normal
          * circumstances; <code>insertLine()</code> should take care of
-         * enlarging the line info array automatically.
+         * enlarging the line token array automatically.
          *
          * @param index The array index
          */
         protected void ensureCapacity(int index)
         {
-                if(lineInfo == null)
-                        lineInfo = new LineInfo[index + 1];
-                else if(lineInfo.length <= index)
+                if(lineTokens == null)
+                        lineTokens = new byte[index + 1];
+                else if(lineTokens.length <= index)
                 {
-                        LineInfo[] lineInfoN = new LineInfo[(index + 1) * 2];
-                        System.arraycopy(lineInfo,0,lineInfoN,0,
-                                         lineInfo.length);
-                        lineInfo = lineInfoN;
+                        byte[] lineTokensN = new byte[(index + 1) * 2];
+                        System.arraycopy(lineTokens,0,lineTokensN,0,
+                                         lineTokens.length);
+                        lineTokens = lineTokensN;
                 }
         }
 
@@ -312,41 +375,4 @@ public abstract class TokenMarker
 			}
 
         }
-
-        /**
-         * Inner class for storing information about tokenized lines.
-         */
-        public class LineInfo
-        {
-                /**
-                 * Creates a new LineInfo object with token = Token.NULL
-                 * and obj = null.
-                 */
-                public LineInfo()
-                {
-                }
-
-                /**
-                 * Creates a new LineInfo object with the specified
-                 * parameters.
-                 */
-                public LineInfo(byte token, Object obj)
-                {
-                        this.token = token;
-                        this.obj = obj;
-                }
-
-                /**
-                 * The id of the last token of the line.
-                 */
-                public byte token;
-
-                /**
-                 * This is for use by the token marker implementations
-                 * themselves. It can be used to store anything that
-                 * is an object and that needs to exist on a per-line
-                 * basis.
-                 */
-                public Object obj;
-        }
 }
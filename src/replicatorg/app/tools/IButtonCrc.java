@@ -3,9 +3,28 @@ package replicatorg.app.tools;
 /**
  * This is a Java implementation of the IButton/Maxim 8-bit CRC. Code ported
  * from the AVR-libc implementation, which is used on the RR3G end.
+ * 
+ * The eight shifts per byte are done ahead of time, into a table of the CRC
+ * each byte value turns into.
  */
 public class IButtonCrc {
 
+	private static final int[] TABLE = new int[256];
+
+	static {
+		for (int value = 0; value < 256; value++) {
+			int crc = value;
+			for (int i = 0; i < 8; i++) {
+				if ((crc & 0x01) != 0) {
+					crc = ((crc >>> 1) ^ 0x8c) & 0xff;
+				} else {
+					crc = (crc >>> 1) & 0xff;
+				}
+			}
+			TABLE[value] = crc;
+		}
+	}
+
 	private int crc = 0;
 
 	/**
@@ -24,14 +43,28 @@ public class IButtonCrc {
 	 *            a byte of new data to be added to the crc.
 	 */
 	public void update(byte data) {
-		crc = (crc ^ data) & 0xff; // i loathe java's promotion rules
-		for (int i = 0; i < 8; i++) {
-			if ((crc & 0x01) != 0) {
-				crc = ((crc >>> 1) ^ 0x8c) & 0xff;
-			} else {
-				crc = (crc >>> 1) & 0xff;
-			}
+		crc = TABLE[(crc ^ data) & 0xff]; // i loathe java's promotion rules
+	}
+
+	/**
+	 * Update the CRC with a run of sequential data.
+	 */
+	public void update(byte[] data, int offset, int length) {
+		crc = update(crc, data, offset, length);
+	}
+
+	/**
+	 * Get the CRC of a run of data.
+	 */
+	public static byte compute(byte[] data, int offset, int length) {
+		return (byte) update(0, data, offset, length);
+	}
+
+	private static int update(int crc, byte[] data, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			crc = TABLE[(crc ^ data[i]) & 0xff];
 		}
+		return crc;
 	}
 
 	/**
@@ -532,8 +532,16 @@ public class DualStrusionWindow extends JFrame{
 		}
 		
 		DualStrusionConstruction dsConstruction = new DualStrusionConstruction(leftGcode, rightGcode, startSource, endSource, type, uWipe);
-		dsConstruction.combine();
-		dsConstruction.getCombinedFile().writeToFile(dest);
+		try
+		{
+			dsConstruction.combine(dest);
+		}
+		catch(IOException e)
+		{
+			Base.logger.log(Level.SEVERE, "Could not write combined gcode to " + dest, e);
+			abort("Could not write combined gcode: " + e.getMessage() + ". Cancelling Dualstrusion combination");
+			return;
+		}
 		
 		//we want to have the mainwindow load the new code, now.
 		// that should happen here.
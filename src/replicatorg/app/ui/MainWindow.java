@@ -148,7 +148,9 @@ import replicatorg.model.Build;
 import replicatorg.model.BuildCode;
 import replicatorg.model.BuildElement;
 import replicatorg.model.BuildModel;
+import replicatorg.model.GCodeSource;
 import replicatorg.model.JEditTextAreaSource;
+import replicatorg.model.MappedGCodeSource;
 import replicatorg.plugin.toolpath.ToolpathGenerator;
 import replicatorg.plugin.toolpath.ToolpathGenerator.GeneratorEvent;
 import replicatorg.plugin.toolpath.ToolpathGeneratorFactory;
@@ -454,7 +456,8 @@ ToolpathGenerator.GeneratorListener
 
 		// Have UI elements listen to machine state.
 		machineLoader.addMachineListener(this);
-		machineLoader.addMachineListener(machineStatusPanel);
+		// the status line only needs redrawing a few times a second
+		machineLoader.addMachineListener(machineStatusPanel, 100);
 		machineLoader.addMachineListener(buttons);
 	}
 
@@ -1977,17 +1980,23 @@ ToolpathGenerator.GeneratorListener
 	 */
 	public void setCode(BuildCode code) {
 		if (code == null) return;
-		if (code.document == null) { // this document not yet inited
-			code.document = new SyntaxDocument();
+		// large files are mapped, and come with a document already
+		if (code.document == null || code.document.getTokenMarker() == null) { // this document not yet inited
+			boolean loaded = code.document == null;
+			if (loaded) {
+				code.document = new SyntaxDocument();
+			}
 
 			// turn on syntax highlighting
 			code.document.setTokenMarker(new PdeKeywords());
 
 			// insert the program text into the document object
-			try {
-				code.document.insertString(0, code.program, null);
-			} catch (BadLocationException bl) {
-				bl.printStackTrace();
+			if (loaded) {
+				try {
+					code.document.insertString(0, code.program, null);
+				} catch (BadLocationException bl) {
+					bl.printStackTrace();
+				}
 			}
 
 			final UndoManager undo = code.getUndoManager();
@@ -2155,6 +2164,31 @@ ToolpathGenerator.GeneratorListener
 		}
 	}
 	
+	// Files at least this large are built straight from disk rather than from the editor
+	private static final long MAPPED_SOURCE_MIN_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * Get the gcode to build or estimate. Large files that haven't been edited are
+	 * mapped from disk, so the build doesn't need a second copy of every line on the heap.
+	 * With the command cache on, any unedited file is, so its compiled form can be cached
+	 * next to it. Not on Windows, which won't let a mapped file be deleted or replaced,
+	 * and a mapping is only let go of when it's garbage collected.
+	 */
+	private GCodeSource getBuildSource()
+	{
+		BuildCode code = (build == null) ? null : build.getCode();
+		long minSize = Base.preferences.getBoolean("build.commandCache", false) ? 0 : MAPPED_SOURCE_MIN_SIZE;
+		if (!Base.isWindows() && code != null && !code.isModified() && code.file != null
+				&& code.file.exists() && code.file.length() >= minSize) {
+			try {
+				return new MappedGCodeSource(code.file);
+			} catch (IOException e) {
+				Base.logger.log(Level.WARNING, "Could not map " + code.file + ", building from the editor", e);
+			}
+		}
+		return new JEditTextAreaSource(textarea);
+	}
+
 	public void doBuild()
 	{
 		if (!machineLoader.isLoaded()) {
@@ -2177,7 +2211,7 @@ ToolpathGenerator.GeneratorListener
 			message("Building...");
 			buildStart = new Date();
 			
-			machineLoader.getMachineInterface().buildDirect(new JEditTextAreaSource(textarea));
+			machineLoader.getMachineInterface().buildDirect(getBuildSource());
 			//doing this check allows us to recover from pre-build stuff
 //			if(machineLoader.getMachineInterface().buildDirect(new JEditTextAreaSource(textarea)) == false)
 //			{
@@ -2679,7 +2713,7 @@ ToolpathGenerator.GeneratorListener
 
 		public void run() {
 			message("Estimating...");
-			machineLoader.getMachineInterface().estimate(new JEditTextAreaSource(textarea));
+			machineLoader.getMachineInterface().estimate(getBuildSource());
 			editor.estimationOver();
 		}
 	}
@@ -3203,50 +3237,18 @@ ToolpathGenerator.GeneratorListener
 			textarea.select(0, 0);
 			return;
 		}
-		// System.out.println(lnum);
-		String s = textarea.getText();
-		int len = s.length();
-		int st = -1;
-		int ii = 0;
-		int end = -1;
-		int lc = 0;
-		if (lnum == 0)
-			st = 0;
-		for (int i = 0; i < len; i++) {
-			ii++;
-			// if ((s.charAt(i) == '\n') || (s.charAt(i) == '\r')) {
-			boolean newline = false;
-			if (s.charAt(i) == '\r') {
-				if ((i != len - 1) && (s.charAt(i + 1) == '\n')) {
-					i++; // ii--;
-				}
-				lc++;
-				newline = true;
-			} else if (s.charAt(i) == '\n') {
-				lc++;
-				newline = true;
-			}
-			if (newline) {
-				if (lc == lnum)
-					st = ii;
-				else if (lc == lnum + 1) {
-					// end = ii;
-					// to avoid selecting entire, because doing so puts the
-					// cursor on the next line [0090]
-					end = ii - 1;
-					break;
-				}
-			}
-		}
-		if (end == -1)
-			end = len;
-
 		// sometimes KJC claims that the line it found an error in is
 		// the last line in the file + 1. Just highlight the last line
 		// in this case. [dmose]
-		if (st == -1)
-			st = len;
-
+		if (lnum >= textarea.getLineCount()) {
+			int len = textarea.getDocumentLength();
+			textarea.select(len, len);
+			return;
+		}
+		// to avoid selecting entire, because doing so puts the
+		// cursor on the next line [0090]
+		int st = textarea.getLineStartOffset(lnum);
+		int end = textarea.getLineEndOffset(lnum) - 1;
 		textarea.select(st, end);
 	}
 
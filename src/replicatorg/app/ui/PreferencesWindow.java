@@ -198,8 +198,12 @@ public class PreferencesWindow extends JFrame implements GuiConstants {
 		addCheckboxForPref(content,"Automatically connect to machine at startup","replicatorg.autoconnect",true);
 		addCheckboxForPref(content,"Show experimental machine profiles","machine.showExperimental",false);
 		addCheckboxForPref(content,"Review GCode for potential toolhead problems before building","build.safetyChecks",true);
+		addCheckboxForPref(content,"Parse GCode ahead of the machine during builds (experimental)","build.pipelined",false);
+		addCheckboxForPref(content,"Cache parsed GCode next to the file for faster rebuilds (experimental)","build.commandCache",false);
+		addCheckboxForPref(content,"Plan acceleration on the host for firmware without it (experimental)","build.hostPlanner",false);
 		addCheckboxForPref(content,"Break Z motion into separate moves (normally false)","replicatorg.parser.breakzmoves",false);
 		addCheckboxForPref(content,"Show starfield in model preview window","ui.show_starfield",false);
+		addCheckboxForPref(content,"Save models as ASCII STL rather than binary","model.saveAscii",false);
 		addCheckboxForPref(content,"Notifications in System tray","ui.preferSystemTrayNotifications",false);
 		addCheckboxForPref(content,"Automatically regenerate gcode when building from model view.","build.autoGenerateGcode",true);
 		addCheckboxForPref(content,"Use native avrdude for uploading code","uploader.useNative",false);
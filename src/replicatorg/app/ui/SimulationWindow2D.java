@@ -38,15 +38,15 @@ import java.awt.LayoutManager;
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionListener;
 import java.awt.geom.Rectangle2D;
-import java.util.Enumeration;
-import java.util.List;
-import java.util.ListIterator;
-import java.util.Vector;
+import java.awt.image.BufferedImage;
 
 import javax.swing.JComponent;
+import javax.swing.Timer;
 import javax.vecmath.Point3d;
 
 import replicatorg.util.Point5d;
@@ -388,11 +388,25 @@ public class SimulationWindow2D extends SimulationWindow implements
 
 	/** 
 	 * Manages info about the build area preview window. 
+	 * 
+	 * The toolpath is kept a layer at a time in a ToolpathLayers. The layer
+	 * being built, over the layer below it, is drawn into an image as points
+	 * arrive, so each frame only draws the segments added since the last one.
+	 * The image is redrawn from the layers when the build moves to a new layer
+	 * or the view's scale changes. Points don't repaint the view themselves; a
+	 * timer repaints it at most FRAME_MILLIS apart while points are arriving.
+	 *
+	 * The driver's thread leaves the tool position and the extent of the
+	 * toolpath in the pending fields, under pendingLock. Each frame copies them
+	 * into the fields the drawing uses, which only the event thread touches, so
+	 * painting holds no lock and never keeps the driver waiting.
 	 * @author farmckon
 	 *
 	 */
 	class BuildView extends MyComponent implements MouseMotionListener {
 	
+		private static final int FRAME_MILLIS = 40;
+
 		/// Maximim X 
 		private Point3d minimum;
 		private Point3d maximum;
@@ -400,12 +414,31 @@ public class SimulationWindow2D extends SimulationWindow implements
 		private Point3d current;
 		private double currentZ;
 
+		private final Object pendingLock = new Object();
+		private final Point3d pendingMinimum = new Point3d();
+		private final Point3d pendingMaximum = new Point3d();
+		private Point3d pendingCurrent = null;
+
 		private int mouseX = 0;
 		private int mouseY = 0;
 
 		private double ratio = 1.0;
 
-		private Vector<Point3d> points;
+		private final ToolpathLayers layers = new ToolpathLayers();
+
+		// Set when a point is queued, cleared when the timer repaints
+		private volatile boolean dirty = false;
+		private final Timer frameTimer;
+
+		// The cached drawing, and what it was drawn from
+		private BufferedImage image = null;
+		private ToolpathLayers.Layer imageLayer = null;
+		private int imageCount = 0;
+		private double imageRatio;
+		private double imageMinX, imageMinY;
+
+		private final Color belowColor = new Color(0x99, 0x99, 0xff);
+		private final Color currentColor = new Color(0, 0xb0, 0);
 
 		public BuildView() {
 			// setup our listeners.
@@ -416,8 +449,24 @@ public class SimulationWindow2D extends SimulationWindow implements
 			maximum = new Point3d();
 			currentZ = 0.0;
 
-			// initialize our vector
-			points = new Vector<Point3d>();
+			frameTimer = new Timer(FRAME_MILLIS, new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					if (dirty) {
+						dirty = false;
+						showFrame();
+					}
+				}
+			});
+		}
+
+		public void addNotify() {
+			super.addNotify();
+			frameTimer.start();
+		}
+
+		public void removeNotify() {
+			frameTimer.stop();
+			super.removeNotify();
 		}
 
 		public void mouseMoved(MouseEvent e) {
@@ -449,53 +498,150 @@ public class SimulationWindow2D extends SimulationWindow implements
 		}
 
 		public void queuePoint(Point5d point) {
-			current = new Point3d(point.get3D());
+			Point3d p = new Point3d(point.get3D());
 
 			// System.out.println("queued: " + point.toString());
 
-			if (current.x < minimum.x)
-				minimum.x = current.x;
-			if (current.y < minimum.y)
-				minimum.y = current.y;
-			if (current.z < minimum.z)
-				minimum.z = current.z;
-
-			if (current.x > maximum.x)
-				maximum.x = current.x;
-			if (current.y > maximum.y)
-				maximum.y = current.y;
-			if (current.z > maximum.z)
-				maximum.z = current.z;
-
-			Point3d myPoint = new Point3d(current);
-			synchronized (points) {
-				points.addElement(myPoint);
+			synchronized (pendingLock) {
+				if (p.x < pendingMinimum.x)
+					pendingMinimum.x = p.x;
+				if (p.y < pendingMinimum.y)
+					pendingMinimum.y = p.y;
+				if (p.z < pendingMinimum.z)
+					pendingMinimum.z = p.z;
+
+				if (p.x > pendingMaximum.x)
+					pendingMaximum.x = p.x;
+				if (p.y > pendingMaximum.y)
+					pendingMaximum.y = p.y;
+				if (p.z > pendingMaximum.z)
+					pendingMaximum.z = p.z;
+
+				pendingCurrent = p;
 			}
+			layers.add(p.x, p.y, p.z);
 
-			currentZ = current.z;
+			dirty = true;
+		}
 
+		// Called on the event thread by the frame timer
+		private void showFrame() {
+			synchronized (pendingLock) {
+				minimum.set(pendingMinimum);
+				maximum.set(pendingMaximum);
+				current = pendingCurrent;
+			}
+			if (current != null) {
+				currentZ = current.z;
+			}
 			calculateRatio();
 
 			// set our machine position
-			SimulationWindow2D.hRuler
-					.setMachinePosition(convertRealXToPointX(current.x));
-			SimulationWindow2D.vRuler
-					.setMachinePosition(convertRealYToPointY(current.y));
+			if (current != null) {
+				SimulationWindow2D.hRuler
+						.setMachinePosition(convertRealXToPointX(current.x));
+				SimulationWindow2D.vRuler
+						.setMachinePosition(convertRealYToPointY(current.y));
+			}
+			repaint();
+		}
 
-			buildView.repaint();
+		// Called by the simulation with the extent of the whole build
+		private void setSimulationBounds(Rectangle2D.Double bounds) {
+			synchronized (pendingLock) {
+				pendingMaximum.x = bounds.getMaxX();
+				pendingMinimum.x = bounds.getMinX();
+				pendingMaximum.y = bounds.getMaxY();
+				pendingMinimum.y = bounds.getMinY();
+			}
+			dirty = true;
 		}
 
 		public void paint(Graphics g) {
-			// clear it
-			g.setColor(Color.white);
-			g.fillRect(0, 0, getWidth(), getHeight());
-			// g.clearRect(0, 0, width, height);
+			updateImage();
+			if (image != null) {
+				g.drawImage(image, 0, 0, null);
+			} else {
+				g.setColor(Color.white);
+				g.fillRect(0, 0, getWidth(), getHeight());
+			}
 
 			// draw our text
 			drawHelperText(g);
 
-			// draw our main stuff
-			drawLastPoints(g);
+			// mark where the tool is
+			if (current != null) {
+				g.setColor(Color.black);
+				g.drawOval(convertRealXToPointX(current.x) - 3,
+						convertRealYToPointY(current.y) - 3, 6, 6);
+			}
+		}
+
+		// Bring the cached drawing up to date, from scratch if need be
+		private void updateImage() {
+			int width = getWidth();
+			int height = getHeight();
+			if (width <= 0 || height <= 0) {
+				return;
+			}
+			ToolpathLayers.Layer layer = layers.getCurrent();
+			boolean redraw = image == null || image.getWidth() != width
+					|| image.getHeight() != height || layer != imageLayer
+					|| ratio != imageRatio || minimum.x != imageMinX
+					|| minimum.y != imageMinY;
+			if (redraw) {
+				if (image == null || image.getWidth() != width
+						|| image.getHeight() != height) {
+					image = new BufferedImage(width, height,
+							BufferedImage.TYPE_INT_RGB);
+				}
+				imageRatio = ratio;
+				imageMinX = minimum.x;
+				imageMinY = minimum.y;
+				imageLayer = layer;
+				imageCount = 0;
+			}
+
+			Graphics2D g = image.createGraphics();
+			try {
+				if (redraw) {
+					g.setColor(Color.white);
+					g.fillRect(0, 0, width, height);
+					if (layer != null) {
+						ToolpathLayers.Layer below = layers.getBelow(layer);
+						if (below != null) {
+							drawLayer(g, below, belowColor, 0);
+						}
+					}
+				}
+				if (layer != null) {
+					imageCount = drawLayer(g, layer, currentColor, imageCount);
+				}
+			} finally {
+				g.dispose();
+			}
+		}
+
+		/**
+		 * Draw a layer's segments, starting with the one that ends at the given
+		 * point.
+		 * @param from the count of coordinates already drawn
+		 * @return the count of coordinates drawn now
+		 */
+		private int drawLayer(Graphics2D g, ToolpathLayers.Layer layer, Color color, int from) {
+			int count = layers.getCount(layer);
+			float[] xy = layers.getCoordinates(layer);
+			g.setColor(color);
+			for (int i = Math.max(2, from); i < count; i += 2) {
+				float x0 = xy[i - 2], y0 = xy[i - 1];
+				float x1 = xy[i], y1 = xy[i + 1];
+				if (Float.isNaN(x0) || Float.isNaN(x1)) {
+					continue;
+				}
+				g.drawLine(convertRealXToPointX(x0), convertRealYToPointY(y0),
+						convertRealXToPointX(x1), convertRealYToPointY(y1));
+			}
+			return count;
 		}
 
 		private void drawHelperText(Graphics g) {
@@ -520,230 +666,6 @@ public class SimulationWindow2D extends SimulationWindow implements
 			}
 		}
 
-		private void drawLastPoints(Graphics g) {
-			Color aboveColor = new Color(255, 0, 0);
-			Color currentColor = new Color(0, 255, 0);
-			Color belowColor = new Color(0, 0, 255);
-
-			synchronized (points) {
-				List<Point3d> lastPoints = getLastPoints(1000);
-				Point3d start;
-				Point3d end;
-
-				double belowZ = currentZ;
-				double aboveZ = currentZ;
-
-				// color coding.
-				int aboveTotal = 0;
-				int belowTotal = 0;
-				int currentTotal = 0;
-				int aboveCount = 0;
-				int belowCount = 0;
-				int currentCount = 0;
-
-				// draw our toolpaths.
-				if (lastPoints.size() > 0) {
-					start = (Point3d) lastPoints.get(0);
-
-					// start from the most recent line backwards to find the
-					// above/below layers.
-					for (int i = lastPoints.size() - 1; i >= 0; i--) {
-						end = (Point3d) lastPoints.get(i);
-
-						if (!start.equals(end)) {
-							// line below current plane
-							if (end.z < currentZ) {
-								// we only want one layer up/down
-								if (end.z < belowZ && belowZ != currentZ)
-									continue;
-
-								belowZ = end.z;
-								belowTotal++;
-							}
-							// line above current plane
-							else if (end.z > currentZ) {
-								// we only want one layer up/down
-								if (end.z > aboveZ && aboveZ != currentZ)
-									continue;
-
-								aboveZ = end.z;
-								aboveTotal++;
-							}
-							// current line.
-							else if (end.z == currentZ) {
-								currentTotal++;
-							} else
-								continue;
-
-							start = new Point3d(end);
-						}
-					}
-
-					// draw all our lines now!
-					for (ListIterator<Point3d> li = lastPoints.listIterator(); li
-							.hasNext();) {
-						end = li.next();
-
-						// we have to move somewhere!
-						if (!start.equals(end)) {
-							int startX = convertRealXToPointX(start.x);
-							int startY = convertRealYToPointY(start.y);
-							int endX = convertRealXToPointX(end.x);
-							int endY = convertRealYToPointY(end.y);
-							int colorValue;
-
-							// line below current plane
-							if (end.z < currentZ && end.z >= belowZ) {
-								belowCount++;
-
-								colorValue = 255 - 3 * (belowTotal - belowCount);
-								colorValue = Math.max(0, colorValue);
-								colorValue = Math.min(255, colorValue);
-
-								belowColor = new Color(0, 0, colorValue);
-								g.setColor(belowColor);
-							}
-							// line above current plane
-							if (end.z > currentZ && end.z <= aboveZ) {
-								aboveCount++;
-
-								colorValue = 255 - 3 * (aboveTotal - aboveCount);
-								colorValue = Math.max(0, colorValue);
-								colorValue = Math.min(255, colorValue);
-
-								aboveColor = new Color(colorValue, 0, 0);
-								g.setColor(aboveColor);
-							}
-							// line in current plane
-							else if (end.z == currentZ) {
-								currentCount++;
-
-								colorValue = 255 - 3 * (currentTotal - currentCount);
-								colorValue = Math.max(0, colorValue);
-								colorValue = Math.min(255, colorValue);
-
-								currentColor = new Color(0, colorValue, 0);
-								g.setColor(currentColor);
-							}
-							// bail, your'e not on our plane.
-							else
-								continue;
-
-							// draw up arrow
-							if (end.z > start.z) {
-								g.setColor(Color.red);
-								g.drawOval(startX - 5, startY - 5, 10, 10);
-								g.drawLine(startX - 5, startY, startX + 5,
-										startY);
-								g.drawLine(startX, startY - 5, startX,
-										startY + 5);
-							}
-							// draw down arrow
-							else if (end.z < start.z) {
-								g.setColor(Color.blue);
-								g.drawOval(startX - 5, startY - 5, 10, 10);
-								g.drawOval(startX - 1, startY - 1, 2, 2);
-							}
-							// normal XY line - only draw lines on current layer
-							// or above.
-							else if (end.z >= currentZ) {
-								g.drawLine(startX, startY, endX, endY);
-							}
-
-							start = new Point3d(end);
-						}
-					}
-
-					/*
-					 * System.out.println("counts:");
-					 * System.out.println(belowCount + " / " + belowTotal);
-					 * System.out.println(aboveCount + " / " + aboveTotal);
-					 * System.out.println(currentCount + " / " + currentTotal);
-					 */
-				}
-			}
-		}
-
-		private List<Point3d> getLastPoints(int count) {
-			synchronized (points) {
-				int index = Math.max(0, points.size() - count);
-
-				List<Point3d> mypoints = points.subList(index, points.size());
-
-				return mypoints;
-			}
-		}
-
-		@SuppressWarnings("unused")
-		private void drawToolpaths(Graphics g) {
-			Vector<Vector<Point3d>> toolpaths = getLayerPaths(currentZ);
-			Point3d start = new Point3d();
-			Point3d end = new Point3d();
-
-			// System.out.println("toolpaths:" + toolpaths.size());
-
-			// draw our toolpaths.
-			if (toolpaths.size() > 0) {
-				for (Enumeration<Vector<Point3d>> e = toolpaths.elements(); e.hasMoreElements();) {
-					Vector<Point3d> path = e.nextElement();
-					// System.out.println("path points:" + path.size());
-
-					if (path.size() > 1) {
-						g.setColor(Color.black);
-						start = (Point3d) path.firstElement();
-
-						for (Enumeration<Point3d> e2 = path.elements(); e2
-								.hasMoreElements();) {
-							end = (Point3d) e2.nextElement();
-
-							int startX = convertRealXToPointX(start.x);
-							int startY = convertRealYToPointY(start.y);
-							int endX = convertRealXToPointX(end.x);
-							int endY = convertRealYToPointY(end.y);
-
-							// System.out.println("line from: " + startX + ", "
-							// + startY + " to " + endX + ", " + endY);
-							g.drawLine(startX, startY, endX, endY);
-
-							start = new Point3d(end);
-						}
-					}
-				}
-			}
-		}
-
-		private Vector<Vector<Point3d>> getLayerPaths(double layerZ) {
-			Vector<Vector<Point3d>> paths = new Vector<Vector<Point3d>>();
-			Vector<Point3d> path = new Vector<Point3d>();
-			Point3d p;
-
-			synchronized (points) {
-				for (Enumeration<Point3d> e = points.elements(); e
-						.hasMoreElements();) {
-					p = e.nextElement();
-
-					// is this on our current layer?
-					if (p.z == layerZ) {
-						path.addElement(p);
-						// System.out.println("added: " + p.toString());
-					}
-					// okay, not on layer... did we find a path?
-					else if (path.size() > 0) {
-						// System.out.println("added path of size " +
-						// path.size());
-						paths.addElement(path);
-						path = new Vector<Point3d>();
-					}
-				}
-			}
-
-			// did we end on our current path?
-			if (path.size() > 0)
-				paths.addElement(path);
-
-			return paths;
-		}
-
 		// recalculates member varible 'ratio' that will keep us inside our box
 		private void calculateRatio() {
 			double yRatio = (getWidth()) / (maximum.y - minimum.y);
@@ -818,11 +740,8 @@ public class SimulationWindow2D extends SimulationWindow implements
 	 */
 	public void setSimulationBounds(Rectangle2D.Double bounds) {
 		this.simulationBounds = bounds;
-		buildView.maximum.x = bounds.getMaxX();
-		buildView.minimum.x = bounds.getMinX();
-		buildView.maximum.y = bounds.getMaxY();
-		buildView.minimum.y = bounds.getMinY();
-		buildView.calculateRatio();
+		// Shown with the next frame
+		buildView.setSimulationBounds(bounds);
 		hRuler.repaint();
 		vRuler.repaint();
 	}
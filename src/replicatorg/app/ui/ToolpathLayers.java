@@ -0,0 +1,80 @@
+package replicatorg.app.ui;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The toolpath of a simulated build, kept a layer at a time. Each layer holds
+ * the x,y pairs of the points queued at its Z in a float array, so drawing a
+ * layer never looks at the rest of the build, and a long build doesn't keep an
+ * object per point.
+ *
+ * Points are added by the driver's thread and read by the event thread, and
+ * every method is synchronized. Each holds the lock only for a lookup, so a
+ * reader never keeps the driver waiting while it draws. A layer's count only
+ * grows, and its array is only ever replaced by a larger copy, so a reader
+ * that takes the count and then the array can go on to draw that many points
+ * after letting go of the lock: they are never written again.
+ */
+class ToolpathLayers {
+
+	/** The points at one Z. A NaN pair marks where the tool left the layer and came back. */
+	static class Layer {
+		final double z;
+		private float[] xy = new float[256];
+		private int count = 0;
+
+		Layer(double z) {
+			this.z = z;
+		}
+
+		private void add(float x, float y) {
+			if (count + 2 > xy.length) {
+				float[] grown = new float[xy.length * 2];
+				System.arraycopy(xy, 0, grown, 0, count);
+				xy = grown;
+			}
+			xy[count++] = x;
+			xy[count++] = y;
+		}
+	}
+
+	private final SortedMap<Double,Layer> layers = new TreeMap<Double,Layer>();
+	private Layer current = null;
+
+	/** Add the next point of the toolpath to the layer at its Z. */
+	synchronized void add(double x, double y, double z) {
+		if (current == null || current.z != z) {
+			Layer layer = layers.get(z);
+			if (layer == null) {
+				layer = new Layer(z);
+				layers.put(z, layer);
+			} else if (layer.count > 0) {
+				layer.add(Float.NaN, Float.NaN);
+			}
+			current = layer;
+		}
+		current.add((float)x, (float)y);
+	}
+
+	/** @return the layer the last point went to, or null before any points */
+	synchronized Layer getCurrent() {
+		return current;
+	}
+
+	/** @return the next layer down from the given one, or null if it's the lowest */
+	synchronized Layer getBelow(Layer layer) {
+		SortedMap<Double,Layer> below = layers.headMap(layer.z);
+		return below.isEmpty() ? null : below.get(below.lastKey());
+	}
+
+	/** @return the number of floats in the layer's coordinates; take this before getCoordinates() */
+	synchronized int getCount(Layer layer) {
+		return layer.count;
+	}
+
+	/** @return x, y of each point in turn; only as many as getCount() said are valid */
+	synchronized float[] getCoordinates(Layer layer) {
+		return layer.xy;
+	}
+}
@@ -9,7 +9,7 @@ import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.awt.image.BufferedImage;
-import java.util.Date;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -42,13 +42,13 @@ import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.chart.plot.XYPlot;
 import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
 import org.jfree.chart.renderer.xy.XYStepRenderer;
-import org.jfree.data.time.Second;
-import org.jfree.data.time.TimeTableXYDataset;
 
 import replicatorg.app.Base;
 import replicatorg.app.ui.CallbackTextField;
 import replicatorg.drivers.commands.DriverCommand.AxialDirection;
 import replicatorg.machine.MachineInterface;
+import replicatorg.machine.TelemetryStore;
+import replicatorg.machine.TelemetryStore.Channel;
 import replicatorg.machine.model.ToolModel;
 
 public class ExtruderPanel extends JPanel{
@@ -62,10 +62,6 @@ public class ExtruderPanel extends JPanel{
 	private JFormattedTextField t1TargetTemperatureField;
 	private JFormattedTextField pTargetTemperatureField;
 
-	private double t0TargetTemperature;
-	private double t1TargetTemperature;
-	private double pTargetTemperature;
-
 	final private static Color t0TargetColor = Color.MAGENTA;
 	final private static Color t0MeasuredColor = Color.RED;
 	final private static Color t1TargetColor = Color.CYAN;
@@ -75,12 +71,8 @@ public class ExtruderPanel extends JPanel{
 	
 	long startMillis = System.currentTimeMillis();
 
-	private TimeTableXYDataset t0MeasuredDataset = new TimeTableXYDataset();
-	private TimeTableXYDataset t0TargetDataset = new TimeTableXYDataset();
-	private TimeTableXYDataset t1MeasuredDataset = new TimeTableXYDataset();
-	private TimeTableXYDataset t1TargetDataset = new TimeTableXYDataset();
-	private TimeTableXYDataset pMeasuredDataset = new TimeTableXYDataset();
-	private TimeTableXYDataset pTargetDataset = new TimeTableXYDataset();
+	// What the chart shows, from the machine loader's telemetry store
+	private final List<TelemetryDataset> datasets = new ArrayList<TelemetryDataset>();
 
 	protected Pattern extrudeTimePattern;
 	
@@ -147,9 +139,17 @@ public class ExtruderPanel extends JPanel{
 //		return chartPanel;
 //	}
 
+	private TelemetryDataset makeDataset(ToolModel tool, Channel channel) {
+		TelemetryStore store = Base.getMachineLoader().getTelemetry();
+		TelemetryDataset dataset = new TelemetryDataset(store, tool.getIndex(), channel, startMillis);
+		datasets.add(dataset);
+		dataset.update();
+		return dataset;
+	}
+
 	public ChartPanel makeChart() {
 		JFreeChart chart = ChartFactory.createXYLineChart(null, null, null, 
-				t0MeasuredDataset, PlotOrientation.VERTICAL, 
+				makeDataset(tool0, Channel.EXTRUDER_CURRENT), PlotOrientation.VERTICAL, 
 				false, false, false);
 		chart.setBorderVisible(false);
 		chart.setBackgroundPaint(null);
@@ -167,28 +167,28 @@ public class ExtruderPanel extends JPanel{
 		// Tweak L&F of chart
 		//((XYAreaRenderer)plot.getRenderer()).setOutline(true);
 		XYStepRenderer renderer = new XYStepRenderer();
-		plot.setDataset(1, t0TargetDataset);
+		plot.setDataset(1, makeDataset(tool0, Channel.EXTRUDER_TARGET));
 		plot.setRenderer(1, renderer);
 		plot.getRenderer(1).setSeriesPaint(0, t0TargetColor);
 		plot.getRenderer(0).setSeriesPaint(0, t0MeasuredColor);
-		boolean hasPlatform = tool0.hasHeatedPlatform();
+		ToolModel platform = tool0.hasHeatedPlatform() ? tool0 : null;
 		if(machine.getModel().getTools().size() > 1)
 		{
-			plot.setDataset(4, t1MeasuredDataset);
+			plot.setDataset(4, makeDataset(tool1, Channel.EXTRUDER_CURRENT));
 			plot.setRenderer(4, new XYLineAndShapeRenderer(true,false)); 
 			plot.getRenderer(4).setSeriesPaint(0, t1MeasuredColor);
-			plot.setDataset(5, t1TargetDataset);
+			plot.setDataset(5, makeDataset(tool1, Channel.EXTRUDER_TARGET));
 			plot.setRenderer(5, new XYStepRenderer()); 
 			plot.getRenderer(5).setSeriesPaint(0, t1TargetColor);
 			
-			if(!hasPlatform)
-				hasPlatform = tool1.hasHeatedPlatform();
+			if(tool1.hasHeatedPlatform())
+				platform = tool1;
 		}
-		if (hasPlatform) {
-			plot.setDataset(2,pMeasuredDataset);
+		if (platform != null) {
+			plot.setDataset(2,makeDataset(platform, Channel.PLATFORM_CURRENT));
 			plot.setRenderer(2, new XYLineAndShapeRenderer(true,false)); 
 			plot.getRenderer(2).setSeriesPaint(0, pMeasuredColor);
-			plot.setDataset(3,pTargetDataset);
+			plot.setDataset(3,makeDataset(platform, Channel.PLATFORM_TARGET));
 			plot.setRenderer(3, new XYStepRenderer()); 
 			plot.getRenderer(3).setSeriesPaint(0, pTargetColor);
 		}
@@ -681,24 +681,18 @@ public class ExtruderPanel extends JPanel{
 //	}
 
 	public void updateStatus() {
-		Second second = new Second(new Date(System.currentTimeMillis() - startMillis));
-
 		ToolModel platform = null;
 		
 		// Some changes to the way (& frequency) temperatures are read make it easier
 		// to just read this cached value which will be updated regularly
 		if (tool0 != null) {
 			t0CurrentTemperatureField.setValue(tool0.getCurrentTemperature());
-			t0MeasuredDataset.add(second, tool0.getCurrentTemperature(),"a");
-			t0TargetDataset.add(second, t0TargetTemperature,"a");
 			
 			if(tool0.hasHeatedPlatform())
 				platform = tool0;
 		}
 		if (tool1 != null) {
 			t1CurrentTemperatureField.setValue(tool1.getCurrentTemperature());
-			t1MeasuredDataset.add(second, tool1.getCurrentTemperature(),"a");
-			t1TargetDataset.add(second, t1TargetTemperature,"a");
 			
 			if(tool1.hasHeatedPlatform())
 				platform = tool1;
@@ -706,8 +700,10 @@ public class ExtruderPanel extends JPanel{
 		
 		if (platform != null) {
 			pCurrentTemperatureField.setValue(platform.getPlatformCurrentTemperature());
-			pMeasuredDataset.add(second, platform.getPlatformCurrentTemperature(),"a");
-			pTargetDataset.add(second, pTargetTemperature,"a");
+		}
+		
+		for (TelemetryDataset dataset : datasets) {
+			dataset.update();
 		}
 	}
 
@@ -781,14 +777,6 @@ public class ExtruderPanel extends JPanel{
 				machine.runCommand(new replicatorg.drivers.commands.SetPlatformTemperature(newValue, toolhead));
 			}
 		}
-		if(newValue != Double.NaN) {
-			if(source == t0TargetTemperatureField)
-				t0TargetTemperature = newValue;
-			else if(source == t1TargetTemperatureField)
-				t1TargetTemperature = newValue;
-			else if(source == pTargetTemperatureField)
-				pTargetTemperature = newValue;
-		}
 	}
 	
 	private void handleChangedItem(ItemEvent e, ToolModel tool) {
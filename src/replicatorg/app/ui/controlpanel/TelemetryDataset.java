@@ -0,0 +1,95 @@
+package replicatorg.app.ui.controlpanel;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+
+import org.jfree.data.DomainOrder;
+import org.jfree.data.xy.AbstractXYDataset;
+
+import replicatorg.machine.TelemetryStore;
+import replicatorg.machine.TelemetryStore.Channel;
+import replicatorg.machine.TelemetryStore.Resolution;
+
+/**
+ * One channel of one tool's per second history, from the TelemetryStore, as
+ * a single chart series. X is milliseconds since the given origin.
+ *
+ * The chart reads a copy of the history, made on the event dispatch thread
+ * when update() is called, so it never sees the store half way through a
+ * sample. The copy is the same size whatever the length of the build.
+ */
+class TelemetryDataset extends AbstractXYDataset {
+	private static final long serialVersionUID = 1L;
+
+	private final TelemetryStore store;
+	private final int tool;
+	private final Channel channel;
+	private final long origin;
+
+	private final long[] times = new long[Resolution.SECOND.getCapacity()];
+	private final double[] values = new double[Resolution.SECOND.getCapacity()];
+	private int count = 0;
+
+	private final AtomicBoolean pending = new AtomicBoolean();
+
+	TelemetryDataset(TelemetryStore store, int tool, Channel channel, long origin) {
+		this.store = store;
+		this.tool = tool;
+		this.channel = channel;
+		this.origin = origin;
+	}
+
+	/**
+	 * Pick up what the store has recorded since the last call. Can be called
+	 * from any thread; calls made before the chart catches up are merged.
+	 */
+	public void update() {
+		if (pending.getAndSet(true)) return;
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				pending.set(false);
+				count = store.read(tool, Resolution.SECOND, channel, times, values);
+				fireDatasetChanged();
+			}
+		});
+	}
+
+	@Override
+	public DomainOrder getDomainOrder() {
+		return DomainOrder.ASCENDING;
+	}
+
+	@Override
+	public int getSeriesCount() {
+		return 1;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Comparable getSeriesKey(int series) {
+		return channel.getKey();
+	}
+
+	public int getItemCount(int series) {
+		return count;
+	}
+
+	@Override
+	public double getXValue(int series, int item) {
+		return times[item] - origin;
+	}
+
+	@Override
+	public double getYValue(int series, int item) {
+		return values[item];
+	}
+
+	public Number getX(int series, int item) {
+		return new Double(getXValue(series, item));
+	}
+
+	public Number getY(int series, int item) {
+		return new Double(getYValue(series, item));
+	}
+}
@@ -24,6 +24,8 @@ import replicatorg.app.Base;
 import replicatorg.app.ui.MainWindow;
 import replicatorg.machine.model.BuildVolume;
 import replicatorg.model.BuildModel;
+import replicatorg.model.j3d.GeometryData;
+import replicatorg.model.j3d.IndexedMesh;
 
 /**
  * A wrapper for displaying and editing an underlying model object.
@@ -96,6 +98,8 @@ public class EditingModel {
 		solidShape.getGeometry().setCapability(GeometryArray.ALLOW_COUNT_READ);
 		solidShape.getGeometry().setCapability(GeometryArray.ALLOW_COORDINATE_READ);
 		solidShape.getGeometry().setCapability(GeometryArray.ALLOW_NORMAL_READ);
+		solidShape.getGeometry().setCapability(GeometryArray.ALLOW_FORMAT_READ);
+		solidShape.getGeometry().setCapability(GeometryArray.ALLOW_REF_DATA_READ);
 		
 		objectMaterial = new Material();
 		objectMaterial.setCapability(Material.ALLOW_COMPONENT_WRITE);
@@ -284,15 +288,20 @@ public class EditingModel {
 	}
 	
 	private BoundingBox getBoundingBox(Shape3D shape, Transform3D transformation) {
+		IndexedMesh mesh = model.getMesh();
+		if (mesh != null && shape.getGeometry() == mesh.getGeometry()) {
+			return mesh.getBounds(transformation);
+		}
 		BoundingBox bb = null;
 		Enumeration<?> geometries = shape.getAllGeometries();
 		while (geometries.hasMoreElements()) {
 			Geometry g = (Geometry)geometries.nextElement();
 			if (g instanceof GeometryArray) {
 				GeometryArray ga = (GeometryArray)g;
+				float[] coordinates = GeometryData.getCoordinates(ga);
 				Point3d p = new Point3d();
 				for (int i = 0; i < ga.getVertexCount(); i++) {
-					ga.getCoordinate(i,p);
+					p.set(coordinates[3*i], coordinates[3*i+1], coordinates[3*i+2]);
 					transformation.transform(p);
 					if (bb == null) { bb = new BoundingBox(p,p); }
 					bb.combine(p);
@@ -487,13 +496,14 @@ public class EditingModel {
 			Vector3d flattest = new Vector3d(1d,0d,0d);
 			if (g instanceof GeometryArray) {
 				GeometryArray ga = (GeometryArray)g;
+				float[] coordinates = GeometryData.getTriangleCoordinates(ga);
 				Point3d p1 = new Point3d();
 				Point3d p2 = new Point3d();
 				Point3d p3 = new Point3d();
-				for (int i = 0; i < ga.getVertexCount();) {
-					ga.getCoordinate(i++,p1);
-					ga.getCoordinate(i++,p2);
-					ga.getCoordinate(i++,p3);
+				for (int i = 0; i < coordinates.length; i += 9) {
+					p1.set(coordinates[i], coordinates[i+1], coordinates[i+2]);
+					p2.set(coordinates[i+3], coordinates[i+4], coordinates[i+5]);
+					p3.set(coordinates[i+6], coordinates[i+7], coordinates[i+8]);
 					t.transform(p1);
 					t.transform(p2);
 					t.transform(p3);
@@ -116,8 +116,13 @@ public class ExtruderOnboardParameters extends JPanel {
 			}
 		}
 		
-		for (Commitable c : commitList) {
-			c.commit();
+		target.beginEEPROMChanges();
+		try {
+			for (Commitable c : commitList) {
+				c.commit();
+			}
+		} finally {
+			target.commitEEPROMChanges();
 		}
 		JOptionPane.showMessageDialog(this,
 				"Changes will not take effect until the extruder board is reset.  You can \n" +
@@ -126,77 +126,84 @@
 		 String newName = machineNameField.getText();
 		 if(newName.length() > MAX_NAME_LENGTH)
 			 machineNameField.setText(newName.substring(0, MAX_NAME_LENGTH ) );
-		 target.setMachineName(machineNameField.getText());
-
-		 if( target.hasToolCountOnboard() ) {
-			 if (toolCountField.getSelectedIndex() > 0) 
-				 target.setToolCountOnboard( toolCountField.getSelectedIndex() );
-			 else 
-				 target.setToolCountOnboard( -1 );
-		 }
+		 // Only the values that changed are written when we commit
+		 target.beginEEPROMChanges();
+		 try {
+			 target.setMachineName(machineNameField.getText());
+
+			 if( target.hasToolCountOnboard() ) {
+				 if (toolCountField.getSelectedIndex() > 0) 
+					 target.setToolCountOnboard( toolCountField.getSelectedIndex() );
+				 else 
+					 target.setToolCountOnboard( -1 );
+			 }
 
-      if(target.hasHbp())
-      {
-        if((target.currentHbpSetting() == 0) && hbpToggleBox.isSelected())
-        {
-          target.setHbpSetting(true);
-        }
+	      if(target.hasHbp())
+	      {
+	        if((target.currentHbpSetting() == 0) && hbpToggleBox.isSelected())
+	        {
+	          target.setHbpSetting(true);
+	        }
           
-        else if(((target.currentHbpSetting() > 0) && !hbpToggleBox.isSelected()))
-        {
-          target.setHbpSetting(false);
-        }
-      }
+	        else if(((target.currentHbpSetting() > 0) && !hbpToggleBox.isSelected()))
+	        {
+	          target.setHbpSetting(false);
+	        }
+	      }
 	
-		 EnumSet<AxisId> axesInverted = EnumSet.noneOf(AxisId.class);
-		 if (xAxisInvertBox.isSelected()) axesInverted.add(AxisId.X);
-		 if (yAxisInvertBox.isSelected()) axesInverted.add(AxisId.Y);
-		 if (zAxisInvertBox.isSelected()) axesInverted.add(AxisId.Z);
-		 if (aAxisInvertBox.isSelected()) axesInverted.add(AxisId.A);
-		 if (bAxisInvertBox.isSelected()) axesInverted.add(AxisId.B);
+			 EnumSet<AxisId> axesInverted = EnumSet.noneOf(AxisId.class);
+			 if (xAxisInvertBox.isSelected()) axesInverted.add(AxisId.X);
+			 if (yAxisInvertBox.isSelected()) axesInverted.add(AxisId.Y);
+			 if (zAxisInvertBox.isSelected()) axesInverted.add(AxisId.Z);
+			 if (aAxisInvertBox.isSelected()) axesInverted.add(AxisId.A);
+			 if (bAxisInvertBox.isSelected()) axesInverted.add(AxisId.B);
 
-		 // V is in the 7th bit position, and it's set to NOT hold Z
-		 // From the firmware: "Bit 7 is used for HoldZ OFF: 1 = off, 0 = on"
-		 if ( !zHoldBox.isSelected() )	axesInverted.add(AxisId.V);
+			 // V is in the 7th bit position, and it's set to NOT hold Z
+			 // From the firmware: "Bit 7 is used for HoldZ OFF: 1 = off, 0 = on"
+			 if ( !zHoldBox.isSelected() )	axesInverted.add(AxisId.V);
 
 
-		 target.setInvertedAxes(axesInverted);
-		 {
-			 int idx = endstopInversionSelection.getSelectedIndex();
-			 OnboardParameters.EndstopType endstops = 
-				 OnboardParameters.EndstopType.values()[idx]; 
-			 target.setInvertedEndstops(endstops);
-		 }
-		 {
-			 int idx = estopSelection.getSelectedIndex();
-			 OnboardParameters.EstopType estop = 
-				 OnboardParameters.EstopType.estopTypeForValue((byte)idx); 
-			 target.setEstopConfig(estop);
-		 }
+			 target.setInvertedAxes(axesInverted);
+			 {
+				 int idx = endstopInversionSelection.getSelectedIndex();
+				 OnboardParameters.EndstopType endstops = 
+					 OnboardParameters.EndstopType.values()[idx]; 
+				 target.setInvertedEndstops(endstops);
+			 }
+			 {
+				 int idx = estopSelection.getSelectedIndex();
+				 OnboardParameters.EstopType estop = 
+					 OnboardParameters.EstopType.estopTypeForValue((byte)idx); 
+				 target.setEstopConfig(estop);
+			 }
 
-		 target.setAxisHomeOffset(0, ((Number)xAxisHomeOffsetField.getValue()).doubleValue());
-		 target.setAxisHomeOffset(1, ((Number)yAxisHomeOffsetField.getValue()).doubleValue());
-		 target.setAxisHomeOffset(2, ((Number)zAxisHomeOffsetField.getValue()).doubleValue());
-		 target.setAxisHomeOffset(3, ((Number)aAxisHomeOffsetField.getValue()).doubleValue());
-		 target.setAxisHomeOffset(4, ((Number)bAxisHomeOffsetField.getValue()).doubleValue());
+			 target.setAxisHomeOffset(0, ((Number)xAxisHomeOffsetField.getValue()).doubleValue());
+			 target.setAxisHomeOffset(1, ((Number)yAxisHomeOffsetField.getValue()).doubleValue());
+			 target.setAxisHomeOffset(2, ((Number)zAxisHomeOffsetField.getValue()).doubleValue());
+			 target.setAxisHomeOffset(3, ((Number)aAxisHomeOffsetField.getValue()).doubleValue());
+			 target.setAxisHomeOffset(4, ((Number)bAxisHomeOffsetField.getValue()).doubleValue());
 
-		 if(target.hasVrefSupport())
-		 {
-			 target.setStoredStepperVoltage(0, ((Number)vref0.getValue()).intValue());
-			 target.setStoredStepperVoltage(1, ((Number)vref1.getValue()).intValue());
-			 target.setStoredStepperVoltage(2, ((Number)vref2.getValue()).intValue());
-			 target.setStoredStepperVoltage(3, ((Number)vref3.getValue()).intValue());
-			 target.setStoredStepperVoltage(4, ((Number)vref4.getValue()).intValue());
-		 }
+			 if(target.hasVrefSupport())
+			 {
+				 target.setStoredStepperVoltage(0, ((Number)vref0.getValue()).intValue());
+				 target.setStoredStepperVoltage(1, ((Number)vref1.getValue()).intValue());
+				 target.setStoredStepperVoltage(2, ((Number)vref2.getValue()).intValue());
+				 target.setStoredStepperVoltage(3, ((Number)vref3.getValue()).intValue());
+				 target.setStoredStepperVoltage(4, ((Number)vref4.getValue()).intValue());
+			 }
 
-		 if (target.hasToolheadsOffset()) {
-			 target.eepromStoreToolDelta(0, ((Number)xToolheadOffsetField.getValue()).doubleValue());
-			 target.eepromStoreToolDelta(1, ((Number)yToolheadOffsetField.getValue()).doubleValue());
-			 target.eepromStoreToolDelta(2, ((Number)zToolheadOffsetField.getValue()).doubleValue());
-		 }
+			 if (target.hasToolheadsOffset()) {
+				 target.eepromStoreToolDelta(0, ((Number)xToolheadOffsetField.getValue()).doubleValue());
+				 target.eepromStoreToolDelta(1, ((Number)yToolheadOffsetField.getValue()).doubleValue());
+				 target.eepromStoreToolDelta(2, ((Number)zToolheadOffsetField.getValue()).doubleValue());
+			 }
     
-		 // Set acceleration related parameters
-		 accelUI.setEEPROMFromUI();
+			 // Set acceleration related parameters
+			 accelUI.setEEPROMFromUI();
+		 } finally {
+			 // Whatever was set goes to the bot, even if a field threw
+			 target.commitEEPROMChanges();
+		 }
 
 		 String extendedMessage = null;
 
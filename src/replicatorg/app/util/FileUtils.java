@@ -0,0 +1,24 @@
+package replicatorg.app.util;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Utilities for writing files in place.
+ */
+public class FileUtils {
+	/**
+	 * Move a finished temporary file over dest. Files are written to a
+	 * temporary file next to dest and then moved, so that anyone reading dest
+	 * (or an editor that has it mapped) never sees it half written.
+	 * @param temp the new contents; on the same filesystem as dest
+	 * @throws IOException if dest could not be replaced; temp is left in place
+	 */
+	public static void replaceFile(File temp, File dest) throws IOException {
+		if (!temp.renameTo(dest)) {
+			// Windows won't rename over an existing file
+			if (!dest.delete() || !temp.renameTo(dest))
+				throw new IOException("Could not replace " + dest + " with " + temp);
+		}
+	}
+}
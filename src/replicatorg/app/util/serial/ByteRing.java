@@ -0,0 +1,287 @@
+package replicatorg.app.util.serial;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Growable ring of bytes for one writer thread and one reader thread, with no
+ * locks between them. In Serial the writer is the port's event thread and the
+ * reader is the driver.
+ *
+ * Positions are counted from the start of the stream and masked into an array
+ * whose length is a power of two. The writer publishes bytes by moving the tail,
+ * and the reader frees space by moving the head. When the ring is full the
+ * writer copies it into an array twice the size. The reader may still be reading
+ * from the old array, but those bytes are never written again, so that's safe.
+ * Past the maximum size, new bytes are dropped and counted.
+ *
+ * A reader that has to wait parks itself, and the writer unparks it when it
+ * publishes bytes.
+ */
+public class ByteRing {
+	/** Default size to start at. One RepRap line or one s3g packet fits easily. */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/** Default most the ring will grow to. */
+	public static final int DEFAULT_MAX_CAPACITY = 1024 * 1024;
+
+	/**
+	 * A run of bytes in an array. Slices handed out by the ring point into the
+	 * ring itself, and are only good until the reader skips past them.
+	 */
+	public static final class Slice {
+		public byte[] array;
+		public int offset;
+		public int length;
+
+		public byte get(int i) {
+			return array[offset + i];
+		}
+
+		public String toString() {
+			return new String(array, offset, length);
+		}
+	}
+
+	private final int maxCapacity;
+
+	private volatile byte[] buffer;
+
+	// Next position to read; only the reader moves it
+	private volatile long head = 0;
+	// Next position to write; only the writer moves it
+	private volatile long tail = 0;
+
+	// Bytes thrown away because the ring was full
+	private volatile long dropped = 0;
+
+	// The reader, while it's parked waiting for bytes
+	private volatile Thread waiter = null;
+
+	// Reader only: how far peekLine() has looked for a newline
+	private long scanned = 0;
+	// Reader only: lines that wrap round the end of the array are copied here
+	private byte[] lineCopy = new byte[0];
+
+	public ByteRing() {
+		this(DEFAULT_CAPACITY, DEFAULT_MAX_CAPACITY);
+	}
+
+	public ByteRing(int capacity, int maxCapacity) {
+		if (Integer.bitCount(capacity) != 1 || Integer.bitCount(maxCapacity) != 1 || capacity > maxCapacity) {
+			throw new IllegalArgumentException("Ring sizes must be powers of two");
+		}
+		this.maxCapacity = maxCapacity;
+		buffer = new byte[capacity];
+	}
+
+	/** @return the number of bytes waiting to be read */
+	public int size() {
+		return (int)(tail - head);
+	}
+
+	/** @return the number of bytes thrown away because the ring was full */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/** @return the size of the array currently in use */
+	public int capacity() {
+		return buffer.length;
+	}
+
+	/*
+	 * Writer side
+	 */
+
+	/**
+	 * Add bytes to the ring, growing it if need be, and wake the reader.
+	 * Called only by the writer.
+	 * @return the number of bytes added; less than len if the ring is at its
+	 * largest and full
+	 */
+	public int write(byte[] src, int off, int len) {
+		long t = tail;
+		int free = buffer.length - (int)(t - head);
+		if (free < len) {
+			free = grow(t, len);
+		}
+		int n = Math.min(len, free);
+		byte[] b = buffer;
+		int mask = b.length - 1;
+		int start = (int)t & mask;
+		int first = Math.min(n, b.length - start);
+		System.arraycopy(src, off, b, start, first);
+		System.arraycopy(src, off + first, b, 0, n - first);
+		publish(t + n, len - n);
+		return n;
+	}
+
+	/**
+	 * Add one byte to the ring. Called only by the writer.
+	 * @return false if the ring is at its largest and full
+	 */
+	public boolean write(byte value) {
+		long t = tail;
+		if (buffer.length == (int)(t - head) && grow(t, 1) == 0) {
+			publish(t, 1);
+			return false;
+		}
+		byte[] b = buffer;
+		b[(int)t & (b.length - 1)] = value;
+		publish(t + 1, 0);
+		return true;
+	}
+
+	// Move the tail, and wake the reader if it's waiting
+	private void publish(long t, int lost) {
+		tail = t;
+		if (lost > 0) {
+			dropped += lost;
+		}
+		Thread w = waiter;
+		if (w != null) {
+			LockSupport.unpark(w);
+		}
+	}
+
+	// Copy into a bigger array with room for len more bytes, if we may; returns the free space
+	private int grow(long t, int len) {
+		byte[] old = buffer;
+		long h = head;
+		int used = (int)(t - h);
+		int size = old.length;
+		while (size - used < len && size < maxCapacity) {
+			size *= 2;
+		}
+		if (size == old.length) {
+			return size - used;
+		}
+		byte[] b = new byte[size];
+		int oldMask = old.length - 1;
+		int mask = size - 1;
+		for (long i = h; i < t; i++) {
+			b[(int)i & mask] = old[(int)i & oldMask];
+		}
+		buffer = b;
+		return size - used;
+	}
+
+	/*
+	 * Reader side
+	 */
+
+	/**
+	 * Copy up to len waiting bytes out of the ring. Called only by the reader.
+	 * @return the number of bytes copied
+	 */
+	public int drain(byte[] dst, int off, int len) {
+		long h = head;
+		int n = Math.min(len, (int)(tail - h));
+		if (n <= 0) {
+			return 0;
+		}
+		byte[] b = buffer;
+		int mask = b.length - 1;
+		int start = (int)h & mask;
+		int first = Math.min(n, b.length - start);
+		System.arraycopy(b, start, dst, off, first);
+		System.arraycopy(b, 0, dst, off + first, n - first);
+		head = h + n;
+		return n;
+	}
+
+	/**
+	 * Take one byte from the ring. Called only by the reader.
+	 * @return the byte, or -1 if there are none
+	 */
+	public int read() {
+		long h = head;
+		if (h == tail) {
+			return -1;
+		}
+		byte[] b = buffer;
+		int value = b[(int)h & (b.length - 1)] & 0xff;
+		head = h + 1;
+		return value;
+	}
+
+	/**
+	 * Point the slice at the next whole line, up to and including its newline,
+	 * without taking it from the ring. Call skip() with the slice's length once
+	 * done with it. Called only by the reader.
+	 * @return false if there's no whole line yet
+	 */
+	public boolean peekLine(Slice slice) {
+		long h = head;
+		long t = tail;
+		byte[] b = buffer;
+		int mask = b.length - 1;
+		long i = Math.max(scanned, h);
+		while (i < t && b[(int)i & mask] != (byte)'\n') {
+			i++;
+		}
+		scanned = i;
+		if (i == t) {
+			return false;
+		}
+		int length = (int)(i + 1 - h);
+		int start = (int)h & mask;
+		if (start + length <= b.length) {
+			slice.array = b;
+			slice.offset = start;
+		} else {
+			// The line wraps round; copy it so it's all in one piece
+			if (lineCopy.length < length) {
+				lineCopy = new byte[Math.max(length, 2 * lineCopy.length)];
+			}
+			int first = b.length - start;
+			System.arraycopy(b, start, lineCopy, 0, first);
+			System.arraycopy(b, 0, lineCopy, first, length - first);
+			slice.array = lineCopy;
+			slice.offset = 0;
+		}
+		slice.length = length;
+		return true;
+	}
+
+	/** Throw away up to n bytes. Called only by the reader. */
+	public void skip(int n) {
+		long h = head;
+		head = h + Math.min(n, (int)(tail - h));
+	}
+
+	/** Throw away everything waiting. Called only by the reader. */
+	public void clear() {
+		head = tail;
+	}
+
+	/**
+	 * Wait until at least count bytes are waiting, or the timeout passes. Called
+	 * only by the reader.
+	 * @return true if the bytes are there
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public boolean await(int count, long timeoutMillis) throws InterruptedException {
+		if (size() >= count) {
+			return true;
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		waiter = Thread.currentThread();
+		try {
+			while (size() < count) {
+				long left = deadline - System.nanoTime();
+				if (left <= 0) {
+					return false;
+				}
+				LockSupport.parkNanos(this, left);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+			return true;
+		} finally {
+			waiter = null;
+		}
+	}
+}
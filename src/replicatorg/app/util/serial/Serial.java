@@ -76,7 +76,14 @@ public class Serial implements SerialPortEventListener {
     private static int TIMEOUT_DEFAULT = 500; 
 	private int timeoutMillis = TIMEOUT_DEFAULT;            
 	
-	private ByteFifo readFifo = new ByteFifo();
+	/**
+	 * Bytes received and not yet read. The port's event thread writes to it, and the
+	 * driver (or the listener, if there is one) reads from it.
+	 */
+	private ByteRing readRing = new ByteRing();
+	
+	// Bytes read from the port at once, on the event thread
+	private final byte[] eventChunk = new byte[256];
 	
 	public final AtomicReference<SerialFifoEventListener> listener =
 		new AtomicReference<SerialFifoEventListener>();
@@ -289,7 +296,7 @@ public class Serial implements SerialPortEventListener {
 	}
 	
 	/**
-	 * polls the readFifo for new bytes. If numberOfBytes bytes are received or the 
+	 * waits for new bytes in the readRing. If numberOfBytes bytes are received or the 
 	 * wait times out the method returns zero. If a interrupt exception is thrown 
 	 * the method returns -1.
 	 * @param numberOfBytes
@@ -298,17 +305,8 @@ public class Serial implements SerialPortEventListener {
 	private int waitForBytes(int numberOfBytes)
 	{
 		try {
-			long to = System.currentTimeMillis() + timeoutMillis;
-			while (System.currentTimeMillis() < to && readFifo.size() < numberOfBytes)
-			{
-				/*
-				 * Wait until we timeout or a byte is received (which will notify this 
-				 * method). readFifo notifies for each byte received.
-				 */
-				synchronized (readFifo) {
-					readFifo.wait(timeoutMillis);
-				}
-			}
+			// Parks until we time out or the event thread hands us enough bytes.
+			readRing.await(numberOfBytes, timeoutMillis);
 		} catch (InterruptedException e) {
 			// We are most likely amidst a shutdown.  Propagate the interrupt
 			// status.
@@ -325,23 +323,38 @@ public class Serial implements SerialPortEventListener {
 	public int read() {
  		//wait for the fifo to fill
 		if (waitForBytes(1) == -1) return -1;
-		//read the fifo
-		synchronized(readFifo) {
-			if (readFifo.size() > 0) {
-				byte b = readFifo.dequeue();
-				return b & 0xff; 
-			} else {
-				// dial down timeout error reporting if timeoutMillis is set
-				// below the default.  In this case, the packets will time out
-				// frequently and messaging will flood the console
-				if(timeoutMillis < TIMEOUT_DEFAULT){
-					Base.logger.finest("Read timed out.");
-				}
-				else{
-					Base.logger.warning("Read timed out.");
-				}
-				return -1;
-			}
+		//read the ring
+		int b = readRing.read();
+		if (b == -1) {
+			logTimeout();
+		}
+		return b;
+	}
+
+	/**
+	 * Attempt to read a run of bytes: waits for the first, then takes as many as
+	 * are waiting, up to len.
+	 * @return the number of bytes read, or -1 to indicate a timeout.
+	 */
+	public int read(byte bytes[], int off, int len) {
+		if (waitForBytes(1) == -1) return -1;
+		int n = readRing.drain(bytes, off, len);
+		if (n == 0) {
+			logTimeout();
+			return -1;
+		}
+		return n;
+	}
+
+	private void logTimeout() {
+		// dial down timeout error reporting if timeoutMillis is set
+		// below the default.  In this case, the packets will time out
+		// frequently and messaging will flood the console
+		if(timeoutMillis < TIMEOUT_DEFAULT){
+			Base.logger.finest("Read timed out.");
+		}
+		else{
+			Base.logger.warning("Read timed out.");
 		}
 	}
 
@@ -356,14 +369,8 @@ public class Serial implements SerialPortEventListener {
  	public int read(byte bytes[]) {
  		//wait for the fifo to fill
 		if (waitForBytes(bytes.length) == -1) return -1;
-		//read the fifo
-		synchronized(readFifo) {
-			int idx = 0;
-			while (readFifo.size() > 0 && idx < bytes.length) {
-				bytes[idx++] = readFifo.dequeue();
-			}
-			return idx;
-		}
+		//read the ring
+		return readRing.drain(bytes, 0, bytes.length);
 	}
 
 	public void write(byte bytes[]) {
@@ -406,7 +413,8 @@ public class Serial implements SerialPortEventListener {
 
 
 	public void clear() {
-		synchronized (readFifo) {
+		// Keep the event thread off the port while we eat what's there
+		synchronized (input) {
 			// If we're eating more than 255 characters, then there's a serious error:
 			// Either the machine is jabbering, or there's a problem with our serial
 			// connection.
@@ -429,8 +437,7 @@ public class Serial implements SerialPortEventListener {
 				connected.set(false);
 			} catch (InterruptedException e) {
 			}
-			readFifo.clear();
-			readFifo.notifyAll();
+			readRing.clear();
 			if (maxEats == 0) {
 				throw new RuntimeException("Much more data than expected; check your serial line and reset your machine!");
 			}
@@ -444,41 +451,42 @@ public class Serial implements SerialPortEventListener {
 
 	public void serialEvent(SerialPortEvent event) {
 		if (event.getEventType() != SerialPortEvent.DATA_AVAILABLE) return;
-		synchronized (readFifo) {
-			try {
-				while (true) {
-					synchronized(input)
+		try {
+			while (true) {
+				int count;
+				synchronized(input)
+				{
+					int available = input.available();
+					if (available == 0)
 					{
-						if (input.available() == 0)
-						{
-							return;
-						}
+						return;
 					}
+					count = input.read(eventChunk, 0, Math.min(available, eventChunk.length));
+				}
 
-					int b = input.read();
-					if (b >= 0) {
-						readFifo.enqueue((byte)b);
-						//notify each byte received
-						readFifo.notifyAll();
-						SerialFifoEventListener l = listener.get();
-						if (l != null)
-							l.serialByteReceivedEvent(readFifo);
+				if (count > 0) {
+					// Hand the whole chunk over at once; the reader is woken if it's waiting
+					if (readRing.write(eventChunk, 0, count) < count) {
+						Base.logger.warning("Serial receive buffer full; " + readRing.getDropped() + " bytes lost");
 					}
+					SerialFifoEventListener l = listener.get();
+					if (l != null)
+						l.serialBytesReceivedEvent(readRing);
 				}
-			} catch (IOException e) {
-				// Error condition
-				// e.printStackTrace();
-				// An unplugged connection will just flood the console with
-				// stack traces, and give us zero useful information.  Until
-				// we have a plan for how to respond to the user when the
-				// connection drops, we'll just let this silently fail, and set
-				// a fail bit.
-				if (connected.get()) {
-					Base.logger.severe("Serial IO exception:" + event.toString() + ". Printer communication may be disrupted.");
+			}
+		} catch (IOException e) {
+			// Error condition
+			// e.printStackTrace();
+			// An unplugged connection will just flood the console with
+			// stack traces, and give us zero useful information.  Until
+			// we have a plan for how to respond to the user when the
+			// connection drops, we'll just let this silently fail, and set
+			// a fail bit.
+			if (connected.get()) {
+				Base.logger.severe("Serial IO exception:" + event.toString() + ". Printer communication may be disrupted.");
 //					connected.set(false);
-					// TODO: How do we tell rxtx that we're done using this port?
-					dispose();
-				}
+				// TODO: How do we tell rxtx that we're done using this port?
+				dispose();
 			}
 		}
 	}
@@ -2,10 +2,10 @@ package replicatorg.app.util.serial;
 
 public interface SerialFifoEventListener {
 	/**
-	 * Called by serial when a byte is received and queued in the fifo.
-	 * The fifo is synchronzied for the period of this call so it will not be 
-	 * modified by any external threads.
-	 * @param fifo
+	 * Called by serial on the port's event thread when bytes are received and
+	 * queued in the ring. The listener takes the place of the ring's reader, so
+	 * it should take what it wants from the ring before returning.
+	 * @param ring
 	 */
-	public void serialByteReceivedEvent(ByteFifo fifo);
+	public void serialBytesReceivedEvent(ByteRing ring);
 }
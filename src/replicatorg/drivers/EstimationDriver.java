@@ -24,17 +24,22 @@
 package replicatorg.drivers;
 
 import java.awt.geom.Rectangle2D;
+import java.util.SortedMap;
 
-import javax.vecmath.Point3d;
-
+import replicatorg.drivers.estimation.ConstantFeedrateModel;
+import replicatorg.drivers.estimation.LayerTimes;
+import replicatorg.drivers.estimation.MotionModel;
 import replicatorg.util.Point5d;
 
 public class EstimationDriver extends DriverBaseImplementation implements InteractiveDisplay{
 	// build time in milliseconds
 	private double buildTime = 0.0;
 
-	// the length of our last move.
-	private double moveLength = 0.0;
+	// build time at each height
+	private final LayerTimes layerTimes = new LayerTimes();
+
+	// works out how long each move takes
+	private MotionModel motion;
 	
 	private Rectangle2D.Double bounds = new Rectangle2D.Double();
 	
@@ -42,12 +47,29 @@ public class EstimationDriver extends DriverBaseImplementation implements Intera
 		super();
 
 		buildTime = 0.0;
+		setMotionModel(new ConstantFeedrateModel());
+	}
+
+	/**
+	 * Set how the time moves take is worked out. This should be done before
+	 * anything is queued.
+	 */
+	public void setMotionModel(MotionModel motion) {
+		this.motion = motion;
+		motion.setListener(new MotionModel.Listener() {
+			public void moveTime(double millis, double z) {
+				addTime(millis, z);
+			}
+		});
 	}
 
 	public Rectangle2D.Double getBounds() { return bounds; }
 	
 	public void delay(long millis) {
-		buildTime += (double) millis / 1000;
+		// The machine comes to a stop to wait.
+		motion.stop();
+		Point5d position = currentPosition.get();
+		addTime((double) millis / 1000, position == null ? 0 : position.z());
 	}
 
 	protected Point5d reconcilePosition() {
@@ -63,35 +85,52 @@ public class EstimationDriver extends DriverBaseImplementation implements Intera
 	public void queuePoint(Point5d p) throws RetryException {
 		Point5d delta = getDelta(p);
 
-		// add to the total length
-		moveLength = delta.get3D().distance(new Point3d());
-
 		// Calculate the feedrate. This is the speed that the toolhead will
 		// be traveling at.
 		double feedrate = getSafeFeedrate(delta);
 
-		// mostly for estimation driver.
-		
-		double millis = moveLength / feedrate * 60000.0;
-
 		bounds.add(p.x(),p.y());
 		
-		// add it in!
-		if (millis > 0) {
-			//Take into account the time it takes to send a command!
-			millis = millis + 12;
-			
-			buildTime = buildTime + millis;
-//			System.out.println(moveLength + "mm at " + feedrate + " takes " + Math.round(millis) + " millis (" + buildTime + "	total).");
-		}
+		// add it in! The motion model needs to know which way we're going, to
+		// tell how sharp the corners are.
+		Point5d move = new Point5d(p);
+		move.sub(getCurrentPosition(false));
+		motion.move(move, feedrate, p.z());
 		
 		setInternalPosition(p);
 	}
 
+	/**
+	 * Add the given time to the build time.
+	 * @param millis the time, in ms
+	 * @param z the height the time was spent at, in mm
+	 */
+	protected void addTime(double millis, double z) {
+		buildTime = buildTime + millis;
+		layerTimes.add(millis, z);
+	}
+
+	/**
+	 * Finish off any moves the motion model is holding back, as if the machine
+	 * stops after them.
+	 */
+	public void finishMoves() {
+		motion.stop();
+	}
+
 	public double getBuildTime() {
+		finishMoves();
 		return buildTime;
 	}
 
+	/**
+	 * @return the build time at each height, in ms, from the bottom up
+	 */
+	public SortedMap<Double, Double> getLayerTimes() {
+		finishMoves();
+		return layerTimes.getTimes();
+	}
+
 	static public String getBuildTimeString(double tempTime) {
 		return getBuildTimeString(tempTime, false);
 	}
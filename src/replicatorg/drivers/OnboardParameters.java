@@ -162,6 +162,11 @@ public interface OnboardParameters {
 	// For floating point types stored in EEPROM as a uint32_t
 	void setEEPROMParam(EEPROMParams param, double value);
 
+	/// Hold the setters' EEPROM writes until commitEEPROMChanges(), which
+	/// sends only the bytes that actually changed
+	void beginEEPROMChanges();
+	void commitEEPROMChanges();
+
 	/// returns true if the target machine stores toolhead offsets
 	boolean hasToolheadsOffset();
 
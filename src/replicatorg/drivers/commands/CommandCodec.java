@@ -0,0 +1,582 @@
+package replicatorg.drivers.commands;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.EnumSet;
+
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.commands.DriverCommand.AxialDirection;
+import replicatorg.drivers.commands.DriverCommand.LinearDirection;
+import replicatorg.machine.model.AxisId;
+import replicatorg.util.Point5d;
+
+/**
+ * Writes DriverCommands to, and reads them back from, a compact binary form:
+ * a one byte opcode followed by the command's fields as primitives.
+ *
+ * Only the commands that GCodeParser produces are supported. Values that are
+ * NaN are refused, as are strings too long for writeUTF(), with one exception:
+ * a QueuePoint or SetCurrentPosition may have NaN axes, which stand for
+ * "wherever the machine is on that axis". When read back, those axes are filled
+ * in from the driver's current position as the command runs.
+ */
+public final class CommandCodec {
+
+	/** Opcode values 0-15 are left free for the caller's own records. */
+	public static final int FIRST_OPCODE = 16;
+
+	private static final int QUEUE_POINT = 16;
+	private static final int SET_FEEDRATE = 17;
+	private static final int SET_TEMPERATURE = 18;
+	private static final int SET_PLATFORM_TEMPERATURE = 19;
+	private static final int SET_CHAMBER_TEMPERATURE = 20;
+	private static final int SELECT_TOOL = 21;
+	private static final int REQUEST_TOOL_CHANGE = 22;
+	private static final int SET_CURRENT_POSITION = 23;
+	private static final int HOME_AXES = 24;
+	private static final int STORE_HOME_POSITIONS = 25;
+	private static final int RECALL_HOME_POSITIONS = 26;
+	private static final int ENABLE_AXES = 27;
+	private static final int DISABLE_AXES = 28;
+	private static final int SET_AXIS_OFFSET = 29;
+	private static final int DELAY = 30;
+	private static final int ENABLE_EXTRUDER_MOTOR = 31;
+	private static final int DISABLE_MOTOR = 32;
+	private static final int SET_MOTOR_DIRECTION = 33;
+	private static final int SET_MOTOR_SPEED_RPM = 34;
+	private static final int SET_MOTOR_SPEED_PWM = 35;
+	private static final int ENABLE_FAN = 36;
+	private static final int DISABLE_FAN = 37;
+	private static final int SET_SPINDLE_RPM = 38;
+	private static final int SET_SPINDLE_DIRECTION = 39;
+	private static final int SET_STEPPER_VOLTAGE = 40;
+	private static final int SET_SERVO = 41;
+	private static final int CHANGE_GEAR_RATIO = 42;
+	private static final int OPEN_CLAMP = 43;
+	private static final int CLOSE_CLAMP = 44;
+	private static final int TOGGLE_ABP = 45;
+	private static final int SET_ACCELERATION_TOGGLE = 46;
+	private static final int DISPLAY_MESSAGE = 47;
+	private static final int USER_PAUSE = 48;
+	private static final int SET_BUILD_PERCENT = 49;
+	private static final int PLAY_SONG = 50;
+	private static final int OPTIONAL_HALT = 51;
+	private static final int UNCONDITIONAL_HALT = 52;
+	private static final int PROGRAM_END = 53;
+	private static final int PROGRAM_REWIND = 54;
+	private static final int START_DATA_CAPTURE = 55;
+	private static final int DATA_CAPTURE_NOTE = 56;
+	private static final int GCODE_PASSTHROUGH = 57;
+
+	// Commands with no fields
+	private static final int WAIT_UNTIL_BUFFER_EMPTY = 64;
+	private static final int INVALIDATE_POSITION = 65;
+	private static final int GET_POSITION = 66;
+	private static final int INITIALIZE = 67;
+	private static final int READ_TEMPERATURE = 68;
+	private static final int ENABLE_DRIVES = 69;
+	private static final int DISABLE_DRIVES = 70;
+	private static final int ENABLE_SPINDLE = 71;
+	private static final int DISABLE_SPINDLE = 72;
+	private static final int ENABLE_FLOOD_COOLANT = 73;
+	private static final int DISABLE_FLOOD_COOLANT = 74;
+	private static final int ENABLE_MIST_COOLANT = 75;
+	private static final int DISABLE_MIST_COOLANT = 76;
+	private static final int OPEN_COLLET = 77;
+	private static final int CLOSE_COLLET = 78;
+	private static final int OPEN_VALVE = 79;
+	private static final int CLOSE_VALVE = 80;
+	private static final int STOP_DATA_CAPTURE = 81;
+
+	private static final int MAX_UTF = 65535 / 3;
+
+	private CommandCodec() {}
+
+	/**
+	 * Thrown by write() for a command that has no binary form.
+	 */
+	public static class UnsupportedCommandException extends IOException {
+		private static final long serialVersionUID = 1L;
+		public UnsupportedCommandException(String message) {
+			super(message);
+		}
+	}
+
+	private static void writeDouble(DataOutput out, double d) throws IOException {
+		if (Double.isNaN(d)) {
+			throw new UnsupportedCommandException("unknown value");
+		}
+		out.writeDouble(d);
+	}
+
+	// NaN axes are allowed here; see PartialQueuePoint
+	private static void writePoint(DataOutput out, Point5d p) throws IOException {
+		for (int i = 0; i < 5; i++) {
+			out.writeDouble(p.get(i));
+		}
+	}
+
+	private static Point5d readPoint(DataInput in) throws IOException {
+		return new Point5d(in.readDouble(), in.readDouble(), in.readDouble(),
+				in.readDouble(), in.readDouble());
+	}
+
+	private static boolean isPartial(Point5d p) {
+		for (int i = 0; i < 5; i++) {
+			if (Double.isNaN(p.get(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Replace the NaN axes of p with the driver's current position
+	private static Point5d fill(Point5d p, Driver driver) {
+		Point5d current = driver.getCurrentPosition(false);
+		Point5d filled = new Point5d(p);
+		for (int i = 0; i < 5; i++) {
+			if (Double.isNaN(filled.get(i))) {
+				filled.set(i, current.get(i));
+			}
+		}
+		return filled;
+	}
+
+	/** A QueuePoint that leaves some axes where the machine is. */
+	private static class PartialQueuePoint extends QueuePoint {
+		PartialQueuePoint(Point5d destination) {
+			super(destination);
+		}
+		@Override
+		public void run(Driver driver) throws RetryException {
+			driver.queuePoint(fill(destination, driver));
+		}
+	}
+
+	/** A SetCurrentPosition that leaves some axes where the machine is. */
+	private static class PartialSetCurrentPosition extends SetCurrentPosition {
+		PartialSetCurrentPosition(Point5d point) {
+			super(point);
+		}
+		@Override
+		public void run(Driver driver) throws RetryException {
+			driver.setCurrentPosition(fill(point, driver));
+		}
+	}
+
+	private static void writeString(DataOutput out, String s) throws IOException {
+		if (s == null) {
+			out.writeBoolean(false);
+			return;
+		}
+		if (s.length() > MAX_UTF) {
+			throw new UnsupportedCommandException("string too long");
+		}
+		out.writeBoolean(true);
+		out.writeUTF(s);
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeAxes(DataOutput out, EnumSet<AxisId> axes) throws IOException {
+		int bits = 0;
+		for (AxisId axis : axes) {
+			bits |= 1 << axis.ordinal();
+		}
+		out.writeShort(bits);
+	}
+
+	private static EnumSet<AxisId> readAxes(DataInput in) throws IOException {
+		int bits = in.readShort();
+		EnumSet<AxisId> axes = EnumSet.noneOf(AxisId.class);
+		for (AxisId axis : AxisId.values()) {
+			if ((bits & (1 << axis.ordinal())) != 0) {
+				axes.add(axis);
+			}
+		}
+		return axes;
+	}
+
+	/**
+	 * Write a command's opcode and fields.
+	 * @throws UnsupportedCommandException if the command has no binary form
+	 */
+	public static void write(DriverCommand command, DataOutput out) throws IOException {
+		if (command instanceof QueuePoint) {
+			out.writeByte(QUEUE_POINT);
+			writePoint(out, ((QueuePoint)command).destination);
+		} else if (command instanceof SetFeedrate) {
+			out.writeByte(SET_FEEDRATE);
+			writeDouble(out, ((SetFeedrate)command).feedrate);
+		} else if (command instanceof SetTemperature) {
+			SetTemperature c = (SetTemperature)command;
+			out.writeByte(SET_TEMPERATURE);
+			writeDouble(out, c.temperature);
+			out.writeInt(c.toolhead);
+		} else if (command instanceof SetPlatformTemperature) {
+			SetPlatformTemperature c = (SetPlatformTemperature)command;
+			out.writeByte(SET_PLATFORM_TEMPERATURE);
+			writeDouble(out, c.temperature);
+			out.writeInt(c.toolIndex);
+		} else if (command instanceof SetChamberTemperature) {
+			out.writeByte(SET_CHAMBER_TEMPERATURE);
+			writeDouble(out, ((SetChamberTemperature)command).temperature);
+		} else if (command instanceof SelectTool) {
+			out.writeByte(SELECT_TOOL);
+			out.writeInt(((SelectTool)command).toolNumber);
+		} else if (command instanceof RequestToolChange) {
+			RequestToolChange c = (RequestToolChange)command;
+			out.writeByte(REQUEST_TOOL_CHANGE);
+			out.writeInt(c.toolIndex);
+			out.writeInt(c.timeout);
+		} else if (command instanceof SetCurrentPosition) {
+			out.writeByte(SET_CURRENT_POSITION);
+			writePoint(out, ((SetCurrentPosition)command).point);
+		} else if (command instanceof HomeAxes) {
+			HomeAxes c = (HomeAxes)command;
+			out.writeByte(HOME_AXES);
+			writeAxes(out, c.axes);
+			out.writeBoolean(c.direction == LinearDirection.POSITIVE);
+			writeDouble(out, c.feedrate);
+		} else if (command instanceof StoreHomePositions) {
+			out.writeByte(STORE_HOME_POSITIONS);
+			writeAxes(out, ((StoreHomePositions)command).axes);
+		} else if (command instanceof RecallHomePositions) {
+			out.writeByte(RECALL_HOME_POSITIONS);
+			writeAxes(out, ((RecallHomePositions)command).axes);
+		} else if (command instanceof EnableAxes) {
+			out.writeByte(ENABLE_AXES);
+			writeAxes(out, ((EnableAxes)command).axes);
+		} else if (command instanceof DisableAxes) {
+			out.writeByte(DISABLE_AXES);
+			writeAxes(out, ((DisableAxes)command).axes);
+		} else if (command instanceof SetAxisOffset) {
+			SetAxisOffset c = (SetAxisOffset)command;
+			out.writeByte(SET_AXIS_OFFSET);
+			out.writeByte(c.axis.ordinal());
+			out.writeInt(c.offsetId);
+			writeDouble(out, c.offset);
+		} else if (command instanceof Delay) {
+			Delay c = (Delay)command;
+			out.writeByte(DELAY);
+			out.writeLong(c.delay);
+			out.writeInt(c.toolhead);
+		} else if (command instanceof EnableExtruderMotor) {
+			EnableExtruderMotor c = (EnableExtruderMotor)command;
+			out.writeByte(ENABLE_EXTRUDER_MOTOR);
+			out.writeLong(c.millis);
+			out.writeInt(c.toolhead);
+		} else if (command instanceof DisableMotor) {
+			out.writeByte(DISABLE_MOTOR);
+			out.writeInt(((DisableMotor)command).toolhead);
+		} else if (command instanceof SetMotorDirection) {
+			SetMotorDirection c = (SetMotorDirection)command;
+			out.writeByte(SET_MOTOR_DIRECTION);
+			out.writeBoolean(c.direction == AxialDirection.CLOCKWISE);
+			out.writeInt(c.toolhead);
+		} else if (command instanceof SetMotorSpeedRPM) {
+			SetMotorSpeedRPM c = (SetMotorSpeedRPM)command;
+			out.writeByte(SET_MOTOR_SPEED_RPM);
+			writeDouble(out, c.rpm);
+			out.writeInt(c.toolhead);
+		} else if (command instanceof SetMotorSpeedPWM) {
+			SetMotorSpeedPWM c = (SetMotorSpeedPWM)command;
+			out.writeByte(SET_MOTOR_SPEED_PWM);
+			out.writeInt(c.pwm);
+			out.writeInt(c.toolhead);
+		} else if (command instanceof EnableFan) {
+			out.writeByte(ENABLE_FAN);
+			out.writeInt(((EnableFan)command).toolhead);
+		} else if (command instanceof DisableFan) {
+			out.writeByte(DISABLE_FAN);
+			out.writeInt(((DisableFan)command).toolhead);
+		} else if (command instanceof SetSpindleRPM) {
+			out.writeByte(SET_SPINDLE_RPM);
+			writeDouble(out, ((SetSpindleRPM)command).rpm);
+		} else if (command instanceof SetSpindleDirection) {
+			out.writeByte(SET_SPINDLE_DIRECTION);
+			out.writeBoolean(((SetSpindleDirection)command).direction == AxialDirection.CLOCKWISE);
+		} else if (command instanceof SetStepperVoltage) {
+			SetStepperVoltage c = (SetStepperVoltage)command;
+			out.writeByte(SET_STEPPER_VOLTAGE);
+			out.writeInt(c.stepperId);
+			out.writeInt(c.voltageScale);
+		} else if (command instanceof SetServo) {
+			SetServo c = (SetServo)command;
+			out.writeByte(SET_SERVO);
+			out.writeInt(c.servoIndex);
+			writeDouble(out, c.position);
+		} else if (command instanceof ChangeGearRatio) {
+			out.writeByte(CHANGE_GEAR_RATIO);
+			out.writeInt(((ChangeGearRatio)command).gearRatio);
+		} else if (command instanceof OpenClamp) {
+			out.writeByte(OPEN_CLAMP);
+			out.writeInt(((OpenClamp)command).clampIndex);
+		} else if (command instanceof CloseClamp) {
+			out.writeByte(CLOSE_CLAMP);
+			out.writeInt(((CloseClamp)command).clampIndex);
+		} else if (command instanceof ToggleAutomatedBuildPlatform) {
+			ToggleAutomatedBuildPlatform c = (ToggleAutomatedBuildPlatform)command;
+			out.writeByte(TOGGLE_ABP);
+			out.writeBoolean(c.state);
+			out.writeInt(c.toolhead);
+		} else if (command instanceof SetAccelerationToggle) {
+			out.writeByte(SET_ACCELERATION_TOGGLE);
+			out.writeBoolean(((SetAccelerationToggle)command).on);
+		} else if (command instanceof DisplayMessage) {
+			DisplayMessage c = (DisplayMessage)command;
+			out.writeByte(DISPLAY_MESSAGE);
+			writeDouble(out, c.seconds);
+			writeString(out, c.message);
+			out.writeBoolean(c.buttonWait);
+		} else if (command instanceof UserPause) {
+			UserPause c = (UserPause)command;
+			out.writeByte(USER_PAUSE);
+			writeDouble(out, c.seconds);
+			out.writeBoolean(c.resetOnTimeout);
+			out.writeInt(c.buttonMask);
+		} else if (command instanceof SetBuildPercent) {
+			SetBuildPercent c = (SetBuildPercent)command;
+			out.writeByte(SET_BUILD_PERCENT);
+			out.writeInt(c.percentDone);
+			writeString(out, c.comment);
+		} else if (command instanceof PlaySong) {
+			out.writeByte(PLAY_SONG);
+			out.writeInt(((PlaySong)command).songId);
+		} else if (command instanceof OptionalHalt) {
+			out.writeByte(OPTIONAL_HALT);
+			writeString(out, ((OptionalHalt)command).message);
+		} else if (command instanceof UnconditionalHalt) {
+			out.writeByte(UNCONDITIONAL_HALT);
+			writeString(out, ((UnconditionalHalt)command).message);
+		} else if (command instanceof ProgramEnd) {
+			out.writeByte(PROGRAM_END);
+			writeString(out, ((ProgramEnd)command).message);
+		} else if (command instanceof ProgramRewind) {
+			out.writeByte(PROGRAM_REWIND);
+			writeString(out, ((ProgramRewind)command).message);
+		} else if (command instanceof StartDataCapture) {
+			out.writeByte(START_DATA_CAPTURE);
+			writeString(out, ((StartDataCapture)command).filename);
+		} else if (command instanceof DataCaptureNote) {
+			out.writeByte(DATA_CAPTURE_NOTE);
+			writeString(out, ((DataCaptureNote)command).message);
+		} else if (command instanceof GCodePassthrough) {
+			out.writeByte(GCODE_PASSTHROUGH);
+			writeString(out, ((GCodePassthrough)command).command);
+		} else if (command instanceof WaitUntilBufferEmpty) {
+			out.writeByte(WAIT_UNTIL_BUFFER_EMPTY);
+		} else if (command instanceof InvalidatePosition) {
+			out.writeByte(INVALIDATE_POSITION);
+		} else if (command instanceof GetPosition) {
+			out.writeByte(GET_POSITION);
+		} else if (command instanceof Initialize) {
+			out.writeByte(INITIALIZE);
+		} else if (command instanceof ReadTemperature) {
+			out.writeByte(READ_TEMPERATURE);
+		} else if (command instanceof EnableDrives) {
+			out.writeByte(ENABLE_DRIVES);
+		} else if (command instanceof DisableDrives) {
+			out.writeByte(DISABLE_DRIVES);
+		} else if (command instanceof EnableSpindle) {
+			out.writeByte(ENABLE_SPINDLE);
+		} else if (command instanceof DisableSpindle) {
+			out.writeByte(DISABLE_SPINDLE);
+		} else if (command instanceof EnableFloodCoolant) {
+			out.writeByte(ENABLE_FLOOD_COOLANT);
+		} else if (command instanceof DisableFloodCoolant) {
+			out.writeByte(DISABLE_FLOOD_COOLANT);
+		} else if (command instanceof EnableMistCoolant) {
+			out.writeByte(ENABLE_MIST_COOLANT);
+		} else if (command instanceof DisableMistCoolant) {
+			out.writeByte(DISABLE_MIST_COOLANT);
+		} else if (command instanceof OpenCollet) {
+			out.writeByte(OPEN_COLLET);
+		} else if (command instanceof CloseCollet) {
+			out.writeByte(CLOSE_COLLET);
+		} else if (command instanceof OpenValve) {
+			out.writeByte(OPEN_VALVE);
+		} else if (command instanceof CloseValve) {
+			out.writeByte(CLOSE_VALVE);
+		} else if (command instanceof StopDataCapture) {
+			out.writeByte(STOP_DATA_CAPTURE);
+		} else {
+			throw new UnsupportedCommandException(command.getClass().getSimpleName());
+		}
+	}
+
+	/**
+	 * Read the fields of a command whose opcode has already been read.
+	 * @throws IOException if the opcode isn't one of ours
+	 */
+	public static DriverCommand read(int opcode, DataInput in) throws IOException {
+		switch (opcode) {
+		case QUEUE_POINT: {
+			Point5d destination = readPoint(in);
+			return isPartial(destination) ? new PartialQueuePoint(destination) : new QueuePoint(destination);
+		}
+		case SET_FEEDRATE:
+			return new SetFeedrate(in.readDouble());
+		case SET_TEMPERATURE: {
+			double temperature = in.readDouble();
+			return new SetTemperature(temperature, in.readInt());
+		}
+		case SET_PLATFORM_TEMPERATURE: {
+			double temperature = in.readDouble();
+			return new SetPlatformTemperature(temperature, in.readInt());
+		}
+		case SET_CHAMBER_TEMPERATURE:
+			return new SetChamberTemperature(in.readDouble());
+		case SELECT_TOOL:
+			return new SelectTool(in.readInt());
+		case REQUEST_TOOL_CHANGE: {
+			int toolIndex = in.readInt();
+			return new RequestToolChange(toolIndex, in.readInt());
+		}
+		case SET_CURRENT_POSITION: {
+			Point5d point = readPoint(in);
+			return isPartial(point) ? new PartialSetCurrentPosition(point) : new SetCurrentPosition(point);
+		}
+		case HOME_AXES: {
+			EnumSet<AxisId> axes = readAxes(in);
+			LinearDirection direction = in.readBoolean() ? LinearDirection.POSITIVE : LinearDirection.NEGATIVE;
+			return new HomeAxes(axes, direction, in.readDouble());
+		}
+		case STORE_HOME_POSITIONS:
+			return new StoreHomePositions(readAxes(in));
+		case RECALL_HOME_POSITIONS:
+			return new RecallHomePositions(readAxes(in));
+		case ENABLE_AXES:
+			return new EnableAxes(readAxes(in));
+		case DISABLE_AXES:
+			return new DisableAxes(readAxes(in));
+		case SET_AXIS_OFFSET: {
+			AxisId axis = AxisId.values()[in.readByte()];
+			int offsetId = in.readInt();
+			return new SetAxisOffset(axis, offsetId, in.readDouble());
+		}
+		case DELAY: {
+			long delay = in.readLong();
+			return new Delay(delay, in.readInt());
+		}
+		case ENABLE_EXTRUDER_MOTOR: {
+			long millis = in.readLong();
+			return new EnableExtruderMotor(millis, in.readInt());
+		}
+		case DISABLE_MOTOR:
+			return new DisableMotor(in.readInt());
+		case SET_MOTOR_DIRECTION: {
+			AxialDirection direction = in.readBoolean() ? AxialDirection.CLOCKWISE : AxialDirection.COUNTERCLOCKWISE;
+			return new SetMotorDirection(direction, in.readInt());
+		}
+		case SET_MOTOR_SPEED_RPM: {
+			double rpm = in.readDouble();
+			return new SetMotorSpeedRPM(rpm, in.readInt());
+		}
+		case SET_MOTOR_SPEED_PWM: {
+			int pwm = in.readInt();
+			return new SetMotorSpeedPWM(pwm, in.readInt());
+		}
+		case ENABLE_FAN:
+			return new EnableFan(in.readInt());
+		case DISABLE_FAN:
+			return new DisableFan(in.readInt());
+		case SET_SPINDLE_RPM:
+			return new SetSpindleRPM(in.readDouble());
+		case SET_SPINDLE_DIRECTION:
+			return new SetSpindleDirection(in.readBoolean() ? AxialDirection.CLOCKWISE : AxialDirection.COUNTERCLOCKWISE);
+		case SET_STEPPER_VOLTAGE: {
+			int stepperId = in.readInt();
+			return new SetStepperVoltage(stepperId, in.readInt());
+		}
+		case SET_SERVO: {
+			int servoIndex = in.readInt();
+			return new SetServo(servoIndex, in.readDouble());
+		}
+		case CHANGE_GEAR_RATIO:
+			return new ChangeGearRatio(in.readInt());
+		case OPEN_CLAMP:
+			return new OpenClamp(in.readInt());
+		case CLOSE_CLAMP:
+			return new CloseClamp(in.readInt());
+		case TOGGLE_ABP: {
+			boolean state = in.readBoolean();
+			return new ToggleAutomatedBuildPlatform(state, in.readInt());
+		}
+		case SET_ACCELERATION_TOGGLE:
+			return new SetAccelerationToggle(in.readBoolean());
+		case DISPLAY_MESSAGE: {
+			double seconds = in.readDouble();
+			String message = readString(in);
+			return new DisplayMessage(seconds, message, in.readBoolean());
+		}
+		case USER_PAUSE: {
+			double seconds = in.readDouble();
+			boolean resetOnTimeout = in.readBoolean();
+			return new UserPause(seconds, resetOnTimeout, in.readInt());
+		}
+		case SET_BUILD_PERCENT: {
+			int percentDone = in.readInt();
+			return new SetBuildPercent(percentDone, readString(in));
+		}
+		case PLAY_SONG:
+			return new PlaySong(in.readInt());
+		case OPTIONAL_HALT:
+			return new OptionalHalt(readString(in));
+		case UNCONDITIONAL_HALT:
+			return new UnconditionalHalt(readString(in));
+		case PROGRAM_END:
+			return new ProgramEnd(readString(in));
+		case PROGRAM_REWIND:
+			return new ProgramRewind(readString(in));
+		case START_DATA_CAPTURE:
+			return new StartDataCapture(readString(in));
+		case DATA_CAPTURE_NOTE:
+			return new DataCaptureNote(readString(in));
+		case GCODE_PASSTHROUGH:
+			return new GCodePassthrough(readString(in));
+		case WAIT_UNTIL_BUFFER_EMPTY:
+			return new WaitUntilBufferEmpty();
+		case INVALIDATE_POSITION:
+			return new InvalidatePosition();
+		case GET_POSITION:
+			return new GetPosition();
+		case INITIALIZE:
+			return new Initialize();
+		case READ_TEMPERATURE:
+			return new ReadTemperature();
+		case ENABLE_DRIVES:
+			return new EnableDrives();
+		case DISABLE_DRIVES:
+			return new DisableDrives();
+		case ENABLE_SPINDLE:
+			return new EnableSpindle();
+		case DISABLE_SPINDLE:
+			return new DisableSpindle();
+		case ENABLE_FLOOD_COOLANT:
+			return new EnableFloodCoolant();
+		case DISABLE_FLOOD_COOLANT:
+			return new DisableFloodCoolant();
+		case ENABLE_MIST_COOLANT:
+			return new EnableMistCoolant();
+		case DISABLE_MIST_COOLANT:
+			return new DisableMistCoolant();
+		case OPEN_COLLET:
+			return new OpenCollet();
+		case CLOSE_COLLET:
+			return new CloseCollet();
+		case OPEN_VALVE:
+			return new OpenValve();
+		case CLOSE_VALVE:
+			return new CloseValve();
+		case STOP_DATA_CAPTURE:
+			return new StopDataCapture();
+		default:
+			throw new IOException("Unknown command opcode " + opcode);
+		}
+	}
+}
@@ -10,6 +10,10 @@ public class SetFeedrate implements DriverCommand {
 	public SetFeedrate(double feedrate) {
 		this.feedrate = feedrate;
 	}
+
+	public double getFeedrate() {
+		return feedrate;
+	}
 	
 	@Override
 	public void run(Driver driver) throws RetryException {
@@ -21,6 +21,8 @@ public class StartDataCapture implements DriverCommand {
 	public void run(Driver driver) throws RetryException, StopException {
 		// TODO Auto-generated method stub
 		Base.logger.info("Data capture started, filename: " + filename);
+		if (Base.capture != null)
+			Base.capture.close();
 		Base.capture = new DataCapture(filename);
 	}
 
@@ -10,8 +10,10 @@ public class StopDataCapture implements DriverCommand {
 	@Override
 	public void run(Driver driver) throws RetryException, StopException {
 		Base.logger.info("Data capture Stopped");
-		// TODO: really? is this enough, or should/will we destroy the logger and delete it
-		Base.capture = null;
+		if (Base.capture != null) {
+			Base.capture.close();
+			Base.capture = null;
+		}
 	}
 
 }
@@ -0,0 +1,264 @@
+package replicatorg.drivers.estimation;
+
+import replicatorg.util.Point5d;
+
+/**
+ * Estimates moves the way an accelerated planner runs them: each move speeds up,
+ * cruises and slows down along a trapezoidal speed profile, and the planner looks
+ * ahead over a buffer of moves so it only slows down as much as the corners and
+ * the end of the buffer need.
+ *
+ * Corner speeds are limited by junction deviation, by each axis's jerk, and by
+ * the speeds of the moves on either side. Moves are planned to come to a stop
+ * (or the minimum speed) at the end of the buffer, and a move's time is known
+ * once the buffer is full and the move leaves it.
+ *
+ * The planner is kept in arrays of primitives, so adding a move allocates nothing.
+ */
+public class AcceleratedMotionModel implements MotionModel {
+
+	/**
+	 * Gets told the speed profile each move is planned with, as it leaves the buffer.
+	 * Lengths are along XYZ, or along the extruders for moves that only extrude.
+	 */
+	public interface ProfileListener {
+		/**
+		 * @param length the length of the move, in mm
+		 * @param entry the speed at the start of the move, in mm/s
+		 * @param nominal the fastest the move may go, in mm/s
+		 * @param exit the speed at the end of the move, in mm/s
+		 * @param acceleration the acceleration along the move, in mm/s/s; infinite if the
+		 * move isn't limited
+		 */
+		void moveProfile(double length, double entry, double nominal, double exit, double acceleration);
+	}
+
+	private final AccelerationSettings settings;
+
+	private Listener listener;
+	private ProfileListener profileListener;
+
+	// The planner buffer, as a ring of moves. head is the oldest move.
+	private final int size;
+	private final double[] lengths;
+	private final double[] nominalSpeeds;
+	private final double[] accelerations;
+	private final double[] maxEntrySpeeds;
+	private final double[] entrySpeeds;
+	private final double[] stopSpeeds;
+	private final double[] heights;
+	private int head = 0;
+	private int count = 0;
+
+	// The last move, for working out the junction with the next one
+	private boolean moving = false;
+	private final double[] lastUnit = new double[5];
+	private double lastSpeed;
+	private boolean lastHasXYZ;
+
+	private final double[] unit = new double[5];
+
+	public AcceleratedMotionModel(AccelerationSettings settings) {
+		this.settings = settings;
+		size = Math.max(2, settings.plannerBlocks);
+		lengths = new double[size];
+		nominalSpeeds = new double[size];
+		accelerations = new double[size];
+		maxEntrySpeeds = new double[size];
+		entrySpeeds = new double[size];
+		stopSpeeds = new double[size];
+		heights = new double[size];
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public void setProfileListener(ProfileListener profileListener) {
+		this.profileListener = profileListener;
+	}
+
+	/**
+	 * @return true if the move would be planned; moves that go nowhere, or at no
+	 * speed, are skipped
+	 */
+	public static boolean isMove(Point5d delta, double feedrate) {
+		return feedrate > 0 && delta.length() > 0;
+	}
+
+	public void move(Point5d delta, double feedrate, double z) {
+		double xyz = Math.sqrt(delta.x() * delta.x() + delta.y() * delta.y() + delta.z() * delta.z());
+		double length = xyz;
+		if (length == 0) {
+			// Extruder only
+			length = Math.sqrt(delta.a() * delta.a() + delta.b() * delta.b());
+		}
+		if (!isMove(delta, feedrate)) {
+			return;
+		}
+
+		// Top speed and acceleration along the move, within each axis's limits
+		double speed = feedrate / 60.0;
+		double acceleration = settings.acceleration > 0 ? settings.acceleration : Double.POSITIVE_INFINITY;
+		for (int i = 0; i < 5; i++) {
+			unit[i] = delta.get(i) / length;
+			double u = Math.abs(unit[i]);
+			if (u == 0) {
+				continue;
+			}
+			if (settings.maxSpeeds[i] > 0) {
+				speed = Math.min(speed, settings.maxSpeeds[i] / u);
+			}
+			if (settings.accelerations[i] > 0) {
+				acceleration = Math.min(acceleration, settings.accelerations[i] / u);
+			}
+		}
+		double stopSpeed = Math.min(settings.minimumSpeed, speed);
+
+		double maxEntry = stopSpeed;
+		if (moving) {
+			maxEntry = Math.max(stopSpeed, junctionSpeed(speed, acceleration, xyz > 0));
+		}
+
+		if (count == size) {
+			finishOldest();
+		}
+		int n = (head + count) % size;
+		lengths[n] = length;
+		nominalSpeeds[n] = speed;
+		accelerations[n] = acceleration;
+		maxEntrySpeeds[n] = maxEntry;
+		entrySpeeds[n] = maxEntry;
+		stopSpeeds[n] = stopSpeed;
+		heights[n] = z;
+		count++;
+
+		System.arraycopy(unit, 0, lastUnit, 0, 5);
+		lastSpeed = speed;
+		lastHasXYZ = xyz > 0;
+		moving = true;
+
+		plan();
+	}
+
+	/**
+	 * @return the fastest the machine can go through the corner between the last
+	 * move and this one
+	 */
+	private double junctionSpeed(double speed, double acceleration, boolean hasXYZ) {
+		double junction = Math.min(speed, lastSpeed);
+
+		// Junction deviation, for moves in space
+		if (hasXYZ && lastHasXYZ && settings.junctionDeviation > 0) {
+			double cos = 0;
+			double lastXYZ = 0;
+			double thisXYZ = 0;
+			for (int i = 0; i < 3; i++) {
+				cos -= lastUnit[i] * unit[i];
+				lastXYZ += lastUnit[i] * lastUnit[i];
+				thisXYZ += unit[i] * unit[i];
+			}
+			// The units include the extruders; take the angle in XYZ alone
+			cos /= Math.sqrt(lastXYZ * thisXYZ);
+			if (cos > 0.999999) {
+				// Turning right around
+				return 0;
+			}
+			if (cos > -0.999999) {
+				double sinHalf = Math.sqrt(0.5 * (1.0 - cos));
+				junction = Math.min(junction,
+						Math.sqrt(acceleration * settings.junctionDeviation * sinHalf / (1.0 - sinHalf)));
+			}
+		}
+
+		// Jerk: how much each axis's speed can change at once
+		for (int i = 0; i < 5; i++) {
+			if (settings.jerks[i] <= 0) {
+				continue;
+			}
+			double change = Math.abs(lastUnit[i] * junction - unit[i] * junction);
+			if (change > settings.jerks[i]) {
+				junction *= settings.jerks[i] / change;
+			}
+		}
+		return junction;
+	}
+
+	/**
+	 * Work out entry speeds over the buffer: back from a stop at the end, then forward
+	 * from the oldest move, whose entry speed is already fixed.
+	 */
+	private void plan() {
+		int last = (head + count - 1) % size;
+		double exit = stopSpeeds[last];
+		for (int k = count - 1; k > 0; k--) {
+			int i = (head + k) % size;
+			double entry = Math.min(maxEntrySpeeds[i], reachable(exit, accelerations[i], lengths[i]));
+			entrySpeeds[i] = entry;
+			exit = entry;
+		}
+		for (int k = 0; k < count - 1; k++) {
+			int i = (head + k) % size;
+			int next = (i + 1) % size;
+			double reach = reachable(entrySpeeds[i], accelerations[i], lengths[i]);
+			if (entrySpeeds[next] > reach) {
+				entrySpeeds[next] = reach;
+			}
+		}
+	}
+
+	/** @return the speed we can get to from the given speed over a distance */
+	private static double reachable(double speed, double acceleration, double length) {
+		return Math.sqrt(speed * speed + 2 * acceleration * length);
+	}
+
+	private void finishOldest() {
+		int i = head;
+		double exit;
+		if (count > 1) {
+			exit = entrySpeeds[(i + 1) % size];
+		} else {
+			exit = stopSpeeds[i];
+		}
+		double seconds = trapezoidTime(entrySpeeds[i], exit, nominalSpeeds[i], accelerations[i], lengths[i]);
+		head = (head + 1) % size;
+		count--;
+		if (profileListener != null) {
+			profileListener.moveProfile(lengths[i], entrySpeeds[i], nominalSpeeds[i], exit, accelerations[i]);
+		}
+		if (listener != null) {
+			listener.moveTime(seconds * 1000.0, heights[i]);
+		}
+	}
+
+	/**
+	 * @return the time, in seconds, to move the given length starting and ending at
+	 * the given speeds, going no faster than the nominal speed
+	 */
+	private static double trapezoidTime(double entry, double exit, double nominal, double acceleration, double length) {
+		if (Double.isInfinite(acceleration)) {
+			return length / nominal;
+		}
+		double accelerating = (nominal * nominal - entry * entry) / (2 * acceleration);
+		double decelerating = (nominal * nominal - exit * exit) / (2 * acceleration);
+		if (accelerating + decelerating <= length) {
+			// Gets up to speed, cruises, then slows down
+			return (nominal - entry) / acceleration + (nominal - exit) / acceleration
+				+ (length - accelerating - decelerating) / nominal;
+		}
+		// Never gets up to speed
+		double peak = Math.sqrt((2 * acceleration * length + entry * entry + exit * exit) / 2);
+		if (peak < Math.max(entry, exit)) {
+			return 2 * length / (entry + exit);
+		}
+		return (peak - entry) / acceleration + (peak - exit) / acceleration;
+	}
+
+	public void stop() {
+		// The buffer is always planned to stop at the end, so just run it out.
+		while (count > 0) {
+			finishOldest();
+		}
+		moving = false;
+	}
+}
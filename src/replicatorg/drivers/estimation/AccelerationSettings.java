@@ -0,0 +1,90 @@
+package replicatorg.drivers.estimation;
+
+import replicatorg.drivers.OnboardParameters;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+/**
+ * How a machine with an accelerated planner moves, for the AcceleratedMotionModel.
+ * Axes are numbered X, Y, Z, A, B. Limits that are 0 aren't applied.
+ */
+public class AccelerationSettings {
+	// Junction deviation, in mm, used when nothing else is known
+	public static final double DEFAULT_JUNCTION_DEVIATION = 0.05;
+
+	// Number of moves the planner looks ahead over; the MightyBoard planner has 16
+	public static final int DEFAULT_PLANNER_BLOCKS = 16;
+
+	/** Top speed of each axis, in mm/s */
+	public final double[] maxSpeeds = new double[5];
+	/** Acceleration of each axis, in mm/s/s */
+	public final double[] accelerations = new double[5];
+	/** Largest instant change in speed of each axis at a junction, in mm/s */
+	public final double[] jerks = new double[5];
+	/** Acceleration of any move, in mm/s/s */
+	public double acceleration = 0.0;
+	/** Slowest speed the planner takes moves at, in mm/s */
+	public double minimumSpeed = 0.0;
+	/** How far the path may stray from a corner taken at speed, in mm */
+	public double junctionDeviation = DEFAULT_JUNCTION_DEVIATION;
+	/** Number of moves the planner looks ahead over */
+	public int plannerBlocks = DEFAULT_PLANNER_BLOCKS;
+
+	/**
+	 * Settings from the machine description alone.
+	 */
+	public AccelerationSettings(MachineModel model) {
+		Point5d maxFeedrates = model.getMaximumFeedrates();
+		Point5d axisAccelerations = model.getAxisAccelerations();
+		Point5d axisJerks = model.getAxisJerks();
+		for (int i = 0; i < 5; i++) {
+			maxSpeeds[i] = maxFeedrates.get(i) / 60.0;
+			accelerations[i] = axisAccelerations.get(i);
+			jerks[i] = axisJerks.get(i);
+		}
+	}
+
+	/**
+	 * @return true if any acceleration is set; if not, moves would take no time to get up to speed
+	 */
+	public boolean hasAcceleration() {
+		if (acceleration > 0) {
+			return true;
+		}
+		for (double a : accelerations) {
+			if (a > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the settings in the machine description, or null if it doesn't give any accelerations
+	 */
+	public static AccelerationSettings fromModel(MachineModel model) {
+		AccelerationSettings settings = new AccelerationSettings(model);
+		return settings.hasAcceleration() ? settings : null;
+	}
+
+	/**
+	 * Read the acceleration settings stored on a MightyBoard (firmware 5.5 and
+	 * earlier), over the machine description's.
+	 */
+	public static AccelerationSettings fromOnboard(OnboardParameters onboard, MachineModel model) {
+		AccelerationSettings settings = new AccelerationSettings(model);
+		settings.acceleration = onboard.getAccelerationRate();
+		for (int i = 0; i < 5; i++) {
+			settings.accelerations[i] = onboard.getAxisAccelerationRate(i);
+		}
+		// X and Y share a jerk setting
+		double xyJerk = onboard.getAxisJerk(0);
+		settings.jerks[0] = xyJerk;
+		settings.jerks[1] = xyJerk;
+		for (int i = 2; i < 5; i++) {
+			settings.jerks[i] = onboard.getAxisJerk(i);
+		}
+		settings.minimumSpeed = onboard.getAccelerationMinimumSpeed();
+		return settings;
+	}
+}
@@ -0,0 +1,37 @@
+package replicatorg.drivers.estimation;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.util.Point5d;
+
+/**
+ * The original estimate: every move runs at its feedrate from start to end, plus
+ * a fixed allowance for sending the command to the machine.
+ */
+public class ConstantFeedrateModel implements MotionModel {
+	// Time it takes to send a command, in ms
+	private static final double COMMAND_MILLIS = 12;
+
+	private Listener listener;
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public void move(Point5d delta, double feedrate, double z) {
+		double moveLength = delta.get3D().distance(new Point3d());
+
+		double millis = moveLength / feedrate * 60000.0;
+
+		if (millis > 0) {
+			//Take into account the time it takes to send a command!
+			millis = millis + COMMAND_MILLIS;
+
+			listener.moveTime(millis, z);
+		}
+	}
+
+	public void stop() {
+		// Nothing held back.
+	}
+}
@@ -0,0 +1,45 @@
+package replicatorg.drivers.estimation;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Adds up build time by layer, where a layer is everything done at one height.
+ */
+public class LayerTimes {
+	// Time spent at each height, in ms
+	private final SortedMap<Double, Double> times = new TreeMap<Double, Double>();
+
+	// The height we're at, and the time spent there that isn't in the map yet
+	private double z = Double.NaN;
+	private double time = 0.0;
+
+	/**
+	 * @param millis time spent, in ms
+	 * @param z the height it was spent at, in mm
+	 */
+	public void add(double millis, double z) {
+		if (z != this.z) {
+			flush();
+			this.z = z;
+		}
+		time = time + millis;
+	}
+
+	private void flush() {
+		if (time != 0.0) {
+			Double total = times.get(z);
+			times.put(z, total == null ? time : total + time);
+			time = 0.0;
+		}
+	}
+
+	/**
+	 * @return the time spent at each height, in ms, from the bottom up
+	 */
+	public SortedMap<Double, Double> getTimes() {
+		flush();
+		return Collections.unmodifiableSortedMap(times);
+	}
+}
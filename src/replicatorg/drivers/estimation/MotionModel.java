@@ -0,0 +1,39 @@
+package replicatorg.drivers.estimation;
+
+import replicatorg.util.Point5d;
+
+/**
+ * Works out how long moves take, for the EstimationDriver.
+ *
+ * A model may hold moves back so it can look at the ones that follow before
+ * deciding how fast to take them. The time each move takes is handed to the
+ * listener once it is known, in the order the moves were made.
+ */
+public interface MotionModel {
+
+	/**
+	 * Gets told how long each move takes.
+	 */
+	public interface Listener {
+		/**
+		 * @param millis how long the move takes, in ms
+		 * @param z the height the move ends at, in mm
+		 */
+		void moveTime(double millis, double z);
+	}
+
+	void setListener(Listener listener);
+
+	/**
+	 * Add a move.
+	 * @param delta the distance moved along each axis, in mm, signed by direction
+	 * @param feedrate the feedrate to move at, in mm/min
+	 * @param z the height the move ends at, in mm
+	 */
+	void move(Point5d delta, double feedrate, double z);
+
+	/**
+	 * Bring the machine to a stop, finishing any moves that are being held back.
+	 */
+	void stop();
+}
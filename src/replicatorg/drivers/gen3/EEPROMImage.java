@@ -0,0 +1,104 @@
+package replicatorg.drivers.gen3;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A copy, in memory, of the start of a bot's EEPROM: the part the onboard
+ * parameter map lives in.
+ *
+ * The EEPROM can only be read 16 bytes at a time, and the onboard parameter
+ * dialogs read each value on its own, so filling them in from the bot takes
+ * hundreds of round trips. The driver reads the whole map into an image once
+ * instead, and answers reads from it.
+ *
+ * Writes can be held in the image rather than sent straight away. The bytes
+ * that actually change are marked dirty, and only those are written back when
+ * the driver commits; setting a value to what it already was costs nothing.
+ *
+ * All methods are safe to call from any thread.
+ */
+public class EEPROMImage {
+
+	private final byte[] data;
+
+	// Bytes held in the image that the bot doesn't have yet
+	private final BitSet dirty = new BitSet();
+
+	/**
+	 * @param data the bytes read from the bot, starting at offset 0
+	 */
+	public EEPROMImage(byte[] data) {
+		this.data = data.clone();
+	}
+
+	public int size() {
+		return data.length;
+	}
+
+	/**
+	 * @return true if the given range lies entirely within the image
+	 */
+	public boolean contains(int offset, int length) {
+		return offset >= 0 && length >= 0 && offset + length <= data.length;
+	}
+
+	/**
+	 * @return a copy of the given range, including any held writes
+	 */
+	public synchronized byte[] read(int offset, int length) {
+		byte[] result = new byte[length];
+		System.arraycopy(data, offset, result, 0, length);
+		return result;
+	}
+
+	/**
+	 * Record bytes that the bot now has, because they have just been read from
+	 * it or written to it. Bytes with a held write are left alone, so the held
+	 * value still goes out on commit.
+	 */
+	public synchronized void update(int offset, byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			if (!dirty.get(offset + i)) {
+				data[offset + i] = bytes[i];
+			}
+		}
+	}
+
+	/**
+	 * Hold a write in the image until the dirty ranges are taken. Only the bytes
+	 * that differ from what's there are marked dirty.
+	 */
+	public synchronized void write(int offset, byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			if (data[offset + i] != bytes[i]) {
+				data[offset + i] = bytes[i];
+				dirty.set(offset + i);
+			}
+		}
+	}
+
+	public synchronized boolean isDirty() {
+		return !dirty.isEmpty();
+	}
+
+	/**
+	 * Take the held writes, to be sent to the bot. Each run of dirty bytes is
+	 * split into ranges no longer than maxLength; bytes that haven't changed
+	 * are never included, since the bot may have changed them itself.
+	 * @return {offset, length} pairs, in order; the image is clean afterwards
+	 */
+	public synchronized List<int[]> takeDirtyRanges(int maxLength) {
+		List<int[]> ranges = new ArrayList<int[]>();
+		for (int start = dirty.nextSetBit(0); start >= 0; ) {
+			int end = dirty.nextClearBit(start);
+			for (int offset = start; offset < end; offset += maxLength) {
+				ranges.add(new int[] { offset, Math.min(maxLength, end - offset) });
+			}
+			start = dirty.nextSetBit(end);
+		}
+		dirty.clear();
+		return ranges;
+	}
+}
@@ -111,7 +111,7 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 			}
 		}
 
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_EXT.getCode());
+		PacketBuilder pb = PacketBuilder.start(MotherboardCommandCode.QUEUE_POINT_EXT.getCode());
 
 		if (Base.logger.isLoggable(Level.FINE)) {
 			Base.logger.log(Level.FINE,"Queued absolute point " + steps + " at "
@@ -126,7 +126,7 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 		pb.add32((int) steps.b());
 		pb.add32((int) micros);
 
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 
 	public void setCurrentPosition(Point5d p) throws RetryException {
@@ -655,6 +655,8 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 			PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.RESET_TO_FACTORY.getCode());
 			pb.add8((byte) 0xFF);  // reserved byte in payload
 			PacketResponse pr = runCommand(pb.getPacket());
+			// The bot has rewritten its EEPROM behind our back
+			dropEEPROMImage();
 		}
 		else
 			super.resetSettingsToBlank();
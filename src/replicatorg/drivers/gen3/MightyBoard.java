@@ -1496,6 +1496,11 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 			offset += MAX_PAYLOAD;
 			data = tail;
 		}
+		// The tool data is kept in the motherboard EEPROM, so it's in our image
+		int toolInfoOffset = getToolInfoOffset(toolIndex);
+		if (toolInfoOffset != -1 && holdEEPROMWrite(toolInfoOffset + offset, data)) {
+			return;
+		}
 		PacketBuilder slavepb = new PacketBuilder(MotherboardCommandCode.TOOL_QUERY.getCode());
 		slavepb.add8((byte) toolIndex);
 		slavepb.add8(ToolCommandCode.WRITE_TO_EEPROM.getCode());
@@ -1508,6 +1513,19 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 		slavepr.printDebug();
 		// If the tool index is 127/255, we should not expect a response (it's a broadcast packet).
 		assert (toolIndex == 255) || (toolIndex == 127) || (slavepr.get8() == data.length); 
+		if (toolInfoOffset != -1) {
+			updateEEPROMImage(toolInfoOffset + offset, data);
+		}
+	}
+
+	/**
+	 * @return where the given tool's data starts in the EEPROM, or -1 if it's
+	 * not one of ours
+	 */
+	private int getToolInfoOffset(int toolIndex) {
+		if (toolIndex == 0) return MightyBoard5XEEPROM.T0_DATA_BASE;
+		if (toolIndex == 1) return MightyBoard5XEEPROM.T1_DATA_BASE;
+		return -1;
 	}
 
 	
@@ -1527,26 +1545,26 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 
 		offset = toolInfoOffset + offset;
 		Base.logger.finest("readFromToolEEPROM null" + offset +" " + len + " " + toolIndex);
-				
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.READ_EEPROM.getCode());
-		pb.add16(offset);
-		pb.add8(len);
-		PacketResponse pr = runQuery(pb.getPacket());
-		if (pr.isOK()) {
+
+		// Served from our image of the motherboard EEPROM, like any other read
+		byte[] rv = readFromEEPROM(offset, len);
+		if (rv != null) {
 			Base.logger.finest("readFromToolEEPROM ok at: " + offset +" len:" + len + " id:" + toolIndex);			
-			//Base.logger.severe("readFromToolEEPROM ok");
-			int rvlen = Math.min(pr.getPayload().length - 1, len);
-			byte[] rv = new byte[rvlen];
-			// Copy removes the first response byte from the packet payload.
-			System.arraycopy(pr.getPayload(), 1, rv, 0, rvlen);
 			return rv;
-		} else {
-			Base.logger.severe("On tool read: " + pr.getResponseCode().getMessage());
 		}
 		Base.logger.severe("readFromToolEEPROM null" + offset +" " + len + " " + toolIndex);
 		return null;
 	}
 
+	/**
+	 * The MightyBoard map runs to the Jetty acceleration settings, and the
+	 * toolhead data is in it too.
+	 */
+	@Override
+	protected int getEEPROMImageSize() {
+		return 0x0290;
+	}
+
 	
 
 	/** 
@@ -1810,6 +1828,8 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 		pb.add8((byte) 0xFF);
 		pb.add8(ToolCommandCode.GET_PLATFORM_SP.getCode());
 		PacketResponse pr = runCommand( pb.getPacket() );
+		// The bot has rewritten its EEPROM behind our back
+		dropEEPROMImage();
 
 	}
 
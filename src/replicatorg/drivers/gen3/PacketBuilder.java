@@ -1,21 +1,36 @@
 package replicatorg.drivers.gen3;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
 import replicatorg.app.tools.IButtonCrc;
 
 public class PacketBuilder implements PacketConstants {
 	final static int MAX_PACKET_LENGTH = 256;
 
 	/**
-	 * A class for building a new packet to send down the wire to the
-	 * Sanguino3G.
+	 * Builders kept for reuse, one per thread. See start().
 	 */
-	byte[] data = new byte[MAX_PACKET_LENGTH];
+	private static final ThreadLocal<PacketBuilder> reusable = new ThreadLocal<PacketBuilder>() {
+		@Override
+		protected PacketBuilder initialValue() {
+			return new PacketBuilder();
+		}
+	};
 
-	// current end of packet. Bytes 0 and 1 are reserved for start byte
-	// and packet payload length.
-	int idx = 2;
+	/**
+	 * A class for building a new packet to send down the wire to the
+	 * Sanguino3G. The packet is written in place: bytes 0 and 1 are reserved
+	 * for start byte and packet payload length, then the payload, then the
+	 * crc once the packet is complete. Values are little-endian.
+	 */
+	final ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
 
-	IButtonCrc crc = new IButtonCrc();
+	private PacketBuilder() {
+	}
 
 	/**
 	 * Start building a new command packet.
@@ -26,9 +41,31 @@ public class PacketBuilder implements PacketConstants {
 	 *            the command identifier for this packet.
 	 */
 	PacketBuilder(int command) {
-		idx = 2;
-		data[0] = START_BYTE;
-		// data[1] = length; // just to avoid confusion
+		reset(command);
+	}
+
+	/**
+	 * Start building a new command packet on this thread's reusable builder,
+	 * rather than a new one. The builder is only good until start() is next
+	 * called on the same thread, so get the packet out of it before building
+	 * another. Meant for packets sent many times a build, like moves.
+	 * 
+	 * @param command
+	 *            the command identifier for this packet.
+	 */
+	static PacketBuilder start(int command) {
+		PacketBuilder pb = reusable.get();
+		pb.reset(command);
+		return pb;
+	}
+
+	/**
+	 * Throw away what's been built and start a new packet.
+	 */
+	void reset(int command) {
+		buffer.clear();
+		buffer.put(START_BYTE);
+		buffer.put((byte) 0); // length, filled in when the packet is complete
 		add8((byte) command);
 	}
 
@@ -39,8 +76,7 @@ public class PacketBuilder implements PacketConstants {
 	 *            the value to append.
 	 */
 	void add8(int v) {
-		data[idx++] = (byte) v;
-		crc.update((byte) v);
+		buffer.put((byte) v);
 	}
 
 	/**
@@ -50,8 +86,7 @@ public class PacketBuilder implements PacketConstants {
 	 *            the value to append.
 	 */
 	void add16(int v) {
-		add8((byte) (v & 0xff));
-		add8((byte) ((v >> 8) & 0xff));
+		buffer.putShort((short) v);
 	}
 
 	/**
@@ -61,8 +96,7 @@ public class PacketBuilder implements PacketConstants {
 	 *            the value to append. Must be long to support unsigned ints.
 	 */
 	void add32(long v) {
-		add16((int) (v & 0xffff));
-		add16((int) ((v >> 16) & 0xffff));
+		buffer.putInt((int) v);
 	}
 
 	/**
@@ -99,17 +133,41 @@ public class PacketBuilder implements PacketConstants {
 		return cursor;
 	}
 
+	/**
+	 * Fill in the length and crc.
+	 * 
+	 * @return the length of the whole packet
+	 */
+	private int complete() {
+		byte[] data = buffer.array();
+		int idx = buffer.position();
+		data[1] = (byte) (idx - 2); // len does not count packet header
+		data[idx] = IButtonCrc.compute(data, 2, idx - 2);
+		return idx + 1;
+	}
+
 	/**
 	 * Complete the packet.
 	 * 
 	 * @return a byte array representing the completed packet.
 	 */
 	byte[] getPacket() {
-		data[idx] = crc.getCrc();
-		data[1] = (byte) (idx - 2); // len does not count packet header
-		byte[] rv = new byte[idx + 1];
-		System.arraycopy(data, 0, rv, 0, idx + 1);
-		return rv;
+		return Arrays.copyOf(buffer.array(), complete());
+	}
+
+	/**
+	 * @return true if this is a command, rather than a query
+	 */
+	boolean isCommand() {
+		return (buffer.get(2) & 0x80) != 0;
+	}
+
+	/**
+	 * Write out the payload alone, without the header or crc, as it is stored
+	 * in captured s3g files.
+	 */
+	void writePayload(OutputStream out) throws IOException {
+		out.write(buffer.array(), 2, buffer.position() - 2);
 	}
 
 }
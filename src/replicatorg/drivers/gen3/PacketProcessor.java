@@ -1,5 +1,6 @@
 package replicatorg.drivers.gen3;
 
+import java.util.List;
 import java.util.logging.Level;
 
 import replicatorg.app.Base;
@@ -7,7 +8,8 @@ import replicatorg.app.tools.IButtonCrc;
 
 /**
  * A class for keeping track of the state of an incoming packet and storing
- * its payload.
+ * its payload. Once a packet is complete the processor goes back to waiting for
+ * the next one, so one processor can be kept for the life of a connection.
  */
 public class PacketProcessor implements PacketConstants {
 	
@@ -38,11 +40,11 @@ public class PacketProcessor implements PacketConstants {
 
 	byte targetCrc = 0;
 
-	IButtonCrc crc;
+	final IButtonCrc crc = new IButtonCrc();
 
 	/**
-	 * Reset the packet's state. (The crc is (re-)generated on the length byte
-	 * and thus doesn't need to be reset.(
+	 * Reset the packet's state. (The crc is reset on the length byte
+	 * and thus doesn't need to be reset here.)
 	 */
 	public void reset() {
 		packetState = PacketState.START;
@@ -92,7 +94,8 @@ public class PacketProcessor implements PacketConstants {
 
 			payloadLength = ((int) b) & 0xFF;
 			payload = new byte[payloadLength];
-			crc = new IButtonCrc();
+			payloadIdx = 0;
+			crc.reset();
 			packetState = (payloadLength > 0) ? PacketState.PAYLOAD : PacketState.CRC;
 			break;
 
@@ -116,6 +119,7 @@ public class PacketProcessor implements PacketConstants {
 						+ " - expected CRC: "
 						+ Integer.toHexString((int) crc.getCrc() & 0xff));
 			}
+			packetState = PacketState.START;
 			if (crc.getCrc() != targetCrc) {
 				throw new CRCException(crc.getCrc(), targetCrc);
 			}
@@ -123,5 +127,40 @@ public class PacketProcessor implements PacketConstants {
 		}
 		return false;
 	}
+
+	/**
+	 * Process a run of incoming bytes, which may hold any number of packets,
+	 * whole or in part. Payloads are copied and checked a run at a time rather
+	 * than byte by byte. A packet left incomplete is carried on with by the next
+	 * call.
+	 * 
+	 * @param responses
+	 *            each packet completed is added here as a PacketResponse.
+	 * @return the number of packets completed.
+	 * @throws CRCException
+	 *             if a packet fails its check; the rest of the run is dropped,
+	 *             and the processor is left waiting for the next packet.
+	 */
+	public int process(byte[] bytes, int offset, int length, List<PacketResponse> responses) throws CRCException {
+		int completed = 0;
+		int end = offset + length;
+		int i = offset;
+		while (i < end) {
+			if (packetState == PacketState.PAYLOAD) {
+				int n = Math.min(end - i, payloadLength - payloadIdx);
+				System.arraycopy(bytes, i, payload, payloadIdx, n);
+				crc.update(bytes, i, n);
+				payloadIdx += n;
+				i += n;
+				if (payloadIdx >= payloadLength) {
+					packetState = PacketState.CRC;
+				}
+			} else if (processByte(bytes[i++])) {
+				responses.add(getResponse());
+				completed++;
+			}
+		}
+		return completed;
+	}
 }
 
@@ -0,0 +1,418 @@
+package replicatorg.drivers.gen3;
+
+import java.util.LinkedList;
+
+import replicatorg.app.Base;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.gen3.PacketProcessor.CRCException;
+
+/**
+ * A sliding-window transport for motion packets.
+ *
+ * The ordinary s3g transport is stop-and-wait: each packet is written and its
+ * response read before the next packet is sent, so on a serial link the round
+ * trip time bounds how many moves per second we can send. The PacketWindow
+ * instead keeps up to N QUEUE_POINT_* packets in flight, and matches the
+ * responses to them in order as they come back.
+ *
+ * To avoid overflowing the bot's command buffer it keeps an estimate of the free
+ * space in that buffer. The estimate comes from GET_BUFFER_SIZE and is reduced by the
+ * payload of every packet sent, through the window or, as sentOutside() reports
+ * them, around it. Nothing but us fills the buffer, so the real free space can
+ * only be larger, and a packet that fits the estimate will not overflow. Once the
+ * estimate runs out we wait for the outstanding responses, then ask the bot again.
+ *
+ * s3g responses carry no ID; they are matched to packets by order alone. So a
+ * packet is only ever resent when that can't reorder or repeat a move:
+ * - after a BUFFER_OVERFLOW or error response, if the bot rejected every packet
+ *   sent after it too. They are all resent, in order. If the bot accepted any
+ *   of them, the rejected packet can no longer go in its place.
+ * - after a timeout or bad CRC, if the packet was sent with nothing else in
+ *   flight, as runCommand would resend it. With other packets in flight we
+ *   can't tell whose response went missing, or which packets the bot ran.
+ *
+ * Anything else, or a packet still failing when its retries run out, can't be
+ * dropped or resent, as the moves after it would go to the wrong place. The
+ * window fails instead: it forgets what's in flight and sends nothing more
+ * until clear(), and takeFailure() says why, so the driver can stop the build.
+ * It fails too if the bot stops answering GET_BUFFER_SIZE.
+ *
+ * Any other packet must flush() the window first, so non-motion commands are
+ * never reordered around moves.
+ *
+ * All methods must be called with the serial port locked.
+ */
+public class PacketWindow {
+
+	/** The byte stream to and from the bot. */
+	public interface Link {
+		/** Write a complete packet. */
+		void write(byte[] packet);
+		/**
+		 * Read the bytes the bot has sent, waiting for at least one.
+		 * @return the number read into buffer, or -1 on timeout.
+		 */
+		int read(byte[] buffer, int offset, int length);
+		/** Discard any bytes waiting to be read. */
+		void clear();
+	}
+
+	/** A packet that has been sent but not yet acknowledged. */
+	private static class Outstanding {
+		final byte[] packet;
+		int retries;
+		// True if nothing else was in flight when it was sent
+		boolean alone;
+		Outstanding(byte[] packet, int retries) {
+			this.packet = packet;
+			this.retries = retries;
+		}
+		int payloadLength() {
+			return packet[1] & 0xff;
+		}
+	}
+
+	private final Link link;
+	private final int windowSize;
+	private final int retries;
+
+	// Packets in flight, oldest first
+	private final LinkedList<Outstanding> inFlight = new LinkedList<Outstanding>();
+
+	// Reads responses off the link, a run of bytes at a time
+	private final PacketProcessor processor = new PacketProcessor();
+	private final byte[] readBuffer = new byte[256];
+	// Responses read but not yet matched to a packet; null for a bad CRC
+	private final LinkedList<PacketResponse> responses = new LinkedList<PacketResponse>();
+
+	// Estimated free bytes in the bot's command buffer, or -1 if unknown
+	private long freeSpace = -1;
+
+	private boolean cancelRequested = false;
+
+	// Why the window failed, or null; nothing is sent until clear()
+	private String failure = null;
+	private boolean failureReported = false;
+
+	// Statistics
+	private long packetsSent = 0;
+	private long packetsResent = 0;
+	private long overflows = 0;
+
+	/**
+	 * @param link the connection to the bot
+	 * @param windowSize the maximum number of packets in flight
+	 * @param retries the number of times to resend a packet that times out
+	 */
+	public PacketWindow(Link link, int windowSize, int retries) {
+		this.link = link;
+		this.windowSize = Math.max(1, windowSize);
+		this.retries = retries;
+	}
+
+	/**
+	 * @return true if the given packet may be sent through the window
+	 */
+	public static boolean isWindowed(byte[] packet) {
+		if (packet == null || packet.length < 4) {
+			return false;
+		}
+		int code = packet[2] & 0xff;
+		return code == MotherboardCommandCode.QUEUE_POINT_ABS.getCode()
+			|| code == MotherboardCommandCode.QUEUE_POINT_EXT.getCode()
+			|| code == MotherboardCommandCode.QUEUE_POINT_NEW.getCode()
+			|| code == MotherboardCommandCode.QUEUE_POINT_NEW_EXT.getCode();
+	}
+
+	/**
+	 * Send a packet, without waiting for its response. If the window is full, wait
+	 * for the oldest response first.
+	 *
+	 * @throws RetryException if the bot's buffer has no room for the packet; as with
+	 * a BUFFER_OVERFLOW response, the caller should try again later.
+	 */
+	public void send(byte[] packet) throws RetryException {
+		if (failure != null) {
+			// The build is being stopped
+			return;
+		}
+		Outstanding o = new Outstanding(packet, retries);
+
+		while (inFlight.size() >= windowSize) {
+			collect();
+		}
+		if (failure != null) {
+			return;
+		}
+
+		if (freeSpace < o.payloadLength()) {
+			// Our estimate has run out; find out how much the bot has actually drained.
+			flush();
+			if (failure != null || !refreshFreeSpace()) {
+				return;
+			}
+			if (freeSpace < o.payloadLength()) {
+				throw new RetryException();
+			}
+		}
+
+		transmit(o);
+		packetsSent++;
+	}
+
+	/**
+	 * Wait for every packet in flight to be acknowledged, resending as needed.
+	 */
+	public void flush() {
+		while (!inFlight.isEmpty()) {
+			collect();
+		}
+	}
+
+	/**
+	 * Account for a packet sent to the bot some other way, after flush(). If it's
+	 * a buffered command, it takes up room in the bot's command buffer too.
+	 */
+	public void sentOutside(byte[] packet) {
+		boolean isCommand = (packet[2] & 0x80) != 0;
+		if (isCommand && freeSpace >= 0) {
+			freeSpace = Math.max(0, freeSpace - (packet[1] & 0xff));
+		}
+	}
+
+	/**
+	 * Forget everything in flight, our buffer estimate and any failure. Used after
+	 * the bot has been stopped or reset.
+	 */
+	public void clear() {
+		inFlight.clear();
+		processor.reset();
+		responses.clear();
+		freeSpace = -1;
+		failure = null;
+		failureReported = false;
+	}
+
+	/**
+	 * @return true, once, if the bot has cancelled the build since the last call.
+	 */
+	public boolean takeCancelRequest() {
+		boolean cancel = cancelRequested;
+		cancelRequested = false;
+		return cancel;
+	}
+
+	/**
+	 * @return why the window failed, once, if it has since the last clear();
+	 * otherwise null.
+	 */
+	public String takeFailure() {
+		if (failure == null || failureReported) {
+			return null;
+		}
+		failureReported = true;
+		return failure;
+	}
+
+	public int getInFlight() { return inFlight.size(); }
+	public long getEstimatedFreeSpace() { return freeSpace; }
+	public long getPacketsSent() { return packetsSent; }
+	public long getPacketsResent() { return packetsResent; }
+	public long getOverflows() { return overflows; }
+
+	private void transmit(Outstanding o) {
+		o.alone = inFlight.isEmpty();
+		link.write(o.packet);
+		inFlight.addLast(o);
+		freeSpace -= o.payloadLength();
+	}
+
+	/**
+	 * Read one response and match it to the oldest packet in flight.
+	 */
+	private void collect() {
+		Outstanding o = inFlight.removeFirst();
+		PacketResponse pr = readResponse();
+
+		if (pr == null) {
+			if (!o.alone || !inFlight.isEmpty()) {
+				fail("Lost a response with motion packets in flight");
+			} else if (o.retries > 1) {
+				o.retries--;
+				discard();
+				resend(o);
+			} else {
+				fail("Motion packet timed out!");
+			}
+			return;
+		}
+
+		switch (pr.getResponseCode()) {
+		case OK:
+			break;
+		case BUFFER_OVERFLOW:
+			// Not accepted. Our estimate was wrong; it's refreshed before the resend.
+			overflows++;
+			resendRejected(o);
+			break;
+		case CANCEL:
+			Base.logger.severe("Build Canceled by Printer");
+			cancelRequested = true;
+			break;
+		default:
+			Base.logger.warning("Error response to windowed packet: " + pr.getResponseCode().getMessage());
+			if (o.retries > 1) {
+				o.retries--;
+				resendRejected(o);
+			} else {
+				fail("Motion packet failed: " + pr.getResponseCode().getMessage());
+			}
+		}
+	}
+
+	// Give up: a packet can't be delivered, so neither can anything after it
+	private void fail(String message) {
+		Base.logger.severe(message);
+		if (failure == null) {
+			failure = message;
+		}
+		inFlight.clear();
+		freeSpace = -1;
+		// Whatever the bot still sends back belongs to packets we've forgotten
+		discard();
+	}
+
+	// Drop every response byte read or waiting, and any packet half read
+	private void discard() {
+		link.clear();
+		processor.reset();
+		responses.clear();
+	}
+
+	/**
+	 * Resend a packet the bot rejected, and everything sent after it, once the
+	 * bot has room. Only if the bot rejected all of those too; if it accepted
+	 * any, resending would play the rejected move out of order, so we fail.
+	 */
+	private void resendRejected(Outstanding o) {
+		LinkedList<Outstanding> rejected = new LinkedList<Outstanding>();
+		rejected.add(o);
+		while (!inFlight.isEmpty()) {
+			Outstanding later = inFlight.removeFirst();
+			PacketResponse pr = readResponse();
+			if (pr == null) {
+				fail("Lost a response with motion packets in flight");
+				return;
+			}
+			switch (pr.getResponseCode()) {
+			case OK:
+				fail("Motion packet rejected, but the bot accepted the ones after it");
+				return;
+			case CANCEL:
+				Base.logger.severe("Build Canceled by Printer");
+				cancelRequested = true;
+				fail("Build cancelled while resending motion packets");
+				return;
+			case BUFFER_OVERFLOW:
+				overflows++;
+				break;
+			default:
+				if (later.retries <= 1) {
+					fail("Motion packet failed: " + pr.getResponseCode().getMessage());
+					return;
+				}
+				later.retries--;
+			}
+			rejected.add(later);
+		}
+
+		for (Outstanding r : rejected) {
+			if (!waitForSpace(r.payloadLength())) {
+				return;
+			}
+			resend(r);
+		}
+	}
+
+	/**
+	 * Wait until our estimate has room for the given number of bytes, asking the
+	 * bot as the moves it has drain.
+	 * @return false if the window failed meanwhile
+	 */
+	private boolean waitForSpace(int bytes) {
+		while (freeSpace < bytes) {
+			flush();
+			if (failure != null || !refreshFreeSpace()) {
+				return false;
+			}
+			if (freeSpace < bytes) {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					fail("Interrupted while resending a motion packet");
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private void resend(Outstanding o) {
+		packetsResent++;
+		transmit(o);
+	}
+
+	// Replace our estimate with what the bot says; fail if it can't say
+	private boolean refreshFreeSpace() {
+		freeSpace = queryFreeSpace();
+		if (freeSpace < 0) {
+			fail("Could not read the command buffer size");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read the next response packet from the link. With a window of packets in
+	 * flight their responses arrive back to back, so we decode whatever run of
+	 * bytes has arrived and keep the responses after the first for later calls.
+	 * @return the response, or null on timeout or bad CRC.
+	 */
+	private PacketResponse readResponse() {
+		while (responses.isEmpty()) {
+			int n = link.read(readBuffer, 0, readBuffer.length);
+			if (n == -1) {
+				Base.logger.fine("Windowed read timed out; " + inFlight.size() + " packets in flight");
+				return null;
+			}
+			try {
+				processor.process(readBuffer, 0, n, responses);
+			} catch (CRCException e) {
+				// Those decoded before it in the run still come first
+				Base.logger.warning("Bad CRC received on windowed packet");
+				responses.add(null);
+			}
+		}
+		return responses.removeFirst();
+	}
+
+	/**
+	 * Ask the bot for the free space in its command buffer. Must only be called
+	 * with nothing in flight.
+	 * @return the free space, or -1 if the bot didn't answer
+	 */
+	private long queryFreeSpace() {
+		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.GET_BUFFER_SIZE.getCode());
+		byte[] packet = pb.getPacket();
+		for (int i = 0; i < Math.max(1, retries); i++) {
+			link.write(packet);
+			PacketResponse pr = readResponse();
+			if (pr != null && pr.isOK()) {
+				return ((long) pr.get32()) & 0xffffffffL;
+			}
+			discard();
+		}
+		return -1;
+	}
+}
@@ -23,10 +23,12 @@
 
 package replicatorg.drivers.gen3;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 import java.util.EnumMap;
@@ -38,6 +40,7 @@ import java.util.logging.Level;
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
+import replicatorg.app.tools.XML;
 import replicatorg.drivers.DriverError;
 import replicatorg.drivers.MultiTool;
 import replicatorg.drivers.OnboardParameters;
@@ -111,6 +114,42 @@ public class Sanguino3GDriver extends SerialDriver implements
         
         protected boolean acceleratedFirmware = false;
 
+	// Number of motion packets that may be in flight at once; 1 is plain stop-and-wait.
+	protected int packetWindowSize = 1;
+
+	// Sliding-window transport for motion packets, or null if we're stop-and-wait.
+	protected PacketWindow packetWindow = null;
+
+	// Reads responses to packets sent by runCommand; only used with the serial lock held.
+	private final PacketProcessor responseProcessor = new PacketProcessor();
+
+	// Bytes per READ_EEPROM or WRITE_EEPROM packet
+	private final static int EEPROM_BLOCK_SIZE = 16;
+
+	// READ_EEPROM queries kept in flight at once while reading the EEPROM image
+	private final static int EEPROM_READ_WINDOW = 4;
+
+	// Our copy of the EEPROM map, or null until it's first needed. Guarded by eepromLock.
+	private EEPROMImage eepromImage = null;
+	// True if reading the image failed; we don't try again until we reconnect.
+	private boolean eepromImageFailed = false;
+	// True while writes are held in the image for commitEEPROMChanges().
+	private boolean eepromHeld = false;
+	private final Object eepromLock = new Object();
+
+	private final PacketWindow.Link serialLink = new PacketWindow.Link() {
+		public void write(byte[] packet) {
+			serial.write(packet);
+			printDebugData("OUT", packet);
+		}
+		public int read(byte[] buffer, int offset, int length) {
+			return serial.read(buffer, offset, length);
+		}
+		public void clear() {
+			serial.clear();
+		}
+	};
+
 	public Sanguino3GDriver() {
 		super();
 		hasEmergencyStop = true;
@@ -126,11 +165,17 @@ public class Sanguino3GDriver extends SerialDriver implements
 	public void loadXML(Node xml) {
 		super.loadXML(xml);
 
+		if (XML.hasChildNode(xml, "packetwindow")) {
+			packetWindowSize = Integer.parseInt(XML.getChildNodeValue(xml, "packetwindow"));
+		}
 	}
 
 	public void initialize() {
 		Base.logger.fine("Attempting to initialize device");
 
+		// Whatever we knew of the EEPROM has to be read from the bot again
+		dropEEPROMImage();
+
 		// Assert: serial port present.
 		assert serial != null : "No serial port found.";
 		// wait till we're initialized
@@ -165,6 +210,12 @@ public class Sanguino3GDriver extends SerialDriver implements
 			if(acceleratedFirmware){
 				serial.setTimeout(200);
 			}
+			if (packetWindowSize > 1) {
+				Base.logger.fine("Sending up to " + packetWindowSize + " motion packets at once");
+				packetWindow = new PacketWindow(serialLink, packetWindowSize, DEFAULT_RETRIES);
+			} else {
+				packetWindow = null;
+			}
 			invalidatePosition();
 
 			return;
@@ -281,6 +332,22 @@ public class Sanguino3GDriver extends SerialDriver implements
 		return runCommand(packet, DEFAULT_RETRIES);
 	}
 
+	/**
+	 * Sends a built packet. When capturing to file, commands are written
+	 * straight from the builder, without completing the packet.
+	 */
+	protected PacketResponse runCommand(PacketBuilder pb) throws RetryException {
+		if (fileCaptureOstream != null && pb.isCommand()) {
+			try {
+				pb.writePayload(fileCaptureOstream);
+			} catch (IOException ioe) {
+				throw new RuntimeException(ioe);
+			}
+			return PacketResponse.okResponse();
+		}
+		return runCommand(pb.getPacket());
+	}
+
 	protected PacketResponse runQuery(byte[] packet, int retries) {
 		try {
 			return runCommand(packet, retries);
@@ -365,7 +432,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 		if (serial == null)
 			return PacketResponse.timeoutResponse();
 
-		PacketProcessor pp;
+		PacketProcessor pp = responseProcessor;
 		PacketResponse pr = new PacketResponse();
 
 		assert (serial != null);
@@ -388,7 +455,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 				return pr;
 			}
 
-			pp = new PacketProcessor();
+			pp.reset();
 			
 			if(packet == null) {
 				Base.logger.severe("null packet in runCommand");
@@ -400,6 +467,19 @@ public class Sanguino3GDriver extends SerialDriver implements
 				Base.logger.severe("null serial in runCommand");
 				return PacketResponse.timeoutResponse();
 			}
+			if (packetWindow != null) {
+				if (PacketWindow.isWindowed(packet)) {
+					// Send it without waiting for the response.
+					packetWindow.send(packet);
+					checkWindow();
+					return PacketResponse.okResponse();
+				}
+				// Everything else waits for the moves ahead of it.
+				packetWindow.flush();
+				checkWindow();
+				packetWindow.sentOutside(packet);
+			}
+
 			// Do not allow a stop or reset command to interrupt mid-packet!
 			serial.write(packet);
 			
@@ -463,6 +543,17 @@ public class Sanguino3GDriver extends SerialDriver implements
 		return pr;
 	}
 
+	private void checkWindow() {
+		if (packetWindow.takeCancelRequest()) {
+			Base.getEditor().handleStop(); ///  horrible horrible 
+		}
+		String failure = packetWindow.takeFailure();
+		if (failure != null) {
+			// A move was lost, so the rest of the build would be in the wrong place
+			setError(new DriverError(failure, false));
+		}
+	}
+
 	static boolean isNotifiedFinishedFeature = false;
 
 	public boolean isFinished() {
@@ -735,11 +826,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 	protected void queueAbsolutePoint(Point5d steps, long micros)
 			throws RetryException {
 		
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = PacketBuilder.start(
 				MotherboardCommandCode.QUEUE_POINT_ABS.getCode());
 
-		Base.logger.fine("Queued absolute point " + steps + " at "
-				+ Long.toString(micros) + " usec.");
+		if (Base.logger.isLoggable(Level.FINE)) {
+			Base.logger.fine("Queued absolute point " + steps + " at "
+					+ Long.toString(micros) + " usec.");
+		}
 
 		// just add them in now.
 		pb.add32((int) steps.x());
@@ -747,7 +840,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 		pb.add32((int) steps.z());
 		pb.add32((int) micros);
 
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 
 	public void setCurrentPosition(Point5d p) throws RetryException {
@@ -1876,6 +1969,10 @@ public class Sanguino3GDriver extends SerialDriver implements
 		}
 		Thread.interrupted(); // Clear interrupted status
 		runQuery(pb.getPacket());
+		// The bot's command buffer is now empty.
+		if (packetWindow != null) {
+			packetWindow.clear();
+		}
 		// invalidate position, force reconciliation.
 		invalidatePosition();
 	}
@@ -1942,7 +2039,19 @@ public class Sanguino3GDriver extends SerialDriver implements
 		}
 	}
 
+	/**
+	 * Write to the EEPROM. While changes are being held (see
+	 * beginEEPROMChanges()) the write only goes to our image of the EEPROM.
+	 */
 	protected void writeToEEPROM(int offset, byte[] data) {
+		if (holdEEPROMWrite(offset, data)) {
+			return;
+		}
+		writeEEPROMToBot(offset, data);
+		updateEEPROMImage(offset, data);
+	}
+
+	private void writeEEPROMToBot(int offset, byte[] data) {
 		assert data.length <= 16;
 		PacketBuilder pb = new PacketBuilder(
 				MotherboardCommandCode.WRITE_EEPROM.getCode());
@@ -2038,12 +2147,28 @@ public class Sanguino3GDriver extends SerialDriver implements
 	}
 
 	/**
-	 * Sends a request to the MoBo to read an eeprom address
+	 * Reads from the EEPROM. Reads that fall within the EEPROM map are answered
+	 * from our image of it, which is read from the bot the first time it's
+	 * needed.
 	 * @param offset Offset from the bottom of EEPROM memory
 	 * @param len	number of bytes to read from EEPROM
 	 * @return a byte array of size length on success, a null object on failure
 	 */
 	protected byte[] readFromEEPROM(int offset, int len) {
+		EEPROMImage image = getEEPROMImage();
+		if (image != null && image.contains(offset, len)) {
+			return image.read(offset, len);
+		}
+		return readEEPROMFromBot(offset, len);
+	}
+
+	/**
+	 * Sends a request to the MoBo to read an eeprom address
+	 * @param offset Offset from the bottom of EEPROM memory
+	 * @param len	number of bytes to read from EEPROM
+	 * @return a byte array of size length on success, a null object on failure
+	 */
+	private byte[] readEEPROMFromBot(int offset, int len) {
 		final int MAX_EEPROM_READ_SZ = 16;
 		if(len > MAX_EEPROM_READ_SZ)
 			Base.logger.severe("readFromEEPROM too big for: " + offset + " size: " + len);
@@ -2070,6 +2195,198 @@ public class Sanguino3GDriver extends SerialDriver implements
 		return null;
 	}
 
+	/**
+	 * @return how many bytes from the start of the EEPROM make up the onboard
+	 * parameter map, and so are kept in our image of it
+	 */
+	protected int getEEPROMImageSize() {
+		return 0x0200;
+	}
+
+	/**
+	 * @return our image of the EEPROM map, reading it from the bot if we
+	 * haven't yet; null if it can't be had, in which case the EEPROM is read
+	 * and written directly
+	 */
+	protected EEPROMImage getEEPROMImage() {
+		synchronized (eepromLock) {
+			if (eepromImage == null && !eepromImageFailed && isInitialized()
+					&& fileCaptureOstream == null && serial != null) {
+				long start = System.currentTimeMillis();
+				eepromImage = loadEEPROMImage();
+				eepromImageFailed = (eepromImage == null);
+				Base.logger.fine("Reading the EEPROM image took "
+						+ (System.currentTimeMillis() - start) + "ms");
+			}
+			return eepromImage;
+		}
+	}
+
+	/**
+	 * Reads the whole map. Nothing is kept between connections: the firmware
+	 * and the LCD menus change fields all over the map (preheat temperatures,
+	 * toolhead offsets, filament used), so a copy from last time can't stand
+	 * in for reading it.
+	 */
+	private EEPROMImage loadEEPROMImage() {
+		int size = getEEPROMImageSize();
+		byte[] data = readEEPROMPipelined(0, size);
+		if (data == null) {
+			Base.logger.warning("Could not read the EEPROM; reading values one at a time");
+			return null;
+		}
+		return new EEPROMImage(data);
+	}
+
+	/**
+	 * Reads a range of the EEPROM in 16 byte blocks, sending the queries back to
+	 * back, up to EEPROM_READ_WINDOW ahead of the responses, instead of waiting
+	 * for each response before sending the next query.
+	 * @return the bytes, or null if any of them couldn't be read
+	 */
+	private byte[] readEEPROMPipelined(int offset, int len) {
+		byte[] result = new byte[len];
+		int blocks = (len + EEPROM_BLOCK_SIZE - 1) / EEPROM_BLOCK_SIZE;
+		synchronized (serial) {
+			if (packetWindow != null) {
+				packetWindow.flush();
+			}
+			PacketProcessor pp = responseProcessor;
+			int sent = 0;
+			for (int received = 0; received < blocks; received++) {
+				while (sent < blocks && sent - received < EEPROM_READ_WINDOW) {
+					int at = sent * EEPROM_BLOCK_SIZE;
+					PacketBuilder pb = new PacketBuilder(
+							MotherboardCommandCode.READ_EEPROM.getCode());
+					pb.add16(offset + at);
+					pb.add8(Math.min(EEPROM_BLOCK_SIZE, len - at));
+					serialLink.write(pb.getPacket());
+					sent++;
+				}
+				int at = received * EEPROM_BLOCK_SIZE;
+				int count = Math.min(EEPROM_BLOCK_SIZE, len - at);
+				PacketResponse pr = readResponse(pp);
+				if (pr == null || !pr.isOK() || pr.getPayload().length - 1 < count) {
+					// Responses don't say which query they answer, so if one went
+					// missing, those we've taken since may be for the wrong blocks.
+					// Let the rest arrive and go, and read it all one at a time.
+					Base.logger.fine("Pipelined EEPROM read failed at " + (offset + at)
+							+ "; reading one block at a time");
+					while (serial.read() != -1) {
+					}
+					for (received = 0; received < blocks; received++) {
+						at = received * EEPROM_BLOCK_SIZE;
+						count = Math.min(EEPROM_BLOCK_SIZE, len - at);
+						byte[] block = readEEPROMFromBot(offset + at, count);
+						if (block == null || block.length < count) {
+							return null;
+						}
+						System.arraycopy(block, 0, result, at, count);
+					}
+					return result;
+				}
+				// Copy removes the first response byte from the packet payload.
+				System.arraycopy(pr.getPayload(), 1, result, at, count);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Read one response packet from the serial port.
+	 * @return the response, or null on timeout or bad CRC
+	 */
+	private PacketResponse readResponse(PacketProcessor pp) {
+		pp.reset();
+		while (true) {
+			int b = serial.read();
+			if (b == -1) {
+				return null;
+			}
+			try {
+				if (pp.processByte((byte) b)) {
+					return pp.getResponse();
+				}
+			} catch (CRCException e) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Hold writes to the EEPROM map in our image of it, rather than sending
+	 * them to the bot, until commitEEPROMChanges(). Meant for a dialog that
+	 * sets every value it shows, whether or not the user changed it.
+	 */
+	public void beginEEPROMChanges() {
+		if (getEEPROMImage() == null) {
+			return;
+		}
+		synchronized (eepromLock) {
+			eepromHeld = true;
+		}
+	}
+
+	/**
+	 * Write the bytes changed since beginEEPROMChanges() to the bot, and stop
+	 * holding writes.
+	 */
+	public void commitEEPROMChanges() {
+		EEPROMImage image;
+		synchronized (eepromLock) {
+			eepromHeld = false;
+			image = eepromImage;
+		}
+		if (image == null) {
+			return;
+		}
+		List<int[]> ranges = image.takeDirtyRanges(EEPROM_BLOCK_SIZE);
+		for (int[] range : ranges) {
+			writeEEPROMToBot(range[0], image.read(range[0], range[1]));
+		}
+		Base.logger.fine("Committed EEPROM changes in " + ranges.size() + " writes");
+	}
+
+	/**
+	 * If writes are being held, hold this one in the image.
+	 * @return true if the write was held, false if it should go to the bot
+	 */
+	protected boolean holdEEPROMWrite(int offset, byte[] data) {
+		synchronized (eepromLock) {
+			if (eepromHeld && eepromImage != null && eepromImage.contains(offset, data.length)) {
+				eepromImage.write(offset, data);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Record in our image bytes that have just been written to the bot some other
+	 * way than writeToEEPROM().
+	 */
+	protected void updateEEPROMImage(int offset, byte[] data) {
+		EEPROMImage image;
+		synchronized (eepromLock) {
+			image = eepromImage;
+		}
+		if (image != null && image.contains(offset, data.length)) {
+			image.update(offset, data);
+		}
+	}
+
+	/**
+	 * Forget our image of the EEPROM, so that it's read again when next needed;
+	 * for when the bot may have changed it itself.
+	 */
+	protected void dropEEPROMImage() {
+		synchronized (eepromLock) {
+			eepromImage = null;
+			eepromImageFailed = false;
+			eepromHeld = false;
+		}
+	}
+
 	public EnumSet<AxisId> getInvertedAxes() {
 		checkEEPROM();
 		byte[] b = readFromEEPROM(
@@ -2532,10 +2849,11 @@ public class Sanguino3GDriver extends SerialDriver implements
 		return ResponseCode.FAIL_GENERIC;
 	}
 
-	FileOutputStream fileCaptureOstream = null;
+	OutputStream fileCaptureOstream = null;
 
 	public void beginFileCapture(String path) throws FileNotFoundException {
-		fileCaptureOstream = new FileOutputStream(new File(path));
+		// Buffered, as a build is written a packet at a time
+		fileCaptureOstream = new BufferedOutputStream(new FileOutputStream(new File(path)), 64 * 1024);
 	}
 
 	public void endFileCapture() throws IOException {
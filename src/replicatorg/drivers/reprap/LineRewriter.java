@@ -0,0 +1,441 @@
+package replicatorg.drivers.reprap;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Turns a line of gcode from the build into the bytes the RepRap firmware is
+ * sent: comments are stripped, codes the 5D firmware doesn't understand are
+ * dropped, F is moved after E, the feedrate is rescaled under realtime
+ * control, and the line number and checksum are added.
+ *
+ * This used to be a chain of regular expressions, several of them compiled
+ * for every line. The rewriter instead scans the line in a reusable char
+ * buffer, so the only allocation for an ordinary line is the byte array that
+ * goes out on the wire. The rules are the ones the regexes implemented, and
+ * give byte-for-byte the same lines.
+ *
+ * A rewriter is not thread safe; the driver only uses it under its send lock.
+ */
+class LineRewriter {
+
+	// Powers of ten that are exactly representable as doubles
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private final RepRap5DDriver driver;
+
+	private final DecimalFormat feedrateFormat;
+
+	// The line being rewritten, and spare room to rearrange it in
+	private char[] text = new char[128];
+	private char[] scratch = new char[128];
+	private int length = 0;
+
+	// The bytes of the line, before they're copied out
+	private byte[] out = new byte[160];
+
+	// What the last line said; NaN or -1 if it didn't
+	private double feedrate;
+	private double ePosition;
+	private int lineNumber;
+	private boolean resetsLineNumber;
+	private boolean expectsReply;
+
+	LineRewriter(RepRap5DDriver driver) {
+		this.driver = driver;
+		DecimalFormatSymbols dfs = DecimalFormatSymbols.getInstance();
+		dfs.setDecimalSeparator('.');
+		feedrateFormat = new DecimalFormat("#0.0", dfs);
+	}
+
+	/**
+	 * Rewrite a line for the firmware. The result is read back with
+	 * toBytes() and the getters.
+	 * @return false if there's nothing to send for this line
+	 */
+	boolean rewrite(String gcode) {
+		feedrate = Double.NaN;
+		ePosition = Double.NaN;
+		lineNumber = -1;
+		resetsLineNumber = false;
+		expectsReply = false;
+
+		clean(gcode);
+		if (length == 0 || !fix()) {
+			return false;
+		}
+
+		// Snoop the first feedrate and extruder position the line sets
+		feedrate = findValue('F');
+		ePosition = findValue('E');
+
+		// A line that's nothing but a line number keeps it
+		if (length > 1 && text[0] == 'n') {
+			int i = 1;
+			while (i < length && isWhitespace(text[i])) i++;
+			long number = 0;
+			int digits = i;
+			while (i < length && text[i] >= '0' && text[i] <= '9' && number <= Integer.MAX_VALUE) {
+				number = number * 10 + (text[i++] - '0');
+			}
+			if (i == length && i > digits && number <= Integer.MAX_VALUE) {
+				lineNumber = (int)number;
+			}
+		}
+		return true;
+	}
+
+	/** @return the first F value on the line, or NaN if there wasn't one */
+	double getFeedrate() {
+		return feedrate;
+	}
+
+	/** @return the first E value on the line, or NaN if there wasn't one */
+	double getEPosition() {
+		return ePosition;
+	}
+
+	/** @return the line number the line came with, or -1 if it should be given one */
+	int getLineNumber() {
+		return lineNumber;
+	}
+
+	/** @return true if the line is an M110, which restarts the line numbers */
+	boolean resetsLineNumber() {
+		return resetsLineNumber;
+	}
+
+	/** @return true if the firmware answers the line with something the driver reads back: M105, M114 or M115 */
+	boolean expectsReply() {
+		return expectsReply;
+	}
+
+	/**
+	 * @return the line as it goes out on the wire, without a line number or checksum
+	 */
+	byte[] toBytes() {
+		int n = put(0, text, length);
+		out[n++] = '\n';
+		return copyOut(n);
+	}
+
+	/**
+	 * @return the line as it goes out on the wire, with a line number and checksum.
+	 * The number is only added if the line didn't come with one.
+	 */
+	byte[] toBytes(int number) {
+		// RepRap Syntax: N<linenumber> <cmd> *<chksum>\n
+		int n = 0;
+		if (lineNumber == -1) {
+			out[n++] = 'N';
+			n = putInt(n, number);
+			out[n++] = ' ';
+			n = put(n, text, length);
+			out[n++] = ' ';
+		} else {
+			n = put(n, text, length);
+		}
+		n = putChecksum(n);
+		out[n++] = '\n';
+		return copyOut(n);
+	}
+
+	/**
+	 * @return the line "N<number> M110" with its checksum, which tells the
+	 * firmware the next line will be number + 1. Unlike the rest of the
+	 * rewriter this can be used from any thread.
+	 */
+	static byte[] lineNumberReset(int number) {
+		String gcode = "N" + number + " M110";
+		byte checksum = 0;
+		for (int i = 0; i < gcode.length(); i++) {
+			checksum ^= (byte)gcode.charAt(i);
+		}
+		return (gcode + '*' + checksum + '\n').getBytes();
+	}
+
+	/**
+	 * Trim the line and strip its comments into the text buffer. Matches
+	 * trim() then removing "\([^)]*\)|;.*".
+	 */
+	private void clean(String gcode) {
+		int start = 0;
+		int end = gcode.length();
+		while (start < end && gcode.charAt(start) <= ' ') start++;
+		while (end > start && gcode.charAt(end - 1) <= ' ') end--;
+
+		ensureText(end - start);
+		length = 0;
+		int i = start;
+		while (i < end) {
+			char c = gcode.charAt(i);
+			if (c == '(') {
+				int close = gcode.indexOf(')', i + 1);
+				if (close != -1 && close < end) {
+					i = close + 1;
+					continue;
+				}
+			} else if (c == ';') {
+				while (i < end && !isLineTerminator(gcode.charAt(i))) i++;
+				continue;
+			}
+			text[length++] = c;
+			i++;
+		}
+	}
+
+	/**
+	 * Make the line compatible with older versions of the GCode interpreter.
+	 * @return false if the line should be dropped
+	 */
+	private boolean fix() {
+		// The 5D firmware expects E codes for extrusion control instead of M101, M102, M103,
+		// and has no optional stop
+		for (int i = 0; i + 3 < length; i++) {
+			if (text[i] != 'M') continue;
+			char a = text[i + 1], b = text[i + 2], c = text[i + 3];
+			if (a == '0' && b == '1' && !isDigit(c)) {
+				return false;
+			}
+			if (a == '1' && b == '0' && c >= '1' && c <= '3') {
+				return false;
+			}
+			if (a == '1' && b == '1' && c == '0') {
+				resetsLineNumber = true;
+			}
+			if (a == '1' && (i + 4 == length || !isDigit(text[i + 4]))
+					&& ((b == '0' && c == '5') || (b == '1' && (c == '4' || c == '5')))) {
+				expectsReply = true;
+			}
+		}
+
+		moveFeedrateLast();
+
+		if (driver.isRealtimeControlEnabled()) {
+			scaleFeedrate();
+		}
+		return true;
+	}
+
+	/**
+	 * F-codes need to go LAST! A line ending "F<f> E<e>" becomes " E<e> F<f>",
+	 * as "^(.*)(F[0-9\.]*)\s?E([0-9\.]*)$" did.
+	 */
+	private void moveFeedrateLast() {
+		int eValue = length;
+		while (eValue > 0 && isNumberChar(text[eValue - 1])) eValue--;
+		if (eValue == 0 || text[eValue - 1] != 'E') return;
+		int fEnd = eValue - 1;
+		if (fEnd > 0 && isWhitespace(text[fEnd - 1])) fEnd--;
+		int fCode = fEnd;
+		while (fCode > 0 && isNumberChar(text[fCode - 1])) fCode--;
+		if (fCode == 0 || text[fCode - 1] != 'F') return;
+		fCode--;
+
+		ensureScratch(length + 2);
+		int n = 0;
+		System.arraycopy(text, 0, scratch, n, fCode);
+		n += fCode;
+		scratch[n++] = ' ';
+		scratch[n++] = 'E';
+		System.arraycopy(text, eValue, scratch, n, length - eValue);
+		n += length - eValue;
+		scratch[n++] = ' ';
+		System.arraycopy(text, fCode, scratch, n, fEnd - fCode);
+		n += fEnd - fCode;
+		swap(n);
+	}
+
+	/**
+	 * Rescale the last F value by the realtime control multipliers, as
+	 * "(.*)F([0-9\.]*)(.*)" did.
+	 */
+	private void scaleFeedrate() {
+		int f = length - 1;
+		while (f >= 0 && text[f] != 'F') f--;
+		if (f < 0) return;
+		int end = f + 1;
+		while (end < length && isNumberChar(text[end])) end++;
+
+		double value;
+		try {
+			value = Double.parseDouble(new String(text, f + 1, end - f - 1));
+		} catch (NumberFormatException e) {
+			return;
+		}
+		// FIXME: kind of an ugly way to test for extrusionless "travel" versus extrusion.
+		boolean travel = true;
+		for (int i = 0; i < length; i++) {
+			if (text[i] == 'E') {
+				travel = false;
+				break;
+			}
+		}
+		if (travel) {
+			value *= driver.getTravelFeedrateMultiplier();
+		} else {
+			value *= driver.getFeedrateMultiplier();
+		}
+		if (value > driver.getFeedrateLimit()) {
+			value = driver.getFeedrateLimit();
+		}
+		String formatted = feedrateFormat.format(value);
+
+		ensureScratch(length + formatted.length() + 3);
+		int n = 0;
+		System.arraycopy(text, 0, scratch, n, f);
+		n += f;
+		scratch[n++] = ' ';
+		scratch[n++] = 'F';
+		formatted.getChars(0, formatted.length(), scratch, n);
+		n += formatted.length();
+		scratch[n++] = ' ';
+		System.arraycopy(text, end, scratch, n, length - end);
+		n += length - end;
+		swap(n);
+	}
+
+	/**
+	 * @return the value of the first "<code>[-0-9.]+" on the line, NaN if there
+	 * isn't one or it isn't a number
+	 */
+	private double findValue(char code) {
+		for (int i = 0; i + 1 < length; i++) {
+			if (text[i] != code || !isSignedNumberChar(text[i + 1])) continue;
+			int end = i + 1;
+			while (end < length && isSignedNumberChar(text[end])) end++;
+			return parseNumber(i + 1, end);
+		}
+		return Double.NaN;
+	}
+
+	/**
+	 * Parse a plain decimal inline; anything else goes to Double.parseDouble().
+	 * @return the value, or NaN if it isn't a number
+	 */
+	private double parseNumber(int start, int end) {
+		int i = start;
+		boolean negative = text[i] == '-';
+		if (negative) i++;
+		long mantissa = 0;
+		int digits = 0;
+		int fraction = -1;
+		for (; i < end; i++) {
+			char c = text[i];
+			if (c == '.' && fraction == -1) {
+				fraction = 0;
+			} else if (isDigit(c) && mantissa < (1L << 53) / 10) {
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (fraction != -1) fraction++;
+			} else {
+				break;
+			}
+		}
+		if (i == end && digits > 0 && fraction < POW10.length) {
+			double value = fraction > 0 ? mantissa / POW10[fraction] : mantissa;
+			return negative ? -value : value;
+		}
+		try {
+			return Double.parseDouble(new String(text, start, end - start));
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	// chksum = 0 xor each byte of the gcode (including the line number and trailing space)
+	private int putChecksum(int n) {
+		ensureOut(n + 16);
+		byte checksum = 0;
+		for (int i = 0; i < n; i++) {
+			checksum ^= out[i];
+		}
+		out[n++] = '*';
+		return putInt(n, checksum);
+	}
+
+	private int put(int n, char[] chars, int count) {
+		ensureOut(n + count + 24);
+		for (int i = 0; i < count; i++) {
+			out[n++] = (byte)chars[i];
+		}
+		return n;
+	}
+
+	private int putInt(int n, int value) {
+		ensureOut(n + 12);
+		if (value < 0) {
+			out[n++] = '-';
+			value = -value;
+		}
+		int start = n;
+		do {
+			out[n++] = (byte)('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+		// the digits went in backwards
+		for (int i = start, j = n - 1; i < j; i++, j--) {
+			byte b = out[i];
+			out[i] = out[j];
+			out[j] = b;
+		}
+		return n;
+	}
+
+	private byte[] copyOut(int n) {
+		byte[] bytes = new byte[n];
+		System.arraycopy(out, 0, bytes, 0, n);
+		return bytes;
+	}
+
+	private void swap(int newLength) {
+		char[] t = text;
+		text = scratch;
+		scratch = t;
+		length = newLength;
+	}
+
+	private void ensureText(int capacity) {
+		if (text.length < capacity) {
+			text = new char[Math.max(capacity, text.length * 2)];
+		}
+	}
+
+	private void ensureScratch(int capacity) {
+		if (scratch.length < capacity) {
+			scratch = new char[Math.max(capacity, scratch.length * 2)];
+		}
+	}
+
+	private void ensureOut(int capacity) {
+		if (out.length < capacity) {
+			byte[] grown = new byte[Math.max(capacity, out.length * 2)];
+			System.arraycopy(out, 0, grown, 0, out.length);
+			out = grown;
+		}
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isNumberChar(char c) {
+		return isDigit(c) || c == '.';
+	}
+
+	private static boolean isSignedNumberChar(char c) {
+		return isNumberChar(c) || c == '-';
+	}
+
+	// \s in a regex
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+	}
+
+	// What . in a regex won't match
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+}
@@ -38,7 +38,9 @@ import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.Vector;
@@ -46,7 +48,7 @@ import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
 import replicatorg.app.tools.XML;
-import replicatorg.app.util.serial.ByteFifo;
+import replicatorg.app.util.serial.ByteRing;
 import replicatorg.app.util.serial.Serial;
 import replicatorg.app.util.serial.SerialFifoEventListener;
 import replicatorg.drivers.BadFirmwareVersionException;
@@ -61,9 +63,7 @@ import replicatorg.util.Point5d;
 
 public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListener, RealtimeControl 
 {
-	private static Pattern gcodeCommentPattern = Pattern.compile("\\([^)]*\\)|;.*");
-	private static Pattern resendLinePattern = Pattern.compile("([0-9]+)");
-	private static Pattern gcodeLineNumberPattern = Pattern.compile("n\\s*([0-9]+)");
+	private static Pattern unprintablePattern = Pattern.compile("[^\\x20-\\x7E].*");
 	
 	public final AtomicReference<Double> feedrate = new AtomicReference<Double>(0.0);
 	public final AtomicReference<Double> ePosition = new AtomicReference<Double>(0.0);
@@ -149,23 +149,71 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	private final ExtrusionUpdater extrusionUpdater = new ExtrusionUpdater(this);
 
 	/**
-	 * the size of the buffer on the GCode host
+	 * if true lines are sent ahead without waiting for each one's "ok", as long
+	 * as the bytes not yet acknowledged fit in the firmware's receive buffer.
+	 * Lines whose replies we read (M105, M114, M115) still wait.
 	 */
-	private int maxBufferSize = 128;
+	private boolean sendAhead = false;
 
 	/**
-	 * The commands sent but not yet acknowledged by the firmware. Stored so they can be resent 
-	 * if there is a checksum problem.
+	 * the number of bytes the receive buffer on the firmware can hold. Marlin and
+	 * Sprinter have a 128 byte ring, which holds one less.
 	 */
-	private LinkedList<String> buffer = new LinkedList<String>();
+	private int maxBufferSize = 127;
+
+	/**
+	 * The commands sent but not yet acknowledged by the firmware, newest first. Stored so 
+	 * they can be resent if there is a checksum problem.
+	 */
+	private LinkedList<SentLine> buffer = new LinkedList<SentLine>();
 	private ReentrantLock bufferLock = new ReentrantLock();
+	/** signalled whenever a line is acknowledged, so there may be room in the buffer */
+	private final Condition bufferChanged = bufferLock.newCondition();
+	/** the number of bytes in the buffer, which the firmware may still be holding */
+	private int bufferedBytes = 0;
+
+	/** rewrites each line for the firmware; only used under sendCommandLock */
+	private final LineRewriter rewriter = new LineRewriter(this);
 	
 	/** locks the readResponse method to prevent multiple concurrent reads */
 	private ReentrantLock readResponseLock = new ReentrantLock();
+	
+	// The line being handled, in the serial ring
+	private final ByteRing.Slice responseLine = new ByteRing.Slice();
+	private final ResponseParser response = new ResponseParser();
 
 	protected DecimalFormat df;
 
 	private AtomicInteger lineNumber = new AtomicInteger(-1);
+
+	/**
+	 * A line sent to the firmware, as it went out on the wire.
+	 */
+	private static class SentLine {
+		final byte[] bytes;
+		/** the line's number, or -1 if it has none */
+		final int lineNumber;
+		/** set, under bufferLock, when the firmware says "ok" to it or it's flushed */
+		boolean acknowledged = false;
+
+		SentLine(byte[] bytes, int lineNumber) {
+			this.bytes = bytes;
+			this.lineNumber = lineNumber;
+		}
+
+		public String toString() {
+			try {
+				return new String(bytes, 0, Math.max(0, bytes.length - 1), "US-ASCII");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/** A marker for an extra "ok" we expect from the firmware; it isn't sent */
+	private static SentLine expectedOk() {
+		return new SentLine(new byte[0], -1);
+	}
 	
 	public String getMachineName(){
 		return "Ultimaker";
@@ -210,6 +258,16 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
             
         }
 
+        if (XML.hasChildNode(xml, "sendahead")) {
+        	Node sendAheadNode = XML.getChildNodeByName(xml, "sendahead");
+
+            String enabled = XML.getAttributeValue(sendAheadNode, "enabled");
+            if (enabled !=null) sendAhead = Boolean.parseBoolean(enabled);
+
+            String bufferSize = XML.getAttributeValue(sendAheadNode, "buffersize");
+            if (bufferSize !=null) maxBufferSize = Integer.parseInt(bufferSize);
+        }
+
         if (XML.hasChildNode(xml, "pulserts")) {
             pulseRTS = Boolean.parseBoolean(XML.getChildNodeValue(xml, "pulserts"));
         }
@@ -414,21 +472,6 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 		sendCommand(code);
 	}
 	
-	/**
-	 * Returns null or the first instance of the matching group
-	 */
-	private String getRegexMatch(String regex, String input, int group)
-	{
-		return getRegexMatch(Pattern.compile(regex), input, group);
-	}
-
-	private String getRegexMatch(Pattern regex, String input, int group)
-	{
-		Matcher matcher = regex.matcher(input);
-		if (!matcher.find() || matcher.groupCount() < group) return null;
-		return matcher.group(group);
-	}
-
 	/**
 	 * Actually sends command over serial.
 	 * 
@@ -440,584 +483,515 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	 * is finished sending.
 	 */
 	protected void sendCommand(String next) {
-		_sendCommand(next, true, false);
+		_sendCommand(next, true);
 	}
 
 	protected void sendCommand(String next, boolean synchronous) {
-		_sendCommand(next, synchronous, false);
+		_sendCommand(next, synchronous);
 	}
 
-	
-	protected void resendCommand(String command) {
-		synchronized (sendCommandLock)
-		{
-			numResends++;
-			if(debugLevel > 0)
-				Base.logger.warning("Resending: \"" + command + "\". Resends in "+ numResends + " of "+lineIterator+" lines.");
-			_sendCommand(command, false, true);
-		}
+	/**
+	 * Resend a line the firmware asked for again. Called with bufferLock held.
+	 */
+	private void resendCommand(SentLine line) {
+		numResends++;
+		if(debugLevel > 0)
+			Base.logger.warning("Resending: \"" + line + "\". Resends in "+ numResends + " of "+lineIterator+" lines.");
+		Base.logger.finest("resending: "+line);
+		writeLine(line);
 	}
 
 	/**
-	 * inner method. not for use outside sendCommand and resendCommand
+	 * inner method. not for use outside sendCommand
 	 */
-	protected void _sendCommand(String next, boolean synchronous, boolean resending) {
-				
-		// If this line is uncommented, it simply sends the next line instead of doing a retransmit!
-		if (!resending) 
-		{
-			sendCommandLock.lock();
+	protected void _sendCommand(String next, boolean synchronous) {
+		SentLine line;
+		boolean waitForOk;
 
+		sendCommandLock.lock();
+		try {
 			//assert (isInitialized());
 			// System.out.println("sending: " + next);
-	
-			next = clean(next);
-			next = fix(next); // make it compatible with older versions of the GCode interpeter
-			
+
+			// make it compatible with older versions of the GCode interpeter
 			// skip empty commands.
-			if (next.length() == 0)
-			{
-				sendCommandLock.unlock();
-				return;
-			}
-	
+			if (!rewriter.rewrite(next)) return;
+
 			//update the current feedrate
-			String feedrate = getRegexMatch("F(-[0-9\\.]+)", next, 1);
-			if (feedrate!=null) this.feedrate.set(Double.parseDouble(feedrate));
+			double f = rewriter.getFeedrate();
+			if (!Double.isNaN(f)) this.feedrate.set(f);
 
 			if (!alwaysRelativeE) {
 				//update the current extruder position
-				String e = getRegexMatch("E([-0-9\\.]+)", next, 1);
-				if (e!=null) this.ePosition.set(Double.parseDouble(e));
+				double e = rewriter.getEPosition();
+				if (!Double.isNaN(e)) this.ePosition.set(e);
 			} else {
 				ePosition.set(0.0);
 			}
 
-			// applychecksum replaces the line that was to be retransmitted, into the next line.
-			if (hasChecksums) next = applyNandChecksum(next);
-			
-			Base.logger.finest("sending: "+next);
-		}
-		else
-		{
-			Base.logger.finest("resending: "+next);
-		}
-		// Block until we can fit the command on the Arduino
-/*		synchronized(bufferLock)
-		{
-			//wait for the number of commands queued in the buffer to shrink before 
-			//adding the next command to it.
-                        // NOTE: must compute bufferSize from buffer elements now
-			while(bufferSize + next.length() + 1 > maxBufferSize)
-			{
-				Base.logger.warning("reprap driver buffer full. gcode write slowed.");
-				try {
-					bufferLock.wait();
+			if (hasChecksums) {
+				if (rewriter.resetsLineNumber())
+					lineNumber.set(-1);
+				int number = rewriter.getLineNumber();
+				if (number != -1)
+				{ // reset our line number to the specified one. this is usually a m110 line # reset
+					lineNumber.set(number);
 				}
-				catch (InterruptedException e1) {
-					//Presumably we're shutting down
-					Thread.currentThread().interrupt();
-					return;
+				else
+				{ // only add a line number if it is not already specified
+					number = lineNumber.incrementAndGet();
 				}
+				line = new SentLine(rewriter.toBytes(number), number);
+			} else {
+				line = new SentLine(rewriter.toBytes(), -1);
 			}
-		}*/
-		
+			waitForOk = synchronous && (!sendAhead || rewriter.expectsReply());
 
-		// debug... let us know whats up!
-		if(debugLevel > 1)
-			Base.logger.info("Sending: " + next);
-
-
-		try {
-			synchronized(next)
-			{
-				// do the actual send.
-				serialInUse.lock();
-				bufferLock.lock();
-
-				// record it in our buffer tracker.
-				buffer.addFirst(next);
-				
-				if((introduceNoiseEveryN != -1) && (lineIterator++) >= introduceNoiseEveryN) {
-					Base.logger.info("Introducing noise (lineIterator=="
-							+ lineIterator + ",introduceNoiseEveryN=" + introduceNoiseEveryN + ")");
-					lineIterator = 0;
-					String noisyNext = next.replace('6','7').replace('7','1') + "\n";
-					serial.write(noisyNext);
-				} else {
-					serial.write(next + "\n");
+			if (Base.logger.isLoggable(Level.FINEST))
+				Base.logger.finest("sending: "+line);
+			// debug... let us know whats up!
+			if(debugLevel > 1)
+				Base.logger.info("Sending: " + line);
+
+			bufferLock.lock();
+			try {
+				// Block until we can fit the command on the Arduino. If nothing is
+				// outstanding it goes anyway, however long it is.
+				while (sendAhead && bufferedBytes > 0
+						&& bufferedBytes + line.bytes.length > maxBufferSize)
+				{
+					bufferChanged.await();
 				}
+				writeLine(line);
+			} finally {
 				bufferLock.unlock();
-				serialInUse.unlock();
-
-				// Synchronous gcode transfer. Waits for the 'ok' ack to be received.
-				if (synchronous) next.wait();
 			}
 		} catch (InterruptedException e1) {
 			//Presumably we're shutting down
 			Thread.currentThread().interrupt();
-			if (!resending) 
-				sendCommandLock.unlock();
 			return;
+		} finally {
+			sendCommandLock.unlock();
 		}
 
-		// Wait for the response (synchronous gcode transmission)
-		//while(!isFinished()) {}
-		
-		if (!resending) 
-			sendCommandLock.unlock();
+		// Synchronous gcode transfer. Waits for the 'ok' ack to be received.
+		if (waitForOk) {
+			bufferLock.lock();
+			try {
+				while (!line.acknowledged)
+					bufferChanged.await();
+			} catch (InterruptedException e1) {
+				//Presumably we're shutting down
+				Thread.currentThread().interrupt();
+			} finally {
+				bufferLock.unlock();
+			}
+		}
 	}
 
-	public String clean(String str) {
-		String clean = str;
-
-		// trim whitespace
-		clean = clean.trim();
-
-		// remove spaces
-		//clean = clean.replaceAll(" ", "");
-		
-		// remove all comments
-        clean = RepRap5DDriver.gcodeCommentPattern.matcher(clean).replaceAll("");
-
-		return clean;
+	/**
+	 * Record a line in our buffer tracker and write it out. Called with bufferLock held.
+	 */
+	private void writeLine(SentLine line) {
+		serialInUse.lock();
+		try {
+			buffer.addFirst(line);
+			bufferedBytes += line.bytes.length;
+
+			if((introduceNoiseEveryN != -1) && (lineIterator++) >= introduceNoiseEveryN) {
+				Base.logger.info("Introducing noise (lineIterator=="
+						+ lineIterator + ",introduceNoiseEveryN=" + introduceNoiseEveryN + ")");
+				lineIterator = 0;
+				byte[] noisy = line.bytes.clone();
+				for (int i = 0; i < noisy.length; i++) {
+					if (noisy[i] == '6' || noisy[i] == '7') noisy[i] = '1';
+				}
+				serial.write(noisy);
+			} else {
+				serial.write(line.bytes);
+			}
+		} finally {
+			serialInUse.unlock();
+		}
 	}
-	public String fix(String str) {
-		String fixed = str;
-		// The 5D firmware expects E codes for extrusion control instead of M101, M102, M103
 
-		Pattern r = Pattern.compile("M01[^0-9]");
-		Matcher m = r.matcher(fixed);
-		if (m.find())
-		{
-			return "";
+	/**
+	 * Take the oldest line out of the buffer and wake whoever is waiting on it.
+	 * Called with bufferLock held.
+	 */
+	private SentLine acknowledge() {
+		SentLine line = buffer.removeLast();
+		bufferedBytes -= line.bytes.length;
+		line.acknowledged = true;
+		bufferChanged.signalAll();
+		return line;
+	}
+	
+	public void serialBytesReceivedEvent(ByteRing ring) {
+		// Handle every whole line that has come in
+		while (readResponse(ring)) {
 		}
+	}
 
-	    // Remove M10[123] codes
-	    // This piece of code causes problems?!? Restarts?
-		r = Pattern.compile("M10[123](.*)");
-		m = r.matcher(fixed);
-	    if (m.find( )) {
-//	    	System.out.println("Didn't find pattern in: " + str );
-//	    	fixed = m.group(1)+m.group(3)+";";
-	    	return "";
-	    }
-		
-		// Reorder E and F codes? F-codes need to go LAST!
-		//requires: import java.util.regex.Matcher; and import java.util.regex.Pattern;
-		r = Pattern.compile("^(.*)(F[0-9\\.]*)\\s?E([0-9\\.]*)$");
-	    m = r.matcher(fixed);
-	    if (m.find( )) {
-			fixed = m.group(1)+" E"+m.group(3)+" "+m.group(2);
-	    }
-
-	    if(realtimeControl) {
-		    // Rescale F value
-		    r = Pattern.compile("(.*)F([0-9\\.]*)(.*)");
-		    m = r.matcher(fixed);
-		    if (m.find( )) {
-		    	double newvalue = Double.valueOf(m.group(2).trim()).doubleValue();
-		    	// FIXME: kind of an ugly way to test for extrusionless "travel" versus extrusion.
-		    	if (!fixed.contains("E"))
-		    	{
-		    		newvalue *= rcTravelFeedrateMultiply;
-		    	} else {
-		    		newvalue *= rcFeedrateMultiply;
-		    	}
-		    	if(newvalue > rcFeedrateLimit)
-		    		newvalue = rcFeedrateLimit;
-
-				DecimalFormatSymbols dfs = DecimalFormatSymbols.getInstance();
-				dfs.setDecimalSeparator('.');
-		    	NumberFormat formatter = new DecimalFormat("#0.0", dfs);
-		    	fixed = m.group(1)+" F"+formatter.format(newvalue)+" "+m.group(3);
-		    }
-		    
-	/*	    // Rescale E value
-			r = Pattern.compile("(.*)E([0-9\\.]*)(.*)");//E317.52// Z-moves slower! Extrude 10% less? More and more rapid reversing
-		    m = r.matcher(fixed);
-		    if (m.find( )) {
-		    	double newEvalue = Double.valueOf(m.group(2).trim()).doubleValue();
-		    	newEvalue = newEvalue * 0.040;
-				DecimalFormatSymbols dfs = DecimalFormatSymbols.getInstance();
-				dfs.setDecimalSeparator('.');
-		    	NumberFormat formatter = new DecimalFormat("#0.0", dfs);
-		    	fixed = m.group(1)+" E"+formatter.format(newEvalue)+" "+m.group(3);
-		    }
-	*/
-	    }
-	    
-	    return fixed; // no change!
+	/**
+	 * Handle the next line from the firmware, if there is a whole one.
+	 * @return false if there isn't
+	 */
+	private boolean readResponse(ByteRing ring) {
+		readResponseLock.lock();
+		try {
+			serialInUse.lock();
+			boolean gotLine = ring.peekLine(responseLine);
+			serialInUse.unlock();
+
+			if (!gotLine) {
+				return false;
+			}
+			try {
+				handleResponse();
+			} finally {
+				ring.skip(responseLine.length);
+			}
+			return true;
+		} finally {
+			readResponseLock.unlock();
+		}
 	}
-	
+
 	/**
-	 * takes a line of gcode and returns that gcode with a line number and checksum
+	 * Act on the line in responseLine. The common lines are handled from the
+	 * bytes; the rest from the trimmed, lowercased String.
 	 */
-	public String applyNandChecksum(String gcode) {
-		// RepRap Syntax: N<linenumber> <cmd> *<chksum>\n
+	private void handleResponse() {
+		ResponseParser.Kind kind = response.parse(responseLine.array, responseLine.offset, responseLine.length);
 
-		if (gcode.contains("M110"))
-			lineNumber.set(-1);
-		
-		Matcher lineNumberMatcher = gcodeLineNumberPattern.matcher(gcode);
-		if (lineNumberMatcher.matches())
-		{ // reset our line number to the specified one. this is usually a m110 line # reset
-			lineNumber.set( Integer.parseInt( lineNumberMatcher.group(1) ) );
+		//System.out.println("received: " + line);
+		if(debugLevel > 1)
+			Base.logger.info("<< " + response);
+
+		switch (kind) {
+		case EMPTY:
+			Base.logger.fine("empty line received");
+			break;
+		case OK:
+			readTemperatures();
+			readPosition();
+			handleOk();
+			break;
+		case TEMPERATURE:
+			readTemperatures();
+			break;
+		case POSITION:
+			if (response.startsWith("x:")) {
+				if (response.hasPosition()) {
+					try {
+						super.setCurrentPosition(new Point5d(response.getX(), response.getY(), response.getZ()));
+					} catch (RetryException e) {
+					}
+				} else {
+					Base.logger.warning("Firmware sent unknown string: " + response);
+				}
+				if (Base.logger.isLoggable(Level.FINE))
+					Base.logger.fine("E: " + response.getE());
+			} else {
+				readPosition();
+			}
+			break;
+		case ECHO:
+			String echo = response.getEchoText();
+			if (echo != null) {
+				//if echo is turned on relay it to the user for debugging
+				Base.logger.info(echo.toLowerCase());
+			}
+			break;
+		case START:
+			handleStart(response.toString());
+			break;
+		case RESEND:
+			handleResend();
+			break;
+		case ERROR:
+			Base.logger.warning("Firmware error: " + response);
+			break;
+		case OTHER:
+			handleOther(response.toString());
+			break;
 		}
-		else
-		{ // only add a line number if it is not already specified
-			gcode = "N"+lineNumber.incrementAndGet()+' '+gcode+' ';
+	}
+
+	private void readTemperatures() {
+		if (!Double.isNaN(response.getTemperature()))
+			machine.currentTool().setCurrentTemperature(response.getTemperature());
+		if (!Double.isNaN(response.getBedTemperature()))
+			machine.currentTool().setPlatformCurrentTemperature(response.getBedTemperature());
+	}
+
+	private void readPosition() {
+		if (response.hasPosition()) {
+			// super to avoid parroting back a G92
+			try {
+				super.setCurrentPosition(new Point5d(response.getX(), response.getY(), response.getZ()));
+				//Base.logger.fine("setting currentposition to:"+x+","+y+","+z+".");
+			} catch (RetryException e) {
+				// do or do not, there is no retry
+			}
 		}
-		return applyChecksum(gcode);
 	}
 
-	public String applyChecksum(String gcode) {
-		// chksum = 0 xor each byte of the gcode (including the line number and trailing space)
-		byte checksum = 0;
-		byte[] gcodeBytes = gcode.getBytes();
-		for (int i = 0; i<gcodeBytes.length; i++)
+	private void handleOk() {
+		synchronized(okReceived)
 		{
-			checksum = (byte) (checksum ^ gcodeBytes[i]);
+			okReceived.set(true);
+			okReceived.notifyAll();
 		}
-		return gcode+'*'+checksum;
+
+		bufferLock.lock();
+		//Notify the thread waiting in this gcode's sendCommand method that the gcode has been received,
+		//and any waiting to send that the buffer is now smaller and may be able to fit their command.
+		if (buffer.isEmpty()) {
+			Base.logger.severe("Received OK with nothing queued!");
+		} else {
+			SentLine accepted = acknowledge();
+			if(debugLevel > 1)
+				Base.logger.info("FW Accepted: " + accepted);
+		}
+		bufferLock.unlock();
 	}
-	
-	public void serialByteReceivedEvent(ByteFifo fifo) {
-		readResponseLock.lock();
 
-		serialInUse.lock();
-		byte[] response = fifo.dequeueLine();
-		int responseLength = response.length;
-		serialInUse.unlock();
-
-		// 0 is now an acceptable value; it merely means that we timed out
-		// waiting for input
-		if (responseLength < 0) {
-			// This signifies EOF. FIXME: How do we handle this?
-			Base.logger.severe("SerialPassthroughDriver.readResponse(): EOF occured");
-			readResponseLock.unlock();
-			return;
-		} else if(responseLength!=0) {
-			String line;
-			try
-			{
-				//convert to string and remove any trailing \r or \n's
-				line = new String(response, 0, responseLength, "US-ASCII")
-							.trim().toLowerCase();
-			} catch (UnsupportedEncodingException e) {
-				Base.logger.severe("US-ASCII required. Terminating.");
-				readResponseLock.unlock();
-				throw new RuntimeException(e);
-			}
+	// Ultimakers send start
+	private void handleStart(String line) {
+		if (version.getMajor() == 0 && version.getMinor() == 0)
+		{
+			version = new Version(0,1);
+			setFirmwareName("5D");
+		}
+		// Reset line number first in case gcode is sent below
+		lineNumber.set(-1);
+		
+		String[] infosetup = line.split("start\\s.*BATCH=([0-9a-z.]{0,}).*PCB=([^,]{0,}).*ATMEGA=([^\\s]{0,}).*FW:V=([^,]{0,}).*BUILD=([^,]{0,}).*E0:([^,]{0,}).*SPEED=([^\\s]{0,}).*Z:PITCH=([^\\s]{0,})");
+		
+		if (line.contains("ULTIMAKER"))
+		{
+			//Assume its an old 5D Ultimaker
+			Base.logger.info("Ultimaker 5D firmware detected.");
+			Base.logger.info(line);
+			Base.logger.finer("Batchnumber = "+infosetup[1]);
+			Base.logger.finer("PCB version = "+infosetup[2]);
+			Base.logger.finer("ATMega = " + infosetup[3]);
+			Base.logger.finer("Firmware version = " + infosetup[4]);
+			Base.logger.finer("Build version = " + infosetup[5]);
+			Base.logger.finer("Extruder = " + infosetup[6]);
+			Base.logger.finer("Speed = " + infosetup[7]);
+			Base.logger.finer("Z PITCH = " + infosetup[8]);
+		}
+		
+		boolean active = !isBufferEmpty();
+		flushBuffer();
 
-			//System.out.println("received: " + line);
-			if(debugLevel > 1)
-				Base.logger.info("<< " + line);
+		if (isInitialized()) {
+			sendInitializationGcode(false);
 
-			if (line.length() == 0)
-				Base.logger.fine("empty line received");
-			else if (line.startsWith("echo:")) {
-					//if echo is turned on relay it to the user for debugging
-					Base.logger.info(line.substring(5));
-			}
-			else if (line.startsWith("ok t:")||line.startsWith("t:")) {
-				Pattern r = Pattern.compile("t:([0-9\\.]+)");
-			    Matcher m = r.matcher(line);
-			    if (m.find( )) {
-			    	String temp = m.group(1);
-					
-					machine.currentTool().setCurrentTemperature(
-							Double.parseDouble(temp));
-			    }
-				r = Pattern.compile("^ok.*b:([0-9\\.]+)");
-			    m = r.matcher(line);
-			    if (m.find( )) {
-			    	String bedTemp = m.group(1);
-					machine.currentTool().setPlatformCurrentTemperature(
-							Double.parseDouble(bedTemp));
-			    }
+			// If there were outstanding commands try to abort any print in progress.
+			// This is a poor test:  but do we know if we're printing at this level?
+			// tried setInitialized(false); but that didn't work well
+			if (active) {
+				Base.logger.severe("Firmware reset with active commands!");
+				setError("Firmware reset with active commands!");
 			}
-			else if (line.startsWith("ok c:")||line.startsWith("c:")) {
-				Pattern r = Pattern.compile("c: *x:?([-0-9\\.]+) *y:?([-0-9\\.]+) *z:?([-0-9\\.]+)");
-				Matcher m = r.matcher(line);
-				if (m.find()) {
-					double x = Double.parseDouble(m.group(1));
-					double y = Double.parseDouble(m.group(2));
-					double z = Double.parseDouble(m.group(3));
-					// super to avoid parroting back a G92
-					try {
-						super.setCurrentPosition(new Point5d(x, y, z));
-						//Base.logger.fine("setting currentposition to:"+x+","+y+","+z+".");
-					} catch (RetryException e) {
-						// do or do not, there is no retry
-					}
-				}
-			}
-			if (line.startsWith("ok")) {
-				
-				synchronized(okReceived)
+		}
+		if (okAfterStart) {
+			// firmware sends "ok" after start, put something here to consume it:
+			bufferLock.lock();
+			buffer.addLast(expectedOk());
+			bufferLock.unlock();
+		}
+		
+		// todo: set version
+		synchronized (startReceived) {
+			startReceived.set(true);
+			startReceived.notifyAll();
+		}
+
+		// Wake up connect task to try again
+		synchronized (okReceived) {
+			okReceived.set(false);
+			okReceived.notifyAll();
+		}
+	}
+
+	private void handleResend() {
+		// Bad checksum, resend requested
+		// Is it a Dud M or G code?
+		String dudLetter = response.getDudCode() == 0 ? null : String.valueOf(response.getDudCode());
+
+		if (response.getResendLine() != -1)
+		{
+			int badLineNumber = response.getResendLine();
+			if(debugLevel > 1)
+				Base.logger.warning("Received resend request for line " + badLineNumber);
+
+			Queue<SentLine> resend = new LinkedList<SentLine>();
+			boolean found = false;
+			// Search forwards from the oldest line for the bad line in our buffer.
+			// Firmware flushed everything after this line, so
+			// build a queue of it and the lines after it to resend.
+			bufferLock.lock();
+			try {
+				int index = buffer.size() - 1;
+				for (; index >= 0; index--)
 				{
-					okReceived.set(true);
-					okReceived.notifyAll();
+					SentLine bufferedLine = buffer.get(index);
+					if(debugLevel > 1)
+						Base.logger.info("Searching: " + bufferedLine);
+					if (bufferedLine.lineNumber == badLineNumber) {
+						found = true;
+						break;
+					}
 				}
-
-				bufferLock.lock();
-				//Notify the thread waiting in this gcode's sendCommand method that the gcode has been received.
-				if (buffer.isEmpty()) {
-					Base.logger.severe("Received OK with nothing queued!");
+				if (found && dudLetter != null) {
+					SentLine dud = buffer.remove(index);
+					bufferedBytes -= dud.bytes.length;
+					dud.acknowledged = true;
+					bufferChanged.signalAll();
+					Base.logger.info("Dud "+dudLetter+" code: Dropping " + dud);
 				} else {
-					String notifier = buffer.removeLast();
-					if(debugLevel > 1)
-						Base.logger.info("FW Accepted: " + notifier);
-					synchronized(notifier) { notifier.notifyAll(); }
+					// If the bad line isn't there, resend everything we have
+					for (index = found ? index : buffer.size() - 1; index >= 0; index--)
+					{
+						// an expected "ok" stays where it is
+						if (buffer.get(index).lineNumber == -1) continue;
+						SentLine bufferedLine = buffer.remove(index);
+						bufferedBytes -= bufferedLine.bytes.length;
+						resend.add(bufferedLine);
+					}
 				}
-				bufferLock.unlock();
-				
-				synchronized(bufferLock)
-				{ /*let any sendCommand method waiting to send know that the buffer is 
-					now smaller and may be able to fit their command.*/
-					bufferLock.notifyAll();
+				if (okAfterResend) {
+					// firmware sends "ok" after resend, put something here to consume it:
+					buffer.addLast(expectedOk());
 				}
-			}
-			else if(line.contains("sd"))
-			{
-				if (line.contains("fail"))
-				{
-					Base.logger.warning("SD card failure!");
+
+				if (!found && !resend.isEmpty()) {
+					int restartLineNumber = resend.element().lineNumber;
+					Base.logger.severe("resend for line " + badLineNumber + " not in our buffer.  Resuming from " + restartLineNumber);
+					this.resendCommand(new SentLine(LineRewriter.lineNumberReset(restartLineNumber-1), restartLineNumber-1));
 				}
-				else
+				// resend the lines
+				while (!resend.isEmpty())
 				{
-					Base.logger.info("SD card connected");
+					this.resendCommand(resend.remove());
 				}
+			} finally {
+				bufferLock.unlock();
 			}
-			else if (line.startsWith("marlin"))
+		}
+		else
+		{
+			// Malformed resend line request received. Resetting the line number
+			Base.logger.warning("malformed line resend request, "
+					+"resetting line number. Malformed Data: \n"+response);
+			bufferLock.lock();
+			try {
+				int number = lineNumber.get()-1;
+				this.resendCommand(new SentLine(LineRewriter.lineNumberReset(number), number));
+			} finally {
+				bufferLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Handle the lines that turn up now and then. Lines that aren't what we expect
+	 * at all mean the baud rate is off or this isn't a RepRap. Echo lines never
+	 * get here; the parser gives them a kind of their own.
+	 */
+	private void handleOther(String line) {
+		if(line.contains("sd"))
+		{
+			if (line.contains("fail"))
 			{
-				Pattern p = Pattern.compile("marlin u([0-9]).([0-9]).*");
-				Matcher m = p.matcher(line);
-				m.find();
-				version = new Version(Integer.parseInt(m.group(1)),Integer.parseInt(m.group(2)));
-				//Some marlin versions send out their code...
-				if (version.atLeast(minimumVersion))
-				{
-					if (version.compareTo(preferredVersion) == 1)
-					{
-						//We are running an unsupported version
-						Base.logger.warning("You are running an unsupported firmware version!");
-					}
-				}
-				else
-				{
-					this.uninitialize();
-					throw new BadFirmwareVersionException(version,preferredVersion);
-				}
+				Base.logger.warning("SD card failure!");
 			}
-			else if (line.startsWith("echo"))
+			else
 			{
-				//Do nothing
+				Base.logger.info("SD card connected");
 			}
-			else if (line.contains("firmware_name"))
+		}
+		else if (line.startsWith("marlin"))
+		{
+			Pattern p = Pattern.compile("marlin u([0-9]).([0-9]).*");
+			Matcher m = p.matcher(line);
+			m.find();
+			version = new Version(Integer.parseInt(m.group(1)),Integer.parseInt(m.group(2)));
+			//Some marlin versions send out their code...
+			if (version.atLeast(minimumVersion))
 			{
-				Pattern p = Pattern.compile("firmware_name:([0-9a-z.]{0,}).*firmware_url:([\\S.]{0,}.*).*protocol_version:([0-9]{0,}).([0-9]{0,}).*machine_type:([a-z]{0,}).*extruder_count:([0-9]{0,})");
-				Matcher m = p.matcher(line);
-				m.find();
-				Base.logger.fine("Detecting firmware!");
-				//Assume we got an answer to M115, lets see what we got:
-				if (m.group(1).startsWith("marlin"))
-				{
-					Base.logger.fine("setting marlin");
-					setFirmwareName("Marlin");
-				}
-				else
-				{
-					setFirmwareName("Unknown");
-				}
-				if (m.group(2).contains("ultimaker") || m.group(5).contains("ultimaker"))
+				if (version.compareTo(preferredVersion) == 1)
 				{
-					//We got an ultimaker, hurray!
-				}
-				else
-				{
-					Base.logger.warning("Could not detect Ultimaker firmware.");
-				}
-				version = new Version(Integer.parseInt(m.group(3)),Integer.parseInt(m.group(4)));
-				//infosetup[5] = extruder amount!
-				if (version.atLeast(minimumVersion))
-				{
-					if (version.compareTo(preferredVersion) == 1)
-					{
-						//We are running an unsupported version
-						Base.logger.warning("You are running an unsupported firmware version!");
-					}
-				}
-				else
-				{
-					this.uninitialize();
-					throw new BadFirmwareVersionException(version,preferredVersion);
+					//We are running an unsupported version
+					Base.logger.warning("You are running an unsupported firmware version!");
 				}
 			}
-			else if (line.startsWith("x:"))
+			else
 			{
-				String[] curlocation = line.split("[a-z]:");
-				
-				try {
-					super.setCurrentPosition(new Point5d(Double.parseDouble(curlocation[1]), Double.parseDouble(curlocation[2]), Double.parseDouble(curlocation[3])));
-				} catch (NumberFormatException e) {
-					// TODO Auto-generated catch block
-					Base.logger.warning("Firmware sent unknown string: " + line);
-				} catch (RetryException e) {
-				}
-				Base.logger.fine("E: " + curlocation[4]);
+				this.uninitialize();
+				throw new BadFirmwareVersionException(version,preferredVersion);
 			}
-			// Ultimakers send start
-			else if (line.contains("start")) {
-				if (version.getMajor() == 0 && version.getMinor() == 0)
-				{
-					version = new Version(0,1);
-					setFirmwareName("5D");
-				}
-				// Reset line number first in case gcode is sent below
-				lineNumber.set(-1);
-				
-				String[] infosetup = line.split("start\\s.*BATCH=([0-9a-z.]{0,}).*PCB=([^,]{0,}).*ATMEGA=([^\\s]{0,}).*FW:V=([^,]{0,}).*BUILD=([^,]{0,}).*E0:([^,]{0,}).*SPEED=([^\\s]{0,}).*Z:PITCH=([^\\s]{0,})");
-				
-				if (line.contains("ULTIMAKER"))
-				{
-					//Assume its an old 5D Ultimaker
-					Base.logger.info("Ultimaker 5D firmware detected.");
-					Base.logger.info(line);
-					Base.logger.finer("Batchnumber = "+infosetup[1]);
-					Base.logger.finer("PCB version = "+infosetup[2]);
-					Base.logger.finer("ATMega = " + infosetup[3]);
-					Base.logger.finer("Firmware version = " + infosetup[4]);
-					Base.logger.finer("Build version = " + infosetup[5]);
-					Base.logger.finer("Extruder = " + infosetup[6]);
-					Base.logger.finer("Speed = " + infosetup[7]);
-					Base.logger.finer("Z PITCH = " + infosetup[8]);
-				}
-				
-				boolean active = !buffer.isEmpty();
-				flushBuffer();
-
-				if (isInitialized()) {
-					sendInitializationGcode(false);
-
-					// If there were outstanding commands try to abort any print in progress.
-					// This is a poor test:  but do we know if we're printing at this level?
-					// tried setInitialized(false); but that didn't work well
-					if (active) {
-						Base.logger.severe("Firmware reset with active commands!");
-						setError("Firmware reset with active commands!");
-					}
-				}
-				if (okAfterStart) {
-					// firmware sends "ok" after start, put something here to consume it:
-					bufferLock.lock();
-					buffer.addLast(";start-ok");
-					bufferLock.unlock();
-				}
-				
-				// todo: set version
-				synchronized (startReceived) {
-					startReceived.set(true);
-					startReceived.notifyAll();
-				}
-
-				// Wake up connect task to try again
-				synchronized (okReceived) {
-					okReceived.set(false);
-					okReceived.notifyAll();
-				}
-
-			} else if (line.startsWith("extruder fail")) {
-				setError("Extruder failed:  cannot extrude as this rate.");
-
-			} else if (line.startsWith("resend")||line.startsWith("rs ")) {
-				// Bad checksum, resend requested
-				Matcher badLineMatch = resendLinePattern.matcher(line);
-
-				// Is it a Dud M or G code?
-				String dudLetter = getRegexMatch("dud ([a-z]) code", line, 1);
-
-				if (badLineMatch.find())
-				{
-					int badLineNumber = Integer.parseInt(
-							badLineMatch.group(1) );
-					if(debugLevel > 1)
-						Base.logger.warning("Received resend request for line " + badLineNumber);
-
-					Queue<String> resend = new LinkedList<String>();
-					boolean found = false;
-					// Search backwards for the bad line in our buffer.
-					// Firmware flushed everything after this line, so
-					// build a queue of lines to resend.
-					bufferLock.lock();
-					lineSearch: while (!buffer.isEmpty())
-					{
-						String bufferedLine = buffer.removeLast();
-						if(debugLevel > 1)
-							Base.logger.info("Searching: " + bufferedLine);
-						int bufferedLineNumber = Integer.parseInt( getRegexMatch(
-								gcodeLineNumberPattern, bufferedLine.toLowerCase(), 1) );
-						if (dudLetter != null && bufferedLineNumber == badLineNumber) {
-							Base.logger.info("Dud "+dudLetter+" code: Dropping " + bufferedLine);
-							synchronized (bufferedLine) {
-								bufferedLine.notifyAll();
-							}
-							found = true;
-							break lineSearch;
-						}
-						resend.add(bufferedLine);
-						if (bufferedLineNumber == badLineNumber) {
-							found = true;
-							break lineSearch;
-						}
-					}
-					if (okAfterResend) {
-						// firmware sends "ok" after resend, put something here to consume it:
-						buffer.addLast(";resend-ok");
-					}
-					bufferLock.unlock();
-
-					if (!found) {
-						int restartLineNumber = Integer.parseInt( getRegexMatch(
-								gcodeLineNumberPattern, resend.element().toLowerCase(), 1) );
-						Base.logger.severe("resend for line " + badLineNumber + " not in our buffer.  Resuming from " + restartLineNumber);
-						this.resendCommand(applyChecksum("N"+(restartLineNumber-1)+" M110"));
-					}
-					// resend the lines
-					while (!resend.isEmpty())
-					{
-						String bufferedLine = resend.remove();
-						this.resendCommand(bufferedLine);
-					}
-				}
-				else
-				{
-					// Malformed resend line request received. Resetting the line number
-					Base.logger.warning("malformed line resend request, "
-							+"resetting line number. Malformed Data: \n"+line);
-					this.resendCommand(applyChecksum("N"+(lineNumber.get()-1)+" M110"));
-				}
-
-			} else if (line.startsWith("t:") || line.startsWith("c:")) {
-				// temperature, position handled above
+		}
+		else if (line.contains("firmware_name"))
+		{
+			Pattern p = Pattern.compile("firmware_name:([0-9a-z.]{0,}).*firmware_url:([\\S.]{0,}.*).*protocol_version:([0-9]{0,}).([0-9]{0,}).*machine_type:([a-z]{0,}).*extruder_count:([0-9]{0,})");
+			Matcher m = p.matcher(line);
+			m.find();
+			Base.logger.fine("Detecting firmware!");
+			//Assume we got an answer to M115, lets see what we got:
+			if (m.group(1).startsWith("marlin"))
+			{
+				Base.logger.fine("setting marlin");
+				setFirmwareName("Marlin");
+			}
+			else
+			{
+				setFirmwareName("Unknown");
 			}
-			else{
-				//Check for unknown lines, this means baudrate is off!
-				Pattern p = Pattern.compile("[^\\x20-\\x7E].*");
-				Matcher m = p.matcher(line);
-				if (version.equals(new Version(0,0)) && m.find())
+			if (m.group(2).contains("ultimaker") || m.group(5).contains("ultimaker"))
+			{
+				//We got an ultimaker, hurray!
+			}
+			else
+			{
+				Base.logger.warning("Could not detect Ultimaker firmware.");
+			}
+			version = new Version(Integer.parseInt(m.group(3)),Integer.parseInt(m.group(4)));
+			//infosetup[5] = extruder amount!
+			if (version.atLeast(minimumVersion))
+			{
+				if (version.compareTo(preferredVersion) == 1)
 				{
-					Base.logger.severe("Wrong baud rate or faulty firmware detected.");
-					Base.logger.severe("Please select the right machine Driver and try again.");
-					this.uninitialize();
-					throw new BadFirmwareVersionException(version,preferredVersion);
+					//We are running an unsupported version
+					Base.logger.warning("You are running an unsupported firmware version!");
 				}
-				Base.logger.severe("Unknown: " + line);
+			}
+			else
+			{
+				this.uninitialize();
+				throw new BadFirmwareVersionException(version,preferredVersion);
 			}
 		}
-
-		readResponseLock.unlock();
+		else if (line.startsWith("extruder fail")) {
+			setError("Extruder failed:  cannot extrude as this rate.");
+		}
+		else{
+			//Check for unknown lines, this means baudrate is off!
+			Matcher m = unprintablePattern.matcher(line);
+			if (version.equals(new Version(0,0)) && m.find())
+			{
+				Base.logger.severe("Wrong baud rate or faulty firmware detected.");
+				Base.logger.severe("Please select the right machine Driver and try again.");
+				this.uninitialize();
+				throw new BadFirmwareVersionException(version,preferredVersion);
+			}
+			Base.logger.severe("Unknown: " + line);
+		}
 	}
 
 	public boolean isFinished() {
@@ -1032,10 +1006,9 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 		bufferLock.lock();
 		while (!buffer.isEmpty())
 		{
-			String notifier = buffer.removeLast();
+			SentLine dead = acknowledge();
 			if(debugLevel > 1)
-				Base.logger.fine("Flushing dead command: " + notifier);
-			synchronized(notifier) { notifier.notifyAll(); }
+				Base.logger.fine("Flushing dead command: " + dead);
 		}
 		bufferLock.unlock();
 	}
@@ -1447,6 +1420,10 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 		return true;
 	}
 
+	boolean isRealtimeControlEnabled() {
+		return realtimeControl;
+	}
+
 	public void enableRealtimeControl(boolean enable) {
 		realtimeControl = enable;
 		Base.logger.info("Realtime Control (RC) is: "+ realtimeControl );
@@ -0,0 +1,366 @@
+package replicatorg.drivers.reprap;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Works out what a line from the RepRap firmware is, and picks the numbers
+ * the driver wants out of it, straight from the bytes in the serial ring.
+ *
+ * Every command gets an "ok", and temperature and position reports come in
+ * several times a second on top, so these lines are classified and their
+ * numbers parsed without making a String of the line. Lines that only turn
+ * up now and then (firmware versions, SD card messages and so on) are
+ * classified as OTHER, and the driver handles those from the String.
+ *
+ * Matching ignores case, and the line is trimmed first, as the driver used to
+ * do with trim().toLowerCase(). The kinds are tested in the order the driver
+ * used to test the lowercased line, so a line is classified as it was before.
+ *
+ * A parser is reused for line after line; the values are only good until the
+ * next call to parse().
+ */
+public class ResponseParser {
+
+	public enum Kind {
+		/** nothing but whitespace */
+		EMPTY,
+		/** "ok", which may carry a temperature (ok t:) or position (ok c:) */
+		OK,
+		/** a temperature report, "t:..." */
+		TEMPERATURE,
+		/** a position report, "c: x:.. y:.. z:.." or "x:.. y:.. z:.." */
+		POSITION,
+		/** "echo..."; anything after "echo:" is for the user */
+		ECHO,
+		/** the firmware has (re)started */
+		START,
+		/** "resend: n" or "rs n", the firmware wants line n again */
+		RESEND,
+		/** "error..." */
+		ERROR,
+		/** anything else; handle it from toString() */
+		OTHER
+	}
+
+	// Powers of ten that are exactly representable as doubles
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	// The trimmed line
+	private byte[] array;
+	private int start;
+	private int end;
+
+	private Kind kind;
+	private double temperature;
+	private double bedTemperature;
+	private double x, y, z, e;
+	private int resendLine;
+	private char dudCode;
+
+	/**
+	 * Classify a line and parse out its values.
+	 * @return what kind of line it is
+	 */
+	public Kind parse(byte[] array, int offset, int length) {
+		this.array = array;
+		start = offset;
+		end = offset + length;
+		while (start < end && (array[start] & 0xff) <= ' ') start++;
+		while (end > start && (array[end - 1] & 0xff) <= ' ') end--;
+
+		temperature = Double.NaN;
+		bedTemperature = Double.NaN;
+		x = y = z = e = Double.NaN;
+		resendLine = -1;
+		dudCode = 0;
+
+		kind = classify();
+		switch (kind) {
+		case OK:
+			if (startsWith("ok t:")) {
+				parseTemperatures(true);
+			} else if (startsWith("ok c:")) {
+				parseCoordinates();
+			}
+			break;
+		case TEMPERATURE:
+			parseTemperatures(false);
+			break;
+		case POSITION:
+			if (startsWith("x:")) {
+				parseAxes();
+			} else {
+				parseCoordinates();
+			}
+			break;
+		case RESEND:
+			parseResend();
+			break;
+		default:
+			break;
+		}
+		return kind;
+	}
+
+	private Kind classify() {
+		if (start == end) return Kind.EMPTY;
+		if (startsWith("ok")) return Kind.OK;
+		if (indexOf("sd", start) != -1) return Kind.OTHER;
+		if (startsWith("marlin")) return Kind.OTHER;
+		if (startsWith("echo")) return Kind.ECHO;
+		if (indexOf("firmware_name", start) != -1) return Kind.OTHER;
+		if (startsWith("x:")) return Kind.POSITION;
+		if (indexOf("start", start) != -1) return Kind.START;
+		if (startsWith("extruder fail")) return Kind.OTHER;
+		if (startsWith("resend") || startsWith("rs ")) return Kind.RESEND;
+		if (startsWith("t:")) return Kind.TEMPERATURE;
+		if (startsWith("c:")) return Kind.POSITION;
+		if (startsWith("error")) return Kind.ERROR;
+		return Kind.OTHER;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/** @return the tool's temperature, or NaN if the line has none */
+	public double getTemperature() {
+		return temperature;
+	}
+
+	/** @return the platform's temperature, or NaN if the line has none */
+	public double getBedTemperature() {
+		return bedTemperature;
+	}
+
+	/** @return the X of a position report, or NaN if it couldn't be read */
+	public double getX() {
+		return x;
+	}
+
+	/** @return the Y of a position report, or NaN if it couldn't be read */
+	public double getY() {
+		return y;
+	}
+
+	/** @return the Z of a position report, or NaN if it couldn't be read */
+	public double getZ() {
+		return z;
+	}
+
+	/** @return the E of an "x:" position report, or NaN if it has none */
+	public double getE() {
+		return e;
+	}
+
+	/** @return true if the line has a whole X, Y and Z */
+	public boolean hasPosition() {
+		return !Double.isNaN(x) && !Double.isNaN(y) && !Double.isNaN(z);
+	}
+
+	/** @return the line number a resend asks for, or -1 if there isn't one */
+	public int getResendLine() {
+		return resendLine;
+	}
+
+	/** @return the letter of a "dud <letter> code" resend, or 0 if it isn't one */
+	public char getDudCode() {
+		return dudCode;
+	}
+
+	/** @return true if the trimmed line starts with the given lowercase text, ignoring case */
+	public boolean startsWith(String prefix) {
+		return regionMatches(start, prefix);
+	}
+
+	/** @return the text after "echo:", or null if the line doesn't start with it */
+	public String getEchoText() {
+		if (!startsWith("echo:")) return null;
+		return decode(start + 5, end);
+	}
+
+	/** @return the trimmed, lowercased line */
+	public String toString() {
+		return decode(start, end).toLowerCase();
+	}
+
+	// t:([0-9.]+), the first one, and for ok lines ^ok.*b:([0-9.]+), the last one
+	private void parseTemperatures(boolean bed) {
+		for (int i = indexOf("t:", start); i != -1; i = indexOf("t:", i + 1)) {
+			int valueEnd = scan(i + 2, false);
+			if (valueEnd > i + 2) {
+				temperature = parseNumber(i + 2, valueEnd);
+				break;
+			}
+		}
+		if (bed) {
+			for (int i = end - 2; i >= start; i--) {
+				if (!regionMatches(i, "b:")) continue;
+				int valueEnd = scan(i + 2, false);
+				if (valueEnd > i + 2) {
+					bedTemperature = parseNumber(i + 2, valueEnd);
+					break;
+				}
+			}
+		}
+	}
+
+	// c: *x:?([-0-9.]+) *y:?([-0-9.]+) *z:?([-0-9.]+), the first one
+	private void parseCoordinates() {
+		for (int i = indexOf("c:", start); i != -1; i = indexOf("c:", i + 1)) {
+			int p = i + 2;
+			for (int axis = 0; axis < 3; axis++) {
+				while (p < end && array[p] == ' ') p++;
+				if (p == end || lower(array[p]) != "xyz".charAt(axis)) break;
+				p++;
+				if (p < end && array[p] == ':') p++;
+				int valueEnd = scan(p, true);
+				if (valueEnd == p) break;
+				double value = parseNumber(p, valueEnd);
+				switch (axis) {
+				case 0: x = value; break;
+				case 1: y = value; break;
+				case 2: z = value; return;
+				}
+				p = valueEnd;
+			}
+			x = y = z = Double.NaN;
+		}
+	}
+
+	// The fields between "[a-z]:"s, as line.split("[a-z]:") gave them. If X, Y
+	// or Z is missing or isn't a number, the position is unreadable
+	private void parseAxes() {
+		int field = 0;
+		int fieldStart = -1;
+		for (int i = start; i <= end && field <= 4; i++) {
+			boolean separator = i + 1 < end && array[i + 1] == ':'
+					&& lower(array[i]) >= 'a' && lower(array[i]) <= 'z';
+			if (!separator && i < end) continue;
+			if (fieldStart != -1) {
+				double value = parseField(fieldStart, i);
+				switch (field) {
+				case 1: x = value; break;
+				case 2: y = value; break;
+				case 3: z = value; break;
+				case 4: e = value; break;
+				}
+			}
+			field++;
+			fieldStart = i + 2;
+			i++;
+		}
+		if (!hasPosition()) {
+			x = y = z = Double.NaN;
+		}
+	}
+
+	// resend: the first run of digits, and "dud ([a-z]) code"
+	private void parseResend() {
+		for (int i = start; i < end; i++) {
+			if (isDigit(array[i])) {
+				long n = 0;
+				while (i < end && isDigit(array[i]) && n <= Integer.MAX_VALUE) {
+					n = n * 10 + (array[i++] - '0');
+				}
+				if (n <= Integer.MAX_VALUE) {
+					resendLine = (int)n;
+				}
+				break;
+			}
+		}
+		for (int i = indexOf("dud ", start); i != -1 && i + 4 < end; i = indexOf("dud ", i + 1)) {
+			int c = lower(array[i + 4]);
+			if (c >= 'a' && c <= 'z' && regionMatches(i + 5, " code")) {
+				dudCode = (char)c;
+				break;
+			}
+		}
+	}
+
+	private double parseField(int from, int to) {
+		while (from < to && (array[from] & 0xff) <= ' ') from++;
+		while (to > from && (array[to - 1] & 0xff) <= ' ') to--;
+		if (from == to) return Double.NaN;
+		return parseNumber(from, to);
+	}
+
+	/**
+	 * @return the end of the run of [0-9.] (or [-0-9.] if signed) starting at i
+	 */
+	private int scan(int i, boolean signed) {
+		while (i < end) {
+			byte b = array[i];
+			if (!isDigit(b) && b != '.' && !(signed && b == '-')) break;
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Parse a plain decimal inline; anything else goes to Double.parseDouble().
+	 * @return the value, or NaN if it isn't a number
+	 */
+	private double parseNumber(int from, int to) {
+		int i = from;
+		boolean negative = array[i] == '-';
+		if (negative) i++;
+		long mantissa = 0;
+		int digits = 0;
+		int fraction = -1;
+		for (; i < to; i++) {
+			byte b = array[i];
+			if (b == '.' && fraction == -1) {
+				fraction = 0;
+			} else if (isDigit(b) && mantissa < (1L << 53) / 10) {
+				mantissa = mantissa * 10 + (b - '0');
+				digits++;
+				if (fraction != -1) fraction++;
+			} else {
+				break;
+			}
+		}
+		if (i == to && digits > 0 && fraction < POW10.length) {
+			double value = fraction > 0 ? mantissa / POW10[fraction] : mantissa;
+			return negative ? -value : value;
+		}
+		try {
+			return Double.parseDouble(decode(from, to));
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	private int indexOf(String text, int from) {
+		for (int i = from; i + text.length() <= end; i++) {
+			if (regionMatches(i, text)) return i;
+		}
+		return -1;
+	}
+
+	private boolean regionMatches(int at, String text) {
+		if (at + text.length() > end) return false;
+		for (int i = 0; i < text.length(); i++) {
+			if (lower(array[at + i]) != text.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private String decode(int from, int to) {
+		try {
+			return new String(array, from, to - from, "US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static int lower(byte b) {
+		return (b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : b & 0xff;
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+}
@@ -0,0 +1,555 @@
+package replicatorg.machine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.RandomAccess;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.app.gcode.GCodeEnumeration;
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.estimation.AcceleratedMotionModel;
+import replicatorg.drivers.estimation.AccelerationSettings;
+import replicatorg.drivers.estimation.LayerTimes;
+import replicatorg.machine.model.AxisId;
+import replicatorg.machine.model.Endstops;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.util.Point5d;
+
+/**
+ * Runs the safety check and the build time estimate over a GCodeSource before a
+ * build, in a single pass that is split into chunks and run in parallel.
+ *
+ * The safety check looks at each line on its own, so each chunk is checked
+ * independently and the messages are merged in file order.
+ *
+ * The estimate depends on state carried from line to line: the position,
+ * feedrate, units, tool, offsets and absolute/relative mode. The first chunk
+ * starts from the same state as the serial estimate. Every other chunk is
+ * estimated speculatively from that same starting state, taking a snapshot of
+ * its state every few hundred lines. When the chunks are merged, each one is
+ * re-run from the state its predecessor really ended in, until that state
+ * matches one of its snapshots; from there on the speculative results are used.
+ * GCode that never matches (relative moves throughout, say) is estimated
+ * serially by the re-run.
+ *
+ * Move times are added up in file order, so the messages and the build time
+ * are exactly those of a serial safety check and estimate.
+ *
+ * An accelerated motion model carries a planner buffer from move to move, which
+ * the snapshots don't cover, so with one the estimate is run serially over the
+ * whole file while the safety check still runs in parallel.
+ */
+class BuildPrecheck {
+	// Files shorter than this aren't worth splitting up
+	private static final int MIN_CHUNK_LINES = 16384;
+
+	// How often a chunk takes a snapshot of its estimate state
+	private static final int CHECKPOINT_LINES = 256;
+
+	private final MachineModel model;
+	private final boolean checkSafety;
+	private final boolean estimate;
+	private final AccelerationSettings acceleration;
+
+	private final int nToolheads;
+	private final Point5d maxRates;
+
+	private List<String> lines;
+
+	private double buildTime = 0.0;
+	private final LayerTimes layerTimes = new LayerTimes();
+	private RuntimeException estimateFailure = null;
+
+	/**
+	 * @param model the machine to check against; each estimate runs on a copy
+	 * @param checkSafety true to run the safety check
+	 * @param estimate true to estimate the build time
+	 * @param acceleration how the machine accelerates, or null to estimate
+	 * moves at a constant feedrate
+	 */
+	BuildPrecheck(MachineModel model, boolean checkSafety, boolean estimate,
+			AccelerationSettings acceleration) {
+		this.model = model;
+		this.checkSafety = checkSafety;
+		this.estimate = estimate;
+		this.acceleration = acceleration;
+		nToolheads = model.getTools().size();
+		maxRates = model.getMaximumFeedrates();
+	}
+
+	/**
+	 * Check and/or estimate the given source.
+	 * @param messages gets a message for each problem found, mapped to the line it
+	 * last occurred on. May be null if we aren't running the safety check.
+	 */
+	void run(GCodeSource source, Map<String, Integer> messages) {
+		lines = source.asList();
+		if (!(lines instanceof RandomAccess)) {
+			lines = new ArrayList<String>(lines);
+		}
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		int nChunks = Math.min(lines.size() / MIN_CHUNK_LINES, threads * 4);
+
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		if (threads < 2 || nChunks < 2) {
+			chunks.add(new Chunk(0, lines.size()));
+			chunks.get(0).call();
+			merge(chunks, messages);
+			return;
+		}
+
+		int chunkSize = (lines.size() + nChunks - 1) / nChunks;
+		for (int start = 0; start < lines.size(); start += chunkSize) {
+			chunks.add(new Chunk(start, Math.min(start + chunkSize, lines.size())));
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+			for (Chunk chunk : chunks) {
+				futures.add(pool.submit(chunk));
+			}
+			for (Future<Chunk> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while checking gcode", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		merge(chunks, messages);
+	}
+
+	/**
+	 * @return the estimated build time, in milliseconds
+	 * @throws RuntimeException whatever the estimate failed with, as a serial
+	 * estimate would have
+	 */
+	double getBuildTime() {
+		if (estimateFailure != null) {
+			throw estimateFailure;
+		}
+		return buildTime;
+	}
+
+	/**
+	 * @return the estimated time at each height, in ms
+	 * @throws RuntimeException whatever the estimate failed with
+	 */
+	SortedMap<Double, Double> getLayerTimes() {
+		if (estimateFailure != null) {
+			throw estimateFailure;
+		}
+		return layerTimes.getTimes();
+	}
+
+	private void merge(List<Chunk> chunks, Map<String, Integer> messages) {
+		if (checkSafety) {
+			int lineNumber = 0;
+			for (Chunk chunk : chunks) {
+				for (Message message : chunk.messages) {
+					messages.put(message.text, lineNumber + message.lineNumber);
+					if (message.level != null) {
+						Base.logger.log(message.level, message.text);
+					}
+				}
+				lineNumber += chunk.lineNumber;
+				if (!chunk.checking) {
+					break; //TRICKY: see footnote [1]
+				}
+			}
+		}
+
+		if (estimate) {
+			try {
+				Estimate current = new Estimate();
+				for (Chunk chunk : chunks) {
+					current = rerun(chunk, current);
+				}
+				int from = current.estimator.count;
+				current.estimator.finishMoves();
+				addTimes(current.estimator, from);
+			} catch (RuntimeException e) {
+				estimateFailure = e;
+			}
+		}
+	}
+
+	/**
+	 * Carry the estimate on through a chunk until we reach one of its snapshots with
+	 * the same state, and add its move times to the build time.
+	 * @param rerun the estimate as of the end of the previous chunk
+	 * @return the estimate as of the end of this chunk
+	 */
+	private Estimate rerun(Chunk chunk, Estimate rerun) {
+		int from = rerun.estimator.count;
+		GCodeCommand gcode = new GCodeCommand();
+
+		int next = 0;
+		for (int i = chunk.start; ; i++) {
+			while (next < chunk.checkpoints.size() && chunk.checkpoints.get(next).line < i) {
+				next++;
+			}
+			if (next < chunk.checkpoints.size() && chunk.checkpoints.get(next).line == i) {
+				Checkpoint checkpoint = chunk.checkpoints.get(next);
+				if (Arrays.equals(rerun.getState(), checkpoint.state)) {
+					// The rest of the chunk will go just as it did the first time.
+					addTimes(rerun.estimator, from);
+					addTimes(chunk.speculative.estimator, checkpoint.times);
+					if (chunk.failure != null) {
+						throw chunk.failure;
+					}
+					return chunk.speculative;
+				}
+			}
+			if (i == chunk.end) {
+				addTimes(rerun.estimator, from);
+				return rerun;
+			}
+			rerun.run(gcode.parse(lines.get(i)));
+		}
+	}
+
+	private void addTimes(TimingEstimator estimator, int from) {
+		for (int i = from; i < estimator.count; i++) {
+			buildTime = buildTime + estimator.times[i];
+			layerTimes.add(estimator.times[i], estimator.heights[i]);
+		}
+	}
+
+	private static class Message {
+		final String text;
+		final int lineNumber;
+		// null if the message isn't logged
+		final Level level;
+
+		Message(String text, int lineNumber, Level level) {
+			this.text = text;
+			this.lineNumber = lineNumber;
+			this.level = level;
+		}
+	}
+
+	private static class Checkpoint {
+		// The line this snapshot was taken before
+		final int line;
+		final double[] state;
+		// How many move times had been recorded
+		final int times;
+
+		Checkpoint(int line, double[] state, int times) {
+			this.line = line;
+			this.state = state;
+			this.times = times;
+		}
+	}
+
+	/**
+	 * Checks and estimates one run of lines.
+	 */
+	private class Chunk implements Callable<Chunk> {
+		final int start;
+		final int end;
+
+		// Safety check results, numbered from the start of the chunk
+		final List<Message> messages = new ArrayList<Message>();
+		int lineNumber = 0;
+		// False once we've stopped checking
+		boolean checking = checkSafety;
+
+		// Estimate results
+		final Estimate speculative = new Estimate();
+		final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+		RuntimeException failure = null;
+
+		Chunk(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		public Chunk call() {
+			GCodeCommand gcode = new GCodeCommand();
+			if (start > 0) {
+				// Generated gcode sets absolute mode once at the top, so that's the best guess
+				// for where we're starting from.
+				speculative.parser.setAbsoluteMode(true);
+			}
+			// Only a stateless motion model can be estimated from a guessed state
+			boolean estimating = estimate && (start == 0 || acceleration == null);
+
+			for (int i = start; i < end && (checking || estimating); i++) {
+				String line = lines.get(i);
+				RuntimeException parseError = null;
+				try {
+					gcode.parse(line);
+				} catch (RuntimeException e) {
+					parseError = e;
+				}
+
+				if (checking) {
+					checking = check(line, gcode, parseError == null);
+				}
+
+				if (estimating) {
+					if ((i - start) % CHECKPOINT_LINES == 0) {
+						checkpoints.add(new Checkpoint(i, speculative.getState(), speculative.estimator.count));
+					}
+					try {
+						if (parseError != null) {
+							throw parseError;
+						}
+						speculative.run(gcode);
+					} catch (RuntimeException e) {
+						// Might just be a bad guess at the state; the merge will tell.
+						failure = e;
+						estimating = false;
+					}
+				}
+			}
+			return this;
+		}
+
+		private void report(String message, Level level) {
+			messages.add(new Message(message, lineNumber, level));
+		}
+
+		/**
+		 * Safety check a line.
+		 * @return false if we should stop checking
+		 */
+		private boolean check(String line, GCodeCommand gcode, boolean parsed) {
+			String message, cmd, mainCode;
+
+			if (!parsed) {
+				report("ReplicatorG can't parse '" + line +"'", Level.SEVERE);
+				return true;
+			}
+
+			cmd = gcode.getCommand();
+			if(cmd.split(" ").length < 1) return true; //to avoid null index problems
+
+			mainCode = cmd.split(" ")[0];
+
+			if(!("").equals(mainCode) && GCodeEnumeration.getGCode(mainCode) == null)
+			{
+				report("ReplicatorG doesn't recognize GCode '" + line +"'", Level.SEVERE);
+			}
+
+			// Check for homing in the wrong direction
+			if(!homingDirectionIsSafe(gcode))
+			{
+				report("Homing in the wrong direction for selected machine: '" + line +"'", Level.SEVERE);
+			}
+
+			// we're going to check for the correct number of toolheads in each command
+			// the list of exceptions keeps growing, do we really need to do this check?
+			// maybe we should just specify the things to check, rather than the reverse
+			if(gcode.getCodeValue('T') > nToolheads-1 && gcode.getCodeValue('M') != 109
+													   && gcode.getCodeValue('M') != 106
+													   && gcode.getCodeValue('M') != 107)
+			{
+				message = "Toolheads index error! You don't have a toolhead numbered " + gcode.getCodeValue('T');
+				report(message, null);
+				message = "Only the first Toolhead index error is logged. Please regenrate your GCode or manually check your gcode to correct.";
+				report(message, Level.SEVERE);
+				return false; //TRICKY: see footnote [1]
+			}
+			if(gcode.hasCode('F'))
+			{
+				double fVal = gcode.getCodeValue('F');
+				if( (gcode.hasCode('X') && fVal > maxRates.x()) ||
+					(gcode.hasCode('Y') && fVal > maxRates.y()) ||
+// we're going to ignore this for now, since most of the time the z isn't actually moving
+//					(gcLine.hasCode('Z') && fVal > maxRates.z()) ||
+					(gcode.hasCode('A') && fVal > maxRates.a()) ||
+					(gcode.hasCode('B') && fVal > maxRates.b()))
+				{
+					report("You're moving too fast! " + line +
+							 " turns at least one axis faster than it's max speed.", Level.WARNING);
+				}
+				//BUGFIX! Can cause problems when used on reprap machines!
+				if (fVal < 0)
+				{
+					report("Negative feedrate detected! '" + line +
+							 "' causes crashes in the reprap driver.", Level.SEVERE);
+				}
+			}
+
+			lineNumber++;
+			return true;
+		}
+	}
+	//footnote [1]:
+	/// Because this error can be thrown thousands of times in a file, and is generally a 'all wrong, or all right' error,
+	// we shortcut return on the first instance of a toolhead count error.  This avoids long timeouts before displaying errors, and avoids (literally) hundreds to
+	// thousands of exactly the same error
+
+	private boolean homingDirectionIsSafe(GCodeCommand gcode) {
+		Endstops xstop, ystop, zstop;
+
+		// If it doesn't have the code, ignore it
+		xstop = ystop = zstop = Endstops.BOTH;
+
+		if(gcode.hasCode('X'))
+			xstop = model.getEndstops(AxisId.X);
+		if(gcode.hasCode('Y'))
+			ystop = model.getEndstops(AxisId.Y);
+		if(gcode.hasCode('Z'))
+			zstop = model.getEndstops(AxisId.Z);
+
+		if(gcode.getCodeValue('G') == 161)
+		{
+			if((xstop != Endstops.MIN) && (xstop != Endstops.BOTH))
+				return false;
+			if((ystop != Endstops.MIN) && (ystop != Endstops.BOTH))
+				return false;
+			if((zstop != Endstops.MIN) && (zstop != Endstops.BOTH))
+				return false;
+		}
+		else if(gcode.getCodeValue('G') == 162)
+		{
+			if((xstop != Endstops.MAX) && (xstop != Endstops.BOTH))
+				return false;
+			if((ystop != Endstops.MAX) && (ystop != Endstops.BOTH))
+				return false;
+			if((zstop != Endstops.MAX) && (zstop != Endstops.BOTH))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A parser and estimator pair, whose state can be read.
+	 */
+	private class Estimate {
+		final TimingEstimator estimator = new TimingEstimator();
+		final StateParser parser = new StateParser();
+		final Queue<DriverCommand> queue = new LinkedList<DriverCommand>();
+
+		// Made on the thread that runs the precheck, since the chunks can't share
+		// the live model: running a command changes it (selecting a tool, say).
+		Estimate() {
+			estimator.setMachine(model.copy());
+			if (acceleration != null) {
+				estimator.setMotionModel(new AcceleratedMotionModel(acceleration));
+			}
+			parser.init(estimator);
+		}
+
+		void run(GCodeCommand gcode) {
+			// TODO: Hooks for plugins to add estimated time?
+			parser.parse(gcode, queue);
+
+			for (DriverCommand command : queue) {
+				try {
+					command.run(estimator);
+				} catch (RetryException r) {
+					// Ignore.
+				} catch (StopException e) {
+					// TODO: Should we stop the estimator when we get a stop???
+				}
+			}
+			queue.clear();
+		}
+
+		/**
+		 * @return everything the estimate of the following lines depends on
+		 */
+		double[] getState() {
+			double[] state = new double[STATE_SIZE];
+			parser.getState(state);
+			estimator.getState(state);
+			return state;
+		}
+	}
+
+	// Layout of an estimate state: the parser's, then the estimator's
+	private static final int PARSER_STATE = 0;
+	private static final int ESTIMATOR_STATE = PARSER_STATE + 6;
+	private static final int STATE_SIZE = ESTIMATOR_STATE + 1 + 5 + 1 + 7 * 3;
+
+	private static class StateParser extends GCodeParser {
+		void setAbsoluteMode(boolean absolute) {
+			absoluteMode = absolute;
+		}
+
+		void getState(double[] state) {
+			int i = PARSER_STATE;
+			state[i++] = absoluteMode ? 1 : 0;
+			state[i++] = feedrate;
+			state[i++] = tool;
+			state[i++] = units;
+			state[i++] = curveSection;
+			// Which of the driver's offsets we're using
+			int offset = -1;
+			for (int j = 0; j < 7; j++) {
+				if (currentOffset == driver.getOffset(j)) {
+					offset = j;
+				}
+			}
+			state[i++] = offset;
+		}
+	}
+
+	/**
+	 * An estimation driver that keeps each time it adds, so they can be added up in order later.
+	 */
+	private static class TimingEstimator extends EstimationDriver {
+		double[] times = new double[1024];
+		double[] heights = new double[1024];
+		int count = 0;
+
+		@Override
+		protected void addTime(double millis, double z) {
+			super.addTime(millis, z);
+			if (count == times.length) {
+				times = Arrays.copyOf(times, count * 2);
+				heights = Arrays.copyOf(heights, count * 2);
+			}
+			times[count] = millis;
+			heights[count] = z;
+			count++;
+		}
+
+		void getState(double[] state) {
+			int i = ESTIMATOR_STATE;
+			Point5d position = currentPosition.get();
+			state[i++] = position == null ? 0 : 1;
+			for (int j = 0; j < 5; j++) {
+				state[i++] = position == null ? 0 : position.get(j);
+			}
+			state[i++] = getCurrentFeedrate();
+			for (Point3d offset : offsets) {
+				state[i++] = offset.x;
+				state[i++] = offset.y;
+				state[i++] = offset.z;
+			}
+		}
+	}
+}
@@ -25,11 +25,11 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
@@ -48,24 +48,23 @@ import net.miginfocom.swing.MigLayout;
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
-import replicatorg.app.gcode.GCodeCommand;
-import replicatorg.app.gcode.GCodeEnumeration;
-import replicatorg.app.gcode.GCodeParser;
+import replicatorg.app.gcode.CompiledGCode;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.OnboardParameters;
 import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SimulationDriver;
 import replicatorg.drivers.StopException;
 import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.estimation.AcceleratedMotionModel;
+import replicatorg.drivers.estimation.AccelerationSettings;
 import replicatorg.machine.MachineState.State;
-import replicatorg.machine.model.AxisId;
-import replicatorg.machine.model.Endstops;
 import replicatorg.machine.model.MachineModel;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolModel;
 import replicatorg.model.GCodeSource;
-import replicatorg.util.Point5d;
+import replicatorg.model.MappedGCodeSource;
 
 /**
  * The MachineController object controls a single machine. It contains a single
@@ -205,11 +204,22 @@ public class Machine implements MachineInterface {
 				
 				Base.logger.info("Estimating build time and scanning code for errors...");
 				
+				boolean useCommandCache = Base.preferences.getBoolean("build.commandCache", false)
+						&& source instanceof MappedGCodeSource;
+				BuildPrecheck precheck = null;
+
 				if(Base.preferences.getBoolean("build.safetyChecks", true))
 				{
 					emitStateChange(new MachineState(State.BUILDING), "Running safety checks...");
 					
-					safetyCheck(source, messages);
+					if (useCommandCache) {
+						safetyCheck(source, messages);
+					} else {
+						// We'll be estimating this same source, so do both in one pass.
+						precheck = new BuildPrecheck(machineThread.getModel(), true, true,
+								getAccelerationSettings());
+						precheck.run(source, messages);
+					}
 
 					if(! messages.isEmpty())
 					{
@@ -306,14 +316,29 @@ public class Machine implements MachineInterface {
 
 				if(!cancelled)
 				{
+					GCodeSource buildSource = source;
+					if (useCommandCache) {
+						// Parse the whole job once, or reuse the last time we did.
+						emitStateChange(new MachineState(State.BUILDING), "Compiling GCode...");
+						CompiledGCode compiled = CompiledGCode.load(machineThread.buildGCodeJob(source),
+								((MappedGCodeSource)source).getFile(), getDriverQueryInterface());
+						if (compiled != null) {
+							buildSource = compiled;
+						}
+					}
+
 					// estimate build time.
-					emitStateChange(new MachineState(State.BUILDING), "Estimating time to completion...");
-					estimate(source);
+					if (precheck != null) {
+						setEstimatedBuildTime(precheck.getBuildTime(), precheck.getLayerTimes());
+					} else {
+						emitStateChange(new MachineState(State.BUILDING), "Estimating time to completion...");
+						estimate(buildSource);
+					}
 					
 					// do that build!
 					Base.logger.info("Beginning build.");
 	
-					machineThread.scheduleRequest(new MachineCommand(RequestType.BUILD_DIRECT, source, null));
+					machineThread.scheduleRequest(new MachineCommand(RequestType.BUILD_DIRECT, buildSource, null));
 				}
 			}
 			
@@ -342,138 +367,7 @@ public class Machine implements MachineInterface {
 
 	public void safetyCheck(GCodeSource source, Map<String, Integer> messages)
 	{
-		int nToolheads = machineThread.getModel().getTools().size();
-		Point5d maxRates = machineThread.getModel().getMaximumFeedrates();
-		
-//		BuildVolume buildVolume = new BuildVolume();
-//		buildVolume.setX(machineThread.getModel().getBuildVolume().getX()/2);
-//		buildVolume.setY(machineThread.getModel().getBuildVolume().getY()/2);
-//		buildVolume.setZ(machineThread.getModel().getBuildVolume().getZ()/2);
-		
-		GCodeCommand gcode;
-		String message, cmd, mainCode;
-		Integer lineNumber = 0;
-		
-		for(String line : source)
-		{
-			try
-			{
-				gcode = new GCodeCommand(line);
-			} //Catching every kind of exception is generally bad form,
-			//  It can hide where the problem is happening, and should be avoided
-			//  But I'm doing it anyway.
-			catch(Exception e)
-			{
-				message = "ReplicatorG can't parse '" + line +"'";
-
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-				continue;
-			}
-
-			cmd = gcode.getCommand();
-			if(cmd.split(" ").length < 1) continue; //to avoid null index problems
-			
-			mainCode = cmd.split(" ")[0];
-
-			if(!("").equals(mainCode) && GCodeEnumeration.getGCode(mainCode) == null)
-			{
-				message = "ReplicatorG doesn't recognize GCode '" + line +"'";
-
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-			}
-			
-			// Check for homing in the wrong direction
-			if(!homingDirectionIsSafe(gcode))
-			{
-				message = "Homing in the wrong direction for selected machine: '" + line +"'";
-
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-			}
-
-			// we're going to check for the correct number of toolheads in each command
-			// the list of exceptions keeps growing, do we really need to do this check?
-			// maybe we should just specify the things to check, rather than the reverse
-			if(gcode.getCodeValue('T') > nToolheads-1 && gcode.getCodeValue('M') != 109
-													   && gcode.getCodeValue('M') != 106
-													   && gcode.getCodeValue('M') != 107)
-			{
-				message = "Toolheads index error! You don't have a toolhead numbered " + gcode.getCodeValue('T');
-				messages.put(message, lineNumber);
-				message = "Only the first Toolhead index error is logged. Please regenrate your GCode or manually check your gcode to correct.";
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-				return; //TRICKY: see footnote [1]
-			}
-			if(gcode.hasCode('F'))
-			{
-				double fVal = gcode.getCodeValue('F');
-				if( (gcode.hasCode('X') && fVal > maxRates.x()) ||
-					(gcode.hasCode('Y') && fVal > maxRates.y()) ||
-// we're going to ignore this for now, since most of the time the z isn't actually moving 
-//					(gcLine.hasCode('Z') && fVal > maxRates.z()) ||  
-					(gcode.hasCode('A') && fVal > maxRates.a()) ||
-					(gcode.hasCode('B') && fVal > maxRates.b()))
-				{
-					message = "You're moving too fast! " + line +
-							 " turns at least one axis faster than it's max speed.";
-
-					messages.put(message, lineNumber);
-					Base.logger.log(Level.WARNING, message);
-				}
-				//BUGFIX! Can cause problems when used on reprap machines!
-				if (fVal < 0)
-				{
-					message = "Negative feedrate detected! '" + line +
-							 "' causes crashes in the reprap driver.";
-
-					messages.put(message, lineNumber);
-					Base.logger.log(Level.SEVERE, message);
-				}
-			}
-			
-			lineNumber++;
-		}
-	}
-	//footnote [1]:
-	/// Because this error can be thrown thousands of times in a file, and is generally a 'all wrong, or all right' error,
-	// we shortcut return on the first instance of a toolhead count error.  This avoids long timeouts before displaying errors, and avoids (literally) hundreds to 
-	// thousands of exactly the same error
-	
-	private boolean homingDirectionIsSafe(GCodeCommand gcode) {
-		Endstops xstop, ystop, zstop;
-		
-		// If it doesn't have the code, ignore it
-		xstop = ystop = zstop = Endstops.BOTH;
-		
-		if(gcode.hasCode('X'))
-			xstop = machineThread.getModel().getEndstops(AxisId.X);
-		if(gcode.hasCode('Y'))
-			ystop = machineThread.getModel().getEndstops(AxisId.Y);
-		if(gcode.hasCode('Z'))
-			zstop = machineThread.getModel().getEndstops(AxisId.Z);
-		
-		if(gcode.getCodeValue('G') == 161)
-		{
-			if((xstop != Endstops.MIN) && (xstop != Endstops.BOTH))
-				return false;
-			if((ystop != Endstops.MIN) && (ystop != Endstops.BOTH))
-				return false;
-			if((zstop != Endstops.MIN) && (zstop != Endstops.BOTH))
-				return false;
-		}
-		else if(gcode.getCodeValue('G') == 162)
-		{
-			if((xstop != Endstops.MAX) && (xstop != Endstops.BOTH))
-				return false;
-			if((ystop != Endstops.MAX) && (ystop != Endstops.BOTH))
-				return false;
-			if((zstop != Endstops.MAX) && (zstop != Endstops.BOTH))
-				return false;
-		}
-		return true;
+		new BuildPrecheck(machineThread.getModel(), true, false, null).run(source, messages);
 	}
 	
 	// TODO: Spawn a new thread to handle this for us?
@@ -482,30 +376,44 @@ public class Machine implements MachineInterface {
 			return;
 		}
 
-		EstimationDriver estimator = new EstimationDriver();
-		// TODO: Is this correct?
-		estimator.setMachine(machineThread.getModel());
-		
-		Queue<DriverCommand> estimatorQueue = new LinkedList<DriverCommand>();
+		AccelerationSettings acceleration = getAccelerationSettings();
 
-		GCodeParser estimatorParser = new GCodeParser();
-		estimatorParser.init(estimator);
+		double buildTime;
+		SortedMap<Double, Double> layerTimes;
+		if (source instanceof CompiledGCode) {
+			EstimationDriver estimator = new EstimationDriver();
+			// TODO: Is this correct?
+			estimator.setMachine(machineThread.getModel());
+			if (acceleration != null) {
+				estimator.setMotionModel(new AcceleratedMotionModel(acceleration));
+			}
 
-		// run each line through the estimator
-		for (String line : source) {
-			// TODO: Hooks for plugins to add estimated time?
-			estimatorParser.parse(line, estimatorQueue);
-			
-			for (DriverCommand command : estimatorQueue) {
+			// Already parsed; just run the commands.
+			try {
+				CompiledGCode.CommandReader reader = ((CompiledGCode)source).commands();
 				try {
-					command.run(estimator);
-				} catch (RetryException r) {
-					// Ignore.
-				} catch (StopException e) {
-					// TODO: Should we stop the estimator when we get a stop???
+					while (reader.next()) {
+						try {
+							reader.getCommand().run(estimator);
+						} catch (RetryException r) {
+							// Ignore.
+						} catch (StopException e) {
+							// TODO: Should we stop the estimator when we get a stop???
+						}
+					}
+				} finally {
+					reader.close();
 				}
+			} catch (IOException e) {
+				Base.logger.log(Level.WARNING, "Could not read compiled gcode for estimate", e);
 			}
-			estimatorQueue.clear();
+			buildTime = estimator.getBuildTime();
+			layerTimes = estimator.getLayerTimes();
+		} else {
+			BuildPrecheck precheck = new BuildPrecheck(machineThread.getModel(), false, true, acceleration);
+			precheck.run(source, null);
+			buildTime = precheck.getBuildTime();
+			layerTimes = precheck.getLayerTimes();
 		}
 
 		// TODO: Set simulator up properly.
@@ -517,9 +425,42 @@ public class Machine implements MachineInterface {
 		// ((SimulationDriver)driver).setSimulationBounds(estimator.getBounds());
 		// }
 
-		machineThread.setEstimatedBuildTime(estimator.getBuildTime());
+		setEstimatedBuildTime(buildTime, layerTimes);
+	}
+
+	private void setEstimatedBuildTime(double buildTime, SortedMap<Double, Double> layerTimes) {
+		machineThread.setEstimatedBuildTime(buildTime);
 		Base.logger.info("Estimated build time is: " + 
-					EstimationDriver.getBuildTimeString(estimator.getBuildTime()));
+					EstimationDriver.getBuildTimeString(buildTime));
+		if (!layerTimes.isEmpty()) {
+			// One record, so the layers don't interleave with other messages
+			StringBuilder layers = new StringBuilder("Estimated time by layer:");
+			for (Map.Entry<Double, Double> layer : layerTimes.entrySet()) {
+				layers.append("\n  z=" + layer.getKey() + "mm: " +
+						EstimationDriver.getBuildTimeString(layer.getValue(), true));
+			}
+			Base.logger.info(layers.toString());
+		}
+	}
+
+	/**
+	 * Work out how the machine accelerates, for estimating. A connected MightyBoard
+	 * with acceleration turned on is asked for its settings; otherwise we go by the
+	 * machine description.
+	 * @return the acceleration settings, or null if the machine doesn't accelerate
+	 */
+	private AccelerationSettings getAccelerationSettings() {
+		MachineModel model = machineThread.getModel();
+		Driver driver = machineThread.getDriver();
+		if (driver instanceof OnboardParameters && driver.isInitialized()) {
+			OnboardParameters onboard = (OnboardParameters)driver;
+			// Firmware with the Jetty planner keeps its settings elsewhere
+			if (onboard.hasAcceleration() && !onboard.hasJettyAcceleration()
+					&& (onboard.getAccelerationStatus() & 0x01) != 0) {
+				return AccelerationSettings.fromOnboard(onboard, model);
+			}
+		}
+		return AccelerationSettings.fromModel(model);
 	}
 
 	public DriverQueryInterface getDriverQueryInterface() {
@@ -1,101 +1,353 @@
 package replicatorg.machine;
 
-import java.util.Vector;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import replicatorg.app.Base;
+import replicatorg.machine.model.ToolModel;
 
 
 /** Thread that handles callbacks for events from the machine controller.
- * TODO: There /has/ to be a better way of doing this.
+ *
+ * State changes are delivered to every listener, in order. Progress and tool
+ * status only matter as their latest value, so a new progress event replaces
+ * one that hasn't gone out yet, and likewise a tool status event replaces the
+ * one for the same tool. However fast the machine sends them, what is waiting
+ * is one progress event and one event per tool, and a listener that falls
+ * behind gets the latest value, not a backlog.
+ *
+ * The thread sleeps until something is scheduled. A listener can be given a
+ * minimum time between progress and tool status callbacks; whatever comes in
+ * before then is held for it, latest wins, and delivered when the time is up.
+ *
+ * Nothing is reordered around a state change. The progress and tool status
+ * scheduled before it, and anything held for a listener, are delivered to the
+ * listener just before the state change whatever its rate limit, so the final
+ * progress of a build still arrives before the machine goes back to ready.
+ *
+ * schedule() only holds the lock long enough to queue the event; listeners are
+ * called without it, so a slow listener never holds up the machine thread.
  * @author mattmets
  *
  */
 public class MachineCallbackHandler extends Thread {
-	
+
+	// One listener, and what's being held back for it by its rate limit
+	private static class Subscriber {
+		final MachineListener listener;
+		final long intervalNanos;
+		long lastDelivery;
+		MachineProgressEvent progress;
+		final Map<ToolModel, MachineToolStatusEvent> toolStatus =
+			new LinkedHashMap<ToolModel, MachineToolStatusEvent>();
+
+		Subscriber(MachineListener listener, long intervalMillis) {
+			this.listener = listener;
+			this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+			this.lastDelivery = System.nanoTime() - intervalNanos;
+		}
+
+		boolean isHolding() {
+			return progress != null || !toolStatus.isEmpty();
+		}
+
+		void hold(MachineProgressEvent progressBatch, List<MachineToolStatusEvent> toolBatch) {
+			if (progressBatch != null) {
+				progress = progressBatch;
+			}
+			for (MachineToolStatusEvent e : toolBatch) {
+				toolStatus.put(e.getTool(), e);
+			}
+		}
+
+		void deliver(long now) {
+			lastDelivery = now;
+			if (progress != null) {
+				listener.machineProgress(progress);
+				progress = null;
+			}
+			for (MachineToolStatusEvent e : toolStatus.values()) {
+				listener.toolStatusChanged(e);
+			}
+			toolStatus.clear();
+		}
+
+		long dueAt() {
+			return lastDelivery + intervalNanos;
+		}
+	}
+
+	// A state change, and the progress and tool status scheduled before it
+	private static class StateChange {
+		final MachineProgressEvent progress;
+		final List<MachineToolStatusEvent> toolStatus;
+		final MachineStateChangeEvent event;
+
+		StateChange(MachineProgressEvent progress, List<MachineToolStatusEvent> toolStatus,
+				MachineStateChangeEvent event) {
+			this.progress = progress;
+			this.toolStatus = toolStatus;
+			this.event = event;
+		}
+
+		int size() {
+			return 1 + (progress != null ? 1 : 0) + toolStatus.size();
+		}
+	}
+
 	// Send messages to these listeners
-	private Vector<MachineListener> listeners = new Vector<MachineListener>();
-
-	// We have to send these kinds of messages.
-	// TODO: Make this abstract.
-	ConcurrentLinkedQueue<MachineStateChangeEvent> machineStateChangeEventQueue;
-	ConcurrentLinkedQueue<MachineProgressEvent> machineProgressEventQueue;
-	ConcurrentLinkedQueue<MachineToolStatusEvent> machineToolStatusEventQueue;
-	
+	private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition scheduled = lock.newCondition();
+
+	// Waiting to go out; guarded by lock
+	private final Queue<StateChange> stateChanges = new LinkedList<StateChange>();
+	// scheduled since the last state change
+	private MachineProgressEvent progress;
+	private final Map<ToolModel, MachineToolStatusEvent> toolStatus =
+		new LinkedHashMap<ToolModel, MachineToolStatusEvent>();
+	// when the oldest of those was scheduled, or 0 if there are none
+	private long oldestScheduled = 0;
+
+	// Metrics; guarded by lock
+	private long scheduledCount = 0;
+	private long coalescedCount = 0;
+	private long lastLagNanos = 0;
+	private long maxLagNanos = 0;
+	private int maxQueueDepth = 0;
+
 	public MachineCallbackHandler() {
 		super("Machine Callback Handler");
-		
-		machineStateChangeEventQueue = new ConcurrentLinkedQueue<MachineStateChangeEvent>();
-		machineProgressEventQueue = new ConcurrentLinkedQueue<MachineProgressEvent>();
-		machineToolStatusEventQueue = new ConcurrentLinkedQueue<MachineToolStatusEvent>();
-	}
-	
-	private synchronized void sendMessages() {
-		while (!machineStateChangeEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.machineStateChanged(machineStateChangeEventQueue.peek());
+	}
+
+	@Override
+	public void run() {
+		List<StateChange> stateBatch = new ArrayList<StateChange>();
+		List<MachineToolStatusEvent> toolBatch = new ArrayList<MachineToolStatusEvent>();
+		long nextDue = Long.MAX_VALUE;
+		try {
+			while (true) {
+				MachineProgressEvent progressBatch;
+				lock.lock();
+				try {
+					// Wait for something to send, or for a held event to come due
+					while (oldestScheduled == 0) {
+						if (nextDue == Long.MAX_VALUE) {
+							scheduled.await();
+						} else {
+							long wait = nextDue - System.nanoTime();
+							if (wait <= 0) break;
+							scheduled.awaitNanos(wait);
+						}
+					}
+					if (oldestScheduled != 0) {
+						lastLagNanos = System.nanoTime() - oldestScheduled;
+						maxLagNanos = Math.max(maxLagNanos, lastLagNanos);
+						oldestScheduled = 0;
+					}
+					stateBatch.addAll(stateChanges);
+					stateChanges.clear();
+					progressBatch = progress;
+					progress = null;
+					toolBatch.addAll(toolStatus.values());
+					toolStatus.clear();
+				} finally {
+					lock.unlock();
+				}
+
+				nextDue = sendMessages(stateBatch, progressBatch, toolBatch);
+				stateBatch.clear();
+				toolBatch.clear();
 			}
-			Base.logger.fine("Sending machine state change event: "
-					+ machineStateChangeEventQueue.peek().getState().getState().toString());
-			machineStateChangeEventQueue.remove();
+		} catch (InterruptedException e) {
+			// Terminate!
+			Base.logger.fine("taking callback handler down, " + getStatistics());
 		}
-		
-		while (!machineProgressEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.machineProgress(machineProgressEventQueue.peek());
+	}
+
+	/**
+	 * Send the state changes to everyone, each after whatever was scheduled or
+	 * held before it, then the rest of the progress and tool status to everyone
+	 * whose rate limit allows it.
+	 * @return when the next held event is due, or Long.MAX_VALUE if none are held
+	 */
+	private long sendMessages(List<StateChange> stateBatch,
+			MachineProgressEvent progressBatch, List<MachineToolStatusEvent> toolBatch) {
+		for (StateChange change : stateBatch) {
+			Base.logger.fine("Sending machine state change event: "
+					+ change.event.getState().getState().toString());
+			long now = System.nanoTime();
+			for (Subscriber s : subscribers) {
+				s.hold(change.progress, change.toolStatus);
+				if (s.isHolding()) {
+					s.deliver(now);
+				}
+				s.listener.machineStateChanged(change.event);
 			}
-			machineProgressEventQueue.remove();
 		}
-		
-		while (!machineToolStatusEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.toolStatusChanged(machineToolStatusEventQueue.peek());
+
+		long nextDue = Long.MAX_VALUE;
+		long now = System.nanoTime();
+		for (Subscriber s : subscribers) {
+			s.hold(progressBatch, toolBatch);
+			if (!s.isHolding()) {
+				continue;
 			}
-			machineToolStatusEventQueue.remove();
+			if (now - s.dueAt() < 0) {
+				nextDue = Math.min(nextDue, s.dueAt());
+				continue;
+			}
+			s.deliver(now);
 		}
+		return nextDue;
 	}
-	
-	@Override
-	public void run() {
-		while(true) {
-			// If we have any messages to send out, do so, otherwise wait.
-			try {
-				sendMessages();
-	
-				sleep(100);
-			} catch (InterruptedException e) {
-				// Terminate!
-				Base.logger.fine("taking callback handler down, state change queue: "
-						+ machineStateChangeEventQueue.size());
+
+	public void addMachineListener(MachineListener listener) {
+		addMachineListener(listener, 0);
+	}
+
+	/**
+	 * @param minIntervalMillis the least time between progress or tool status
+	 * callbacks to this listener; state changes are always sent straight away
+	 */
+	public void addMachineListener(MachineListener listener, long minIntervalMillis) {
+		subscribers.add(new Subscriber(listener, minIntervalMillis));
+	}
+
+	public void removeMachineListener(MachineListener listener) {
+		for (Subscriber s : subscribers) {
+			if (s.listener == listener) {
+				subscribers.remove(s);
 				break;
 			}
 		}
 	}
-	
-	synchronized public void addMachineListener(MachineListener listener) {
-		// TODO: Is this thread safe?
-		listeners.add(listener);
-		// TODO: Was this important?
-//		listener.machineStateChanged(new MachineStateChangeEvent(this,
-//				getMachineState()));
-	}
 
-	synchronized public void removeMachineListener(MachineListener listener) {
-		// TODO: Is this thread safe?
-		listeners.remove(listener);
+	// Call with lock held
+	private void scheduled() {
+		scheduledCount++;
+		if (oldestScheduled == 0) {
+			oldestScheduled = System.nanoTime();
+		}
+		maxQueueDepth = Math.max(maxQueueDepth, getQueueDepthLocked());
+		scheduled.signal();
 	}
 
-	synchronized public void schedule(MachineStateChangeEvent status) {
-		machineStateChangeEventQueue.add(status);
+	public void schedule(MachineStateChangeEvent status) {
+		lock.lock();
+		try {
+			stateChanges.add(new StateChange(progress,
+					new ArrayList<MachineToolStatusEvent>(toolStatus.values()), status));
+			progress = null;
+			toolStatus.clear();
+			scheduled();
+		} finally {
+			lock.unlock();
+		}
 		Base.logger.fine("Scheduling machine state change event: "
 				+ status.getState().getState().toString());
 	}
 
-	synchronized public void schedule(MachineProgressEvent progress) {
-		machineProgressEventQueue.add(progress);
+	public void schedule(MachineProgressEvent e) {
+		lock.lock();
+		try {
+			if (progress != null) coalescedCount++;
+			progress = e;
+			scheduled();
+		} finally {
+			lock.unlock();
+		}
 	}
 
-	synchronized public void schedule(MachineToolStatusEvent e) {
-		machineToolStatusEventQueue.add(e);
+	public void schedule(MachineToolStatusEvent e) {
+		lock.lock();
+		try {
+			if (toolStatus.put(e.getTool(), e) != null) coalescedCount++;
+			scheduled();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int getQueueDepthLocked() {
+		int depth = (progress != null ? 1 : 0) + toolStatus.size();
+		for (StateChange change : stateChanges) {
+			depth += change.size();
+		}
+		return depth;
+	}
+
+	/** @return how many events are waiting to go out */
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return getQueueDepthLocked();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** @return the most events that have been waiting to go out at once */
+	public int getMaxQueueDepth() {
+		lock.lock();
+		try {
+			return maxQueueDepth;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return how long, in milliseconds, the oldest event in the last batch
+	 * had been waiting when it was picked up for sending
+	 */
+	public double getLagMillis() {
+		lock.lock();
+		try {
+			return lastLagNanos / 1e6;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** @return the longest lag, in milliseconds, so far */
+	public double getMaxLagMillis() {
+		lock.lock();
+		try {
+			return maxLagNanos / 1e6;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** @return how many progress and tool status events were replaced by newer ones before going out */
+	public long getCoalescedCount() {
+		lock.lock();
+		try {
+			return coalescedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public String getStatistics() {
+		lock.lock();
+		try {
+			return scheduledCount + " events scheduled, " + coalescedCount + " coalesced, "
+				+ getQueueDepthLocked() + " queued (max " + maxQueueDepth + "), lag "
+				+ String.format("%.1f", lastLagNanos / 1e6) + "ms (max "
+				+ String.format("%.1f", maxLagNanos / 1e6) + "ms)";
+		} finally {
+			lock.unlock();
+		}
 	}
 }
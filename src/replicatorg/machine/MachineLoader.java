@@ -11,8 +11,11 @@ import replicatorg.drivers.Driver;
 		
 		MachineCallbackHandler callbackHandler;
 		
+		private final TelemetryStore telemetry = new TelemetryStore();
+		
 		public MachineLoader() {
 			callbackHandler = new MachineCallbackHandler();
+			callbackHandler.addMachineListener(telemetry);
 			callbackHandler.start();
 		}
 		
@@ -116,9 +119,24 @@ import replicatorg.drivers.Driver;
 			callbackHandler.addMachineListener(listener);
 		}
 
+		/** See MachineCallbackHandler.addMachineListener(MachineListener, long) */
+		public void addMachineListener(MachineListener listener, long minIntervalMillis) {
+			callbackHandler.addMachineListener(listener, minIntervalMillis);
+		}
+
 		public void removeMachineListener(MachineListener listener) {
 			callbackHandler.removeMachineListener(listener);
 		}
+
+		/** The thread that delivers machine events, for its queue and lag figures */
+		public MachineCallbackHandler getCallbackHandler() {
+			return callbackHandler;
+		}
+
+		/** The temperature history of every machine loaded, for charts and data capture */
+		public TelemetryStore getTelemetry() {
+			return telemetry;
+		}
 		
 		/// Clear out singleton object, in cases where we know we must, must, must rebuild the Machine objects
 		public void clearSingleton() {
@@ -1,12 +1,15 @@
 package replicatorg.machine;
 
+import java.io.IOException;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
 
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import replicatorg.app.Base;
+import replicatorg.app.gcode.CompiledGCode;
 import replicatorg.app.tools.XML;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverError;
@@ -19,10 +22,14 @@ import replicatorg.drivers.StopException;
 import replicatorg.drivers.UsesSerial;
 import replicatorg.drivers.commands.AssessState;
 import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.gen3.Sanguino3GDriver;
 import replicatorg.machine.Machine.JobTarget;
 import replicatorg.machine.Machine.RequestType;
 import replicatorg.machine.builder.Direct;
+import replicatorg.machine.builder.LookAheadPlanner;
 import replicatorg.machine.builder.MachineBuilder;
+import replicatorg.machine.builder.PipelinedDirect;
+import replicatorg.machine.builder.Replay;
 import replicatorg.machine.builder.ToLocalFile;
 import replicatorg.machine.builder.ToRemoteFile;
 import replicatorg.machine.builder.UsingRemoteFile;
@@ -37,6 +44,9 @@ import replicatorg.model.StringListSource;
  */
 class MachineThread extends Thread {
 
+	// Least time between progress events during a build
+	private static final long PROGRESS_INTERVAL_MILLIS = 100;
+
 	AssessStatusThread statusThread;
 	
 	// TODO: Should this be here?
@@ -123,6 +133,8 @@ class MachineThread extends Thread {
 	
 		// Build statistics
 		private double startTimeMillis = -1;
+		// When we last sent a progress event
+		private long lastProgressMillis = 0;
 	
 	// Our driver object. Null when no driver is selected.
 	private Driver driver = null;
@@ -205,6 +217,26 @@ class MachineThread extends Thread {
 		return new GCodeSourceCollection(sources);
 	}
 	
+	/**
+	 * @return a planner for the moves of a build, or null if moves should go to
+	 * the machine as they are. Only used if asked for, and only for firmware that
+	 * doesn't plan its own acceleration.
+	 */
+	private LookAheadPlanner createPlanner() {
+		if (!Base.preferences.getBoolean("build.hostPlanner", false)
+				|| !(driver instanceof Sanguino3GDriver)) {
+			return null;
+		}
+		if (driver instanceof OnboardParameters && driver.isInitialized()) {
+			OnboardParameters onboard = (OnboardParameters)driver;
+			if (onboard.hasJettyAcceleration()
+					|| (onboard.hasAcceleration() && (onboard.getAccelerationStatus() & 0x01) != 0)) {
+				return null;
+			}
+		}
+		return new LookAheadPlanner(getModel());
+	}
+
 	private String readyMessage() {
 		return "Machine " + getMachineName() + " ready";
 	}
@@ -308,10 +340,27 @@ class MachineThread extends Thread {
 					driver.getCurrentPosition(false); // reconcile position
 				}
 				
-				// Pad the job with start and end code
-				GCodeSource combinedSource = buildGCodeJob(command.source);
-				
-				machineBuilder = new Direct(driver, simulator, combinedSource);
+				if (command.source instanceof CompiledGCode) {
+					// Already padded with start and end code, and parsed
+					CompiledGCode compiled = (CompiledGCode)command.source;
+					try {
+						machineBuilder = new Replay(driver, compiled);
+					} catch (IOException e) {
+						Base.logger.log(Level.WARNING, "Could not read compiled gcode, parsing it instead", e);
+						machineBuilder = new Direct(driver, simulator, compiled, createPlanner());
+					}
+				} else {
+					// Pad the job with start and end code
+					GCodeSource combinedSource = buildGCodeJob(command.source);
+					
+					LookAheadPlanner planner = createPlanner();
+					if (Base.preferences.getBoolean("build.pipelined", false)) {
+						machineBuilder = new PipelinedDirect(driver, combinedSource,
+								PipelinedDirect.DEFAULT_DEPTH, planner);
+					} else {
+						machineBuilder = new Direct(driver, simulator, combinedSource, planner);
+					}
+				}
 				
 				// TODO: This shouldn't be done here?
 				driver.invalidatePosition();
@@ -549,14 +598,18 @@ class MachineThread extends Thread {
 				//run another instruction on the machine.
 				machineBuilder.runNext();
 				
-				// Send out a progress event
-				// TODO: Should these be rate limited?
-				MachineProgressEvent progress = 
-					new MachineProgressEvent((double)System.currentTimeMillis()-startTimeMillis,
-							estimatedBuildTime,
-							machineBuilder.getLinesProcessed(),
-							machineBuilder.getLinesTotal());
-				controller.emitProgress(progress);
+				// Send out a progress event, a few times a second and at the end;
+				// listeners only ever want the latest one
+				long now = System.currentTimeMillis();
+				if (now - lastProgressMillis >= PROGRESS_INTERVAL_MILLIS || machineBuilder.finished()) {
+					lastProgressMillis = now;
+					MachineProgressEvent progress = 
+						new MachineProgressEvent((double)now-startTimeMillis,
+								estimatedBuildTime,
+								machineBuilder.getLinesProcessed(),
+								machineBuilder.getLinesTotal());
+					controller.emitProgress(progress);
+				}
 				
 				if (machineBuilder.finished()) {
 					// TODO: Exit correctly.
@@ -646,6 +699,17 @@ class MachineThread extends Thread {
 	private void setState(MachineState state, String message) {
 		MachineState oldState = this.state;
 		this.state = state;
+		
+		// Once a build is over, however it ended, stop parsing ahead for it, or
+		// close the compiled gcode it was reading.
+		if (!state.isBuilding()) {
+			if (machineBuilder instanceof PipelinedDirect) {
+				((PipelinedDirect)machineBuilder).cancel();
+			} else if (machineBuilder instanceof Replay) {
+				((Replay)machineBuilder).close();
+			}
+		}
+		
 		if (!oldState.equals(state)) {
 			controller.emitStateChange(state, message);
 		}
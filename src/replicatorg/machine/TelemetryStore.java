@@ -0,0 +1,239 @@
+package replicatorg.machine;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import replicatorg.machine.model.ToolModel;
+
+/**
+ * A history of each tool's temperatures, in a fixed amount of memory.
+ *
+ * Every tool status event becomes a sample: one value for each Channel, at the
+ * time of the event. Samples are kept per tool at three resolutions, each in a
+ * ring of primitive arrays that overwrites its oldest entry once full: the last
+ * RAW samples as they came, and the averages of each SECOND and each MINUTE,
+ * going back an hour and a day. The current second and minute are still being
+ * averaged, so they only show up once the next one starts.
+ *
+ * A channel the tool doesn't have, such as the platform of a tool without one,
+ * is NaN, and is left out of the averages.
+ *
+ * Listeners are told of each sample as it's recorded, on the thread that
+ * recorded it; that's how DataCapture writes them out.
+ *
+ * All methods are safe to call from any thread.
+ */
+public class TelemetryStore implements MachineListener {
+
+	public enum Channel {
+		EXTRUDER_CURRENT("extruder_current"),
+		EXTRUDER_TARGET("extruder_target"),
+		PLATFORM_CURRENT("platform_current"),
+		PLATFORM_TARGET("platform_target"),
+		/** The extruder motor PWM; no driver reports the heaters' duty cycle */
+		MOTOR_PWM("motor_pwm");
+
+		private final String key;
+
+		private Channel(String key) {
+			this.key = key;
+		}
+
+		/** @return a short lower case name, for file headers */
+		public String getKey() {
+			return key;
+		}
+	}
+
+	public static final int CHANNELS = Channel.values().length;
+
+	public enum Resolution {
+		RAW(0, 1024),
+		SECOND(1000, 3600),
+		MINUTE(60 * 1000, 24 * 60);
+
+		private final long millis;
+		private final int capacity;
+
+		private Resolution(long millis, int capacity) {
+			this.millis = millis;
+			this.capacity = capacity;
+		}
+
+		/** @return the time each entry averages over, or 0 for raw samples */
+		public long getMillis() {
+			return millis;
+		}
+
+		/** @return the most entries kept for each tool */
+		public int getCapacity() {
+			return capacity;
+		}
+	}
+
+	public interface Listener {
+		/**
+		 * @param values indexed by Channel.ordinal(); only valid for the
+		 * length of the call
+		 */
+		public void sampleRecorded(int tool, long time, double[] values);
+	}
+
+	// One resolution of one tool's history
+	private static class Ring {
+		final long millis;
+		final long[] times;
+		final double[][] values;
+		int head = 0;
+		int size = 0;
+
+		// The bucket being averaged, if millis isn't 0
+		long bucket = Long.MIN_VALUE;
+		final double[] sums = new double[CHANNELS];
+		final int[] counts = new int[CHANNELS];
+
+		Ring(Resolution resolution) {
+			millis = resolution.getMillis();
+			times = new long[resolution.getCapacity()];
+			values = new double[CHANNELS][resolution.getCapacity()];
+		}
+
+		void add(long time, double[] sample) {
+			if (millis == 0) {
+				int slot = next(time);
+				for (int c = 0; c < CHANNELS; c++) {
+					values[c][slot] = sample[c];
+				}
+				return;
+			}
+			long start = time - ((time % millis) + millis) % millis;
+			if (start != bucket) {
+				close();
+				bucket = start;
+			}
+			for (int c = 0; c < CHANNELS; c++) {
+				if (!Double.isNaN(sample[c])) {
+					sums[c] += sample[c];
+					counts[c]++;
+				}
+			}
+		}
+
+		// Put the average of the bucket in the ring, and empty it
+		private void close() {
+			if (bucket == Long.MIN_VALUE) return;
+			int slot = next(bucket);
+			for (int c = 0; c < CHANNELS; c++) {
+				values[c][slot] = counts[c] == 0 ? Double.NaN : sums[c] / counts[c];
+				sums[c] = 0;
+				counts[c] = 0;
+			}
+		}
+
+		// Claim the slot after the newest, dropping the oldest if full
+		private int next(long time) {
+			int slot;
+			if (size < times.length) {
+				slot = (head + size) % times.length;
+				size++;
+			} else {
+				slot = head;
+				head = (head + 1) % times.length;
+			}
+			times[slot] = time;
+			return slot;
+		}
+
+		int copy(int channel, long[] toTimes, double[] toValues) {
+			for (int i = 0; i < size; i++) {
+				int slot = (head + i) % times.length;
+				toTimes[i] = times[slot];
+				toValues[i] = values[channel][slot];
+			}
+			return size;
+		}
+	}
+
+	// Rings for each tool index, indexed by Resolution.ordinal()
+	private final Map<Integer, Ring[]> tools = new HashMap<Integer, Ring[]>();
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	// Reused for each sample; only touched by the thread delivering events
+	private final double[] sample = new double[CHANNELS];
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Add a sample to the tool's history, and pass it on to the listeners.
+	 * @param values indexed by Channel.ordinal()
+	 */
+	public void record(int tool, long time, double[] values) {
+		synchronized (this) {
+			Ring[] rings = tools.get(tool);
+			if (rings == null) {
+				Resolution[] resolutions = Resolution.values();
+				rings = new Ring[resolutions.length];
+				for (int i = 0; i < resolutions.length; i++) {
+					rings[i] = new Ring(resolutions[i]);
+				}
+				tools.put(tool, rings);
+			}
+			for (Ring ring : rings) {
+				ring.add(time, values);
+			}
+		}
+		for (Listener listener : listeners) {
+			listener.sampleRecorded(tool, time, values);
+		}
+	}
+
+	/**
+	 * @return how many entries there are for the tool at that resolution
+	 */
+	public synchronized int size(int tool, Resolution resolution) {
+		Ring[] rings = tools.get(tool);
+		return rings == null ? 0 : rings[resolution.ordinal()].size;
+	}
+
+	/**
+	 * Copy one channel of a tool's history, oldest first. The arrays must hold
+	 * at least resolution.getCapacity() entries.
+	 * @return how many entries were copied
+	 */
+	public synchronized int read(int tool, Resolution resolution, Channel channel,
+			long[] times, double[] values) {
+		Ring[] rings = tools.get(tool);
+		if (rings == null) return 0;
+		return rings[resolution.ordinal()].copy(channel.ordinal(), times, values);
+	}
+
+	@Override
+	public void machineStateChanged(MachineStateChangeEvent evt) {
+	}
+
+	@Override
+	public void machineProgress(MachineProgressEvent event) {
+	}
+
+	@Override
+	public void toolStatusChanged(MachineToolStatusEvent event) {
+		ToolModel tool = event.getTool();
+		boolean heater = tool.hasHeater();
+		boolean platform = tool.hasHeatedPlatform();
+		sample[Channel.EXTRUDER_CURRENT.ordinal()] = heater ? tool.getCurrentTemperature() : Double.NaN;
+		sample[Channel.EXTRUDER_TARGET.ordinal()] = heater ? tool.getTargetTemperature() : Double.NaN;
+		sample[Channel.PLATFORM_CURRENT.ordinal()] = platform ? tool.getPlatformCurrentTemperature() : Double.NaN;
+		sample[Channel.PLATFORM_TARGET.ordinal()] = platform ? tool.getPlatformTargetTemperature() : Double.NaN;
+		sample[Channel.MOTOR_PWM.ordinal()] = tool.getMotorSpeedPWM();
+		record(tool.getIndex(), event.getDate().getTime(), sample);
+	}
+}
@@ -17,6 +17,7 @@ import replicatorg.drivers.StopException;
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.Machine.JobTarget;
 import replicatorg.model.GCodeSource;
+import replicatorg.util.Point5d;
 
 /**
  * Machine builder for building a GCodeSource on a Driver
@@ -43,6 +44,9 @@ public class Direct implements MachineBuilder{
 	Queue<DriverCommand> driverQueue;
 	boolean building;		// True if we are running to the machine
 	
+	LookAheadPlanner planner;	// Plans moves on their way to the machine, if not null
+	Queue<DriverCommand> parsedQueue;
+	
 	SimulationDriver simulator;
 	GCodeParser simulationParser;
 	Queue<DriverCommand> simulatorQueue;
@@ -53,6 +57,10 @@ public class Direct implements MachineBuilder{
 	State state;
 	
 	public Direct(Driver driver, SimulationDriver simulator, GCodeSource source) {
+		this(driver, simulator, source, null);
+	}
+
+	public Direct(Driver driver, SimulationDriver simulator, GCodeSource source, LookAheadPlanner planner) {
 		this.driver = driver;
 		this.source = source;
 	
@@ -67,7 +75,20 @@ public class Direct implements MachineBuilder{
 		} else {
 			building = true;
 			// Set up a parser to talk to the driver
-			parser = new GCodeParser();
+			this.planner = planner;
+			if (planner == null) {
+				parser = new GCodeParser();
+			} else {
+				// The machine lags behind the moves the planner is holding back
+				parser = new GCodeParser() {
+					@Override
+					protected Point5d getCurrentPosition() {
+						Point5d position = Direct.this.planner.getPosition();
+						return (position != null) ? position : super.getCurrentPosition();
+					}
+				};
+				parsedQueue = new LinkedList< DriverCommand >();
+			}
 			
 			// Queue of commands that we get from the parser, and run on the driver.
 			driverQueue = new LinkedList< DriverCommand >();
@@ -104,14 +125,20 @@ public class Direct implements MachineBuilder{
 	// Run the next command on the driver
 	@Override
 	public void runNext() { 
-		if (!i.hasNext()) {
-			// TODO: This is clunky.
-			if (driver.isFinished()) {
-				state = State.FINISHED;
+		if (!i.hasNext() && !retry) {
+			if (planner != null && planner.isHolding()) {
+				// Nothing left to read; run the moves the planner was holding back.
+				planner.finish(driverQueue);
+				retry = true;
 			} else {
-				state = State.WAITING_FOR_MACHINE_FINISH;
+				// TODO: This is clunky.
+				if (driver.isFinished()) {
+					state = State.FINISHED;
+				} else {
+					state = State.WAITING_FOR_MACHINE_FINISH;
+				}
+				return;
 			}
-			return;
 		}
 		
 		// Check for any driver errors
@@ -128,7 +155,12 @@ public class Direct implements MachineBuilder{
 
 			// Parse a line for the actual machine
 			if (building) {
-				parser.parse(line, driverQueue);
+				if (planner != null) {
+					parser.parse(line, parsedQueue);
+					planner.plan(parsedQueue, driverQueue);
+				} else {
+					parser.parse(line, driverQueue);
+				}
 			}
 			
 			// If we're simulating, parse a line to feed to the simulator 
@@ -0,0 +1,266 @@
+package replicatorg.machine.builder;
+
+import java.util.LinkedList;
+import java.util.Queue;
+
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.HomeAxes;
+import replicatorg.drivers.commands.InvalidatePosition;
+import replicatorg.drivers.commands.QueuePoint;
+import replicatorg.drivers.commands.RecallHomePositions;
+import replicatorg.drivers.commands.SetCurrentPosition;
+import replicatorg.drivers.commands.SetFeedrate;
+import replicatorg.drivers.estimation.AcceleratedMotionModel;
+import replicatorg.drivers.estimation.AccelerationSettings;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Plans moves on the host, for machines whose firmware takes each move at a
+ * single speed.
+ *
+ * The planner sits between the GCodeParser and the driver. Moves are held back
+ * in an AcceleratedMotionModel until the corners after them are known. As each
+ * move leaves, it is split into pieces that speed up, cruise and slow down, and
+ * each piece is sent with its own feedrate.
+ *
+ * Feedrate changes are taken in by the planner. Anything else brings the machine
+ * to a stop first, so commands still run in the order they were given. A move
+ * from an unknown position, or before any feedrate is set, is sent as it is.
+ *
+ * Only commands go in and out, so a recorded stream of moves can be planned
+ * without a machine.
+ */
+public class LookAheadPlanner {
+
+	/** Acceleration used when the machine description doesn't give any, in mm/s/s */
+	public static final double DEFAULT_ACCELERATION = 500.0;
+
+	// Most pieces a change of speed is split into
+	private static final int RAMP_PIECES = 4;
+
+	// Shortest piece a move is split into, in mm
+	private static final double MIN_PIECE_LENGTH = 0.5;
+
+	/** A move held in the model */
+	private static class Move {
+		final Point5d from;
+		final Point5d to;
+
+		Move(Point5d from, Point5d to) {
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	private final AcceleratedMotionModel model;
+
+	// Moves in the model, oldest first
+	private final LinkedList<Move> moves = new LinkedList<Move>();
+
+	// Where the last move ends, or null if unknown
+	private Point5d position = null;
+
+	// The feedrate asked for, and the last one sent on; NaN if none yet
+	private double feedrate = Double.NaN;
+	private double sentFeedrate = Double.NaN;
+
+	// Where planned commands go
+	private Queue<DriverCommand> out;
+
+	// Distances along the move the pieces end at
+	private final double[] breaks = new double[2 * RAMP_PIECES + 1];
+
+	public LookAheadPlanner(MachineModel machine) {
+		this(getSettings(machine));
+	}
+
+	public LookAheadPlanner(AccelerationSettings settings) {
+		model = new AcceleratedMotionModel(settings);
+		model.setProfileListener(new AcceleratedMotionModel.ProfileListener() {
+			public void moveProfile(double length, double entry, double nominal, double exit, double acceleration) {
+				split(moves.remove(), length, entry, nominal, exit, acceleration);
+			}
+		});
+	}
+
+	/**
+	 * @return the settings in the machine description, with a default acceleration
+	 * if it doesn't give any
+	 */
+	public static AccelerationSettings getSettings(MachineModel machine) {
+		AccelerationSettings settings = AccelerationSettings.fromModel(machine);
+		if (settings == null) {
+			settings = new AccelerationSettings(machine);
+			settings.acceleration = DEFAULT_ACCELERATION;
+		}
+		return settings;
+	}
+
+	/**
+	 * Plan the given commands, taking them off the in queue. Commands that are
+	 * ready to run are added to the out queue; moves may be held back until later
+	 * commands come in.
+	 */
+	public void plan(Queue<DriverCommand> in, Queue<DriverCommand> out) {
+		this.out = out;
+		while (!in.isEmpty()) {
+			DriverCommand command = in.remove();
+			if (command instanceof SetFeedrate) {
+				feedrate = ((SetFeedrate)command).getFeedrate();
+			} else if (command instanceof QueuePoint) {
+				queuePoint((QueuePoint)command);
+			} else {
+				stop();
+				out.add(command);
+				if (command instanceof SetCurrentPosition) {
+					position = new Point5d(((SetCurrentPosition)command).getPoint());
+				} else if (command instanceof HomeAxes
+						|| command instanceof RecallHomePositions
+						|| command instanceof InvalidatePosition) {
+					position = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Bring the machine to a stop at the end of the moves held back, adding
+	 * them to the out queue.
+	 */
+	public void finish(Queue<DriverCommand> out) {
+		this.out = out;
+		stop();
+	}
+
+	/**
+	 * @return where the machine will be after every command planned so far, or
+	 * null if that isn't known
+	 */
+	public Point5d getPosition() {
+		return (position == null) ? null : new Point5d(position);
+	}
+
+	/**
+	 * @return true if there are commands held back, which finish() would let go
+	 */
+	public boolean isHolding() {
+		return !moves.isEmpty() || Double.compare(feedrate, sentFeedrate) != 0;
+	}
+
+	private void queuePoint(QueuePoint command) {
+		Point5d destination = command.getDestination();
+		if (position == null || !(feedrate > 0)) {
+			// We can't tell how far or how fast this goes
+			stop();
+			out.add(command);
+			position = new Point5d(destination);
+			return;
+		}
+
+		Point5d delta = new Point5d(destination);
+		delta.sub(position);
+		if (!AcceleratedMotionModel.isMove(delta, feedrate)) {
+			// Goes nowhere
+			return;
+		}
+		Point5d to = new Point5d(destination);
+		moves.add(new Move(position, to));
+		position = to;
+		model.move(delta, feedrate, to.z());
+	}
+
+	private void stop() {
+		model.stop();
+		if (!Double.isNaN(feedrate)) {
+			sendFeedrate(feedrate);
+		}
+	}
+
+	private void sendFeedrate(double rate) {
+		if (Double.compare(rate, sentFeedrate) != 0) {
+			out.add(new SetFeedrate(rate));
+			sentFeedrate = rate;
+		}
+	}
+
+	/**
+	 * Send a move as pieces that follow its speed profile. Each piece is sent at
+	 * the average speed the profile has over it, so it takes the same time.
+	 */
+	private void split(Move move, double length, double entry, double nominal, double exit, double acceleration) {
+		// The driver takes feedrates along all five axes, the model along XYZ
+		double scale = 60.0 * move.to.distance(move.from) / length;
+
+		if (Double.isInfinite(acceleration)) {
+			sendFeedrate(nominal * scale);
+			out.add(new QueuePoint(move.to));
+			return;
+		}
+
+		double peak = nominal;
+		double accelerating = (peak * peak - entry * entry) / (2 * acceleration);
+		double decelerating = (peak * peak - exit * exit) / (2 * acceleration);
+		if (accelerating + decelerating > length) {
+			// Never gets up to speed
+			peak = Math.sqrt((2 * acceleration * length + entry * entry + exit * exit) / 2);
+			peak = Math.max(peak, Math.max(entry, exit));
+			accelerating = Math.min(length, Math.max(0, (peak * peak - entry * entry) / (2 * acceleration)));
+			decelerating = length - accelerating;
+		}
+		double cruiseEnd = length - decelerating;
+
+		int count = 0;
+		for (int k = 1; k <= RAMP_PIECES; k++) {
+			double speed = entry + (peak - entry) * k / RAMP_PIECES;
+			breaks[count++] = Math.min(accelerating, (speed * speed - entry * entry) / (2 * acceleration));
+		}
+		breaks[count++] = cruiseEnd;
+		for (int k = 1; k <= RAMP_PIECES; k++) {
+			double speed = peak - (peak - exit) * k / RAMP_PIECES;
+			breaks[count++] = Math.max(cruiseEnd, length - (speed * speed - exit * exit) / (2 * acceleration));
+		}
+		breaks[count - 1] = length;
+
+		double from = 0;
+		double fromTime = 0;
+		for (int k = 0; k < count; k++) {
+			double to = breaks[k];
+			boolean last = (k == count - 1);
+			if (!last && to - from < MIN_PIECE_LENGTH) {
+				// Too short; fold it into the next piece
+				continue;
+			}
+			double toTime = timeAt(to, entry, peak, acceleration, accelerating, cruiseEnd);
+			double speed = (toTime > fromTime) ? (to - from) / (toTime - fromTime) : peak;
+			sendFeedrate(speed * scale);
+			out.add(new QueuePoint(last ? move.to : pointAt(move, to / length)));
+			from = to;
+			fromTime = toTime;
+		}
+	}
+
+	/** @return the time, in seconds, to get the given distance along the move */
+	private static double timeAt(double distance, double entry, double peak, double acceleration,
+			double accelerating, double cruiseEnd) {
+		if (distance <= accelerating) {
+			return (Math.sqrt(entry * entry + 2 * acceleration * distance) - entry) / acceleration;
+		}
+		double time = (peak - entry) / acceleration;
+		if (distance <= cruiseEnd) {
+			return time + (distance - accelerating) / peak;
+		}
+		time += (cruiseEnd - accelerating) / peak;
+		double slowing = Math.max(0, peak * peak - 2 * acceleration * (distance - cruiseEnd));
+		return time + (peak - Math.sqrt(slowing)) / acceleration;
+	}
+
+	/** @return the point the given fraction of the way along the move */
+	private static Point5d pointAt(Move move, double fraction) {
+		Point5d point = new Point5d();
+		for (int i = 0; i < 5; i++) {
+			point.set(i, move.from.get(i) + (move.to.get(i) - move.from.get(i)) * fraction);
+		}
+		return point;
+	}
+}
@@ -0,0 +1,447 @@
+package replicatorg.machine.builder;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.logging.Level;
+
+import javax.swing.JOptionPane;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.HomeAxes;
+import replicatorg.drivers.commands.InvalidatePosition;
+import replicatorg.drivers.commands.QueuePoint;
+import replicatorg.drivers.commands.RecallHomePositions;
+import replicatorg.drivers.commands.SetAxisOffset;
+import replicatorg.drivers.commands.SetCurrentPosition;
+import replicatorg.machine.Machine.JobTarget;
+import replicatorg.model.GCodeSource;
+import replicatorg.util.Point5d;
+
+/**
+ * Machine builder for building a GCodeSource on a Driver, with the GCode parsed
+ * ahead of the machine.
+ *
+ * A parse thread reads lines from the source and turns them into DriverCommands,
+ * which it places in a bounded ring. The machine thread only pops commands off the
+ * ring and runs them on the driver, so a slow line no longer starves the machine.
+ * Retries and StopExceptions are handled exactly as in Direct: a command that throws
+ * a RetryException stays at the head of the ring and is retried on the next go-round.
+ *
+ * The parser needs to know where the machine will be when a command runs. The parse
+ * thread tracks this itself from the commands it produces; after a command that
+ * loses the position (homing, for instance) it waits for the machine thread to run
+ * everything queued so far and then asks it for the real position. Likewise, after
+ * a tool offset is set it waits for the machine to catch up before parsing on.
+ *
+ * The simulator is not supported.
+ */
+public class PipelinedDirect implements MachineBuilder {
+
+	public enum State {
+		RUNNING_GCODE,
+		WAITING_FOR_MACHINE_FINISH,
+		FINISHED
+	}
+
+	/** Default number of parsed commands that may be waiting to be sent to the machine. */
+	public static final int DEFAULT_DEPTH = 1024;
+
+	/** How long the machine thread waits for the parser before going back to its loop, in ms */
+	private static final long POLL_TIMEOUT = 10;
+
+	/**
+	 * Bounded ring of commands, filled by the parse thread and drained by the machine thread.
+	 * Each command is tagged with the number of lines that had been read when it was parsed.
+	 */
+	static class CommandRing {
+		private final DriverCommand[] commands;
+		private final int[] lines;
+		private int head = 0;
+		private int count = 0;
+
+		// Set once the parse thread has no more commands to add
+		private boolean closed = false;
+		private int linesRead = 0;
+		private RuntimeException failure = null;
+
+		private boolean cancelled = false;
+
+		// Position handoff from the machine thread to the parse thread
+		private boolean positionWanted = false;
+		private Point5d position = null;
+
+		CommandRing(int depth) {
+			commands = new DriverCommand[depth];
+			lines = new int[depth];
+		}
+
+		/** Add a command, waiting for space. Returns false if the ring was cancelled. */
+		synchronized boolean put(DriverCommand command, int line) throws InterruptedException {
+			while (count == commands.length && !cancelled) {
+				wait();
+			}
+			if (cancelled) {
+				return false;
+			}
+			int tail = (head + count) % commands.length;
+			commands[tail] = command;
+			lines[tail] = line;
+			count++;
+			notifyAll();
+			return true;
+		}
+
+		/** Get the next command without removing it, waiting up to timeout ms for one. */
+		synchronized DriverCommand peek(long timeout) throws InterruptedException {
+			if (count == 0 && !closed && !positionWanted && timeout > 0) {
+				wait(timeout);
+			}
+			return (count == 0) ? null : commands[head];
+		}
+
+		synchronized int headLine() {
+			return lines[head];
+		}
+
+		synchronized void pop() {
+			commands[head] = null;
+			head = (head + 1) % commands.length;
+			count--;
+			notifyAll();
+		}
+
+		synchronized void close(int linesRead, RuntimeException failure) {
+			this.linesRead = linesRead;
+			this.failure = failure;
+			closed = true;
+			notifyAll();
+		}
+
+		synchronized boolean isDrained() {
+			return closed && count == 0;
+		}
+
+		synchronized int getLinesRead() {
+			return linesRead;
+		}
+
+		synchronized RuntimeException getFailure() {
+			return failure;
+		}
+
+		/**
+		 * Called by the parse thread: wait until the machine thread has run every
+		 * queued command and reported the machine's position. Returns null if cancelled.
+		 */
+		synchronized Point5d requestPosition() throws InterruptedException {
+			positionWanted = true;
+			position = null;
+			notifyAll();
+			while (position == null && !cancelled) {
+				wait();
+			}
+			positionWanted = false;
+			return position;
+		}
+
+		/** Called by the parse thread: wait until the machine thread has run every queued command. */
+		synchronized void awaitDrained() throws InterruptedException {
+			while (count > 0 && !cancelled) {
+				wait();
+			}
+		}
+
+		synchronized boolean isPositionWanted() {
+			return positionWanted && count == 0;
+		}
+
+		synchronized void providePosition(Point5d position) {
+			this.position = position;
+			notifyAll();
+		}
+
+		synchronized void cancel() {
+			cancelled = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Reads and parses the source, keeping the ring full.
+	 */
+	class ParseThread extends Thread {
+
+		public ParseThread() {
+			super("GCode Parse Ahead");
+			setDaemon(true);
+		}
+
+		public void run() {
+			Queue<DriverCommand> parsed = new LinkedList<DriverCommand>();
+			Queue<DriverCommand> planned = (planner == null) ? parsed : new LinkedList<DriverCommand>();
+			Iterator<String> i = source.iterator();
+			int line = 0;
+			RuntimeException failure = null;
+			try {
+				while (i.hasNext()) {
+					parser.parse(i.next(), parsed);
+					line++;
+					// The parser works from where the machine will be after everything
+					// it has parsed, whether or not the planner has let it go yet.
+					boolean mustDrain = false;
+					for (DriverCommand command : parsed) {
+						mustDrain |= trackCommand(command);
+					}
+					if (planner != null) {
+						planner.plan(parsed, planned);
+					}
+					if (!putAll(planned, line)) {
+						return;
+					}
+					if (mustDrain) {
+						ring.awaitDrained();
+					}
+				}
+				if (planner != null) {
+					planner.finish(planned);
+					putAll(planned, line);
+				}
+			} catch (InterruptedException e) {
+				Base.logger.fine("GCode parse thread interrupted");
+			} catch (RuntimeException e) {
+				// Handed to the machine thread, which throws it when it gets this far
+				failure = e;
+			} finally {
+				ring.close(line, failure);
+			}
+		}
+
+		/** Put the commands on the ring. Returns false if the ring was cancelled. */
+		private boolean putAll(Queue<DriverCommand> commands, int line) throws InterruptedException {
+			for (DriverCommand command : commands) {
+				if (!ring.put(command, line)) {
+					return false;
+				}
+			}
+			commands.clear();
+			return true;
+		}
+	}
+
+	GCodeSource source;
+
+	int linesProcessed;
+	int linesTotal;
+
+	Driver driver;
+	GCodeParser parser;
+	CommandRing ring;
+	ParseThread parseThread;
+	LookAheadPlanner planner;	// Plans moves on their way to the ring, if not null
+
+	// Where the machine will be once everything in the ring has run; null if unknown.
+	// Only touched by the parse thread.
+	private Point5d parsePosition = null;
+
+	State state;
+
+	public PipelinedDirect(Driver driver, GCodeSource source) {
+		this(driver, source, DEFAULT_DEPTH);
+	}
+
+	public PipelinedDirect(Driver driver, GCodeSource source, int depth) {
+		this(driver, source, depth, null);
+	}
+
+	public PipelinedDirect(Driver driver, GCodeSource source, int depth, LookAheadPlanner planner) {
+		this.driver = driver;
+		this.source = source;
+		this.planner = planner;
+
+		linesProcessed = 0;
+		linesTotal = source.getLineCount();
+
+		ring = new CommandRing(depth);
+
+		// Set up a parser that asks us, rather than the driver, where the machine is.
+		parser = new GCodeParser() {
+			@Override
+			protected Point5d getCurrentPosition() {
+				return getParsePosition();
+			}
+		};
+		parser.init((DriverQueryInterface) driver);
+
+		state = State.RUNNING_GCODE;
+
+		parseThread = new ParseThread();
+		parseThread.start();
+	}
+
+	// Called on the parse thread
+	private Point5d getParsePosition() {
+		if (parsePosition == null) {
+			try {
+				parsePosition = ring.requestPosition();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (parsePosition == null) {
+				// Cancelled; the next put() will stop the parse thread.
+				return new Point5d();
+			}
+		}
+		return new Point5d(parsePosition);
+	}
+
+	/**
+	 * Called on the parse thread, for each command in the order they will be run.
+	 * Returns true if the parser must let the machine catch up before reading the
+	 * next line, because the command changes driver state that the parser reads.
+	 */
+	private boolean trackCommand(DriverCommand command) {
+		if (command instanceof QueuePoint) {
+			parsePosition = new Point5d(((QueuePoint)command).getDestination());
+		} else if (command instanceof SetCurrentPosition) {
+			parsePosition = new Point5d(((SetCurrentPosition)command).getPoint());
+		} else if (command instanceof HomeAxes
+				|| command instanceof RecallHomePositions
+				|| command instanceof InvalidatePosition) {
+			parsePosition = null;
+		} else if (command instanceof SetAxisOffset) {
+			// Offsets are read back from the driver by G53-G59 and T codes
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Stop the parse thread. Called when the build is over, however it ended.
+	 */
+	public void cancel() {
+		ring.cancel();
+	}
+
+	@Override
+	public boolean finished() {
+		return (state == State.FINISHED);
+	}
+
+	// Run the next line's worth of commands on the driver
+	@Override
+	public void runNext() {
+		if (ring.isDrained()) {
+			linesProcessed = ring.getLinesRead();
+			if (ring.getFailure() != null) {
+				RuntimeException failure = ring.getFailure();
+				state = State.FINISHED;
+				throw failure;
+			}
+
+			// TODO: This is clunky.
+			if (driver.isFinished()) {
+				state = State.FINISHED;
+			} else {
+				state = State.WAITING_FOR_MACHINE_FINISH;
+			}
+			return;
+		}
+
+		// Check for any driver errors
+		if (driver.hasError()) {
+			Base.logger.severe("Driver reported an error, aborting build");
+			return;
+		}
+
+		DriverCommand command;
+		try {
+			command = ring.peek(POLL_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		if (command == null) {
+			// The parser may be waiting for us to tell it where the machine is.
+			if (ring.isPositionWanted()) {
+				ring.providePosition(driver.getCurrentPosition(false));
+			}
+			return;
+		}
+
+		int line = ring.headLine();
+		try {
+			// Run the commands for this line on the machine.
+			while (command != null && ring.headLine() == line) {
+				command.run(driver);
+				ring.pop();
+				linesProcessed = line;
+				command = ring.peek(0);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RetryException r) {
+			// The command stays at the head of the ring, and will be retried
+			// on the next go-round.
+			Base.logger.log(Level.FINE,"Message delivery failed, retrying");
+		} catch (StopException e) {
+			// TODO: Just returning here seems dangerous, better to notify the state machine.
+
+			switch (e.getType()) {
+			case UNCONDITIONAL_HALT:
+				JOptionPane.showMessageDialog(null, e.getMessage(),
+						"Unconditional halt: build ended", JOptionPane.INFORMATION_MESSAGE);
+				state = State.FINISHED;
+				break;
+			case PROGRAM_END:
+				JOptionPane.showMessageDialog(null, e.getMessage(),
+						"Program end: Build ended", JOptionPane.INFORMATION_MESSAGE);
+				state = State.FINISHED;
+				break;
+			case OPTIONAL_HALT:
+				int result = JOptionPane.showConfirmDialog(null, e.getMessage(),
+						"Optional halt: Continue build?", JOptionPane.YES_NO_OPTION);
+
+				if (result == JOptionPane.YES_OPTION) {
+					ring.pop();
+				} else {
+					state = State.FINISHED;
+				}
+				break;
+			case PROGRAM_REWIND:
+				JOptionPane.showMessageDialog(null, e.getMessage(),
+						"Program rewind: Build ended", JOptionPane.INFORMATION_MESSAGE);
+				state = State.FINISHED;
+				break;
+			}
+
+			if (state == State.FINISHED) {
+				cancel();
+			}
+		}
+	}
+
+	public int getLinesTotal() {
+		return linesTotal;
+	}
+	public int getLinesProcessed() {
+		return linesProcessed;
+	}
+
+	@Override
+	public boolean isInteractive() {
+		return true;
+	}
+
+	@Override
+	public JobTarget getTarget() {
+		return JobTarget.MACHINE;
+	}
+}
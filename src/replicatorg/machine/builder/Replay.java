@@ -0,0 +1,172 @@
+package replicatorg.machine.builder;
+
+import java.io.IOException;
+import java.util.logging.Level;
+
+import javax.swing.JOptionPane;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.CompiledGCode;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.machine.Machine.JobTarget;
+
+/**
+ * Machine builder for building precompiled gcode on a Driver. Works like Direct,
+ * but reads ready-made DriverCommands from a CompiledGCode instead of parsing text.
+ */
+public class Replay implements MachineBuilder {
+
+	public enum State {
+		RUNNING_GCODE,
+		WAITING_FOR_MACHINE_FINISH,
+		FINISHED
+	}
+
+	CompiledGCode.CommandReader reader;
+
+	int linesProcessed;
+	int linesTotal;
+
+	Driver driver;
+
+	// The next command to run, or null if we need to read one
+	DriverCommand pending = null;
+	boolean exhausted = false;
+
+	State state;
+
+	public Replay(Driver driver, CompiledGCode compiled) throws IOException {
+		this.driver = driver;
+
+		linesProcessed = 0;
+		linesTotal = compiled.getLineCount();
+
+		reader = compiled.commands();
+
+		state = State.RUNNING_GCODE;
+	}
+
+	@Override
+	public boolean finished() {
+		return (state == State.FINISHED);
+	}
+
+	// Read the next command into pending; false at the end of the stream
+	private boolean advance() {
+		try {
+			if (reader.next()) {
+				pending = reader.getCommand();
+				return true;
+			}
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Could not read compiled gcode, ending build", e);
+			state = State.FINISHED;
+		}
+		pending = null;
+		exhausted = true;
+		reader.close();
+		return false;
+	}
+
+	// Run the next line's worth of commands on the driver
+	@Override
+	public void runNext() {
+		if (pending == null && (exhausted || !advance())) {
+			if (state == State.FINISHED) {
+				return;
+			}
+			linesProcessed = linesTotal;
+			// TODO: This is clunky.
+			if (driver.isFinished()) {
+				state = State.FINISHED;
+			} else {
+				state = State.WAITING_FOR_MACHINE_FINISH;
+			}
+			return;
+		}
+
+		// Check for any driver errors
+		if (driver.hasError()) {
+			Base.logger.severe("Driver reported an error, aborting build");
+			return;
+		}
+
+		int line = reader.getLine();
+		try {
+			// Run the commands for this line on the machine.
+			while (pending != null && reader.getLine() == line) {
+				pending.run(driver);
+				linesProcessed = line;
+				advance();
+			}
+		} catch (RetryException r) {
+			// The command stays pending, and will be retried on the next go-round.
+			Base.logger.log(Level.FINE,"Message delivery failed, retrying");
+		} catch (StopException e) {
+			// TODO: Just returning here seems dangerous, better to notify the state machine.
+
+			switch (e.getType()) {
+			case UNCONDITIONAL_HALT:
+				JOptionPane.showMessageDialog(null, e.getMessage(),
+						"Unconditional halt: build ended", JOptionPane.INFORMATION_MESSAGE);
+				state = State.FINISHED;
+				break;
+			case PROGRAM_END:
+				JOptionPane.showMessageDialog(null, e.getMessage(),
+						"Program end: Build ended", JOptionPane.INFORMATION_MESSAGE);
+				state = State.FINISHED;
+				break;
+			case OPTIONAL_HALT:
+				int result = JOptionPane.showConfirmDialog(null, e.getMessage(),
+						"Optional halt: Continue build?", JOptionPane.YES_NO_OPTION);
+
+				if (result == JOptionPane.YES_OPTION) {
+					advance();
+				} else {
+					state = State.FINISHED;
+				}
+				break;
+			case PROGRAM_REWIND:
+				JOptionPane.showMessageDialog(null, e.getMessage(),
+						"Program rewind: Build ended", JOptionPane.INFORMATION_MESSAGE);
+				state = State.FINISHED;
+				break;
+			}
+
+			if (state == State.FINISHED) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * End the build here, closing the compiled gcode; for when it's stopped
+	 * or aborted before it has read to the end.
+	 */
+	public void close() {
+		pending = null;
+		exhausted = true;
+		state = State.FINISHED;
+		reader.close();
+	}
+
+	public int getLinesTotal() {
+		return linesTotal;
+	}
+	public int getLinesProcessed() {
+		return linesProcessed;
+	}
+
+	@Override
+	public boolean isInteractive() {
+		return true;
+	}
+
+	@Override
+	public JobTarget getTarget() {
+		return JobTarget.MACHINE;
+	}
+}
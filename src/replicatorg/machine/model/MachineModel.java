@@ -63,6 +63,8 @@ public class MachineModel
 	
 	//feedrate information
 	private Point5d maximumFeedrateSteps;
+	private Point5d axisAccelerations;
+	private Point5d axisJerks;
 	private Point5d homingFeedrates;
 	private Point5d stepsPerMM;
     private Point5d timeOut;
@@ -109,6 +111,8 @@ public class MachineModel
 		minimum = new Point5d();
 		maximum = new Point5d();
 		maximumFeedrateSteps = new Point5d();
+		axisAccelerations = new Point5d();
+		axisJerks = new Point5d();
 		homingFeedrates = new Point5d();
 		timeOut = new Point5d();
 		stepsPerMM = new Point5d(1, 1, 1, 1, 1); //use ones, because we divide by this!
@@ -270,6 +274,14 @@ public class MachineModel
 						try {
 						 	maxFeedrate = Double.parseDouble(XML.getAttributeValue(axis, "maxfeedrate"));
 						} catch (Exception e) {}
+						double acceleration = 0.0;
+						double jerk = 0.0;
+						try {
+							acceleration = Double.parseDouble(XML.getAttributeValue(axis, "acceleration"));
+						} catch (Exception e) {}
+						try {
+							jerk = Double.parseDouble(XML.getAttributeValue(axis, "jerk"));
+						} catch (Exception e) {}
 						try {
 							homingFeedrate = Double.parseDouble(XML.getAttributeValue(axis, "homingfeedrate"));
 						} catch (Exception e) {
@@ -297,6 +309,8 @@ public class MachineModel
 						}
 						maximum.setAxis(id,length);
 						maximumFeedrateSteps.setAxis(id,maxFeedrate);
+						axisAccelerations.setAxis(id,acceleration);
+						axisJerks.setAxis(id,jerk);
 						homingFeedrates.setAxis(id,homingFeedrate);
 						stepsPerMM.setAxis(id,stepspermm);
 						timeOut.setAxis(id,timeout);
@@ -606,6 +620,20 @@ public class MachineModel
 	}
 	
 	
+	/**
+	 * @return a new model loaded from the same configuration, with its own
+	 * tools, clamps and current tool. For running commands against, as an
+	 * estimate does, without touching the state of the machine this models.
+	 */
+	public MachineModel copy()
+	{
+		MachineModel copy = new MachineModel();
+		if (xml != null) {
+			copy.loadXML(xml);
+		}
+		return copy;
+	}
+
 	public void setTool(int index, ToolModel t)
 	{
 		try {
@@ -621,6 +649,16 @@ public class MachineModel
 		return maximumFeedrateSteps;
 	}
 	
+	/// Acceleration of each axis in mm/s/s, or 0 if not given
+	public Point5d getAxisAccelerations() {
+		return axisAccelerations;
+	}
+
+	/// Largest instant change in speed of each axis in mm/s, or 0 if not given
+	public Point5d getAxisJerks() {
+		return axisJerks;
+	}
+
 	public Point5d getHomingFeedrates() {
 		return homingFeedrates;
 	}
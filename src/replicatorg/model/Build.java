@@ -247,7 +247,9 @@ public class Build {
 			if(hasMainWindow )
 			{
 				if (code.isModified()) { 
-					code.program = editor.getText();
+					if (!code.isMapped()) {
+						code.program = editor.getText();
+					}
 					code.save();
 				}
 			}
@@ -303,7 +305,7 @@ public class Build {
 			// first get the contents of the editor text area
 			if(hasMainWindow)
 			{
-				if (code.isModified()) {
+				if (code.isModified() && !code.isMapped()) {
 					code.program = editor.getText();
 				}
 			}
@@ -351,10 +353,13 @@ public class Build {
         int ret;
 
         BuildCode code = getCode();
-        if (null != code)
-            ret = countLines(code.program);
-        else
+        if (null == code)
             ret = 0;
+        else if (code.isMapped())
+            // as countLines() would: the document has an empty line after the last break
+            ret = code.document.getDefaultRootElement().getElementCount() - 2;
+        else
+            ret = countLines(code.program);
 
         return (ret);
 	}
@@ -39,7 +39,7 @@ public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 	/** File object for where this code is located */
 	public File file;
 
-	/** Text of the program text for this tab */
+	/** Text of the program text for this tab; null if the file is mapped rather than loaded */
 	public String program;
 
 	/** Document object for this tab; includes undo information, etc. */
@@ -70,11 +70,26 @@ public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 			program = "";
 			setModified(true);
 		} else {
-			program = Base.loadFile(file);
+			// Large files are mapped, and come with their document
+			MappedGCodeDocument mapped = MappedGCodeDocument.load(file);
+			if (mapped != null) {
+				document = mapped;
+				program = null;
+			} else {
+				program = Base.loadFile(file);
+			}
 			setModified(false);
 		}
 	}
 
+	/**
+	 * @return true if the file is mapped, so the text is in the document
+	 * rather than in program
+	 */
+	public boolean isMapped() {
+		return document instanceof MappedGCodeDocument;
+	}
+
 	/**
 	 * Save this piece of code, regardless of whether the modified flag is set
 	 * or not.
@@ -83,7 +98,11 @@ public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 		// TODO re-enable history
 		// history.record(s, SketchHistory.SAVE);
 
-		Base.saveFile(program, file);
+		if (isMapped()) {
+			((MappedGCodeDocument)document).save(file);
+		} else {
+			Base.saveFile(program, file);
+		}
 		setModified(false);
 	}
 
@@ -91,7 +110,11 @@ public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 	 * Save this file to another location, used by Sketch.saveAs()
 	 */
 	public void saveAs(File newFile) throws IOException {
-		Base.saveFile(program, newFile);
+		if (isMapped()) {
+			((MappedGCodeDocument)document).save(newFile);
+		} else {
+			Base.saveFile(program, newFile);
+		}
 		file = newFile;
 		name = file.getName();
 		// we're still truncating the suffix, for now.
@@ -9,8 +9,10 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Level;
 
+import javax.media.j3d.Geometry;
 import javax.media.j3d.Shape3D;
 import javax.media.j3d.Transform3D;
+import javax.media.j3d.TriangleArray;
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
 import javax.swing.undo.UndoManager;
@@ -22,7 +24,10 @@ import org.j3d.renderer.java3d.loaders.STLLoader;
 
 import replicatorg.app.Base;
 import replicatorg.app.ui.modeling.EditingModel;
+import replicatorg.model.j3d.IndexedMesh;
+import replicatorg.model.j3d.ModelWriter;
 import replicatorg.model.j3d.StlAsciiWriter;
+import replicatorg.model.j3d.StlBinaryWriter;
 
 import com.sun.j3d.loaders.Loader;
 import com.sun.j3d.loaders.Scene;
@@ -32,6 +37,7 @@ public class BuildModel extends BuildElement {
 	private File file;
 	private Transform3D transform = new Transform3D();
 	private Shape3D shape = null;
+	private IndexedMesh mesh = null;
 	private EditingModel editListener = null;
 	
 	public void setEditListener(EditingModel eModel) {
@@ -60,6 +66,15 @@ public class BuildModel extends BuildElement {
 		return shape;
 	}
 
+	/**
+	 * @return the welded mesh the shape renders, or null if the model isn't
+	 * loaded or its loader didn't produce plain triangles
+	 */
+	public IndexedMesh getMesh() {
+		getShape();
+		return mesh;
+	}
+
 	// Attempt to load the file with the given loader.  Should return
 	// null if the given loader can't identify the file as being of
 	// the correct type.
@@ -106,7 +121,17 @@ public class BuildModel extends BuildElement {
 				if (candidate != null) { break; }
 			}
 		}
-		if (candidate != null) { shape = candidate; }
+		if (candidate != null) { shape = weld(candidate); }
+	}
+
+	// Swap the loaded triangles for an indexed mesh with their shared vertices welded
+	private Shape3D weld(Shape3D candidate) {
+		Geometry g = candidate.getGeometry();
+		if (!(g instanceof TriangleArray) || ((TriangleArray)g).getVertexCount() == 0) {
+			return candidate;
+		}
+		mesh = new IndexedMesh((TriangleArray)g);
+		return new Shape3D(mesh.getGeometry(), candidate.getAppearance());
 	}
 
 	public Transform3D getTransform() { return transform; }
@@ -237,9 +262,17 @@ public class BuildModel extends BuildElement {
 		try {
 			FileOutputStream ostream = new FileOutputStream(f);
 			Base.logger.info("Writing to "+f.getCanonicalPath()+".");
-			StlAsciiWriter saw = new StlAsciiWriter(ostream);
-			saw.writeShape(getShape(), getTransform());
-			ostream.close();
+			ModelWriter writer;
+			if (Base.preferences.getBoolean("model.saveAscii", false)) {
+				writer = new StlAsciiWriter(ostream);
+			} else {
+				writer = new StlBinaryWriter(ostream);
+			}
+			try {
+				writer.writeShape(getShape(), getTransform());
+			} finally {
+				writer.close();
+			}
 			undo = new UndoManager();
 			setModified(false);
 			return true;
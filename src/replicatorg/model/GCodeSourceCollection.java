@@ -1,6 +1,7 @@
 package replicatorg.model;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
@@ -73,6 +74,11 @@ public class GCodeSourceCollection implements GCodeSource {
 		return lineCount;
 	}
 
+	/** @return the sources, in order */
+	public List<GCodeSource> getSources() {
+		return Collections.unmodifiableList(sources);
+	}
+
 	@Override
 	public List<String> asList() {
 		List<String> result = new ArrayList<String>();
@@ -3,9 +3,10 @@
  */
 package replicatorg.model;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.RandomAccess;
 
 import replicatorg.app.syntax.JEditTextArea;
 
@@ -37,12 +38,26 @@ public class JEditTextAreaSource implements GCodeSource {
 		return textarea.getLineCount();
 	}
 
+	/**
+	 * @return a read-only view of the lines; each line is read from the
+	 * document as it is asked for
+	 */
 	@Override
 	public List<String> asList() {
-		List<String> result = new ArrayList<String>();
-		for(Iterator<String> i = iterator(); i.hasNext();)
-			result.add(i.next());
-		return result;
+		return new LineList(textarea);
+	}
+
+	private static class LineList extends AbstractList<String> implements RandomAccess {
+		private final JEditTextArea ta;
+		LineList(JEditTextArea ta) { this.ta = ta; }
+		@Override
+		public String get(int index) {
+			if (index < 0 || index >= ta.getLineCount())
+				throw new IndexOutOfBoundsException("Line " + index + " of " + ta.getLineCount());
+			return ta.getLineText(index);
+		}
+		@Override
+		public int size() { return ta.getLineCount(); }
 	}
 
 	
@@ -0,0 +1,332 @@
+package replicatorg.model;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.Segment;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+
+import replicatorg.app.Base;
+import replicatorg.app.syntax.SyntaxDocument;
+import replicatorg.app.util.FileUtils;
+
+/**
+ * A document for a large gcode file, read from a memory-mapped file rather
+ * than loaded.
+ *
+ * PlainDocument keeps its text in a gap buffer of chars, twice the size of
+ * the file, and an Element with two Positions for every line. Here the text
+ * is a PieceTableContent over a MappedGCodeSource, and the lines aren't kept
+ * at all: the root element works out where a line starts, or which line an
+ * offset is on, from the content when asked, in O(log n). A file of millions
+ * of lines opens at the cost of indexing it, and the heap holds about five
+ * bytes a line: four for the index and one for the token marker.
+ *
+ * The document can be edited like any other. Edits go into the piece table;
+ * the file is only touched by save(). Anything else that writes the file must
+ * replace it rather than rewrite it in place, as MappedGCodeSource explains.
+ */
+public class MappedGCodeDocument extends SyntaxDocument {
+	private static final long serialVersionUID = 1L;
+
+	/** Files smaller than this are loaded into an ordinary SyntaxDocument */
+	public static final long MIN_SIZE = 8 * 1024 * 1024;
+
+	MappedGCodeDocument(PieceTableContent content) {
+		super(content);
+	}
+
+	/**
+	 * Map the given file, if it's worth it.
+	 * @return a document for the file, or null if it should be loaded as
+	 * usual: it's small, isn't plain ASCII or can't be mapped, or this is
+	 * Windows, which won't let a mapped file be saved over.
+	 */
+	public static MappedGCodeDocument load(File file) {
+		if (file.length() < MIN_SIZE || Base.isWindows()) {
+			return null;
+		}
+		try {
+			MappedGCodeSource source = new MappedGCodeSource(file);
+			if (!source.isAscii()) {
+				return null;
+			}
+			Base.logger.info("Mapped file : " + file.getAbsolutePath());
+			return new MappedGCodeDocument(new PieceTableContent(source));
+		} catch (IOException e) {
+			Base.logger.log(Level.WARNING, "Could not map " + file + ", loading it instead", e);
+			return null;
+		}
+	}
+
+	private PieceTableContent lines() {
+		return (PieceTableContent) getContent();
+	}
+
+	/**
+	 * Write the text out a line at a time, as Base.saveFile() does. It goes to
+	 * a temporary file that is then moved over the given one, so the file this
+	 * document was mapped from can be saved over; the mapping keeps the old
+	 * contents.
+	 */
+	public void save(File file) throws IOException {
+		Base.logger.info("Saving as " + file.getCanonicalPath());
+		File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(temp)));
+			readLock();
+			try {
+				Element root = getDefaultRootElement();
+				Segment segment = new Segment();
+				int count = root.getElementCount();
+				for (int i = 0; i < count; i++) {
+					Element line = root.getElement(i);
+					int start = line.getStartOffset();
+					int length = line.getEndOffset() - start - 1;
+					// There's no line after the last break, as BufferedReader sees it
+					if (i == count - 1 && length == 0) {
+						break;
+					}
+					getText(start, length, segment);
+					writer.write(segment.array, segment.offset, segment.count);
+					writer.println();
+				}
+			} catch (BadLocationException e) {
+				throw new IOException(e.toString());
+			} finally {
+				readUnlock();
+				writer.close();
+			}
+			if (writer.checkError()) {
+				throw new IOException("Could not write " + temp);
+			}
+			FileUtils.replaceFile(temp, file);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	@Override
+	protected AbstractElement createDefaultRoot() {
+		return new LineRoot();
+	}
+
+	/**
+	 * The content already has the new text. The lines aren't stored, so
+	 * there's nothing to update; listeners are just told which changed.
+	 */
+	@Override
+	protected void insertUpdate(DefaultDocumentEvent chng, AttributeSet attr) {
+		PieceTableContent lines = lines();
+		int offset = chng.getOffset();
+		int length = chng.getLength();
+		int first = lines.getLineOf(offset);
+		int last = lines.getLineOf(offset + length);
+		if (last > first) {
+			Element[] removed = { new Line(lines.getLineStart(first),
+					lines.getLineStart(last + 1) - length) };
+			Element[] added = new Element[last - first + 1];
+			for (int i = first; i <= last; i++) {
+				added[i - first] = new Line(lines.getLineStart(i), lines.getLineStart(i + 1));
+			}
+			chng.addEdit(new LineChange(getDefaultRootElement(), first, removed, added));
+		}
+	}
+
+	/**
+	 * The content still has the text being removed.
+	 */
+	@Override
+	protected void removeUpdate(DefaultDocumentEvent chng) {
+		PieceTableContent lines = lines();
+		int offset = chng.getOffset();
+		int length = chng.getLength();
+		int first = lines.getLineOf(offset);
+		int last = lines.getLineOf(offset + length);
+		if (last > first) {
+			Element[] removed = new Element[last - first + 1];
+			for (int i = first; i <= last; i++) {
+				removed[i - first] = new Line(lines.getLineStart(i), lines.getLineStart(i + 1));
+			}
+			Element[] added = { new Line(lines.getLineStart(first),
+					lines.getLineStart(last + 1) - length) };
+			chng.addEdit(new LineChange(getDefaultRootElement(), first, removed, added));
+		}
+	}
+
+	/**
+	 * The root: a line for each line break in the content, made when asked for.
+	 */
+	private class LineRoot extends AbstractElement {
+		private static final long serialVersionUID = 1L;
+		LineRoot() {
+			super(null, null);
+		}
+
+		public String getName() {
+			return ParagraphElementName;
+		}
+
+		public int getStartOffset() {
+			return 0;
+		}
+
+		public int getEndOffset() {
+			return lines().length();
+		}
+
+		public Element getElement(int index) {
+			if (index < 0 || index >= getElementCount()) {
+				return null;
+			}
+			PieceTableContent lines = lines();
+			return new Line(lines.getLineStart(index), lines.getLineStart(index + 1));
+		}
+
+		public int getElementCount() {
+			return lines().getLineCount();
+		}
+
+		public int getElementIndex(int offset) {
+			int index = lines().getLineOf(Math.max(0, Math.min(offset, getEndOffset() - 1)));
+			return Math.min(index, getElementCount() - 1);
+		}
+
+		public boolean isLeaf() {
+			return false;
+		}
+
+		public boolean getAllowsChildren() {
+			return true;
+		}
+
+		@SuppressWarnings("rawtypes")
+		public Enumeration children() {
+			return new Enumeration<Element>() {
+				int index = 0;
+				public boolean hasMoreElements() { return index < getElementCount(); }
+				public Element nextElement() {
+					if (index >= getElementCount()) {
+						throw new NoSuchElementException();
+					}
+					return getElement(index++);
+				}
+			};
+		}
+	}
+
+	/**
+	 * One line, as it was when it was asked for.
+	 */
+	private class Line extends AbstractElement {
+		private static final long serialVersionUID = 1L;
+		private final int start;
+		private final int end;
+
+		Line(int start, int end) {
+			super(getDefaultRootElement(), null);
+			this.start = start;
+			this.end = end;
+		}
+
+		public String getName() {
+			return ContentElementName;
+		}
+
+		public int getStartOffset() {
+			return start;
+		}
+
+		public int getEndOffset() {
+			return end;
+		}
+
+		public Element getElement(int index) {
+			return null;
+		}
+
+		public int getElementCount() {
+			return 0;
+		}
+
+		public int getElementIndex(int offset) {
+			return -1;
+		}
+
+		public boolean isLeaf() {
+			return true;
+		}
+
+		public boolean getAllowsChildren() {
+			return false;
+		}
+
+		@SuppressWarnings("rawtypes")
+		public Enumeration children() {
+			return null;
+		}
+	}
+
+	/**
+	 * Which lines an edit replaced. Undoing the edit swaps them round, so the
+	 * undo's listeners are told the reverse.
+	 */
+	private static class LineChange extends AbstractUndoableEdit implements DocumentEvent.ElementChange {
+		private static final long serialVersionUID = 1L;
+		private final Element root;
+		private final int index;
+		private Element[] removed;
+		private Element[] added;
+
+		LineChange(Element root, int index, Element[] removed, Element[] added) {
+			this.root = root;
+			this.index = index;
+			this.removed = removed;
+			this.added = added;
+		}
+
+		public Element getElement() {
+			return root;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public Element[] getChildrenRemoved() {
+			return removed;
+		}
+
+		public Element[] getChildrenAdded() {
+			return added;
+		}
+
+		public void undo() throws CannotUndoException {
+			super.undo();
+			swap();
+		}
+
+		public void redo() throws CannotRedoException {
+			super.redo();
+			swap();
+		}
+
+		private void swap() {
+			Element[] temp = removed;
+			removed = added;
+			added = temp;
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package replicatorg.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * A read-only GCodeSource backed by a memory-mapped file.
+ *
+ * Rather than reading every line into a String up front, the file is mapped
+ * and a single pass records the byte offset at which each line starts. Lines
+ * are only decoded when asked for, by iterator() or getLine(), so a very large
+ * file costs four bytes of heap per line instead of a String per line.
+ *
+ * Lines are split the same way BufferedReader.readLine() splits them: on \n,
+ * \r or \r\n, with no empty line after a trailing terminator. Text is decoded
+ * in the platform charset, as FileReader would.
+ *
+ * The file must not be rewritten in place while this source is in use: once
+ * it is truncated, reading the mapped pages past its new end fails. Everything
+ * that writes a build's gcode either writes a new file and renames it over the
+ * old one or deletes the old one first, which leaves the mapping with the old
+ * contents. Files of 2GB or more are not supported.
+ */
+public class MappedGCodeSource implements GCodeSource {
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final int size;
+
+	// Offset of the first byte of each line; lineStarts[lineCount] is the file size
+	private final int[] lineStarts;
+	private final int lineCount;
+
+	// Whether every byte is 7-bit ASCII, and whether any line ends in \r
+	private final boolean ascii;
+	private final boolean carriageReturns;
+
+	private final Charset charset = Charset.defaultCharset();
+
+	/**
+	 * Map the given file and index its lines.
+	 * @throws IOException if the file can't be read, or is too large to map
+	 */
+	public MappedGCodeSource(File file) throws IOException {
+		this.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long length = channel.size();
+			if (length >= Integer.MAX_VALUE) {
+				throw new IOException("File too large to map: " + file.getAbsolutePath());
+			}
+			size = (int) length;
+			// The mapping stays valid after the channel is closed.
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			raf.close();
+		}
+
+		// Index the line starts in one pass. Guess ~32 bytes per line to start with.
+		int[] starts = new int[Math.max(16, size / 32)];
+		int count = 0;
+		int pos = 0;
+		boolean highBytes = false;
+		boolean cr = false;
+		while (pos < size) {
+			if (count + 1 >= starts.length) {
+				int[] grown = new int[starts.length + (starts.length >> 1)];
+				System.arraycopy(starts, 0, grown, 0, count);
+				starts = grown;
+			}
+			starts[count++] = pos;
+			while (pos < size) {
+				byte b = buffer.get(pos++);
+				if (b == '\n') {
+					break;
+				}
+				if (b < 0) {
+					highBytes = true;
+				}
+				if (b == '\r') {
+					cr = true;
+					if (pos < size && buffer.get(pos) == '\n') {
+						pos++;
+					}
+					break;
+				}
+			}
+		}
+		starts[count] = size;
+
+		// Trim the index so we don't hold on to the slack
+		if (starts.length > count + 1) {
+			int[] trimmed = new int[count + 1];
+			System.arraycopy(starts, 0, trimmed, 0, count + 1);
+			starts = trimmed;
+		}
+		lineStarts = starts;
+		lineCount = count;
+		ascii = !highBytes;
+		carriageReturns = cr;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the mapped bytes of the file, read-only, positioned at the start
+	 */
+	public ByteBuffer getBytes() {
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return the given line, 0 indexed, without its line terminator
+	 */
+	public String getLine(int index) {
+		if (index < 0 || index >= lineCount) {
+			throw new IndexOutOfBoundsException("Line " + index + " of " + lineCount);
+		}
+		int start = lineStarts[index];
+		return decode(start, start + getLineLength(index));
+	}
+
+	/**
+	 * @return the size of the file in bytes
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the byte offset of the given line; getLineStart(getLineCount()) is the file size
+	 */
+	public int getLineStart(int index) {
+		return lineStarts[index];
+	}
+
+	/**
+	 * @return the length in bytes of the given line, without its line terminator
+	 */
+	public int getLineLength(int index) {
+		int start = lineStarts[index];
+		int end = lineStarts[index + 1];
+		// Strip the terminator: \n, \r or \r\n
+		if (end > start && buffer.get(end - 1) == '\n') {
+			end--;
+		}
+		if (end > start && buffer.get(end - 1) == '\r') {
+			end--;
+		}
+		return end - start;
+	}
+
+	/**
+	 * @return true if the file is all 7-bit ASCII, so that each byte is one
+	 * character whatever the charset
+	 */
+	public boolean isAscii() {
+		return ascii;
+	}
+
+	/**
+	 * @return true if any line ends in \r or \r\n rather than just \n
+	 */
+	public boolean hasCarriageReturns() {
+		return carriageReturns;
+	}
+
+	/**
+	 * Copy bytes straight into a char array, one char per byte. Only
+	 * meaningful for an ASCII file.
+	 */
+	public void getChars(int offset, int count, char[] dest, int destPos) {
+		for (int i = 0; i < count; i++) {
+			dest[destPos + i] = (char) buffer.get(offset + i);
+		}
+	}
+
+	private String decode(int start, int end) {
+		int length = end - start;
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			byte b = buffer.get(start + i);
+			if (b < 0) {
+				// Not plain ASCII; let the charset deal with it.
+				return decodeCharset(start, end);
+			}
+			chars[i] = (char) b;
+		}
+		return new String(chars);
+	}
+
+	private String decodeCharset(int start, int end) {
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(end);
+		slice.position(start);
+		CharsetDecoder decoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		try {
+			CharBuffer chars = decoder.decode(slice);
+			return chars.toString();
+		} catch (CharacterCodingException e) {
+			// Can't happen with REPLACE
+			return "";
+		}
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+			int idx = 0;
+			public boolean hasNext() { return idx < lineCount; }
+			public String next() {
+				if (idx >= lineCount) {
+					throw new NoSuchElementException();
+				}
+				return getLine(idx++);
+			}
+			public void remove() { throw new UnsupportedOperationException(); }
+		};
+	}
+
+	/**
+	 * @return a read-only view of the lines; each line is decoded as it is read
+	 */
+	@Override
+	public List<String> asList() {
+		return new LineList();
+	}
+
+	private class LineList extends AbstractList<String> implements RandomAccess {
+		@Override
+		public String get(int index) {
+			return getLine(index);
+		}
+		@Override
+		public int size() {
+			return lineCount;
+		}
+		@Override
+		public Iterator<String> iterator() {
+			return MappedGCodeSource.this.iterator();
+		}
+	}
+
+	@Override
+	public int getLineCount() {
+		return lineCount;
+	}
+}
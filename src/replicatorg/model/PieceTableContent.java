@@ -0,0 +1,511 @@
+package replicatorg.model;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
+
+/**
+ * The text of a MappedGCodeDocument: a piece table over a MappedGCodeSource.
+ *
+ * The text starts out as the mapped file with each line ending in \n, as
+ * Base.loadFile() would have it, plus the \n every Document ends in. None of
+ * it is copied. The text is a list of pieces, each a range of either that
+ * original text or of a buffer that everything typed or pasted is appended
+ * to, so an edit splits a piece or two and adds or drops some: it costs in
+ * the number of pieces, not the size of the file.
+ *
+ * Each piece knows how many line breaks it holds, so the start of a line, or
+ * the line an offset is on, is found by a binary search over the pieces and
+ * then one over the file's line index.
+ *
+ * The file must be plain ASCII, so that a byte is a char.
+ */
+class PieceTableContent implements AbstractDocument.Content {
+
+	private static class Piece {
+		// a range of the original text, or of the added text
+		final boolean original;
+		final int start;
+		final int length;
+		// how many line breaks it holds
+		final int breaks;
+		// for added text, where in the piece they are
+		final int[] breakOffsets;
+
+		Piece(boolean original, int start, int length, int breaks, int[] breakOffsets) {
+			this.original = original;
+			this.start = start;
+			this.length = length;
+			this.breaks = breaks;
+			this.breakOffsets = breakOffsets;
+		}
+	}
+
+	private static class Mark implements Position {
+		int offset;
+
+		Mark(int offset) {
+			this.offset = offset;
+		}
+
+		public int getOffset() {
+			return offset;
+		}
+	}
+
+	private final MappedGCodeSource source;
+	private final int sourceLines;
+	// Where each line of the original text starts, if the file has \r in it;
+	// otherwise the file's own line starts are the same
+	private final int[] originalStarts;
+	// The length of the original text up to the final \n
+	private final int originalTextLength;
+
+	private final StringBuilder added = new StringBuilder();
+
+	private final List<Piece> pieces = new ArrayList<Piece>();
+	// The offset of each piece, and how many line breaks come before it; the
+	// last entry is the total
+	private int[] pieceOffsets;
+	private int[] breaksBefore;
+
+	private final List<WeakReference<Mark>> marks = new ArrayList<WeakReference<Mark>>();
+
+	PieceTableContent(MappedGCodeSource source) {
+		this.source = source;
+		sourceLines = source.getLineCount();
+		if (source.hasCarriageReturns()) {
+			originalStarts = new int[sourceLines];
+			int start = 0;
+			for (int i = 0; i < sourceLines; i++) {
+				originalStarts[i] = start;
+				start += source.getLineLength(i) + 1;
+			}
+			originalTextLength = start;
+		} else {
+			originalStarts = null;
+			originalTextLength = sourceLines == 0 ? 0 :
+				source.getLineStart(sourceLines - 1) + source.getLineLength(sourceLines - 1) + 1;
+		}
+		pieces.add(originalPiece(0, originalTextLength + 1));
+		index();
+	}
+
+	// The original text
+
+	// Where line k of the original text starts, for 0 <= k <= sourceLines + 1
+	private int originalStart(int k) {
+		if (k > sourceLines) {
+			return originalTextLength + 1;
+		}
+		if (k == sourceLines) {
+			return originalTextLength;
+		}
+		return originalStarts != null ? originalStarts[k] : source.getLineStart(k);
+	}
+
+	// The line of the original text the given offset is on, which is how many
+	// line breaks come before it
+	private int originalLineAt(int offset) {
+		int low = 0;
+		int high = sourceLines + 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (originalStart(mid) <= offset) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private void getOriginalChars(int offset, int count, char[] dest, int destPos) {
+		if (originalStarts == null) {
+			// A byte per char up to the end of the file, and line breaks after it
+			int fromFile = Math.max(0, Math.min(count, source.getSize() - offset));
+			source.getChars(offset, fromFile, dest, destPos);
+			Arrays.fill(dest, destPos + fromFile, destPos + count, '\n');
+			return;
+		}
+		int line = originalLineAt(offset);
+		while (count > 0) {
+			int column = offset - originalStart(line);
+			int length = line < sourceLines ? source.getLineLength(line) : 0;
+			if (column < length) {
+				int n = Math.min(count, length - column);
+				source.getChars(source.getLineStart(line) + column, n, dest, destPos);
+				offset += n;
+				destPos += n;
+				count -= n;
+			} else {
+				dest[destPos++] = '\n';
+				offset++;
+				count--;
+				line++;
+			}
+		}
+	}
+
+	// The pieces
+
+	private Piece originalPiece(int start, int length) {
+		int breaks = originalLineAt(start + length) - originalLineAt(start);
+		return new Piece(true, start, length, breaks, null);
+	}
+
+	private Piece addedPiece(int start, int length) {
+		int breaks = 0;
+		for (int i = 0; i < length; i++) {
+			if (added.charAt(start + i) == '\n') {
+				breaks++;
+			}
+		}
+		int[] breakOffsets = new int[breaks];
+		for (int i = 0, b = 0; b < breaks; i++) {
+			if (added.charAt(start + i) == '\n') {
+				breakOffsets[b++] = i;
+			}
+		}
+		return new Piece(false, start, length, breaks, breakOffsets);
+	}
+
+	// An added piece with str, just appended, on the end of it
+	private Piece extendedPiece(Piece piece, String str) {
+		int breaks = piece.breaks;
+		for (int i = 0; i < str.length(); i++) {
+			if (str.charAt(i) == '\n') {
+				breaks++;
+			}
+		}
+		int[] breakOffsets = Arrays.copyOf(piece.breakOffsets, breaks);
+		for (int i = 0, b = piece.breaks; b < breaks; i++) {
+			if (str.charAt(i) == '\n') {
+				breakOffsets[b++] = piece.length + i;
+			}
+		}
+		return new Piece(false, piece.start, piece.length + str.length(), breaks, breakOffsets);
+	}
+
+	private Piece piece(boolean original, int start, int length) {
+		return original ? originalPiece(start, length) : addedPiece(start, length);
+	}
+
+	private void index() {
+		int count = pieces.size();
+		pieceOffsets = new int[count + 1];
+		breaksBefore = new int[count + 1];
+		for (int i = 0; i < count; i++) {
+			Piece piece = pieces.get(i);
+			pieceOffsets[i + 1] = pieceOffsets[i] + piece.length;
+			breaksBefore[i + 1] = breaksBefore[i] + piece.breaks;
+		}
+	}
+
+	// The last piece that starts at or before offset
+	private int findPiece(int offset) {
+		int low = 0;
+		int high = pieces.size() - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (pieceOffsets[mid] <= offset) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	// Make sure a piece starts at offset, and return its index
+	private int split(int offset) {
+		int i = findPiece(offset);
+		Piece piece = pieces.get(i);
+		int at = offset - pieceOffsets[i];
+		if (at == 0) {
+			return i;
+		}
+		if (at == piece.length) {
+			return i + 1;
+		}
+		pieces.set(i, piece(piece.original, piece.start, at));
+		pieces.add(i + 1, piece(piece.original, piece.start + at, piece.length - at));
+		index();
+		return i + 1;
+	}
+
+	private void insert(int where, String str) {
+		int start = added.length();
+		added.append(str);
+		// Typing goes on the end of the piece it's extending
+		if (where > 0) {
+			int i = findPiece(where - 1);
+			Piece piece = pieces.get(i);
+			if (!piece.original && pieceOffsets[i] + piece.length == where
+					&& piece.start + piece.length == start) {
+				pieces.set(i, extendedPiece(piece, str));
+				index();
+				return;
+			}
+		}
+		int i = split(where);
+		pieces.add(i, addedPiece(start, str.length()));
+		index();
+	}
+
+	private void delete(int where, int nitems) {
+		int first = split(where);
+		int last = split(where + nitems);
+		pieces.subList(first, last).clear();
+		index();
+	}
+
+	// Lines
+
+	/**
+	 * @return how many line breaks there are; as the text ends in one, that's
+	 * how many lines there are
+	 */
+	int getLineCount() {
+		return breaksBefore[pieces.size()];
+	}
+
+	/**
+	 * @return the offset at which the given line starts; for getLineCount(),
+	 * the length of the text
+	 */
+	int getLineStart(int line) {
+		if (line <= 0) {
+			return 0;
+		}
+		if (line >= getLineCount()) {
+			return length();
+		}
+		// The piece holding the break before the line
+		int low = 0;
+		int high = pieces.size() - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (breaksBefore[mid] < line) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		Piece piece = pieces.get(low);
+		int nth = line - breaksBefore[low];
+		int after;
+		if (piece.original) {
+			after = originalStart(originalLineAt(piece.start) + nth) - piece.start;
+		} else {
+			after = piece.breakOffsets[nth - 1] + 1;
+		}
+		return pieceOffsets[low] + after;
+	}
+
+	/**
+	 * @return the line the given offset is on
+	 */
+	int getLineOf(int offset) {
+		int i = findPiece(offset);
+		Piece piece = pieces.get(i);
+		int at = offset - pieceOffsets[i];
+		int before;
+		if (piece.original) {
+			before = originalLineAt(piece.start + at) - originalLineAt(piece.start);
+		} else {
+			before = Arrays.binarySearch(piece.breakOffsets, at);
+			if (before < 0) {
+				before = -before - 1;
+			}
+		}
+		return breaksBefore[i] + before;
+	}
+
+	// AbstractDocument.Content
+
+	public int length() {
+		return pieceOffsets[pieces.size()];
+	}
+
+	public void getChars(int where, int len, Segment txt) throws BadLocationException {
+		if (where < 0 || len < 0 || where + len > length()) {
+			throw new BadLocationException("Invalid location", where + len);
+		}
+		char[] chars = new char[len];
+		int i = findPiece(where);
+		int at = where - pieceOffsets[i];
+		int pos = 0;
+		while (pos < len) {
+			Piece piece = pieces.get(i++);
+			int n = Math.min(len - pos, piece.length - at);
+			if (piece.original) {
+				getOriginalChars(piece.start + at, n, chars, pos);
+			} else {
+				added.getChars(piece.start + at, piece.start + at + n, chars, pos);
+			}
+			pos += n;
+			at = 0;
+		}
+		txt.array = chars;
+		txt.offset = 0;
+		txt.count = len;
+	}
+
+	public String getString(int where, int len) throws BadLocationException {
+		Segment segment = new Segment();
+		getChars(where, len, segment);
+		return new String(segment.array, 0, len);
+	}
+
+	public UndoableEdit insertString(int where, String str) throws BadLocationException {
+		if (where < 0 || where >= length()) {
+			throw new BadLocationException("Invalid insert", where);
+		}
+		insert(where, str);
+		updateMarksForInsert(where, str.length());
+		return new InsertUndo(where, str.length());
+	}
+
+	public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+		if (where < 0 || nitems < 0 || where + nitems >= length()) {
+			throw new BadLocationException("Invalid remove", where + nitems);
+		}
+		UndoableEdit undo = new RemoveUndo(where, getString(where, nitems));
+		delete(where, nitems);
+		updateMarksForRemove(where, nitems);
+		return undo;
+	}
+
+	public Position createPosition(int offset) throws BadLocationException {
+		Mark mark = new Mark(offset);
+		marks.add(new WeakReference<Mark>(mark));
+		return mark;
+	}
+
+	// Positions move as StringContent moves them
+	private void updateMarksForInsert(int offset, int length) {
+		if (offset == 0) {
+			// zero is a special case where we never update
+			offset = 1;
+		}
+		for (Iterator<WeakReference<Mark>> i = marks.iterator(); i.hasNext(); ) {
+			Mark mark = i.next().get();
+			if (mark == null) {
+				i.remove();
+			} else if (mark.offset >= offset) {
+				mark.offset += length;
+			}
+		}
+	}
+
+	private void updateMarksForRemove(int offset, int length) {
+		int end = offset + length;
+		for (Iterator<WeakReference<Mark>> i = marks.iterator(); i.hasNext(); ) {
+			Mark mark = i.next().get();
+			if (mark == null) {
+				i.remove();
+			} else if (mark.offset >= end) {
+				mark.offset -= length;
+			} else if (mark.offset >= offset) {
+				mark.offset = offset;
+			}
+		}
+	}
+
+	// The marks in [offset, offset + length], and where they are, so an undo
+	// can put them back as GapContent does
+	private class SavedMarks {
+		private final List<Mark> saved = new ArrayList<Mark>();
+		private final List<Integer> offsets = new ArrayList<Integer>();
+
+		SavedMarks(int offset, int length) {
+			for (WeakReference<Mark> ref : marks) {
+				Mark mark = ref.get();
+				if (mark != null && mark.offset >= offset && mark.offset <= offset + length) {
+					saved.add(mark);
+					offsets.add(mark.offset);
+				}
+			}
+		}
+
+		void restore() {
+			for (int i = 0; i < saved.size(); i++) {
+				saved.get(i).offset = offsets.get(i);
+			}
+		}
+	}
+
+	private class InsertUndo extends AbstractUndoableEdit {
+		private static final long serialVersionUID = 1L;
+		private final int offset;
+		private final int length;
+		private String string;
+		private SavedMarks saved;
+
+		InsertUndo(int offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public void undo() throws CannotUndoException {
+			super.undo();
+			try {
+				string = getString(offset, length);
+			} catch (BadLocationException e) {
+				throw new CannotUndoException();
+			}
+			saved = new SavedMarks(offset, length);
+			delete(offset, length);
+			updateMarksForRemove(offset, length);
+		}
+
+		public void redo() throws CannotRedoException {
+			super.redo();
+			insert(offset, string);
+			updateMarksForInsert(offset, length);
+			saved.restore();
+			string = null;
+			saved = null;
+		}
+	}
+
+	private class RemoveUndo extends AbstractUndoableEdit {
+		private static final long serialVersionUID = 1L;
+		private final int offset;
+		private final String string;
+		private SavedMarks saved;
+
+		RemoveUndo(int offset, String string) {
+			this.offset = offset;
+			this.string = string;
+			saved = new SavedMarks(offset, string.length());
+		}
+
+		public void undo() throws CannotUndoException {
+			super.undo();
+			insert(offset, string);
+			updateMarksForInsert(offset, string.length());
+			saved.restore();
+			saved = null;
+		}
+
+		public void redo() throws CannotRedoException {
+			super.redo();
+			saved = new SavedMarks(offset, string.length());
+			delete(offset, string.length());
+			updateMarksForRemove(offset, string.length());
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package replicatorg.model.j3d;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks out the points on the convex hull of a point set, using quickhull. Only
+ * the points are wanted, not the faces: the extent of a model in any direction
+ * is the extent of its hull, which usually has far fewer points than the model.
+ *
+ * If the points are flat, or rounding leaves the hull inconsistent, every point
+ * is returned instead; that's never wrong, only slower to use.
+ */
+class ConvexHull {
+
+	private static class Face {
+		final int a, b, c;
+		final double nx, ny, nz, offset;
+		int[] outside = new int[4];
+		int outsideCount = 0;
+		boolean dead = false;
+		int visit = -1;
+
+		Face(int a, int b, int c, double nx, double ny, double nz, double offset) {
+			this.a = a; this.b = b; this.c = c;
+			this.nx = nx; this.ny = ny; this.nz = nz; this.offset = offset;
+		}
+
+		void addOutside(int point) {
+			if (outsideCount == outside.length) {
+				int[] grown = new int[outside.length * 2];
+				System.arraycopy(outside, 0, grown, 0, outsideCount);
+				outside = grown;
+			}
+			outside[outsideCount++] = point;
+		}
+	}
+
+	private final float[] points;
+	private final int count;
+	private final double epsilon;
+	private final List<Face> faces = new ArrayList<Face>();
+	private final Map<Long,Face> edges = new HashMap<Long,Face>();
+
+	/**
+	 * @param points x, y and z of each point in turn
+	 * @param count the number of points
+	 * @return x, y and z of each point on the hull
+	 */
+	static float[] getHullPoints(float[] points, int count) {
+		float[] hull = null;
+		if (count > 4) {
+			hull = new ConvexHull(points, count).build();
+		}
+		if (hull == null) {
+			hull = new float[3 * count];
+			System.arraycopy(points, 0, hull, 0, hull.length);
+		}
+		return hull;
+	}
+
+	private ConvexHull(float[] points, int count) {
+		this.points = points;
+		this.count = count;
+		double max = 0;
+		for (int axis = 0; axis < 3; axis++) {
+			double extent = 0;
+			for (int i = 0; i < count; i++) {
+				extent = Math.max(extent, Math.abs(points[3 * i + axis]));
+			}
+			max += extent;
+		}
+		// As in John Lloyd's QuickHull3D: the error in a distance to a plane
+		epsilon = 3 * max * 2.2204460492503131e-16;
+	}
+
+	// Returns null if the hull can't be trusted
+	private float[] build() {
+		if (!buildSimplex()) {
+			return null;
+		}
+		LinkedList<Face> pending = new LinkedList<Face>(faces);
+		int visit = 0;
+		List<Face> visible = new ArrayList<Face>();
+		List<int[]> horizon = new ArrayList<int[]>();
+		List<Face> created = new ArrayList<Face>();
+		while (!pending.isEmpty()) {
+			Face face = pending.removeFirst();
+			if (face.dead || face.outsideCount == 0) {
+				continue;
+			}
+			int eye = face.outside[0];
+			double farthest = distance(face, eye);
+			for (int i = 1; i < face.outsideCount; i++) {
+				double d = distance(face, face.outside[i]);
+				if (d > farthest) {
+					farthest = d;
+					eye = face.outside[i];
+				}
+			}
+
+			// Find the faces the eye point can see, and the edges around them
+			visible.clear();
+			horizon.clear();
+			face.visit = visit;
+			visible.add(face);
+			for (int i = 0; i < visible.size(); i++) {
+				Face f = visible.get(i);
+				int[] corners = { f.a, f.b, f.c };
+				for (int e = 0; e < 3; e++) {
+					int from = corners[e], to = corners[(e + 1) % 3];
+					Face twin = edges.get(key(to, from));
+					if (twin == null) {
+						return null;
+					}
+					if (twin.visit == visit) {
+						continue;
+					}
+					if (distance(twin, eye) > epsilon) {
+						twin.visit = visit;
+						visible.add(twin);
+					} else {
+						horizon.add(new int[] { from, to });
+					}
+				}
+			}
+			visit++;
+
+			for (Face f : visible) {
+				f.dead = true;
+				edges.remove(key(f.a, f.b));
+				edges.remove(key(f.b, f.c));
+				edges.remove(key(f.c, f.a));
+			}
+			created.clear();
+			for (int[] edge : horizon) {
+				Face f = addFace(edge[0], edge[1], eye);
+				if (f == null) {
+					return null;
+				}
+				created.add(f);
+			}
+
+			// Hand the points the old faces had on to the new ones
+			for (Face f : visible) {
+				for (int i = 0; i < f.outsideCount; i++) {
+					int point = f.outside[i];
+					if (point != eye) {
+						assign(point, created);
+					}
+				}
+				f.outside = null;
+			}
+			for (Face f : created) {
+				if (f.outsideCount > 0) {
+					pending.add(f);
+				}
+			}
+		}
+
+		boolean[] onHull = new boolean[count];
+		int hullCount = 0;
+		for (Face f : faces) {
+			if (f.dead) {
+				continue;
+			}
+			if (edges.get(key(f.b, f.a)) == null || edges.get(key(f.c, f.b)) == null
+					|| edges.get(key(f.a, f.c)) == null) {
+				return null;
+			}
+			int[] corners = { f.a, f.b, f.c };
+			for (int corner : corners) {
+				if (!onHull[corner]) {
+					onHull[corner] = true;
+					hullCount++;
+				}
+			}
+		}
+		float[] hull = new float[3 * hullCount];
+		int j = 0;
+		for (int i = 0; i < count; i++) {
+			if (onHull[i]) {
+				hull[j++] = points[3 * i];
+				hull[j++] = points[3 * i + 1];
+				hull[j++] = points[3 * i + 2];
+			}
+		}
+		return hull;
+	}
+
+	// Start with the largest tetrahedron we can easily find
+	private boolean buildSimplex() {
+		int[] extremes = new int[6];
+		for (int i = 1; i < count; i++) {
+			for (int axis = 0; axis < 3; axis++) {
+				if (points[3 * i + axis] < points[3 * extremes[2 * axis] + axis]) {
+					extremes[2 * axis] = i;
+				}
+				if (points[3 * i + axis] > points[3 * extremes[2 * axis + 1] + axis]) {
+					extremes[2 * axis + 1] = i;
+				}
+			}
+		}
+		int p0 = 0, p1 = 0;
+		double best = -1;
+		for (int i = 0; i < 6; i++) {
+			for (int j = i + 1; j < 6; j++) {
+				double d = distanceSquared(extremes[i], extremes[j]);
+				if (d > best) {
+					best = d;
+					p0 = extremes[i];
+					p1 = extremes[j];
+				}
+			}
+		}
+		if (best <= epsilon * epsilon) {
+			return false;
+		}
+
+		// Farthest from the line p0-p1
+		int p2 = -1;
+		best = 0;
+		double[] n = new double[3];
+		for (int i = 0; i < count; i++) {
+			normal(p0, p1, i, n);
+			double d = n[0] * n[0] + n[1] * n[1] + n[2] * n[2];
+			if (d > best) {
+				best = d;
+				p2 = i;
+			}
+		}
+		if (p2 < 0 || Math.sqrt(best) <= epsilon) {
+			return false;
+		}
+
+		// Farthest from the plane p0-p1-p2
+		normal(p0, p1, p2, n);
+		double length = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+		double offset = (n[0] * points[3 * p0] + n[1] * points[3 * p0 + 1] + n[2] * points[3 * p0 + 2]) / length;
+		int p3 = -1;
+		best = 0;
+		for (int i = 0; i < count; i++) {
+			double d = Math.abs((n[0] * points[3 * i] + n[1] * points[3 * i + 1] + n[2] * points[3 * i + 2]) / length - offset);
+			if (d > best) {
+				best = d;
+				p3 = i;
+			}
+		}
+		if (p3 < 0 || best <= 100 * epsilon) {
+			return false;
+		}
+
+		// Wind the faces so they look out, away from p3 or the base
+		Face[] simplex;
+		double side = (n[0] * points[3 * p3] + n[1] * points[3 * p3 + 1] + n[2] * points[3 * p3 + 2]) / length - offset;
+		if (side < 0) {
+			simplex = new Face[] {
+				addFace(p0, p1, p2), addFace(p0, p3, p1), addFace(p1, p3, p2), addFace(p2, p3, p0)
+			};
+		} else {
+			simplex = new Face[] {
+				addFace(p0, p2, p1), addFace(p0, p1, p3), addFace(p1, p2, p3), addFace(p2, p0, p3)
+			};
+		}
+		List<Face> initial = new ArrayList<Face>(4);
+		for (Face f : simplex) {
+			if (f == null) {
+				return false;
+			}
+			initial.add(f);
+		}
+		for (int i = 0; i < count; i++) {
+			if (i != p0 && i != p1 && i != p2 && i != p3) {
+				assign(i, initial);
+			}
+		}
+		return true;
+	}
+
+	// Give a point to the first face it's outside of; points inside every face aren't on the hull
+	private void assign(int point, List<Face> candidates) {
+		for (Face f : candidates) {
+			if (distance(f, point) > epsilon) {
+				f.addOutside(point);
+				return;
+			}
+		}
+	}
+
+	private Face addFace(int a, int b, int c) {
+		double[] n = new double[3];
+		normal(a, b, c, n);
+		double length = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+		if (length == 0 || Double.isNaN(length) || Double.isInfinite(length)) {
+			return null;
+		}
+		n[0] /= length; n[1] /= length; n[2] /= length;
+		double offset = n[0] * points[3 * a] + n[1] * points[3 * a + 1] + n[2] * points[3 * a + 2];
+		Face face = new Face(a, b, c, n[0], n[1], n[2], offset);
+		if (edges.containsKey(key(a, b)) || edges.containsKey(key(b, c)) || edges.containsKey(key(c, a))) {
+			return null;
+		}
+		edges.put(key(a, b), face);
+		edges.put(key(b, c), face);
+		edges.put(key(c, a), face);
+		faces.add(face);
+		return face;
+	}
+
+	private double distance(Face f, int point) {
+		return f.nx * points[3 * point] + f.ny * points[3 * point + 1] + f.nz * points[3 * point + 2] - f.offset;
+	}
+
+	private double distanceSquared(int p, int q) {
+		double dx = points[3 * p] - points[3 * q];
+		double dy = points[3 * p + 1] - points[3 * q + 1];
+		double dz = points[3 * p + 2] - points[3 * q + 2];
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	// (b - a) x (c - a)
+	private void normal(int a, int b, int c, double[] n) {
+		double ux = points[3 * b] - points[3 * a];
+		double uy = points[3 * b + 1] - points[3 * a + 1];
+		double uz = points[3 * b + 2] - points[3 * a + 2];
+		double vx = points[3 * c] - points[3 * a];
+		double vy = points[3 * c + 1] - points[3 * a + 1];
+		double vz = points[3 * c + 2] - points[3 * a + 2];
+		n[0] = uy * vz - uz * vy;
+		n[1] = uz * vx - ux * vz;
+		n[2] = ux * vy - uy * vx;
+	}
+
+	private static Long key(int from, int to) {
+		return Long.valueOf(((long)from << 32) | (to & 0xffffffffL));
+	}
+}
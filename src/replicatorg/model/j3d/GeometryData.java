@@ -0,0 +1,99 @@
+package replicatorg.model.j3d;
+
+import javax.media.j3d.GeometryArray;
+import javax.media.j3d.IndexedGeometryArray;
+
+/**
+ * Reads the vertex data out of a GeometryArray in bulk, whether the array holds
+ * its own copy or refers to the loader's arrays (as binary STL geometry does).
+ * Arrays that refer to their data can't be read a vertex at a time with
+ * getCoordinate() and getNormal().
+ *
+ * For indexed geometry, such as a welded IndexedMesh, getCoordinates() and
+ * getNormals() give the shared pools; getTriangleCoordinates() and
+ * getTriangleNormals() spell out every triangle's corners.
+ */
+public class GeometryData {
+
+	/**
+	 * @return x, y and z of each vertex in turn. This may be the geometry's own
+	 * array, so it mustn't be changed.
+	 */
+	public static float[] getCoordinates(GeometryArray ga) {
+		int count = ga.getVertexCount();
+		if (isByReference(ga)) {
+			if (ga.getCoordRefFloat() != null) {
+				return ga.getCoordRefFloat();
+			}
+			return toFloats(ga.getCoordRefDouble(), count);
+		}
+		float[] coordinates = new float[3 * count];
+		ga.getCoordinates(0, coordinates);
+		return coordinates;
+	}
+
+	/**
+	 * @return the normal of each vertex in turn, or null if the geometry has
+	 * none. This may be the geometry's own array, so it mustn't be changed.
+	 */
+	public static float[] getNormals(GeometryArray ga) {
+		if ((ga.getVertexFormat() & GeometryArray.NORMALS) == 0) {
+			return null;
+		}
+		if (isByReference(ga)) {
+			return ga.getNormalRefFloat();
+		}
+		float[] normals = new float[3 * ga.getVertexCount()];
+		ga.getNormals(0, normals);
+		return normals;
+	}
+
+	/**
+	 * @return x, y and z of each corner of each triangle in turn, looking up the
+	 * indices of indexed geometry.
+	 */
+	public static float[] getTriangleCoordinates(GeometryArray ga) {
+		if (!(ga instanceof IndexedGeometryArray)) {
+			return getCoordinates(ga);
+		}
+		IndexedGeometryArray iga = (IndexedGeometryArray)ga;
+		int[] indices = new int[iga.getIndexCount()];
+		iga.getCoordinateIndices(0, indices);
+		return expand(getCoordinates(ga), indices);
+	}
+
+	/**
+	 * @return the normal of each corner of each triangle in turn, or null if the
+	 * geometry has none.
+	 */
+	public static float[] getTriangleNormals(GeometryArray ga) {
+		float[] normals = getNormals(ga);
+		if (normals == null || !(ga instanceof IndexedGeometryArray)) {
+			return normals;
+		}
+		IndexedGeometryArray iga = (IndexedGeometryArray)ga;
+		int[] indices = new int[iga.getIndexCount()];
+		iga.getNormalIndices(0, indices);
+		return expand(normals, indices);
+	}
+
+	private static float[] expand(float[] pool, int[] indices) {
+		float[] values = new float[3 * indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			System.arraycopy(pool, 3 * indices[i], values, 3 * i, 3);
+		}
+		return values;
+	}
+
+	private static boolean isByReference(GeometryArray ga) {
+		return (ga.getVertexFormat() & GeometryArray.BY_REFERENCE) != 0;
+	}
+
+	private static float[] toFloats(double[] values, int count) {
+		float[] floats = new float[3 * count];
+		for (int i = 0; i < floats.length; i++) {
+			floats[i] = (float)values[i];
+		}
+		return floats;
+	}
+}
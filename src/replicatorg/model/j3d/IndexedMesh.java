@@ -0,0 +1,253 @@
+package replicatorg.model.j3d;
+
+import java.util.Arrays;
+
+import javax.media.j3d.BoundingBox;
+import javax.media.j3d.GeometryArray;
+import javax.media.j3d.IndexedGeometryArray;
+import javax.media.j3d.IndexedTriangleArray;
+import javax.media.j3d.Transform3D;
+import javax.media.j3d.TriangleArray;
+import javax.vecmath.Point3d;
+
+import replicatorg.app.Base;
+
+/**
+ * A model's triangles with their shared corners welded together: each distinct
+ * position is kept once, and the triangles index into the positions. STL files
+ * repeat every vertex for each facet that touches it, so this usually takes a
+ * sixth of the room the loaded triangles did.
+ *
+ * The mesh also keeps the untransformed bounds of the model and the points on
+ * its convex hull, so the bounds under any transform can be found without
+ * going through every triangle.
+ */
+public class IndexedMesh {
+
+	private final float[] positions;
+	private final int vertexCount;
+	private final int indexCount;
+	private final IndexedTriangleArray geometry;
+
+	private final double[] min = new double[3];
+	private final double[] max = new double[3];
+	private final float[] hull;
+
+	/**
+	 * Weld the given triangles. Normals are kept as they were, in their own
+	 * welded pool, so flat and smooth shading both look the same as before.
+	 */
+	public IndexedMesh(TriangleArray triangles) {
+		float[] coordinates = GeometryData.getCoordinates(triangles);
+		float[] normals = GeometryData.getNormals(triangles);
+		indexCount = triangles.getVertexCount();
+
+		int[] coordinateIndices = new int[indexCount];
+		Welder positionWelder = new Welder(indexCount / 6);
+		for (int i = 0; i < indexCount; i++) {
+			coordinateIndices[i] = positionWelder.add(coordinates, 3 * i);
+		}
+		positions = positionWelder.toArray();
+		vertexCount = positionWelder.size;
+
+		int format = GeometryArray.COORDINATES | GeometryArray.BY_REFERENCE;
+		int[] normalIndices = null;
+		float[] normalPool = null;
+		if (normals != null) {
+			format |= GeometryArray.NORMALS;
+			normalIndices = new int[indexCount];
+			Welder normalWelder = new Welder(indexCount / 3);
+			for (int i = 0; i < indexCount; i++) {
+				normalIndices[i] = normalWelder.add(normals, 3 * i);
+			}
+			normalPool = normalWelder.toArray();
+		}
+
+		geometry = new IndexedTriangleArray(vertexCount, format, indexCount);
+		geometry.setCapability(GeometryArray.ALLOW_COUNT_READ);
+		geometry.setCapability(GeometryArray.ALLOW_FORMAT_READ);
+		geometry.setCapability(GeometryArray.ALLOW_REF_DATA_READ);
+		geometry.setCapability(IndexedGeometryArray.ALLOW_COORDINATE_INDEX_READ);
+		geometry.setCapability(IndexedGeometryArray.ALLOW_NORMAL_INDEX_READ);
+		geometry.setCoordRefFloat(positions);
+		geometry.setCoordinateIndices(0, coordinateIndices);
+		if (normals != null) {
+			geometry.setNormalRefFloat(normalPool);
+			geometry.setNormalIndices(0, normalIndices);
+		}
+
+		for (int axis = 0; axis < 3; axis++) {
+			min[axis] = Double.POSITIVE_INFINITY;
+			max[axis] = Double.NEGATIVE_INFINITY;
+		}
+		for (int i = 0; i < vertexCount; i++) {
+			for (int axis = 0; axis < 3; axis++) {
+				double value = positions[3 * i + axis];
+				min[axis] = Math.min(min[axis], value);
+				max[axis] = Math.max(max[axis], value);
+			}
+		}
+		hull = ConvexHull.getHullPoints(positions, vertexCount);
+
+		Base.logger.fine("Welded " + (indexCount / 3) + " triangles to " + vertexCount +
+				" vertices, " + (hull.length / 3) + " on the hull");
+	}
+
+	/** The geometry to render: the welded positions and normals, by reference. */
+	public IndexedTriangleArray getGeometry() {
+		return geometry;
+	}
+
+	/**
+	 * @return x, y and z of each distinct vertex. This is the geometry's own
+	 * array, so it mustn't be changed.
+	 */
+	public float[] getPositions() {
+		return positions;
+	}
+
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	public int getTriangleCount() {
+		return indexCount / 3;
+	}
+
+	/** @return the three vertex indices of each triangle in turn */
+	public int[] getTriangles() {
+		int[] indices = new int[indexCount];
+		geometry.getCoordinateIndices(0, indices);
+		return indices;
+	}
+
+	/**
+	 * Find the bounds of the mesh once it's been transformed. When the transform
+	 * only scales and translates this comes straight from the cached bounds;
+	 * otherwise only the points on the hull are transformed.
+	 * @return the bounds, or null if the mesh is empty
+	 */
+	public BoundingBox getBounds(Transform3D transformation) {
+		if (vertexCount == 0) {
+			return null;
+		}
+		double[] m = new double[16];
+		transformation.get(m);
+		Point3d lower = new Point3d(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+		Point3d upper = new Point3d(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+		boolean axisAligned = m[1] == 0 && m[2] == 0 && m[4] == 0 && m[6] == 0 && m[8] == 0 && m[9] == 0;
+		if (axisAligned) {
+			double[] corners = { min[0], min[1], min[2], max[0], max[1], max[2] };
+			include(m, corners, 0, lower, upper);
+			include(m, corners, 3, lower, upper);
+		} else {
+			double[] point = new double[3];
+			for (int i = 0; i < hull.length; i += 3) {
+				point[0] = hull[i];
+				point[1] = hull[i + 1];
+				point[2] = hull[i + 2];
+				include(m, point, 0, lower, upper);
+			}
+		}
+		return new BoundingBox(lower, upper);
+	}
+
+	// Transform one point by the row-major matrix m and widen the bounds to take it in
+	private static void include(double[] m, double[] p, int offset, Point3d lower, Point3d upper) {
+		double x = p[offset], y = p[offset + 1], z = p[offset + 2];
+		double w = m[12] * x + m[13] * y + m[14] * z + m[15];
+		double tx = (m[0] * x + m[1] * y + m[2] * z + m[3]) / w;
+		double ty = (m[4] * x + m[5] * y + m[6] * z + m[7]) / w;
+		double tz = (m[8] * x + m[9] * y + m[10] * z + m[11]) / w;
+		lower.x = Math.min(lower.x, tx);
+		lower.y = Math.min(lower.y, ty);
+		lower.z = Math.min(lower.z, tz);
+		upper.x = Math.max(upper.x, tx);
+		upper.y = Math.max(upper.y, ty);
+		upper.z = Math.max(upper.z, tz);
+	}
+
+	/**
+	 * Collects distinct triples of floats, handing back the index of each: an
+	 * open addressed hash table over the bits of the values.
+	 */
+	private static class Welder {
+		float[] values;
+		int size = 0;
+		int[] table;
+
+		Welder(int expected) {
+			values = new float[3 * Math.max(16, expected)];
+			table = new int[tableSize(expected)];
+			Arrays.fill(table, -1);
+		}
+
+		private static int tableSize(int expected) {
+			int size = 32;
+			while (size < 2 * expected) {
+				size <<= 1;
+			}
+			return size;
+		}
+
+		int add(float[] source, int offset) {
+			// Adding zero turns -0 into 0, so the two weld together
+			float x = source[offset] + 0.0f;
+			float y = source[offset + 1] + 0.0f;
+			float z = source[offset + 2] + 0.0f;
+			int bx = Float.floatToIntBits(x);
+			int by = Float.floatToIntBits(y);
+			int bz = Float.floatToIntBits(z);
+			int mask = table.length - 1;
+			int slot = hash(bx, by, bz) & mask;
+			while (table[slot] != -1) {
+				int j = 3 * table[slot];
+				if (Float.floatToIntBits(values[j]) == bx && Float.floatToIntBits(values[j + 1]) == by
+						&& Float.floatToIntBits(values[j + 2]) == bz) {
+					return table[slot];
+				}
+				slot = (slot + 1) & mask;
+			}
+			int index = size++;
+			if (3 * size > values.length) {
+				float[] grown = new float[values.length * 2];
+				System.arraycopy(values, 0, grown, 0, 3 * index);
+				values = grown;
+			}
+			values[3 * index] = x;
+			values[3 * index + 1] = y;
+			values[3 * index + 2] = z;
+			table[slot] = index;
+			if (2 * size > table.length) {
+				rehash();
+			}
+			return index;
+		}
+
+		private void rehash() {
+			int[] grown = new int[table.length * 2];
+			Arrays.fill(grown, -1);
+			int mask = grown.length - 1;
+			for (int i = 0; i < size; i++) {
+				int slot = hash(Float.floatToIntBits(values[3 * i]), Float.floatToIntBits(values[3 * i + 1]),
+						Float.floatToIntBits(values[3 * i + 2])) & mask;
+				while (grown[slot] != -1) {
+					slot = (slot + 1) & mask;
+				}
+				grown[slot] = i;
+			}
+			table = grown;
+		}
+
+		private static int hash(int x, int y, int z) {
+			int h = x * 0x9E3779B1 + y * 0x85EBCA6B + z * 0xC2B2AE35;
+			return h ^ (h >>> 15);
+		}
+
+		float[] toArray() {
+			float[] array = new float[3 * size];
+			System.arraycopy(values, 0, array, 0, array.length);
+			return array;
+		}
+	}
+}
@@ -4,10 +4,14 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 import javax.media.j3d.Geometry;
+import javax.media.j3d.GeometryArray;
+import javax.media.j3d.IndexedTriangleArray;
 import javax.media.j3d.Shape3D;
 import javax.media.j3d.Transform3D;
 import javax.media.j3d.TriangleArray;
 
+import replicatorg.app.Base;
+
 public abstract class ModelWriter {
 	protected OutputStream ostream;
 	
@@ -19,9 +23,14 @@ public abstract class ModelWriter {
 		ostream.close();
 	}
 	
-	protected TriangleArray getGeometry(Shape3D shape) {
+	/**
+	 * @return the shape's triangles, either as a plain TriangleArray or indexed;
+	 * use GeometryData.getTriangleCoordinates() to read them either way.
+	 */
+	protected GeometryArray getGeometry(Shape3D shape) {
 		Geometry g = shape.getGeometry();
 		if (g instanceof TriangleArray) { return (TriangleArray)g; }
+		if (g instanceof IndexedTriangleArray) { return (IndexedTriangleArray)g; }
 		return null;
 	}
 	
@@ -30,5 +39,19 @@ public abstract class ModelWriter {
 	 * @param shape
 	 * @param transform
 	 */
-	abstract public void writeShape(Shape3D shape, Transform3D transform);
+	public void writeShape(Shape3D shape, Transform3D transform) throws IOException {
+		GeometryArray g = getGeometry(shape);
+		if (g == null) {
+			Base.logger.info("Couldn't find valid geometry during save.");
+			return;
+		}
+		writeGeometry(g, transform);
+	}
+
+	/**
+	 * Write the given triangles to the output stream, applying the given transform to all points.
+	 * @param g a TriangleArray or IndexedTriangleArray
+	 * @param transform
+	 */
+	abstract public void writeGeometry(GeometryArray g, Transform3D transform) throws IOException;
 }
\ No newline at end of file
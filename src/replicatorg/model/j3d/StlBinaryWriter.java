@@ -0,0 +1,117 @@
+package replicatorg.model.j3d;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import javax.media.j3d.GeometryArray;
+import javax.media.j3d.IndexedGeometryArray;
+import javax.media.j3d.Transform3D;
+
+/**
+ * Writes binary STL: an 80 byte header, the facet count, and then 50 bytes per
+ * facet. That's about a fifth the size of the ASCII file, and written a block
+ * of facets at a time straight from the geometry's arrays.
+ *
+ * As with StlAsciiWriter, each facet's normal is the normal of its first
+ * vertex, turned by the transform.
+ */
+public class StlBinaryWriter extends ModelWriter {
+	private static final int HEADER_SIZE = 84;
+	private static final int RECORD_SIZE = 50;
+
+	// Facets written at a time
+	private static final int BLOCK_RECORDS = 2048;
+
+	// Mustn't start with "solid", or readers may take the file for ASCII
+	private static final String HEADER = "Binary STL written by ReplicatorG";
+
+	public StlBinaryWriter(OutputStream ostream) {
+		super(ostream);
+	}
+
+	@Override
+	public void writeGeometry(GeometryArray g, Transform3D transform) throws IOException {
+		float[] coords = GeometryData.getCoordinates(g);
+		float[] normals = GeometryData.getNormals(g);
+		int[] coordIndices = null;
+		int[] normalIndices = null;
+		int corners = g.getVertexCount();
+		if (g instanceof IndexedGeometryArray) {
+			IndexedGeometryArray iga = (IndexedGeometryArray)g;
+			corners = iga.getIndexCount();
+			coordIndices = new int[corners];
+			iga.getCoordinateIndices(0, coordIndices);
+			if (normals != null) {
+				normalIndices = new int[corners];
+				iga.getNormalIndices(0, normalIndices);
+			}
+		}
+		int faces = corners / 3;
+
+		double[] matrix = new double[16];
+		transform.get(matrix);
+		float m00 = (float)matrix[0], m01 = (float)matrix[1], m02 = (float)matrix[2], m03 = (float)matrix[3];
+		float m10 = (float)matrix[4], m11 = (float)matrix[5], m12 = (float)matrix[6], m13 = (float)matrix[7];
+		float m20 = (float)matrix[8], m21 = (float)matrix[9], m22 = (float)matrix[10], m23 = (float)matrix[11];
+
+		WritableByteChannel channel;
+		if (ostream instanceof FileOutputStream) {
+			channel = ((FileOutputStream)ostream).getChannel();
+		} else {
+			ostream.flush();
+			channel = Channels.newChannel(ostream);
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_RECORDS * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+		for (int i = 0; i < HEADER.length(); i++) {
+			buffer.put((byte)HEADER.charAt(i));
+		}
+		while (buffer.position() < HEADER_SIZE - 4) {
+			buffer.put((byte)' ');
+		}
+		buffer.putInt(faces);
+
+		for (int face = 0; face < faces; face++) {
+			if (buffer.remaining() < RECORD_SIZE) {
+				drain(channel, buffer);
+			}
+			int corner = 3 * face;
+			if (normals != null) {
+				int n = 3 * (normalIndices != null ? normalIndices[corner] : corner);
+				float x = normals[n], y = normals[n + 1], z = normals[n + 2];
+				float nx = m00 * x + m01 * y + m02 * z;
+				float ny = m10 * x + m11 * y + m12 * z;
+				float nz = m20 * x + m21 * y + m22 * z;
+				float length = (float)Math.sqrt(nx * nx + ny * ny + nz * nz);
+				if (length > 0) {
+					nx /= length; ny /= length; nz /= length;
+				}
+				buffer.putFloat(nx).putFloat(ny).putFloat(nz);
+			} else {
+				buffer.putFloat(0).putFloat(0).putFloat(0);
+			}
+			for (int k = corner; k < corner + 3; k++) {
+				int c = 3 * (coordIndices != null ? coordIndices[k] : k);
+				float x = coords[c], y = coords[c + 1], z = coords[c + 2];
+				buffer.putFloat(m00 * x + m01 * y + m02 * z + m03);
+				buffer.putFloat(m10 * x + m11 * y + m12 * z + m13);
+				buffer.putFloat(m20 * x + m21 * y + m22 * z + m23);
+			}
+			buffer.putShort((short)0);
+		}
+		drain(channel, buffer);
+	}
+
+	private static void drain(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
@@ -1,5 +1,6 @@
 package replicatorg.plugin;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -8,41 +9,132 @@ import java.util.Vector;
 import replicatorg.app.gcode.GCodeCommand;
 import replicatorg.model.GCodeSource;
 
+/**
+ * A GCodeSource that passes its parent's lines through unchanged, handing any
+ * M code a plugin has asked for to that plugin as the line goes by.
+ *
+ * Which plugins want which M code is worked out once, when the plugins are
+ * set, into a table indexed by code. Most lines have no M code a plugin
+ * wants, so each line is screened first: the number after every 'M' in it is
+ * read straight from the string, and only if one of them could be a code in
+ * the table is the line parsed into a GCodeCommand. Lines are handled as they
+ * are iterated over, never all at once.
+ */
 public class PluginEngine implements GCodeSource {
 	GCodeSource parent = null;
-	
-	void setParentSource(GCodeSource parent) {
+
+	public void setParentSource(GCodeSource parent) {
 		this.parent = parent;
 	}
-	
+
 	Vector<PluginEntry> plugins;
-	void setPlugins(Vector<PluginEntry> plugins) {
+
+	// The plugins for each M code, indexed by code; null where there are none
+	private MCodePlugin[][] dispatch = new MCodePlugin[0][];
+
+	/**
+	 * Set the plugins, and build the M code table from the enabled ones. Call
+	 * this again after enabling or disabling one.
+	 */
+	public void setPlugins(Vector<PluginEntry> plugins) {
 		this.plugins = plugins;
+
+		List<MCodePlugin> mcodePlugins = new ArrayList<MCodePlugin>();
+		int maxCode = -1;
+		for (PluginEntry entry : plugins) {
+			if (entry.isEnabled() && entry.getPlugin() instanceof MCodePlugin) {
+				MCodePlugin mcp = (MCodePlugin)entry.getPlugin();
+				mcodePlugins.add(mcp);
+				for (int code : mcp.getAcceptedMCodes()) {
+					maxCode = Math.max(maxCode, code);
+				}
+			}
+		}
+		MCodePlugin[][] table = new MCodePlugin[maxCode + 1][];
+		for (MCodePlugin mcp : mcodePlugins) {
+			for (int code : mcp.getAcceptedMCodes()) {
+				if (code < 0 || contains(table[code], mcp)) continue;
+				MCodePlugin[] entries = table[code];
+				if (entries == null) {
+					entries = new MCodePlugin[] { mcp };
+				} else {
+					MCodePlugin[] grown = new MCodePlugin[entries.length + 1];
+					System.arraycopy(entries, 0, grown, 0, entries.length);
+					grown[entries.length] = mcp;
+					entries = grown;
+				}
+				table[code] = entries;
+			}
+		}
+		dispatch = table;
+	}
+
+	private static boolean contains(MCodePlugin[] entries, MCodePlugin mcp) {
+		if (entries != null) {
+			for (MCodePlugin entry : entries) {
+				if (entry == mcp) return true;
+			}
+		}
+		return false;
 	}
-	
+
+	/**
+	 * @return true if the table has plugins for the given M code
+	 */
+	private boolean isDispatched(int code) {
+		return code >= 0 && code < dispatch.length && dispatch[code] != null;
+	}
+
 	public int getLineCount() {
 		return parent.getLineCount();
 	}
 
-	private void processLine(String line) {
+	/**
+	 * Could the line have an M code in the table? GCodeCommand takes the
+	 * value of M from the first number after an 'M' once comments are taken
+	 * out, or 0 if there is none; so if no number after any 'M' in the line,
+	 * comments and all, is in the table, it hasn't. Numbers that aren't plain
+	 * digits are left for GCodeCommand to decide, and so is an 'M' or its
+	 * digits running into a comment: "M(x)106" is M106 once the comment goes.
+	 */
+	boolean mayDispatch(String line) {
+		if (dispatch.length == 0) return false;
+		int len = line.length();
+		for (int i = line.indexOf('M'); i >= 0; i = line.indexOf('M', i)) {
+			i++;
+			int code = 0;
+			int digits = 0;
+			while (i < len && digits < 9) {
+				char c = line.charAt(i);
+				if (c < '0' || c > '9') break;
+				code = code * 10 + (c - '0');
+				digits++;
+				i++;
+			}
+			if (i < len) {
+				char c = line.charAt(i);
+				if ((c >= '0' && c <= '9') || c == '.' || c == '+' || c == '-'
+						|| c == '(' || c == ';') return true;
+			}
+			if (isDispatched(code)) return true;
+		}
+		return false;
+	}
+
+	void processLine(String line) {
+		if (!mayDispatch(line)) return;
+
 		GCodeCommand mcode = new GCodeCommand(line);
 		if( mcode.hasCode('M')) {
 			double code = mcode.getCodeValue('M');
-		
-			for (PluginEntry plugin : plugins) {
-				if (plugin instanceof MCodePlugin) {
-					MCodePlugin mcp = (MCodePlugin)plugin;
-					int codes[] = mcp.getAcceptedMCodes();
-					for (int acceptedCode : codes) {
-						if (code == acceptedCode) {
-							mcp.processMCode(mcode);
-						}
-					}
-				}
+			if (code != (int)code || !isDispatched((int)code)) return;
+
+			for (MCodePlugin mcp : dispatch[(int)code]) {
+				mcp.processMCode(mcode);
 			}
 		}
 	}
-	
+
 	class GCodeIterator implements Iterator<String> {
 		private Iterator<String> parent;
 		public GCodeIterator(Iterator<String> parent) {
@@ -62,17 +154,32 @@ public class PluginEngine implements GCodeSource {
 			parent.remove();
 		}
 	}
-	
+
 	public Iterator<String> iterator() {
 		return new GCodeIterator(parent.iterator());
 	}
 
+	/**
+	 * @return a view of the parent's lines. Iterating over it hands M codes to
+	 * the plugins, as iterator() does; get() just reads a line.
+	 */
 	@Override
 	public List<String> asList() {
-		List<String> result = new ArrayList<String>();
-		for(Iterator<String> i = iterator(); i.hasNext();)
-			result.add(i.next());
-		return result;
+		final List<String> lines = parent.asList();
+		return new AbstractList<String>() {
+			@Override
+			public String get(int index) {
+				return lines.get(index);
+			}
+			@Override
+			public int size() {
+				return lines.size();
+			}
+			@Override
+			public Iterator<String> iterator() {
+				return new GCodeIterator(lines.iterator());
+			}
+		};
 	}
 
 }
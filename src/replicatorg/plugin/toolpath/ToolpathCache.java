@@ -0,0 +1,241 @@
+package replicatorg.plugin.toolpath;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.util.FileUtils;
+
+/**
+ * Keeps the gcode the slicers made, so that slicing the same model with the
+ * same profile and options again doesn't run the slicer.
+ *
+ * An entry is keyed by a hash of the slicer's argument list, the model file
+ * (as saved for slicing, so after any transforms) and every file in the
+ * profile. Only the slicer's own output is kept: post-processing depends on
+ * other settings (start and end code, toolhead, the date in the header) and
+ * takes a single pass, so it is run again on every hit.
+ *
+ * The entries live in the user directory under toolpath-cache. Once they add
+ * up to more than the size limit, the least recently used are deleted; using
+ * an entry touches its file, so the modification times give the LRU order.
+ */
+public class ToolpathCache {
+
+	/** Preference: false turns the cache off */
+	public static final String ENABLED_PREF = "replicatorg.toolpathcache.enabled";
+	/** Preference: the most the cache may take on disk, in megabytes */
+	public static final String MAX_SIZE_PREF = "replicatorg.toolpathcache.maxSizeMB";
+
+	private static final String SUFFIX = ".gcode";
+
+	private static int hits = 0;
+	private static int misses = 0;
+
+	/**
+	 * Hash everything that goes into a slicer run.
+	 * @param arguments the slicer command line
+	 * @param model the model file to be sliced
+	 * @param output the file the slicer writes its gcode to
+	 * @param profile the profile directory or file, or null
+	 * @return the key, or null if the inputs couldn't be read
+	 */
+	public static String getKey(List<String> arguments, File model, File output, File profile) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		try {
+			// The model and output names change with where the model is, not what it is
+			for (String argument : arguments) {
+				if (argument.equals(model.getPath()))
+					argument = "<model>";
+				else if (argument.equals(output.getPath()))
+					argument = "<output>";
+				update(digest, argument);
+			}
+			update(digest, "<model>");
+			hashFile(digest, model);
+			if (profile != null) {
+				update(digest, "<profile>");
+				hashTree(digest, profile, "");
+			}
+		} catch (IOException e) {
+			Base.logger.log(Level.FINE, "Could not hash toolpath inputs, not caching", e);
+			return null;
+		}
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest())
+			key.append(String.format("%02x", b & 0xff));
+		return key.toString();
+	}
+
+	private static void update(MessageDigest digest, String text) {
+		try {
+			digest.update(text.getBytes("UTF-8"));
+			digest.update((byte)0);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// The profile's files, by name relative to the profile, in name order
+	private static void hashTree(MessageDigest digest, File file, String name) throws IOException {
+		if (file.isDirectory()) {
+			String[] children = file.list();
+			if (children == null)
+				throw new IOException("Could not list " + file);
+			Arrays.sort(children);
+			for (String child : children) {
+				if (child.startsWith("."))
+					continue;
+				hashTree(digest, new File(file, child), name + "/" + child);
+			}
+		} else if (file.exists()) {
+			update(digest, name);
+			hashFile(digest, file);
+		}
+	}
+
+	private static void hashFile(MessageDigest digest, File file) throws IOException {
+		update(digest, Long.toString(file.length()));
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int count;
+			while ((count = in.read(buffer)) != -1)
+				digest.update(buffer, 0, count);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static boolean isEnabled() {
+		return Base.preferences.getBoolean(ENABLED_PREF, true) && getDirectory() != null;
+	}
+
+	private static File getDirectory() {
+		File user = Base.getUserDirectory();
+		if (user == null)
+			return null;
+		File dir = new File(user, "toolpath-cache");
+		if (!dir.isDirectory() && !dir.mkdirs())
+			return null;
+		return dir;
+	}
+
+	/**
+	 * Copy the gcode for key to output, if there is any. The copy is written
+	 * next to output and then moved over it, since output may be the file
+	 * the editor has mapped.
+	 * @param key from getKey(); null always misses
+	 * @return true if output now holds the cached gcode
+	 */
+	public static synchronized boolean fetch(String key, File output) {
+		if (key != null && isEnabled()) {
+			File entry = new File(getDirectory(), key + SUFFIX);
+			if (entry.isFile()) {
+				File temp = null;
+				try {
+					temp = File.createTempFile(output.getName(), ".tmp", output.getAbsoluteFile().getParentFile());
+					copy(entry, temp);
+					FileUtils.replaceFile(temp, output);
+					entry.setLastModified(System.currentTimeMillis());
+					hits++;
+					return true;
+				} catch (IOException e) {
+					Base.logger.log(Level.WARNING, "Could not read cached toolpath " + entry, e);
+					entry.delete();
+				} finally {
+					if (temp != null)
+						temp.delete();
+				}
+			}
+		}
+		misses++;
+		return false;
+	}
+
+	/**
+	 * Keep the gcode the slicer wrote to output under key, then trim the
+	 * cache back down to its size limit.
+	 */
+	public static synchronized void store(String key, File output) {
+		if (key == null || !isEnabled() || !output.isFile())
+			return;
+		File dir = getDirectory();
+		File entry = new File(dir, key + SUFFIX);
+		File temp = new File(dir, key + ".tmp");
+		try {
+			copy(output, temp);
+			FileUtils.replaceFile(temp, entry);
+		} catch (IOException e) {
+			Base.logger.log(Level.WARNING, "Could not cache toolpath in " + entry, e);
+			temp.delete();
+			return;
+		}
+		evict(dir, Base.preferences.getInt(MAX_SIZE_PREF, 512) * 1024L * 1024L);
+	}
+
+	// Delete the least recently used entries until the rest fit in maxSize
+	private static void evict(File dir, long maxSize) {
+		File[] entries = dir.listFiles();
+		if (entries == null)
+			return;
+		long size = 0;
+		for (File entry : entries)
+			size += entry.length();
+		if (size <= maxSize)
+			return;
+		Arrays.sort(entries, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long difference = a.lastModified() - b.lastModified();
+				return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+			}
+		});
+		for (File entry : entries) {
+			if (size <= maxSize)
+				break;
+			long length = entry.length();
+			if (entry.delete())
+				size -= length;
+		}
+	}
+
+	private static void copy(File from, File to) throws IOException {
+		InputStream in = new FileInputStream(from);
+		try {
+			OutputStream out = new FileOutputStream(to);
+			try {
+				byte[] buffer = new byte[64 * 1024];
+				int count;
+				while ((count = in.read(buffer)) != -1)
+					out.write(buffer, 0, count);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/** @return a line for the log or progress dialog: how the cache has done this session */
+	public static synchronized String getStatistics() {
+		int total = hits + misses;
+		return "Toolpath cache: " + hits + " hits, " + misses + " misses"
+				+ (total > 0 ? " (" + (hits * 100 / total) + "% hit rate)" : "");
+	}
+}
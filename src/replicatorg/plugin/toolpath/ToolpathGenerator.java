@@ -2,9 +2,14 @@ package replicatorg.plugin.toolpath;
 
 import replicatorg.app.Base;
 import java.awt.Frame;
+import java.io.File;
+import java.io.IOException;
 import java.util.EventObject;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
 
+import replicatorg.app.util.StreamLoggerThread;
 import replicatorg.model.BuildCode;
 import replicatorg.model.BuildModel;
 import replicatorg.plugin.toolpath.ToolpathGenerator.GeneratorListener.Completion;
@@ -110,5 +115,65 @@ public abstract class ToolpathGenerator {
 		}
 	}
 
+	/**
+	 * Run a slicer to write the given gcode file, unless it has sliced this
+	 * model with these settings before, in which case the toolpath from then
+	 * is copied into place from the ToolpathCache.
+	 * @param name the slicer's name, for the log
+	 * @param dir the directory to run the slicer in
+	 * @param profile the slicer profile, or null
+	 * @return false if the slicer failed or was interrupted
+	 */
+	protected boolean runSlicer(String name, List<String> arguments, File dir,
+			File modelFile, File gcode, File profile) {
+		String cacheKey = ToolpathCache.getKey(arguments, modelFile, gcode, profile);
+		if (ToolpathCache.fetch(cacheKey, gcode)) {
+			emitUpdate("Using the toolpath from an earlier run with the same model and settings");
+		} else {
+			// The slicer would write over the old gcode in place. Delete it first,
+			// so an editor that has it mapped keeps the old contents.
+			gcode.delete();
+			ProcessBuilder pb = new ProcessBuilder(arguments);
+			pb.directory(dir);
+			Process process = null;
+			try {
+				process = pb.start();
+				StreamLoggerThread ist = new StreamLoggerThread(
+						process.getInputStream()) {
+					@Override
+					protected void logMessage(String line) {
+						emitUpdate(line);
+						super.logMessage(line);
+					}
+				};
+				StreamLoggerThread est = new StreamLoggerThread(
+						process.getErrorStream());
+				est.setDefaultLevel(Level.SEVERE);
+				ist.setDefaultLevel(Level.FINE);
+				ist.start();
+				est.start();
+				int value = process.waitFor();
+				if (value != 0) {
+					Base.logger.severe("Unrecognized error code returned by " + name + ".");
+					return false;
+				}
+			} catch (IOException ioe) {
+				Base.logger.log(Level.SEVERE, "Could not run " + name + ".", ioe);
+				return false;
+			} catch (InterruptedException e) {
+				// We are most likely shutting down, or the process has been
+				// manually aborted.
+				// Kill the background process and bail out.
+				if (process != null) {
+					process.destroy();
+				}
+				return false;
+			}
+			ToolpathCache.store(cacheKey, gcode);
+		}
+		emitUpdate(ToolpathCache.getStatistics());
+		return true;
+	}
+
 
 }
@@ -29,7 +29,6 @@ import javax.swing.JPanel;
 import net.miginfocom.swing.MigLayout;
 import replicatorg.app.Base;
 import replicatorg.app.util.PythonUtils;
-import replicatorg.app.util.StreamLoggerThread;
 import replicatorg.machine.model.ToolheadAlias;
 import replicatorg.model.BuildCode;
 import replicatorg.plugin.toolpath.ToolpathGenerator;
@@ -622,56 +621,16 @@ public abstract class MiracleGrueGenerator extends ToolpathGenerator {
 //		for(String a : arguments) 
 //			Base.logger.severe(a);
 		
-		ProcessBuilder pb = new ProcessBuilder(arguments);
-		pb.directory(getMiracleGrueDir());
-		Process process = null;
-		try {
+		int lastIdx = path.lastIndexOf('.');
+		String root = (lastIdx >= 0) ? path.substring(0, lastIdx) : path;
+		File gcode = new File(root + ".gcode");
 
-			process = pb.start();
-			StreamLoggerThread ist = new StreamLoggerThread( process.getInputStream()) {
-				@Override
-				protected void logMessage(String line) {
-					emitUpdate(line);
-					super.logMessage(line);
-				}
-			};
-			StreamLoggerThread est = new StreamLoggerThread(
-					process.getErrorStream());
-			est.setDefaultLevel(Level.SEVERE);
-			ist.setDefaultLevel(Level.FINE);
-			ist.start();
-			est.start();
-
-			int value = process.waitFor();
-			if (value != 0) {
-				Base.logger.info(
-						"Unrecognized error code returned by MiracleGrue.");
-				// Throw ToolpathGeneratorException
-				if (process != null) {
-					Base.logger.severe("process is not yet null, destroy it manually");
-					process.destroy();
-				}
-				return null;
-			}
-		} catch (IOException ioe) {
-			Base.logger.log(Level.SEVERE, "Could not run MiracleGrue.", ioe);
+		if (!runSlicer("MiracleGrue", arguments, getMiracleGrueDir(), new File(path), gcode,
+				profile == null ? null : new File(profile))) {
 			// Throw ToolpathGeneratorException
-			return null;
-		} catch (InterruptedException e) {
-			Base.logger.severe("MiracleGrueGenerator run interrupted ");
-			// We are most likely shutting down, or the process has been
-			// manually aborted.
-			// Kill the background process and bail out.
-			if (process != null) {
-				Base.logger.severe("process is not yet null, destroy it");
-				process.destroy();
-			}
-			
 			return null;
 		}
-		int lastIdx = path.lastIndexOf('.');
-		String root = (lastIdx >= 0) ? path.substring(0, lastIdx) : path;
-		output = new BuildCode(root, new File(root + ".gcode"));
+		output = new BuildCode(root, gcode);
 		Base.logger.log(Level.FINER, "pre-post-processor");
 		
 		if(postprocess != null)
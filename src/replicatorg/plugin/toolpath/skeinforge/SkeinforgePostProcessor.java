@@ -3,13 +3,14 @@ package replicatorg.plugin.toolpath.skeinforge;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
+import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -23,6 +24,8 @@ import javax.swing.JPanel;
 
 import net.miginfocom.swing.MigLayout;
 import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeFilter;
+import replicatorg.app.gcode.GCodePipeline;
 import replicatorg.app.gcode.MutableGCodeSource;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolheadAlias;
@@ -129,7 +132,7 @@ public class SkeinforgePostProcessor {
 	
 	private final SkeinforgeGenerator generator;
 	
-	private MutableGCodeSource source;
+	private GCodePipeline pipeline;
 	
 	// options:
 	private MutableGCodeSource startCode = null;
@@ -159,8 +162,8 @@ public class SkeinforgePostProcessor {
 	 */
 	protected BuildCode runPostProcessing()
 	{
-		// Load our code to a source iterator
-		source = new MutableGCodeSource(generator.output.file);
+		// Every step is a filter on the one pass from the generated file back to itself
+		pipeline = new GCodePipeline();
 		
 		if( ! dualstruding )
 		{
@@ -180,7 +183,7 @@ public class SkeinforgePostProcessor {
 		// these display the build % on The Replicator
 		if(addProgressUpdates)
 		{
-			source.addProgressUpdates();
+			pipeline.add(new GCodeFilter.ProgressUpdates());
 		}
 		
 		if(prependMetaInfo)
@@ -200,7 +203,12 @@ public class SkeinforgePostProcessor {
 		}
 		
 		//Write the modified source back to our file
-		source.writeToFile(generator.output.file);
+		try {
+			pipeline.run(generator.output.file, generator.output.file);
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Could not post-process " + generator.output.file, e);
+		}
+		pipeline = null;
 		
 		return generator.output;
 	}
@@ -220,7 +228,7 @@ public class SkeinforgePostProcessor {
 	private void runToolheadSwap(ToolheadAlias switchTo)
 	{
 		System.out.println("runToolheadSwap");
-		source.changeToolhead(switchTo);
+		pipeline.add(new GCodeFilter.ChangeToolhead(switchTo));
 	}
 	
 	/**
@@ -228,15 +236,18 @@ public class SkeinforgePostProcessor {
 	 */
 	private void runPrependStartCode()
 	{
-		prependAndModifyStartCode(source, startCode);
+		if(startCode != null)
+			pipeline.add(new GCodeFilter.Prepend(modifyStartCode(startCode)));
 	}
 
+	private static final Pattern startTempPattern = Pattern.compile("^M104\\s+S(\\d+)\\s+T(\\d)\\s+(.*)\\s*$");
+
 	/**
-	 * prepends start code to the file, this may modify some start code data based on settings.
-	 * @param sourceGCode code to append start to
-	 * @param startGCode code to hack/verify/modify and append to the start of sourceGCode
+	 * makes a copy of some start code, modified based on settings.
+	 * @param startGCode code to hack/verify/modify
+	 * @return the modified code
 	 */
-	static public void prependAndModifyStartCode(MutableGCodeSource sourceGCode, MutableGCodeSource startGCode)
+	static public MutableGCodeSource modifyStartCode(MutableGCodeSource startGCode)
 	{
 		MutableGCodeSource newStart = new MutableGCodeSource();
 
@@ -244,8 +255,7 @@ public class SkeinforgePostProcessor {
 		int matched = 0;
 		for(String line : startGCode)
 		{
-			Pattern p = Pattern.compile("^M104\\s+S(\\d+)\\s+T(\\d)\\s+(.*)\\s*$");
-			Matcher m = p.matcher(line);
+			Matcher m = startTempPattern.matcher(line);
 			if(m.matches() ){
 				int newTemp = Base.preferences.getInt("replicatorg.skeinforge.printOMatic5D.printTemp", 220);
 				Base.logger.finer("new temp" + newTemp);
@@ -262,9 +272,8 @@ public class SkeinforgePostProcessor {
 				
 			}
 		}
-		sourceGCode.add(0, newStart);
 		Base.logger.finer("printTemp replace count : " + matched);
-		
+		return newStart;
 	}
 		
 	/**
@@ -274,7 +283,7 @@ public class SkeinforgePostProcessor {
 	private void runPrepend(GCodeSource newCode)
 	{
 		if(newCode != null)
-			source.add(0, newCode);
+			pipeline.add(new GCodeFilter.Prepend(newCode));
 	}
 	
 	/**
@@ -284,7 +293,7 @@ public class SkeinforgePostProcessor {
 	private void runAppend(GCodeSource newCode)
 	{
 		if(newCode != null)
-			source.add(newCode);
+			pipeline.add(new GCodeFilter.Append(newCode));
 	}
 	
 	/**
@@ -352,16 +361,7 @@ public class SkeinforgePostProcessor {
 	 * removes all lines that are skeinforge tag comments, but not layer tags.
 	 */
 	static public void stripNonLayerTagComments(MutableGCodeSource source) {
-		String line;
-		for(Iterator<String> i = source.iterator(); i.hasNext();)
-		{
-			line = i.next();
-			
-			if(line.startsWith("(<") &&	!(line.startsWith("(<layer>") || line.startsWith("(</layer")))
-			{
-				i.remove();
-			}
-		}
+		new GCodePipeline().add(new GCodeFilter.StripNonLayerTagComments()).run(source);
 	}
 	
 	/**
@@ -29,7 +29,6 @@ import javax.swing.JPanel;
 import net.miginfocom.swing.MigLayout;
 import replicatorg.app.Base;
 import replicatorg.app.util.PythonUtils;
-import replicatorg.app.util.StreamLoggerThread;
 import replicatorg.machine.model.ToolheadAlias;
 import replicatorg.model.BuildCode;
 import replicatorg.plugin.toolpath.ToolpathGenerator;
@@ -595,48 +594,16 @@ public abstract class Slic3rGenerator extends ToolpathGenerator {
 		}
 		arguments.add(path);
 for(String a : arguments) System.out.println(a);
-		ProcessBuilder pb = new ProcessBuilder(arguments);
-		pb.directory(getSlic3rDir());
-		Process process = null;
-		try {
-			process = pb.start();
-			StreamLoggerThread ist = new StreamLoggerThread(
-					process.getInputStream()) {
-				@Override
-				protected void logMessage(String line) {
-					emitUpdate(line);
-					super.logMessage(line);
-				}
-			};
-			StreamLoggerThread est = new StreamLoggerThread(
-					process.getErrorStream());
-			est.setDefaultLevel(Level.SEVERE);
-			ist.setDefaultLevel(Level.FINE);
-			ist.start();
-			est.start();
-			int value = process.waitFor();
-			if (value != 0) {
-				Base.logger
-						.severe("Unrecognized error code returned by Slic3r.");
-				// Throw ToolpathGeneratorException
-				return null;
-			}
-		} catch (IOException ioe) {
-			Base.logger.log(Level.SEVERE, "Could not run Slic3r.", ioe);
+		int lastIdx = path.lastIndexOf('.');
+		String root = (lastIdx >= 0) ? path.substring(0, lastIdx) : path;
+		File gcode = new File(root + ".gcode");
+
+		if (!runSlicer("Slic3r", arguments, getSlic3rDir(), new File(path), gcode,
+				profile == null ? null : new File(profile))) {
 			// Throw ToolpathGeneratorException
 			return null;
-		} catch (InterruptedException e) {
-			// We are most likely shutting down, or the process has been
-			// manually aborted.
-			// Kill the background process and bail out.
-			if (process != null) {
-				process.destroy();
-			}
-			return null;
 		}
-		int lastIdx = path.lastIndexOf('.');
-		String root = (lastIdx >= 0) ? path.substring(0, lastIdx) : path;
-		output = new BuildCode(root, new File(root + ".gcode"));
+		output = new BuildCode(root, gcode);
 		
 		if(postprocess != null)
 		{
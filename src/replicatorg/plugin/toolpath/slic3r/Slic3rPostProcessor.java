@@ -3,12 +3,14 @@ package replicatorg.plugin.toolpath.slic3r;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Vector;
+import java.util.logging.Level;
 
 import javax.swing.BorderFactory;
 import javax.swing.DefaultComboBoxModel;
@@ -20,6 +22,8 @@ import javax.swing.JPanel;
 
 import net.miginfocom.swing.MigLayout;
 import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeFilter;
+import replicatorg.app.gcode.GCodePipeline;
 import replicatorg.app.gcode.MutableGCodeSource;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolheadAlias;
@@ -126,7 +130,7 @@ public class Slic3rPostProcessor {
 	
 	private final Slic3rGenerator generator;
 	
-	private MutableGCodeSource source;
+	private GCodePipeline pipeline;
 	
 	// options:
 	private MutableGCodeSource startCode = null;
@@ -156,8 +160,8 @@ public class Slic3rPostProcessor {
 	 */
 	protected BuildCode runPostProcessing()
 	{
-		// Load our code to a source iterator
-		source = new MutableGCodeSource(generator.output.file);
+		// Every step is a filter on the one pass from the generated file back to itself
+		pipeline = new GCodePipeline();
 		
 		if(!dualstruding)
 		{
@@ -176,7 +180,7 @@ public class Slic3rPostProcessor {
 		// these display the build % on The Replicator
 		if(addProgressUpdates)
 		{
-			source.addSlic3rProgressUpdates();
+			pipeline.add(new GCodeFilter.LayerProgressUpdates());
 		}
 		
 		if(prependMetaInfo)
@@ -200,7 +204,12 @@ public class Slic3rPostProcessor {
 //			source.coolUnusedToolhead();
 		
 		//Write the modified source back to our file
-		source.writeToFile(generator.output.file);
+		try {
+			pipeline.run(generator.output.file, generator.output.file);
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Could not post-process " + generator.output.file, e);
+		}
+		pipeline = null;
 		
 		return generator.output;
 	}
@@ -219,7 +228,7 @@ public class Slic3rPostProcessor {
 	private void runToolheadSwap(ToolheadAlias switchTo)
 	{
 		System.out.println("runToolheadSwap");
-		source.changeToolhead(switchTo);
+		pipeline.add(new GCodeFilter.ChangeToolhead(switchTo));
 	}
 	
 	/**
@@ -229,7 +238,7 @@ public class Slic3rPostProcessor {
 	private void runPrepend(GCodeSource newCode)
 	{
 		if(newCode != null)
-			source.add(0, newCode);
+			pipeline.add(new GCodeFilter.Prepend(newCode));
 	}
 	
 	/**
@@ -239,7 +248,7 @@ public class Slic3rPostProcessor {
 	private void runAppend(GCodeSource newCode)
 	{
 		if(newCode != null)
-			source.add(newCode);
+			pipeline.add(new GCodeFilter.Append(newCode));
 	}
 	
 	/**
@@ -0,0 +1,168 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import replicatorg.app.gcode.GCodeCommand;
+
+/**
+ * Compares the single pass GCodeCommand lexer against the old regex based
+ * parser: first checks that both give identical results for every line, then
+ * reports lines per second for each.
+ *
+ * Usage: GCodeCommandBenchmark [file.gcode ...]
+ * With no arguments, every .gcode file under examples/ is used.
+ */
+public class GCodeCommandBenchmark {
+
+	static final char[] codes = {
+		'A', 'B', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L',
+		'M', 'P', 'Q', 'R', 'S', 'T', 'X', 'Y', 'Z' };
+
+	// Copy of the regex based parser GCodeCommand used to have, kept as the baseline.
+	static class LegacyGCodeCommand {
+		static Pattern parenPattern  = Pattern.compile("\\((.*)\\)");
+		static Pattern semiPattern = Pattern.compile(";(.*)");
+
+		String command;
+		String comment = new String();
+		boolean[] present = new boolean[26];
+		double[] values = new double[26];
+
+		LegacyGCodeCommand(String line) {
+			command = new String(line);
+
+			Matcher parenMatcher = parenPattern.matcher(command);
+			Matcher semiMatcher = semiPattern.matcher(command);
+			if (parenMatcher.find())
+				comment = parenMatcher.group(1);
+			if (semiMatcher.find())
+				comment = semiMatcher.group(1);
+			comment = comment.trim();
+			comment = comment.replace('|', '\n');
+			command = parenMatcher.replaceAll("");
+			semiMatcher = semiPattern.matcher(command);
+			command = semiMatcher.replaceAll("");
+
+			for (char code : codes) {
+				Pattern myPattern = Pattern.compile(code + "([0-9.+-]+)");
+				Matcher myMatcher = myPattern.matcher(command);
+				if (command.indexOf(code) >= 0) {
+					double value = 0;
+					if (myMatcher.find())
+						value = Double.parseDouble(myMatcher.group(1));
+					present[code - 'A'] = true;
+					values[code - 'A'] = value;
+				}
+			}
+		}
+	}
+
+	static void collect(File f, List<File> files) {
+		if (f.isDirectory()) {
+			File[] children = f.listFiles();
+			if (children != null)
+				for (File child : children)
+					collect(child, files);
+		} else if (f.getName().endsWith(".gcode")) {
+			files.add(f);
+		}
+	}
+
+	static List<String> readLines(List<File> files) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		for (File f : files) {
+			BufferedReader reader = new BufferedReader(new FileReader(f));
+			String line;
+			while ((line = reader.readLine()) != null)
+				lines.add(line);
+			reader.close();
+		}
+		return lines;
+	}
+
+	// Returns a description of the first difference, or null if they agree.
+	static String compare(String line) {
+		LegacyGCodeCommand legacy;
+		try {
+			legacy = new LegacyGCodeCommand(line);
+		} catch (NumberFormatException e) {
+			try {
+				new GCodeCommand(line);
+				return "legacy parser threw, new parser didn't";
+			} catch (NumberFormatException e2) {
+				return null;
+			}
+		}
+		GCodeCommand gcode = new GCodeCommand(line);
+		if (!legacy.command.equals(gcode.getCommand()))
+			return "command '" + legacy.command + "' != '" + gcode.getCommand() + "'";
+		if (!legacy.comment.equals(gcode.getComment()))
+			return "comment '" + legacy.comment + "' != '" + gcode.getComment() + "'";
+		for (char c = 'A'; c <= 'Z'; c++) {
+			boolean has = legacy.present[c - 'A'];
+			if (has != gcode.hasCode(c))
+				return "hasCode(" + c + ")";
+			double value = has ? legacy.values[c - 'A'] : -1;
+			if (Double.doubleToLongBits(value) != Double.doubleToLongBits(gcode.getCodeValue(c)))
+				return "getCodeValue(" + c + ") " + value + " != " + gcode.getCodeValue(c);
+		}
+		return null;
+	}
+
+	public static void main(String[] args) throws IOException {
+		List<File> files = new ArrayList<File>();
+		if (args.length == 0) {
+			collect(new File("examples"), files);
+		} else {
+			for (String arg : args)
+				collect(new File(arg), files);
+		}
+		List<String> lines = readLines(files);
+		System.out.println(files.size() + " files, " + lines.size() + " lines");
+
+		int mismatches = 0;
+		for (String line : lines) {
+			String diff = compare(line);
+			if (diff != null && mismatches++ < 20)
+				System.out.println("MISMATCH: " + line + " : " + diff);
+		}
+		System.out.println(mismatches + " mismatched lines");
+
+		for (int round = 0; round < 5; round++) {
+			double sink = 0;
+
+			long start = System.nanoTime();
+			for (String line : lines) {
+				try {
+					sink += new LegacyGCodeCommand(line).values['X' - 'A'];
+				} catch (NumberFormatException e) {
+				}
+			}
+			long legacyNanos = System.nanoTime() - start;
+
+			GCodeCommand gcode = new GCodeCommand();
+			start = System.nanoTime();
+			for (String line : lines) {
+				try {
+					sink += gcode.parse(line).getCodeValue('X');
+				} catch (NumberFormatException e) {
+				}
+			}
+			long newNanos = System.nanoTime() - start;
+
+			System.out.printf("round %d: regex %.0f lines/s, lexer %.0f lines/s (%.1fx) [%s]%n",
+					round,
+					lines.size() * 1e9 / legacyNanos,
+					lines.size() * 1e9 / newNanos,
+					(double) legacyNanos / newNanos,
+					sink == 0 ? "" : "ok");
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import replicatorg.app.tools.IButtonCrc;
+import replicatorg.drivers.gen3.PacketProcessor;
+import replicatorg.drivers.gen3.PacketResponse;
+
+/**
+ * Times the s3g packet checksum and decoder, before and after the CRC went
+ * table-driven and PacketProcessor learned to take a run of bytes at a time.
+ *
+ * The stream is QUEUE_POINT_NEW_EXT-sized packets (32 byte payloads), the most
+ * common packet in a build. Three things are timed over it:
+ * - the CRC, with the old bit-at-a-time loop (copied here) and with IButtonCrc;
+ * - decoding with a new PacketProcessor per packet, fed a byte at a time, as
+ *   Sanguino3GDriver.runCommand used to;
+ * - decoding with one PacketProcessor fed 64 byte runs through process().
+ *
+ * Usage: PacketCodecBenchmark [packets] [rounds]
+ */
+public class PacketCodecBenchmark {
+
+	static final int PAYLOAD = 32;
+
+	/** IButtonCrc.update() as it was. */
+	static int legacyCrc(byte[] data, int offset, int length) {
+		int crc = 0;
+		for (int j = offset; j < offset + length; j++) {
+			crc = (crc ^ data[j]) & 0xff;
+			for (int i = 0; i < 8; i++) {
+				if ((crc & 0x01) != 0) {
+					crc = ((crc >>> 1) ^ 0x8c) & 0xff;
+				} else {
+					crc = (crc >>> 1) & 0xff;
+				}
+			}
+		}
+		return crc;
+	}
+
+	static byte[] buildStream(int packets) {
+		Random random = new Random(42);
+		int size = PAYLOAD + 3;
+		byte[] stream = new byte[packets * size];
+		for (int p = 0; p < packets; p++) {
+			int start = p * size;
+			stream[start] = (byte) 0xD5;
+			stream[start + 1] = (byte) PAYLOAD;
+			for (int i = 0; i < PAYLOAD; i++) {
+				stream[start + 2 + i] = (byte) random.nextInt(256);
+			}
+			stream[start + 2 + PAYLOAD] = IButtonCrc.compute(stream, start + 2, PAYLOAD);
+		}
+		return stream;
+	}
+
+	public static void main(String[] args) throws PacketProcessor.CRCException {
+		int packets = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		byte[] stream = buildStream(packets);
+		int size = PAYLOAD + 3;
+		double megabytes = (double) stream.length * rounds / 1e6;
+		System.out.println(packets + " packets of " + size + " bytes, " + rounds + " rounds");
+
+		// Each is run twice, once to warm up and once to measure
+		int check = 0;
+		long nanos = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			long start = System.nanoTime();
+			for (int r = 0; r < rounds; r++) {
+				for (int p = 0; p < packets; p++) {
+					check ^= legacyCrc(stream, p * size + 2, PAYLOAD);
+				}
+			}
+			nanos = System.nanoTime() - start;
+		}
+		System.out.println(String.format("  CRC, bit loop:        %.1f MB/s", megabytes / (nanos / 1e9)));
+
+		IButtonCrc crc = new IButtonCrc();
+		for (int pass = 0; pass < 2; pass++) {
+			long start = System.nanoTime();
+			for (int r = 0; r < rounds; r++) {
+				for (int p = 0; p < packets; p++) {
+					crc.reset();
+					crc.update(stream, p * size + 2, PAYLOAD);
+					check ^= crc.getCrc();
+				}
+			}
+			nanos = System.nanoTime() - start;
+		}
+		System.out.println(String.format("  CRC, table:           %.1f MB/s", megabytes / (nanos / 1e9)));
+
+		int decoded = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			decoded = 0;
+			long start = System.nanoTime();
+			for (int r = 0; r < rounds; r++) {
+				PacketProcessor pp = new PacketProcessor();
+				for (int i = 0; i < stream.length; i++) {
+					if (pp.processByte(stream[i])) {
+						check ^= pp.getResponse().getPayload()[0];
+						decoded++;
+						pp = new PacketProcessor();
+					}
+				}
+			}
+			nanos = System.nanoTime() - start;
+		}
+		System.out.println(String.format("  Decode, per byte:     %.1f MB/s (%d packets)",
+				megabytes / (nanos / 1e9), decoded));
+
+		List<PacketResponse> responses = new ArrayList<PacketResponse>();
+		for (int pass = 0; pass < 2; pass++) {
+			decoded = 0;
+			long start = System.nanoTime();
+			for (int r = 0; r < rounds; r++) {
+				PacketProcessor pp = new PacketProcessor();
+				for (int i = 0; i < stream.length; i += 64) {
+					pp.process(stream, i, Math.min(64, stream.length - i), responses);
+					for (PacketResponse pr : responses) {
+						check ^= pr.getPayload()[0];
+					}
+					decoded += responses.size();
+					responses.clear();
+				}
+			}
+			nanos = System.nanoTime() - start;
+		}
+		System.out.println(String.format("  Decode, 64 byte runs: %.1f MB/s (%d packets)",
+				megabytes / (nanos / 1e9), decoded));
+
+		// Keep the JIT from throwing the work away
+		if (check == 12345) {
+			System.out.println();
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import replicatorg.app.tools.IButtonCrc;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.gen3.PacketProcessor;
+import replicatorg.drivers.gen3.PacketResponse;
+import replicatorg.drivers.gen3.PacketWindow;
+
+/**
+ * Runs a stream of QUEUE_POINT_EXT packets against an in-process fake bot, once
+ * stop-and-wait (as Sanguino3GDriver.runCommand does) and once through a
+ * PacketWindow, and reports moves per second for each. Also checks that the
+ * bot accepted every move exactly once and in order.
+ *
+ * Usage: PacketWindowBenchmark [moves] [window]
+ */
+public class PacketWindowBenchmark {
+
+	static final int BAUD = 115200;
+	static final long BYTE_NANOS = 10 * 1000000000L / BAUD;
+
+	/**
+	 * A fake motherboard on the end of a 115200 baud line. Packets are decoded with
+	 * PacketProcessor; QUEUE_POINT_EXT packets go in a command buffer that drains one
+	 * move every moveNanos, and GET_BUFFER_SIZE reports the free space in it.
+	 */
+	static class FakeBot implements PacketWindow.Link {
+		final int capacity;
+		final long moveNanos;
+		final long turnaroundNanos;
+
+		int used = 0;
+		final LinkedList<Integer> moveSizes = new LinkedList<Integer>();
+		long lastDrain = System.nanoTime();
+
+		// Time the host->bot line is next free
+		long lineFree = 0;
+
+		// Response bytes, and when each becomes readable
+		final LinkedList<byte[]> responses = new LinkedList<byte[]>();
+		final LinkedList<Long> responseTimes = new LinkedList<Long>();
+		byte[] current = null;
+		int currentIdx = 0;
+
+		final List<Integer> accepted = new ArrayList<Integer>();
+
+		FakeBot(int capacity, long moveNanos, long turnaroundNanos) {
+			this.capacity = capacity;
+			this.moveNanos = moveNanos;
+			this.turnaroundNanos = turnaroundNanos;
+		}
+
+		void drain(long now) {
+			while (!moveSizes.isEmpty() && now - lastDrain >= moveNanos) {
+				used -= moveSizes.removeFirst();
+				lastDrain += moveNanos;
+			}
+			if (moveSizes.isEmpty()) {
+				lastDrain = now;
+			}
+		}
+
+		// Start byte, length, payload, crc: the same framing in both directions
+		static byte[] frame(byte[] payload) {
+			byte[] r = new byte[payload.length + 3];
+			IButtonCrc crc = new IButtonCrc();
+			r[0] = (byte) 0xD5;
+			r[1] = (byte) payload.length;
+			for (int i = 0; i < payload.length; i++) {
+				r[i + 2] = payload[i];
+				crc.update(payload[i]);
+			}
+			r[r.length - 1] = crc.getCrc();
+			return r;
+		}
+
+		public void write(byte[] packet) {
+			long now = System.nanoTime();
+			long arrival = Math.max(now, lineFree) + packet.length * BYTE_NANOS;
+			lineFree = arrival;
+
+			PacketProcessor pp = new PacketProcessor();
+			byte[] payload = null;
+			try {
+				for (byte b : packet) {
+					if (pp.processByte(b)) {
+						payload = pp.getResponse().getPayload();
+					}
+				}
+			} catch (PacketProcessor.CRCException e) {
+				return;
+			}
+
+			drain(arrival);
+			byte[] reply;
+			int code = payload[0] & 0xff;
+			if (code == 2) { // GET_BUFFER_SIZE
+				int free = capacity - used;
+				reply = new byte[] { (byte) 0x81, (byte) free, (byte) (free >> 8), (byte) (free >> 16), (byte) (free >> 24) };
+			} else if (used + payload.length > capacity) {
+				reply = new byte[] { (byte) 0x82 }; // BUFFER_OVERFLOW
+			} else {
+				used += payload.length;
+				moveSizes.addLast(payload.length);
+				accepted.add((payload[1] & 0xff) | ((payload[2] & 0xff) << 8));
+				reply = new byte[] { (byte) 0x81 };
+			}
+			byte[] r = frame(reply);
+			long ready = arrival + turnaroundNanos + r.length * BYTE_NANOS;
+			if (!responseTimes.isEmpty()) {
+				ready = Math.max(ready, responseTimes.getLast() + r.length * BYTE_NANOS);
+			}
+			responses.addLast(r);
+			responseTimes.addLast(ready);
+		}
+
+		// Everything that has arrived by the time the first waiting byte has
+		public int read(byte[] buffer, int offset, int length) {
+			int n = 0;
+			while (n < length) {
+				if (current == null) {
+					if (responses.isEmpty()) {
+						break;
+					}
+					long wait = responseTimes.getFirst() - System.nanoTime();
+					if (wait > 0) {
+						if (n > 0) {
+							break;
+						}
+						LockSupport.parkNanos(wait);
+					}
+					responseTimes.removeFirst();
+					current = responses.removeFirst();
+					currentIdx = 0;
+				}
+				int count = Math.min(length - n, current.length - currentIdx);
+				System.arraycopy(current, currentIdx, buffer, offset + n, count);
+				n += count;
+				currentIdx += count;
+				if (currentIdx == current.length) {
+					current = null;
+				}
+			}
+			return n == 0 ? -1 : n;
+		}
+
+		public void clear() {
+			responses.clear();
+			responseTimes.clear();
+			current = null;
+		}
+	}
+
+	// A QUEUE_POINT_EXT packet, with the move number in the X coordinate.
+	static byte[] movePacket(int n) {
+		byte[] payload = new byte[25];
+		payload[0] = (byte) 139;
+		payload[1] = (byte) n;
+		payload[2] = (byte) (n >> 8);
+		return FakeBot.frame(payload);
+	}
+
+	static boolean check(FakeBot bot, int moves) {
+		if (bot.accepted.size() != moves) {
+			return false;
+		}
+		for (int i = 0; i < moves; i++) {
+			if (bot.accepted.get(i) != (i & 0xffff)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Send and wait for every packet; retry on overflow, as runCommand and Direct do.
+	static long stopAndWait(FakeBot bot, int moves) {
+		long start = System.nanoTime();
+		for (int i = 0; i < moves; i++) {
+			byte[] packet = movePacket(i);
+			while (true) {
+				bot.write(packet);
+				PacketProcessor pp = new PacketProcessor();
+				List<PacketResponse> responses = new ArrayList<PacketResponse>();
+				byte[] buffer = new byte[256];
+				try {
+					while (responses.isEmpty()) {
+						pp.process(buffer, 0, bot.read(buffer, 0, buffer.length), responses);
+					}
+				} catch (PacketProcessor.CRCException e) {
+					throw new RuntimeException(e);
+				}
+				if ((responses.get(0).getPayload()[0] & 0xff) != 0x82) {
+					break;
+				}
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	static long windowed(FakeBot bot, int moves, int window) {
+		PacketWindow pw = new PacketWindow(bot, window, 5);
+		long start = System.nanoTime();
+		for (int i = 0; i < moves; i++) {
+			byte[] packet = movePacket(i);
+			while (true) {
+				try {
+					pw.send(packet);
+					break;
+				} catch (RetryException e) {
+					// Bot is full; MachineThread would go round its loop here.
+				}
+			}
+		}
+		pw.flush();
+		return System.nanoTime() - start;
+	}
+
+	public static void main(String[] args) {
+		int moves = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int window = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+		// Short moves: the bot can execute a move faster than one round trip.
+		long moveNanos = 2000000;
+		long turnaround = 1000000;
+		int capacity = 512;
+
+		FakeBot bot = new FakeBot(capacity, moveNanos, turnaround);
+		long sw = stopAndWait(bot, moves);
+		System.out.printf("stop-and-wait: %.0f moves/s, order ok: %b%n", moves * 1e9 / sw, check(bot, moves));
+
+		bot = new FakeBot(capacity, moveNanos, turnaround);
+		long w = windowed(bot, moves, window);
+		System.out.printf("window of %d:   %.0f moves/s, order ok: %b (%.1fx)%n", window, moves * 1e9 / w,
+				check(bot, moves), (double) sw / w);
+	}
+}
@@ -0,0 +1,187 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+
+import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.model.StringListSource;
+import replicatorg.plugin.MCodePlugin;
+import replicatorg.plugin.PluginEngine;
+import replicatorg.plugin.PluginEntry;
+
+/**
+ * Runs gcode through PluginEngine the old way and the new way, with no
+ * plugins and with two, and reports lines per second for each next to plain
+ * iteration over the lines. Also checks that both hand the same lines to the
+ * plugins.
+ *
+ * The old way is copied here from PluginEngine.processLine: every line is
+ * parsed into a GCodeCommand, and every plugin's accepted codes are searched
+ * for its M code. (The copy looks at PluginEntry.getPlugin(); the original
+ * looked at the PluginEntry itself, and so never dispatched at all.)
+ *
+ * Usage: PluginEngineBenchmark [file.gcode ...]
+ * With no arguments, every .gcode file under examples/ is used.
+ */
+public class PluginEngineBenchmark {
+
+	// Counts what it's handed
+	static class CountingPlugin implements MCodePlugin {
+		final int[] codes;
+		long count;
+		long sum;
+
+		CountingPlugin(int... codes) {
+			this.codes = codes;
+		}
+
+		public int[] getAcceptedMCodes() {
+			return codes;
+		}
+
+		public void processMCode(GCodeCommand mcode) {
+			count++;
+			sum += mcode.getCommand().length();
+		}
+	}
+
+	static void legacyProcessLine(String line, Vector<PluginEntry> plugins) {
+		GCodeCommand mcode = new GCodeCommand(line);
+		if( mcode.hasCode('M')) {
+			double code = mcode.getCodeValue('M');
+
+			for (PluginEntry plugin : plugins) {
+				if (plugin.getPlugin() instanceof MCodePlugin) {
+					MCodePlugin mcp = (MCodePlugin)plugin.getPlugin();
+					int codes[] = mcp.getAcceptedMCodes();
+					for (int acceptedCode : codes) {
+						if (code == acceptedCode) {
+							mcp.processMCode(mcode);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	static void collect(File f, List<File> files) {
+		if (f.isDirectory()) {
+			File[] children = f.listFiles();
+			if (children != null)
+				for (File child : children)
+					collect(child, files);
+		} else if (f.getName().endsWith(".gcode")) {
+			files.add(f);
+		}
+	}
+
+	static Vector<String> readLines(List<File> files) throws IOException {
+		Vector<String> lines = new Vector<String>();
+		for (File f : files) {
+			BufferedReader reader = new BufferedReader(new FileReader(f));
+			String line;
+			while ((line = reader.readLine()) != null)
+				lines.add(line);
+			reader.close();
+		}
+		return lines;
+	}
+
+	static Vector<PluginEntry> plugins(CountingPlugin... mcps) {
+		Vector<PluginEntry> plugins = new Vector<PluginEntry>();
+		for (CountingPlugin mcp : mcps)
+			plugins.add(new PluginEntry("counter", "counts M codes", mcp));
+		return plugins;
+	}
+
+	static long legacy(Vector<String> lines, Vector<PluginEntry> plugins) {
+		long sink = 0;
+		for (String line : lines) {
+			try {
+				legacyProcessLine(line, plugins);
+			} catch (NumberFormatException e) {
+			}
+			sink += line.length();
+		}
+		return sink;
+	}
+
+	static long engine(Vector<String> lines, Vector<PluginEntry> plugins) {
+		PluginEngine engine = new PluginEngine();
+		engine.setParentSource(new StringListSource(lines));
+		engine.setPlugins(plugins);
+		long sink = 0;
+		Iterator<String> i = engine.iterator();
+		while (i.hasNext()) {
+			try {
+				sink += i.next().length();
+			} catch (NumberFormatException e) {
+			}
+		}
+		return sink;
+	}
+
+	public static void main(String[] args) throws IOException {
+		List<File> files = new ArrayList<File>();
+		if (args.length == 0) {
+			collect(new File("examples"), files);
+		} else {
+			for (String arg : args)
+				collect(new File(arg), files);
+		}
+		Vector<String> lines = readLines(files);
+		System.out.println(files.size() + " files, " + lines.size() + " lines");
+
+		// Temperatures are common, fan on/off rare
+		CountingPlugin oldTemp = new CountingPlugin(104, 109), oldFan = new CountingPlugin(126, 127);
+		CountingPlugin newTemp = new CountingPlugin(104, 109), newFan = new CountingPlugin(126, 127);
+		legacy(lines, plugins(oldTemp, oldFan));
+		engine(lines, plugins(newTemp, newFan));
+		boolean same = oldTemp.count == newTemp.count && oldTemp.sum == newTemp.sum
+			&& oldFan.count == newFan.count && oldFan.sum == newFan.sum;
+		System.out.println((same ? "same" : "DIFFERENT") + " dispatch: " + newTemp.count
+				+ " temperature and " + newFan.count + " fan lines");
+
+		for (int round = 0; round < 5; round++) {
+			long sink = 0;
+
+			long start = System.nanoTime();
+			for (String line : lines)
+				sink += line.length();
+			long plainNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			sink += legacy(lines, plugins());
+			long legacyNoneNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			sink += engine(lines, plugins());
+			long engineNoneNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			sink += legacy(lines, plugins(new CountingPlugin(104, 109), new CountingPlugin(126, 127)));
+			long legacyNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			sink += engine(lines, plugins(new CountingPlugin(104, 109), new CountingPlugin(126, 127)));
+			long engineNanos = System.nanoTime() - start;
+
+			System.out.printf("round %d: plain %.0f lines/s; no plugins: old %.0f, new %.0f lines/s;"
+					+ " two plugins: old %.0f, new %.0f lines/s (%.1fx) [%s]%n",
+					round,
+					lines.size() * 1e9 / plainNanos,
+					lines.size() * 1e9 / legacyNoneNanos,
+					lines.size() * 1e9 / engineNoneNanos,
+					lines.size() * 1e9 / legacyNanos,
+					lines.size() * 1e9 / engineNanos,
+					(double) legacyNanos / engineNanos,
+					sink == 0 ? "" : "ok");
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import replicatorg.drivers.reprap.ResponseParser;
+import replicatorg.drivers.reprap.ResponseParser.Kind;
+
+/**
+ * Replays firmware output through the RepRap5DDriver response handling, as it
+ * was (decode each line to a String, trim().toLowerCase(), then regexes
+ * compiled per line) and through ResponseParser. First checks that both
+ * classify every line the same and read the same numbers out of it, then
+ * reports lines per second for each.
+ *
+ * Usage: ResponseParserBenchmark [capture.txt] [rounds]
+ * The capture is the firmware's output, one line per line, as logged with
+ * debugLevel 2 (a leading "<< " is dropped). Without one, a session in
+ * Marlin's reply format is used: start-up, heating with M105 polls, then
+ * printing, mostly "ok" with the odd resend.
+ */
+public class ResponseParserBenchmark {
+
+	static final String[] STARTUP = {
+		"start",
+		"echo:Marlin 1.0.0",
+		"echo: Last Updated: Feb 12 2012 18:26:36 | Author: erik",
+		"echo: Free Memory: 5403  PlannerBufferBytes: 1232",
+		"echo:SD init fail",
+		"ok",
+		"FIRMWARE_NAME:Marlin V1; Sprinter/grbl mashup for gen6 FIRMWARE_URL:http://github.com/ErikZalm/Marlin/ PROTOCOL_VERSION:1.0 MACHINE_TYPE:Mendel EXTRUDER_COUNT:1",
+		"ok",
+	};
+
+	static final String[] HEATING = {
+		"ok T:21.4 /0.0 B:20.9 /0.0 @:0",
+		"T:185.2 E:0 W:?",
+		"T:187.9 E:0 W:?",
+		"ok T:190.1 /190.0 B:60.2 /60.0 @:87",
+		"X:0.00Y:0.00Z:0.00E:0.00 Count X: 0.00Y:0.00Z:0.00",
+		"ok C: X:10.00 Y:20.50 Z:0.30 E:1.00",
+	};
+
+	static final String[] RESEND = {
+		"Error:checksum mismatch, Last Line:2041",
+		"Resend:2042",
+		"ok",
+	};
+
+	// RepRap5DDriver.readResponse as it was, minus the side effects.
+	static class LegacyResponse {
+		static Pattern resendLinePattern = Pattern.compile("([0-9]+)");
+
+		Kind kind;
+		double temperature = Double.NaN, bedTemperature = Double.NaN;
+		double x = Double.NaN, y = Double.NaN, z = Double.NaN;
+		int resendLine = -1;
+
+		LegacyResponse(byte[] bytes, int offset, int length) throws Exception {
+			String line = new String(bytes, offset, length, "US-ASCII").trim().toLowerCase();
+
+			if (line.startsWith("ok t:")||line.startsWith("t:")) {
+				Matcher m = Pattern.compile("t:([0-9\\.]+)").matcher(line);
+				if (m.find())
+					temperature = Double.parseDouble(m.group(1));
+				m = Pattern.compile("^ok.*b:([0-9\\.]+)").matcher(line);
+				if (m.find())
+					bedTemperature = Double.parseDouble(m.group(1));
+			}
+			else if (line.startsWith("ok c:")||line.startsWith("c:")) {
+				Matcher m = Pattern.compile("c: *x:?([-0-9\\.]+) *y:?([-0-9\\.]+) *z:?([-0-9\\.]+)").matcher(line);
+				if (m.find()) {
+					x = Double.parseDouble(m.group(1));
+					y = Double.parseDouble(m.group(2));
+					z = Double.parseDouble(m.group(3));
+				}
+			}
+			if (line.length() == 0) kind = Kind.EMPTY;
+			else if (line.startsWith("ok")) kind = Kind.OK;
+			else if (line.contains("sd")) kind = Kind.OTHER;
+			else if (line.startsWith("marlin")) kind = Kind.OTHER;
+			else if (line.startsWith("echo")) kind = Kind.ECHO;
+			else if (line.contains("firmware_name")) kind = Kind.OTHER;
+			else if (line.startsWith("x:")) {
+				kind = Kind.POSITION;
+				String[] curlocation = line.split("[a-z]:");
+				try {
+					x = Double.parseDouble(curlocation[1]);
+					y = Double.parseDouble(curlocation[2]);
+					z = Double.parseDouble(curlocation[3]);
+				} catch (RuntimeException e) {
+					// a bad number, or too few of them
+					x = y = z = Double.NaN;
+				}
+			}
+			else if (line.contains("start")) kind = Kind.START;
+			else if (line.startsWith("extruder fail")) kind = Kind.OTHER;
+			else if (line.startsWith("resend")||line.startsWith("rs ")) {
+				kind = Kind.RESEND;
+				Matcher m = resendLinePattern.matcher(line);
+				if (m.find())
+					resendLine = Integer.parseInt(m.group(1));
+			}
+			else if (line.startsWith("t:")) kind = Kind.TEMPERATURE;
+			else if (line.startsWith("c:")) kind = Kind.POSITION;
+			// the old code had no error case; these went to "Unknown"
+			else if (line.startsWith("error")) kind = Kind.ERROR;
+			else kind = Kind.OTHER;
+		}
+	}
+
+	static List<byte[]> session(int lines) {
+		List<byte[]> session = new ArrayList<byte[]>();
+		for (String s : STARTUP) session.add((s + "\n").getBytes());
+		for (int i = 0; i < 40; i++) {
+			for (String s : HEATING) session.add((s + "\n").getBytes());
+		}
+		int n = 0;
+		while (session.size() < lines) {
+			n++;
+			if (n % 5000 == 0) {
+				for (String s : RESEND) session.add((s + "\n").getBytes());
+			} else if (n % 50 == 0) {
+				session.add("ok T:201.3 /200.0 B:59.8 /60.0 @:64\n".getBytes());
+			} else {
+				session.add("ok\n".getBytes());
+			}
+		}
+		return session;
+	}
+
+	static List<byte[]> capture(String file) throws IOException {
+		List<byte[]> capture = new ArrayList<byte[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("<< ")) line = line.substring(3);
+				capture.add((line + "\n").getBytes("US-ASCII"));
+			}
+		} finally {
+			reader.close();
+		}
+		return capture;
+	}
+
+	static boolean same(double a, double b) {
+		return (Double.isNaN(a) && Double.isNaN(b)) || a == b;
+	}
+
+	public static void main(String[] args) throws Exception {
+		List<byte[]> lines = args.length > 0 ? capture(args[0]) : session(200000);
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		ResponseParser parser = new ResponseParser();
+		int mismatches = 0;
+		for (byte[] line : lines) {
+			LegacyResponse legacy = new LegacyResponse(line, 0, line.length);
+			Kind kind = parser.parse(line, 0, line.length);
+			boolean same = legacy.kind == kind
+					&& same(legacy.temperature, parser.getTemperature())
+					&& same(legacy.bedTemperature, parser.getBedTemperature())
+					&& same(legacy.x, parser.getX())
+					&& same(legacy.y, parser.getY())
+					&& same(legacy.z, parser.getZ())
+					&& legacy.resendLine == parser.getResendLine();
+			if (!same) {
+				if (mismatches < 10)
+					System.out.println("Mismatch: " + new String(line).trim());
+				mismatches++;
+			}
+		}
+		System.out.println(lines.size() + " lines, " + mismatches + " mismatches");
+
+		for (int round = 0; round < rounds; round++) {
+			long start = System.nanoTime();
+			for (byte[] line : lines) {
+				new LegacyResponse(line, 0, line.length);
+			}
+			long legacyTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (byte[] line : lines) {
+				parser.parse(line, 0, line.length);
+			}
+			long parserTime = System.nanoTime() - start;
+
+			System.out.println("round " + round
+					+ ": legacy " + (long)(lines.size() * 1e9 / legacyTime) + " lines/s"
+					+ ", parser " + (long)(lines.size() * 1e9 / parserTime) + " lines/s");
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import replicatorg.app.util.serial.ByteRing;
+
+/**
+ * Compares the serial receive path before and after ByteRing. A writer thread
+ * stands in for the port's event thread and a reader thread for the driver.
+ *
+ * The old path is copied here as LegacyFifo: a 1K ByteFifo, a lock held by the
+ * event thread while it queues each byte and notifies, and a reader that waits
+ * on the same lock.
+ *
+ * Two runs are made for each path:
+ * - throughput: the writer pushes bytes as fast as it can, the reader takes
+ *   them 64 at a time, and we report bytes per second;
+ * - latency: the writer sends RepRap-style "ok" lines at a steady rate, the
+ *   reader takes whole lines, and we report percentiles of the time from a line
+ *   being written to it being read.
+ *
+ * Usage: SerialRingBenchmark [megabytes] [lines] [line interval us]
+ */
+public class SerialRingBenchmark {
+
+	static final byte[] LINE = "ok T:210.0 /210.0 B:110.0 /110.0 @:0\n".getBytes();
+
+	/** The receive path under test, as seen by each thread. */
+	interface Path {
+		/** Event thread: queue bytes that came in. */
+		void received(byte[] bytes, int len);
+		/** Driver thread: read up to len bytes, waiting a while if there are none. */
+		int read(byte[] dst, int len);
+		/** Driver thread: take the next line, waiting a while for one; false if none came. */
+		boolean readLine();
+		/** @return the most bytes the path can hold */
+		int room();
+	}
+
+	/**
+	 * ByteFifo and the synchronized parts of Serial, as they were.
+	 */
+	static class LegacyFifo implements Path {
+		final byte[] buffer = new byte[1024];
+		int head = 0;
+		int tail = 0;
+		int newLineSearchHead = 0;
+
+		int moduloLength(int value) {
+			if (value < 0) value += buffer.length;
+			return value % buffer.length;
+		}
+		void enqueue(byte b) {
+			buffer[tail++] = b;
+			tail = moduloLength(tail);
+		}
+		int size() { return moduloLength(tail - head); }
+		byte dequeue() {
+			int nextHead = moduloLength(head + 1);
+			if (newLineSearchHead == head) newLineSearchHead = nextHead;
+			byte b = buffer[head];
+			head = nextHead;
+			return b;
+		}
+		byte[] dequeueLine() {
+			int i = newLineSearchHead;
+			while (i != tail) {
+				if (buffer[i] == (byte)'\n') {
+					byte[] match = new byte[moduloLength(moduloLength(i + 1) - head)];
+					int k = 0;
+					for (int j = head; j != moduloLength(i + 1); j = moduloLength(j + 1)) {
+						match[k++] = dequeue();
+					}
+					return match;
+				}
+				i = moduloLength(i + 1);
+			}
+			newLineSearchHead = i;
+			return new byte[0];
+		}
+
+		public void received(byte[] bytes, int len) {
+			synchronized (this) {
+				for (int i = 0; i < len; i++) {
+					enqueue(bytes[i]);
+					notifyAll();
+				}
+			}
+		}
+		public int read(byte[] dst, int len) {
+			try {
+				long to = System.currentTimeMillis() + 100;
+				while (System.currentTimeMillis() < to && size() < len) {
+					synchronized (this) {
+						wait(100);
+					}
+				}
+			} catch (InterruptedException e) {
+				return -1;
+			}
+			synchronized (this) {
+				int idx = 0;
+				while (size() > 0 && idx < len) {
+					dst[idx++] = dequeue();
+				}
+				return idx;
+			}
+		}
+		public boolean readLine() {
+			synchronized (this) {
+				long to = System.currentTimeMillis() + 100;
+				while (dequeueLine().length == 0) {
+					if (System.currentTimeMillis() >= to) {
+						return false;
+					}
+					try {
+						wait(100);
+					} catch (InterruptedException e) {
+						return false;
+					}
+				}
+				return true;
+			}
+		}
+		public int room() {
+			synchronized (this) {
+				// It can't tell full from empty, so keep a byte spare
+				return buffer.length - 1 - size();
+			}
+		}
+	}
+
+	static class Ring implements Path {
+		final ByteRing ring = new ByteRing();
+		final ByteRing.Slice slice = new ByteRing.Slice();
+
+		public void received(byte[] bytes, int len) {
+			ring.write(bytes, 0, len);
+		}
+		public int read(byte[] dst, int len) {
+			try {
+				ring.await(len, 100);
+			} catch (InterruptedException e) {
+				return -1;
+			}
+			return ring.drain(dst, 0, len);
+		}
+		public boolean readLine() {
+			try {
+				while (!ring.peekLine(slice)) {
+					if (!ring.await(ring.size() + 1, 100)) {
+						return false;
+					}
+				}
+			} catch (InterruptedException e) {
+				return false;
+			}
+			ring.skip(slice.length);
+			return true;
+		}
+		public int room() {
+			return ByteRing.DEFAULT_MAX_CAPACITY - ring.size();
+		}
+	}
+
+	/** @return bytes per second moved through the path */
+	static double throughput(final Path path, final long total) throws InterruptedException {
+		Thread writer = new Thread() {
+			public void run() {
+				byte[] chunk = new byte[64];
+				for (int i = 0; i < chunk.length; i++) {
+					chunk[i] = (byte)i;
+				}
+				long sent = 0;
+				while (sent < total) {
+					int n = (int)Math.min(chunk.length, total - sent);
+					// The old fifo overwrites itself when full, so hold off as the port would
+					while (path.room() < n) {
+						Thread.yield();
+					}
+					path.received(chunk, n);
+					sent += n;
+				}
+			}
+		};
+		byte[] dst = new byte[64];
+		long start = System.nanoTime();
+		writer.start();
+		long got = 0;
+		while (got < total) {
+			int n = path.read(dst, (int)Math.min(dst.length, total - got));
+			if (n < 0) {
+				break;
+			}
+			got += n;
+		}
+		long nanos = System.nanoTime() - start;
+		writer.join();
+		return got * 1e9 / nanos;
+	}
+
+	/** @return microseconds from each line being written to it being read, sorted */
+	static double[] latency(final Path path, final int lines, final long intervalNanos) throws InterruptedException {
+		final long[] sent = new long[lines];
+		Thread writer = new Thread() {
+			public void run() {
+				long next = System.nanoTime();
+				for (int i = 0; i < lines; i++) {
+					next += intervalNanos;
+					long wait;
+					while ((wait = next - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(wait);
+					}
+					sent[i] = System.nanoTime();
+					path.received(LINE, LINE.length);
+				}
+			}
+		};
+		double[] micros = new double[lines];
+		writer.start();
+		int n = 0;
+		while (n < lines && path.readLine()) {
+			micros[n] = (System.nanoTime() - sent[n]) / 1000.0;
+			n++;
+		}
+		writer.join();
+		micros = Arrays.copyOf(micros, n);
+		Arrays.sort(micros);
+		return micros;
+	}
+
+	static String percentiles(double[] sorted) {
+		if (sorted.length == 0) {
+			return "no lines";
+		}
+		return String.format("p50 %.1fus  p99 %.1fus  p99.9 %.1fus  max %.1fus  (%d lines)",
+				sorted[sorted.length / 2],
+				sorted[(int)(sorted.length * 0.99)],
+				sorted[(int)(sorted.length * 0.999)],
+				sorted[sorted.length - 1],
+				sorted.length);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 16;
+		int lines = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		long interval = args.length > 2 ? Long.parseLong(args[2]) : 200;
+
+		long total = megabytes * 1024 * 1024;
+		System.out.println("Throughput, " + megabytes + "MB in 64 byte chunks:");
+		// Once to warm up, once to measure
+		throughput(new LegacyFifo(), total / 4);
+		throughput(new Ring(), total / 4);
+		System.out.println(String.format("  ByteFifo:  %.1f MB/s", throughput(new LegacyFifo(), total) / 1e6));
+		System.out.println(String.format("  ByteRing:  %.1f MB/s", throughput(new Ring(), total) / 1e6));
+
+		System.out.println("Latency, " + lines + " lines every " + interval + "us:");
+		latency(new LegacyFifo(), lines / 4, interval * 1000);
+		latency(new Ring(), lines / 4, interval * 1000);
+		System.out.println("  ByteFifo:  " + percentiles(latency(new LegacyFifo(), lines, interval * 1000)));
+		System.out.println("  ByteRing:  " + percentiles(latency(new Ring(), lines, interval * 1000)));
+	}
+}
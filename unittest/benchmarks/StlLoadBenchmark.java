@@ -0,0 +1,258 @@
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.media.j3d.GeometryArray;
+import javax.media.j3d.TriangleArray;
+import javax.vecmath.Vector3d;
+
+import org.j3d.loaders.stl.STLASCIIBlockReader;
+import org.j3d.loaders.stl.STLBinaryBlockReader;
+import org.j3d.loaders.stl.STLBlockReader;
+import org.j3d.loaders.stl.STLFileReader;
+import org.j3d.renderer.java3d.loaders.STLLoader;
+
+/**
+ * Loads an STL file into a TriangleArray the old way and the new way, and
+ * reports load time, bytes allocated and heap kept for each. Also checks that
+ * both give the same coordinates and normals.
+ *
+ * The old way is copied here from STLLoader.createScene: STLFileReader hands
+ * over a facet at a time as doubles, and each vertex is set on the array. The
+ * new way is STLBinaryBlockReader or STLASCIIBlockReader, and
+ * STLLoader.createGeometry. The facets of every object in the file go in the
+ * one array.
+ *
+ * Only the geometry is built; a Shape3D needs a display.
+ *
+ * Usage: StlLoadBenchmark [file.stl | facets | facets"a"] [rounds] [threads]
+ * Given a number of facets rather than a file, a file of random facets is made,
+ * a quarter of them without normals; binary, or ASCII if the number ends in
+ * "a". Threads are for parsing ASCII, and default to one per processor.
+ */
+public class StlLoadBenchmark {
+
+	static TriangleArray legacyLoad(File file) throws IOException {
+		STLFileReader reader = new STLFileReader(file);
+		try {
+			int facets = 0;
+			for (int count : reader.getNumOfFacets()) {
+				facets += count;
+			}
+			TriangleArray geometry = new TriangleArray(3 * facets,
+					TriangleArray.NORMALS | TriangleArray.COORDINATES);
+			double[] normal = new double[3];
+			float[] fNormal = new float[3];
+			double[][] vertices = new double[3][3];
+			int index = 0;
+			for (int j = 0; j < facets; j++) {
+				reader.getNextFacet(normal, vertices);
+				fNormal[0] = (float) normal[0];
+				fNormal[1] = (float) normal[1];
+				fNormal[2] = (float) normal[2];
+				if (fNormal[0] == 0 && fNormal[1] == 0 && fNormal[2] == 0) {
+					Vector3d v0 = new Vector3d(vertices[0]);
+					v0.negate();
+					Vector3d v1 = new Vector3d(vertices[1]);
+					v1.add(v0);
+					Vector3d v2 = new Vector3d(vertices[2]);
+					v2.add(v0);
+					Vector3d n = new Vector3d();
+					n.cross(v1, v2);
+					n.normalize();
+					fNormal[0] = (float) n.x;
+					fNormal[1] = (float) n.y;
+					fNormal[2] = (float) n.z;
+				}
+				for (int k = 0; k < 3; k++) {
+					geometry.setNormal(index, fNormal);
+					geometry.setCoordinate(index, vertices[k]);
+					index++;
+				}
+			}
+			return geometry;
+		} finally {
+			reader.close();
+		}
+	}
+
+	static TriangleArray blockLoad(File file, int threads) throws IOException {
+		STLBlockReader reader;
+		if (STLBinaryBlockReader.isBinary(file)) {
+			reader = new STLBinaryBlockReader(file);
+		} else {
+			reader = new STLASCIIBlockReader(file, threads);
+		}
+		if (reader.getNumOfObjects() == 1) {
+			return STLLoader.createGeometry(reader.getCoordinates(0), reader.getNormals(0));
+		}
+		int facets = 0;
+		for (int count : reader.getNumOfFacets()) {
+			facets += count;
+		}
+		float[] coordinates = new float[9 * facets];
+		float[] normals = new float[9 * facets];
+		int index = 0;
+		for (int i = 0; i < reader.getNumOfObjects(); i++) {
+			float[] c = reader.getCoordinates(i);
+			System.arraycopy(c, 0, coordinates, index, c.length);
+			System.arraycopy(reader.getNormals(i), 0, normals, index, c.length);
+			index += c.length;
+		}
+		return STLLoader.createGeometry(coordinates, normals);
+	}
+
+	static File makeAsciiFile(int facets) throws IOException {
+		File file = File.createTempFile("benchmark", ".stl");
+		file.deleteOnExit();
+		Random random = new Random(7);
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		try {
+			out.printf(Locale.US, "solid Default\n");
+			for (int i = 0; i < facets; i++) {
+				boolean normal = (i % 4) != 0;
+				out.printf(Locale.US, "  facet normal %e %e %e\n", normal ? random.nextFloat() : 0f,
+						normal ? random.nextFloat() : 0f, normal ? random.nextFloat() : 0f);
+				out.printf(Locale.US, "    outer loop\n");
+				for (int j = 0; j < 3; j++) {
+					out.printf(Locale.US, "      vertex %e %e %e\n", random.nextFloat() * 100,
+							random.nextFloat() * 100, random.nextFloat() * 100);
+				}
+				out.printf(Locale.US, "    endloop\n");
+				out.printf(Locale.US, "  endfacet\n");
+			}
+			out.printf(Locale.US, "endsolid Default\n");
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	static File makeFile(int facets) throws IOException {
+		File file = File.createTempFile("benchmark", ".stl");
+		file.deleteOnExit();
+		Random random = new Random(7);
+		ByteBuffer record = ByteBuffer.allocate(50).order(ByteOrder.LITTLE_ENDIAN);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(84).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(80, facets);
+			out.write(header.array());
+			for (int i = 0; i < facets; i++) {
+				record.clear();
+				boolean normal = (i % 4) != 0;
+				for (int j = 0; j < 3; j++) {
+					record.putFloat(normal ? random.nextFloat() : 0);
+				}
+				for (int j = 0; j < 9; j++) {
+					record.putFloat(random.nextFloat() * 100);
+				}
+				record.putShort((short) 0);
+				out.write(record.array());
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	static float[] coordinates(TriangleArray g) {
+		if ((g.getVertexFormat() & GeometryArray.BY_REFERENCE) != 0) {
+			return g.getCoordRefFloat();
+		}
+		float[] c = new float[3 * g.getVertexCount()];
+		g.getCoordinates(0, c);
+		return c;
+	}
+
+	static float[] normals(TriangleArray g) {
+		if ((g.getVertexFormat() & GeometryArray.BY_REFERENCE) != 0) {
+			return g.getNormalRefFloat();
+		}
+		float[] n = new float[3 * g.getVertexCount()];
+		g.getNormals(0, n);
+		return n;
+	}
+
+	interface Load {
+		TriangleArray load(File file) throws IOException;
+	}
+
+	static TriangleArray run(String name, Load load, File file, int rounds) throws IOException {
+		load.load(file); // warm up
+		long before = usedHeap();
+		TriangleArray g = null;
+		long nanos = Long.MAX_VALUE;
+		long allocated = 0;
+		for (int r = 0; r < rounds; r++) {
+			g = null;
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			g = load.load(file);
+			nanos = Math.min(nanos, System.nanoTime() - start);
+			allocated = allocatedBytes() - bytes;
+		}
+		long kept = usedHeap() - before;
+		System.out.println(String.format("  %-28s %8.1f ms  allocated %7.1f MB  kept %7.1f MB",
+				name, nanos / 1e6, allocated / 1e6, kept / 1e6));
+		return g;
+	}
+
+	public static void main(String[] args) throws IOException {
+		String source = args.length > 0 ? args[0] : "examples/single/amazing_skull.stl";
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		final int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		File file = new File(source);
+		if (!file.exists()) {
+			if (source.endsWith("a")) {
+				file = makeAsciiFile(Integer.parseInt(source.substring(0, source.length() - 1)));
+			} else {
+				file = makeFile(Integer.parseInt(source));
+			}
+		}
+		System.out.println(file + ": " + file.length() / 1000000.0 + " MB, best of " + rounds);
+
+		TriangleArray legacy = run("STLFileReader + setters:", new Load() {
+			public TriangleArray load(File f) throws IOException { return legacyLoad(f); }
+		}, file, rounds);
+		float[] legacyCoordinates = coordinates(legacy);
+		float[] legacyNormals = normals(legacy);
+		legacy = null;
+
+		TriangleArray block = run("Block reader:", new Load() {
+			public TriangleArray load(File f) throws IOException { return blockLoad(f, threads); }
+		}, file, rounds);
+
+		boolean same = Arrays.equals(legacyCoordinates, coordinates(block))
+				&& Arrays.equals(legacyNormals, normals(block));
+		System.out.println(same ? "  Same geometry" : "  GEOMETRY DIFFERS");
+	}
+}
@@ -0,0 +1,98 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.media.j3d.GeometryArray;
+import javax.media.j3d.Transform3D;
+import javax.vecmath.AxisAngle4d;
+import javax.vecmath.Vector3d;
+
+import org.j3d.loaders.stl.STLASCIIBlockReader;
+import org.j3d.loaders.stl.STLBinaryBlockReader;
+import org.j3d.loaders.stl.STLBlockReader;
+import org.j3d.renderer.java3d.loaders.STLLoader;
+
+import replicatorg.model.j3d.IndexedMesh;
+import replicatorg.model.j3d.ModelWriter;
+import replicatorg.model.j3d.StlAsciiWriter;
+import replicatorg.model.j3d.StlBinaryWriter;
+
+/**
+ * Saves a model with StlAsciiWriter and with StlBinaryWriter, as
+ * BuildModel.save does, and reports the time and file size of each. The model
+ * is welded into an IndexedMesh first, as BuildModel does on load, and is
+ * turned and moved so the transform has work to do. The binary file is read
+ * back and checked against the ASCII one.
+ *
+ * Usage: StlSaveBenchmark [file.stl | facets] [rounds]
+ * Given a number of facets rather than a file, random facets are made.
+ */
+public class StlSaveBenchmark {
+
+	static long save(ModelWriter writer, GeometryArray geometry, Transform3D transform) throws IOException {
+		long start = System.nanoTime();
+		try {
+			writer.writeGeometry(geometry, transform);
+		} finally {
+			writer.close();
+		}
+		return System.nanoTime() - start;
+	}
+
+	public static void main(String[] args) throws IOException {
+		String source = args.length > 0 ? args[0] : "100000";
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		float[] coordinates, normals;
+		File file = new File(source);
+		if (file.exists()) {
+			STLBlockReader reader = STLBinaryBlockReader.isBinary(file) ?
+					new STLBinaryBlockReader(file) : new STLASCIIBlockReader(file);
+			coordinates = reader.getCoordinates(0);
+			normals = reader.getNormals(0);
+		} else {
+			int facets = Integer.parseInt(source);
+			Random random = new Random(7);
+			coordinates = new float[9 * facets];
+			normals = new float[9 * facets];
+			for (int i = 0; i < coordinates.length; i++) {
+				coordinates[i] = (float)(random.nextDouble() * 100);
+				normals[i] = (float)random.nextGaussian();
+			}
+		}
+		GeometryArray geometry = new IndexedMesh(STLLoader.createGeometry(coordinates, normals)).getGeometry();
+		System.out.println((coordinates.length / 9) + " facets, " + rounds + " rounds");
+
+		Transform3D transform = new Transform3D();
+		transform.setRotation(new AxisAngle4d(1, 2, 3, 0.7));
+		transform.setTranslation(new Vector3d(10, -20, 5));
+
+		File ascii = File.createTempFile("save", ".stl");
+		File binary = File.createTempFile("save", ".stl");
+		ascii.deleteOnExit();
+		binary.deleteOnExit();
+		long asciiNanos = Long.MAX_VALUE, binaryNanos = Long.MAX_VALUE;
+		for (int r = 0; r < rounds; r++) {
+			asciiNanos = Math.min(asciiNanos, save(new StlAsciiWriter(new FileOutputStream(ascii)), geometry, transform));
+			binaryNanos = Math.min(binaryNanos, save(new StlBinaryWriter(new FileOutputStream(binary)), geometry, transform));
+		}
+		System.out.println(String.format("  ASCII:  %8.1f ms, %d bytes", asciiNanos / 1e6, ascii.length()));
+		System.out.println(String.format("  Binary: %8.1f ms, %d bytes", binaryNanos / 1e6, binary.length()));
+
+		// ASCII keeps six significant figures, so compare to about that
+		STLBlockReader a = new STLASCIIBlockReader(ascii);
+		STLBlockReader b = new STLBinaryBlockReader(binary);
+		float[] ac = a.getCoordinates(0), bc = b.getCoordinates(0);
+		float[] an = a.getNormals(0), bn = b.getNormals(0);
+		double worst = 0;
+		for (int i = 0; i < ac.length; i++) {
+			worst = Math.max(worst, Math.abs(ac[i] - bc[i]) / Math.max(1, Math.abs(ac[i])));
+			worst = Math.max(worst, Math.abs(an[i] - bn[i]));
+		}
+		boolean same = ac.length == bc.length && worst < 1e-5;
+		System.out.println("  Binary file " + (same ? "matches" : "DIFFERS FROM") + " ASCII file (worst difference " + worst + ")");
+	}
+}
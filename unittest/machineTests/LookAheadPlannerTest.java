@@ -0,0 +1,168 @@
+package machineTests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import replicatorg.drivers.commands.Delay;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.DriverCommand.LinearDirection;
+import replicatorg.drivers.commands.HomeAxes;
+import replicatorg.drivers.commands.QueuePoint;
+import replicatorg.drivers.commands.SetCurrentPosition;
+import replicatorg.drivers.commands.SetFeedrate;
+import replicatorg.drivers.estimation.AcceleratedMotionModel;
+import replicatorg.drivers.estimation.AccelerationSettings;
+import replicatorg.drivers.estimation.MotionModel;
+import replicatorg.machine.builder.LookAheadPlanner;
+import replicatorg.machine.model.AxisId;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+public class LookAheadPlannerTest {
+	AccelerationSettings settings;
+
+	@Before
+	public void setUp() {
+		MachineModel machine = new MachineModel();
+		machine.getMaximumFeedrates().setX(6000);
+		machine.getMaximumFeedrates().setY(6000);
+		machine.getMaximumFeedrates().setZ(1000);
+		machine.getMaximumFeedrates().setA(1600);
+		settings = LookAheadPlanner.getSettings(machine);
+	}
+
+	// A recorded stream: a square, a pause, then a zigzag.
+	Queue<DriverCommand> recordedMoves() {
+		Queue<DriverCommand> moves = new LinkedList<DriverCommand>();
+		moves.add(new SetCurrentPosition(new Point5d()));
+		moves.add(new SetFeedrate(3000));
+		moves.add(new QueuePoint(new Point5d(20, 0, 0, 1, 0)));
+		moves.add(new QueuePoint(new Point5d(20, 20, 0, 2, 0)));
+		moves.add(new QueuePoint(new Point5d(0, 20, 0, 3, 0)));
+		moves.add(new QueuePoint(new Point5d(0, 0, 0, 4, 0)));
+		moves.add(new Delay(100));
+		moves.add(new SetFeedrate(4800));
+		for (int i = 1; i <= 10; i++) {
+			moves.add(new QueuePoint(new Point5d(i * 2, (i % 2) * 30, 0.2, 4 + i, 0)));
+		}
+		return moves;
+	}
+
+	// Time the recorded stream takes in the model, in ms
+	double modelTime(Queue<DriverCommand> commands) {
+		final double[] time = new double[1];
+		AcceleratedMotionModel model = new AcceleratedMotionModel(settings);
+		model.setListener(new MotionModel.Listener() {
+			public void moveTime(double millis, double z) {
+				time[0] += millis;
+			}
+		});
+		Point5d position = null;
+		double feedrate = 0;
+		for (DriverCommand command : commands) {
+			if (command instanceof SetFeedrate) {
+				feedrate = ((SetFeedrate)command).getFeedrate();
+			} else if (command instanceof QueuePoint) {
+				Point5d destination = ((QueuePoint)command).getDestination();
+				Point5d delta = new Point5d(destination);
+				delta.sub(position);
+				model.move(delta, feedrate, destination.z());
+				position = destination;
+			} else {
+				model.stop();
+				if (command instanceof SetCurrentPosition) {
+					position = ((SetCurrentPosition)command).getPoint();
+				}
+			}
+		}
+		model.stop();
+		return time[0];
+	}
+
+	List<DriverCommand> plan(Queue<DriverCommand> commands) {
+		LookAheadPlanner planner = new LookAheadPlanner(settings);
+		Queue<DriverCommand> out = new LinkedList<DriverCommand>();
+		planner.plan(commands, out);
+		planner.finish(out);
+		assertFalse(planner.isHolding());
+		return new ArrayList<DriverCommand>(out);
+	}
+
+	@Test
+	public void testKeepsEveryDestination() {
+		List<Point5d> destinations = new ArrayList<Point5d>();
+		for (DriverCommand command : recordedMoves()) {
+			if (command instanceof QueuePoint) {
+				destinations.add(((QueuePoint)command).getDestination());
+			}
+		}
+
+		int found = 0;
+		for (DriverCommand command : plan(recordedMoves())) {
+			if (command instanceof QueuePoint && found < destinations.size()
+					&& ((QueuePoint)command).getDestination().distance(destinations.get(found)) == 0) {
+				found++;
+			}
+		}
+		assertEquals(destinations.size(), found);
+	}
+
+	@Test
+	public void testStopsBeforeOtherCommands() {
+		List<DriverCommand> planned = plan(recordedMoves());
+
+		int delay = -1;
+		for (int i = 0; i < planned.size(); i++) {
+			if (planned.get(i) instanceof Delay) {
+				delay = i;
+			}
+		}
+		assertTrue(delay > 0);
+		// The square is done, and the feedrate put back, before the pause
+		assertEquals(new Point5d(0, 0, 0, 4, 0).toString(),
+				((QueuePoint)planned.get(delay - 2)).getDestination().toString());
+		assertEquals(3000, ((SetFeedrate)planned.get(delay - 1)).getFeedrate(), 0);
+		// and the last feedrate asked for is put back at the end
+		assertEquals(4800, ((SetFeedrate)planned.get(planned.size() - 1)).getFeedrate(), 0);
+	}
+
+	@Test
+	public void testFollowsTheModel() {
+		double time = 0;
+		double feedrate = 0;
+		Point5d position = null;
+		for (DriverCommand command : plan(recordedMoves())) {
+			if (command instanceof SetFeedrate) {
+				feedrate = ((SetFeedrate)command).getFeedrate();
+			} else if (command instanceof SetCurrentPosition) {
+				position = ((SetCurrentPosition)command).getPoint();
+			} else if (command instanceof QueuePoint) {
+				Point5d destination = ((QueuePoint)command).getDestination();
+				// Feedrates are along all five axes
+				time += destination.distance(position) / feedrate * 60000.0;
+				position = destination;
+			}
+		}
+		assertEquals(modelTime(recordedMoves()), time, 1e-6);
+	}
+
+	@Test
+	public void testPassesUnknownMovesThrough() {
+		Queue<DriverCommand> commands = new LinkedList<DriverCommand>();
+		commands.add(new HomeAxes(EnumSet.of(AxisId.X), LinearDirection.NEGATIVE));
+		QueuePoint first = new QueuePoint(new Point5d(10, 0, 0));
+		commands.add(first);
+
+		List<DriverCommand> planned = plan(commands);
+		assertEquals(2, planned.size());
+		assertSame(first, planned.get(1));
+	}
+}
@@ -0,0 +1,81 @@
+package machineTests;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import replicatorg.machine.TelemetryStore;
+import replicatorg.machine.TelemetryStore.Channel;
+import replicatorg.machine.TelemetryStore.Resolution;
+
+public class TelemetryStoreTest {
+
+	static double[] sample(double extruder, double platform) {
+		double[] values = new double[TelemetryStore.CHANNELS];
+		values[Channel.EXTRUDER_CURRENT.ordinal()] = extruder;
+		values[Channel.EXTRUDER_TARGET.ordinal()] = 220;
+		values[Channel.PLATFORM_CURRENT.ordinal()] = platform;
+		values[Channel.PLATFORM_TARGET.ordinal()] = Double.NaN;
+		values[Channel.MOTOR_PWM.ordinal()] = 255;
+		return values;
+	}
+
+	@Test
+	public void rawRingKeepsTheNewest() {
+		TelemetryStore store = new TelemetryStore();
+		int capacity = Resolution.RAW.getCapacity();
+		for (int i = 0; i < capacity + 10; i++) {
+			store.record(0, i * 100, sample(i, 60));
+		}
+		assertEquals(capacity, store.size(0, Resolution.RAW));
+		assertEquals(0, store.size(1, Resolution.RAW));
+
+		long[] times = new long[capacity];
+		double[] values = new double[capacity];
+		assertEquals(capacity, store.read(0, Resolution.RAW, Channel.EXTRUDER_CURRENT, times, values));
+		assertEquals(1000, times[0]);
+		assertEquals(10, values[0], 0);
+		assertEquals((capacity + 9) * 100, times[capacity - 1]);
+		assertEquals(capacity + 9, values[capacity - 1], 0);
+	}
+
+	@Test
+	public void secondsAreAveraged() {
+		TelemetryStore store = new TelemetryStore();
+		// Four samples a second for three seconds, then one into the fourth
+		for (int i = 0; i < 13; i++) {
+			store.record(2, 10000 + i * 250, sample(i, Double.NaN));
+		}
+		// The fourth second is still being averaged
+		assertEquals(3, store.size(2, Resolution.SECOND));
+		assertEquals(0, store.size(2, Resolution.MINUTE));
+
+		long[] times = new long[Resolution.SECOND.getCapacity()];
+		double[] values = new double[Resolution.SECOND.getCapacity()];
+		store.read(2, Resolution.SECOND, Channel.EXTRUDER_CURRENT, times, values);
+		assertEquals(10000, times[0]);
+		assertEquals(1.5, values[0], 0);
+		assertEquals(12000, times[2]);
+		assertEquals(9.5, values[2], 0);
+
+		store.read(2, Resolution.SECOND, Channel.PLATFORM_CURRENT, times, values);
+		assertTrue(Double.isNaN(values[0]));
+	}
+
+	@Test
+	public void listenersSeeEverySample() {
+		TelemetryStore store = new TelemetryStore();
+		final int[] count = { 0 };
+		TelemetryStore.Listener listener = new TelemetryStore.Listener() {
+			public void sampleRecorded(int tool, long time, double[] values) {
+				count[0]++;
+			}
+		};
+		store.addListener(listener);
+		store.record(0, 0, sample(20, 20));
+		store.record(1, 0, sample(20, 20));
+		store.removeListener(listener);
+		store.record(0, 100, sample(20, 20));
+		assertEquals(2, count[0]);
+	}
+}
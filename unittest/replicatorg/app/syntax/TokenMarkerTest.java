@@ -0,0 +1,102 @@
+package replicatorg.app.syntax;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.Segment;
+
+import org.junit.Test;
+
+/**
+ * Lines are tokenized when they're first painted, in whatever order that is,
+ * with the token marker catching up on the lines above when it has to. Checks
+ * that asking for lines out of order, before and after edits, gives the same
+ * tokens as tokenizing the whole document from the top.
+ */
+public class TokenMarkerTest {
+
+	static final String[] LINES = {
+		"G1 X10 Y10 F3000", "/* start of a comment", "still in it", "end */ G1 X0",
+		"// a line comment", "M104 S220 (temperature)", "", "\"a string\" G92",
+	};
+
+	static String randomText(Random random, int lines) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < lines; i++)
+			text.append(LINES[random.nextInt(LINES.length)]).append('\n');
+		return text.toString();
+	}
+
+	static SyntaxDocument document(String text) throws BadLocationException {
+		SyntaxDocument document = new SyntaxDocument();
+		document.insertString(0, text, null);
+		document.setTokenMarker(new CTokenMarker());
+		return document;
+	}
+
+	// The tokens of a line, as id:length pairs
+	static String tokens(SyntaxDocument document, int line) throws BadLocationException {
+		Element element = document.getDefaultRootElement().getElement(line);
+		int start = element.getStartOffset();
+		Segment segment = new Segment();
+		document.getText(start, element.getEndOffset() - start - 1, segment);
+		StringBuilder result = new StringBuilder();
+		for (Token token = document.getTokenMarker().markTokens(segment, line);
+				token != null && token.id != Token.END; token = token.next)
+			result.append(token.id).append(':').append(token.length).append(' ');
+		return result.toString();
+	}
+
+	static List<String> inOrder(String text) throws BadLocationException {
+		SyntaxDocument document = document(text);
+		List<String> result = new ArrayList<String>();
+		int lines = document.getDefaultRootElement().getElementCount();
+		for (int i = 0; i < lines; i++)
+			result.add(tokens(document, i));
+		return result;
+	}
+
+	static void assertShuffled(SyntaxDocument document, Random random) throws BadLocationException {
+		List<String> expected = inOrder(document.getText(0, document.getLength()));
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < expected.size(); i++)
+			order.add(i);
+		Collections.shuffle(order, random);
+		for (int line : order)
+			assertEquals("line " + line, expected.get(line), tokens(document, line));
+	}
+
+	@Test
+	public void outOfOrder() throws BadLocationException {
+		Random random = new Random(1);
+		assertShuffled(document(randomText(random, 500)), random);
+	}
+
+	@Test
+	public void afterEdits() throws BadLocationException {
+		Random random = new Random(2);
+		SyntaxDocument document = document(randomText(random, 500));
+		assertShuffled(document, random);
+		for (int step = 0; step < 20; step++) {
+			Element root = document.getDefaultRootElement();
+			int line = random.nextInt(root.getElementCount());
+			int offset = root.getElement(line).getStartOffset();
+			if (random.nextBoolean()) {
+				document.insertString(offset, randomText(random, 1 + random.nextInt(3)), null);
+			} else {
+				int end = root.getElement(Math.min(root.getElementCount() - 1, line + random.nextInt(3))).getEndOffset();
+				document.remove(offset, Math.min(end, document.getLength()) - offset);
+			}
+			// Paint a few lines, as the text area would after an edit
+			for (int i = 0; i < 10; i++)
+				tokens(document, random.nextInt(document.getDefaultRootElement().getElementCount()));
+			assertShuffled(document, random);
+		}
+	}
+}
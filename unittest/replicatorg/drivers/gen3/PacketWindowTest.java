@@ -0,0 +1,296 @@
+package replicatorg.drivers.gen3;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import replicatorg.app.tools.IButtonCrc;
+import replicatorg.drivers.RetryException;
+
+/**
+ * Runs moves through a PacketWindow to a fake bot that loses requests, loses
+ * responses, garbles them and overflows its buffer, and checks that the bot
+ * either ran every move exactly once and in order, or the window failed with
+ * the moves the bot did run still in order and none run twice.
+ */
+public class PacketWindowTest {
+
+	static final int MOVES = 200;
+
+	// Room for every move, so the window never has to drain to ask for more
+	static final int ROOMY = 1 << 20;
+
+	/**
+	 * A motherboard with a command buffer, answering each packet as soon as it's
+	 * written. Faults can be aimed at particular moves, and each goes off once.
+	 * Moves run, freeing their room in the buffer, by chance as bytes are read,
+	 * and one at a time as the host asks how much room there is.
+	 */
+	static class FakeBot implements PacketWindow.Link {
+		final Random random;
+		final int capacity;
+		double drainChance = 0;
+
+		// Claim this much more free space than there is, so the window overflows us
+		int overReport = 0;
+		// Answer nothing at all
+		boolean silent = false;
+
+		final Set<Integer> dropRequest = new HashSet<Integer>();
+		final Set<Integer> dropResponse = new HashSet<Integer>();
+		final Set<Integer> badCrc = new HashSet<Integer>();
+		final Set<Integer> corruptRequest = new HashSet<Integer>();
+		final Set<Integer> overflow = new HashSet<Integer>();
+
+		int used = 0;
+		final LinkedList<Integer> queued = new LinkedList<Integer>();
+		final List<Integer> ran = new ArrayList<Integer>();
+		int overflows = 0;
+
+		final LinkedList<Byte> out = new LinkedList<Byte>();
+
+		FakeBot(long seed, int capacity) {
+			random = new Random(seed);
+			this.capacity = capacity;
+		}
+
+		void drainOne() {
+			if (!queued.isEmpty()) {
+				used -= queued.removeFirst();
+			}
+		}
+
+		void reply(boolean corrupt, int... payload) {
+			IButtonCrc crc = new IButtonCrc();
+			out.add((byte) 0xD5);
+			out.add((byte) payload.length);
+			for (int b : payload) {
+				out.add((byte) b);
+				crc.update((byte) b);
+			}
+			out.add((byte) (corrupt ? ~crc.getCrc() : crc.getCrc()));
+		}
+
+		public void write(byte[] packet) {
+			if (silent) {
+				return;
+			}
+			int length = packet[1] & 0xff;
+			int code = packet[2] & 0xff;
+			if (code == MotherboardCommandCode.GET_BUFFER_SIZE.getCode()) {
+				drainOne();
+				int free = capacity - used + overReport;
+				reply(false, 0x81, free & 0xff, (free >> 8) & 0xff, (free >> 16) & 0xff, (free >> 24) & 0xff);
+				return;
+			}
+			int move = (packet[3] & 0xff) | ((packet[4] & 0xff) << 8);
+			if (dropRequest.remove(move)) {
+				return;
+			}
+			if (corruptRequest.remove(move)) {
+				reply(false, 0x83);
+				return;
+			}
+			if (overflow.remove(move) || used + length > capacity) {
+				overflows++;
+				reply(false, 0x82);
+				return;
+			}
+			used += length;
+			queued.addLast(length);
+			ran.add(move);
+			if (dropResponse.remove(move)) {
+				return;
+			}
+			reply(badCrc.remove(move), 0x81);
+		}
+
+		// Some of the bytes waiting, as a serial port hands them over in runs
+		public int read(byte[] buffer, int offset, int length) {
+			if (random.nextDouble() < drainChance) {
+				drainOne();
+			}
+			if (out.isEmpty()) {
+				return -1;
+			}
+			int n = 1 + random.nextInt(Math.min(length, out.size()));
+			for (int i = 0; i < n; i++) {
+				buffer[offset + i] = out.removeFirst();
+			}
+			return n;
+		}
+
+		public void clear() {
+			out.clear();
+		}
+	}
+
+	// A QUEUE_POINT_EXT packet with the move number in its first bytes
+	static byte[] move(int n) {
+		byte[] payload = new byte[25];
+		payload[0] = (byte) MotherboardCommandCode.QUEUE_POINT_EXT.getCode();
+		payload[1] = (byte) n;
+		payload[2] = (byte) (n >> 8);
+		byte[] packet = new byte[payload.length + 3];
+		packet[0] = (byte) 0xD5;
+		packet[1] = (byte) payload.length;
+		System.arraycopy(payload, 0, packet, 2, payload.length);
+		packet[packet.length - 1] = IButtonCrc.compute(payload, 0, payload.length);
+		return packet;
+	}
+
+	// Send every move, trying again while the bot is full, as the driver does
+	static String run(FakeBot bot, int window) {
+		PacketWindow pw = new PacketWindow(bot, window, 5);
+		for (int i = 0; i < MOVES; i++) {
+			while (true) {
+				try {
+					pw.send(move(i));
+					break;
+				} catch (RetryException e) {
+					bot.drainOne();
+				}
+			}
+		}
+		pw.flush();
+		return pw.takeFailure();
+	}
+
+	static void assertInOrder(FakeBot bot) {
+		for (int i = 1; i < bot.ran.size(); i++) {
+			assertTrue("move " + bot.ran.get(i) + " ran after " + bot.ran.get(i - 1),
+					bot.ran.get(i) > bot.ran.get(i - 1));
+		}
+	}
+
+	static void assertAllOnce(FakeBot bot, String failure) {
+		assertNull(failure);
+		assertEquals(MOVES, bot.ran.size());
+		for (int i = 0; i < MOVES; i++) {
+			assertEquals(i, (int) bot.ran.get(i));
+		}
+	}
+
+	@Test
+	public void clean() {
+		FakeBot bot = new FakeBot(1, 512);
+		bot.drainChance = 0.05;
+		assertAllOnce(bot, run(bot, 8));
+	}
+
+	@Test
+	public void lostRequestInFlightFails() {
+		FakeBot bot = new FakeBot(2, ROOMY);
+		bot.drainChance = 0.05;
+		bot.dropRequest.add(50);
+		assertNotNull(run(bot, 8));
+		assertInOrder(bot);
+		assertFalse(bot.ran.contains(50));
+	}
+
+	@Test
+	public void lostResponseInFlightFails() {
+		FakeBot bot = new FakeBot(3, ROOMY);
+		bot.drainChance = 0.05;
+		bot.dropResponse.add(50);
+		assertNotNull(run(bot, 8));
+		assertInOrder(bot);
+	}
+
+	@Test
+	public void badCrcInFlightFails() {
+		FakeBot bot = new FakeBot(4, ROOMY);
+		bot.drainChance = 0.05;
+		bot.badCrc.add(50);
+		assertNotNull(run(bot, 8));
+		assertInOrder(bot);
+	}
+
+	@Test
+	public void lostRequestSentAloneIsResent() {
+		FakeBot bot = new FakeBot(5, 512);
+		bot.drainChance = 0.05;
+		bot.dropRequest.add(50);
+		bot.dropRequest.add(51);
+		assertAllOnce(bot, run(bot, 1));
+	}
+
+	@Test
+	public void errorResponseSentAloneIsResent() {
+		FakeBot bot = new FakeBot(6, 512);
+		bot.drainChance = 0.05;
+		bot.corruptRequest.add(50);
+		assertAllOnce(bot, run(bot, 1));
+	}
+
+	@Test
+	public void errorResponseWithLaterAcceptedFails() {
+		FakeBot bot = new FakeBot(7, ROOMY);
+		bot.drainChance = 0.05;
+		bot.corruptRequest.add(50);
+		assertNotNull(run(bot, 8));
+		assertInOrder(bot);
+		assertFalse(bot.ran.contains(50));
+	}
+
+	@Test
+	public void overflowWithLaterAcceptedFails() {
+		FakeBot bot = new FakeBot(8, ROOMY);
+		bot.drainChance = 0.05;
+		bot.overflow.add(50);
+		assertNotNull(run(bot, 8));
+		assertInOrder(bot);
+		assertFalse(bot.ran.contains(50));
+	}
+
+	@Test
+	public void overflowWithLaterRejectedIsResentInOrder() {
+		// Moves only run while we ask for the buffer size, so once the bot is
+		// full everything behind the first overflow overflows too.
+		FakeBot bot = new FakeBot(9, 256);
+		bot.overReport = 200;
+		assertAllOnce(bot, run(bot, 8));
+		assertTrue(bot.overflows > 0);
+	}
+
+	@Test
+	public void silentBotFails() {
+		FakeBot bot = new FakeBot(10, 512);
+		bot.silent = true;
+		assertNotNull(run(bot, 8));
+		assertTrue(bot.ran.isEmpty());
+	}
+
+	/**
+	 * Lost and rejected requests and overflows at random. Lost or garbled
+	 * responses aren't fuzzed: when one was sent alone it's resent, as runCommand
+	 * would, and the bot may run it twice, which no s3g host can tell.
+	 */
+	@Test
+	public void randomFaults() {
+		for (int seed = 0; seed < 200; seed++) {
+			Random random = new Random(seed);
+			FakeBot bot = new FakeBot(seed, 256 + random.nextInt(512));
+			bot.drainChance = random.nextDouble() * 0.1;
+			bot.overReport = random.nextBoolean() ? random.nextInt(200) : 0;
+			for (int i = 0; i < 3; i++) {
+				bot.dropRequest.add(random.nextInt(MOVES));
+				bot.corruptRequest.add(random.nextInt(MOVES));
+				bot.overflow.add(random.nextInt(MOVES));
+			}
+			String failure = run(bot, 1 + random.nextInt(8));
+			if (failure == null) {
+				assertAllOnce(bot, failure);
+			} else {
+				assertInOrder(bot);
+			}
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package replicatorg.model;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.swing.event.UndoableEditEvent;
+import javax.swing.event.UndoableEditListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.PlainDocument;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.UndoableEdit;
+
+import org.junit.Test;
+
+/**
+ * Makes the same edits to a MappedGCodeDocument and to a PlainDocument loaded
+ * with the same text, as Base.loadFile() would load it, and checks after each
+ * that the two agree: text, lines, positions, and the piece table's own line
+ * lookups.
+ */
+public class MappedGCodeDocumentTest {
+
+	// Collects each edit a document reports, so it can be undone
+	static class Edits implements UndoableEditListener {
+		final List<UndoableEdit> done = new ArrayList<UndoableEdit>();
+		final List<UndoableEdit> undone = new ArrayList<UndoableEdit>();
+
+		public void undoableEditHappened(UndoableEditEvent e) {
+			done.add(e.getEdit());
+			undone.clear();
+		}
+
+		void undo() {
+			UndoableEdit edit = done.remove(done.size() - 1);
+			edit.undo();
+			undone.add(edit);
+		}
+
+		void redo() {
+			UndoableEdit edit = undone.remove(undone.size() - 1);
+			edit.redo();
+			done.add(edit);
+		}
+	}
+
+	static String randomLines(Random random, int count, String newline, boolean trailing) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				text.append(newline);
+			switch (random.nextInt(4)) {
+			case 0: text.append("G1 X").append(random.nextInt(100)).append(" Y").append(random.nextInt(100)); break;
+			case 1: text.append("M104 S220 T0 (set the temperature)"); break;
+			case 2: break;
+			default: text.append("(<layer> ").append(i).append(" )"); break;
+			}
+		}
+		if (trailing)
+			text.append(newline);
+		return text.toString();
+	}
+
+	// The text as Base.loadFile() reads it: every line ending in \n
+	static String loaded(String file) {
+		StringBuilder text = new StringBuilder();
+		for (String line : file.split("\r\n|\r|\n", -1))
+			text.append(line).append('\n');
+		if (file.length() == 0 || file.endsWith("\n") || file.endsWith("\r"))
+			text.setLength(text.length() - 1);
+		return text.toString();
+	}
+
+	static File write(String text) throws IOException {
+		File file = File.createTempFile("mapped", ".gcode");
+		file.deleteOnExit();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(text.getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	static void assertSame(PlainDocument plain, MappedGCodeDocument mapped, PieceTableContent content,
+			List<Position> plainMarks, List<Position> mappedMarks) throws BadLocationException {
+		assertEquals(plain.getLength(), mapped.getLength());
+		assertEquals(plain.getText(0, plain.getLength()), mapped.getText(0, mapped.getLength()));
+
+		Element plainRoot = plain.getDefaultRootElement();
+		Element mappedRoot = mapped.getDefaultRootElement();
+		int lines = plainRoot.getElementCount();
+		assertEquals(lines, mappedRoot.getElementCount());
+		assertEquals(lines, content.getLineCount());
+		for (int i = 0; i < lines; i++) {
+			Element line = plainRoot.getElement(i);
+			assertEquals(line.getStartOffset(), mappedRoot.getElement(i).getStartOffset());
+			assertEquals(line.getEndOffset(), mappedRoot.getElement(i).getEndOffset());
+			assertEquals(line.getStartOffset(), content.getLineStart(i));
+		}
+		assertEquals(plain.getLength() + 1, content.getLineStart(lines));
+		for (int offset = 0; offset <= plain.getLength(); offset++) {
+			assertEquals(plainRoot.getElementIndex(offset), mappedRoot.getElementIndex(offset));
+			assertEquals(plainRoot.getElementIndex(offset), content.getLineOf(offset));
+		}
+		for (int i = 0; i < plainMarks.size(); i++) {
+			assertEquals(plainMarks.get(i).getOffset(), mappedMarks.get(i).getOffset());
+		}
+	}
+
+	static void assertChars(PlainDocument plain, PieceTableContent content, Random random) throws BadLocationException {
+		// Both contents end in the \n every document has
+		String text = plain.getText(0, plain.getLength()) + "\n";
+		for (int i = 0; i < 20; i++) {
+			int where = random.nextInt(plain.getLength() + 1);
+			int len = random.nextInt(plain.getLength() + 2 - where);
+			Segment segment = new Segment();
+			content.getChars(where, len, segment);
+			assertEquals(text.substring(where, where + len), segment.toString());
+		}
+	}
+
+	void check(String file) throws Exception {
+		Random random = new Random(file.length());
+		PieceTableContent content = new PieceTableContent(new MappedGCodeSource(write(file)));
+		MappedGCodeDocument mapped = new MappedGCodeDocument(content);
+		PlainDocument plain = new PlainDocument();
+		plain.insertString(0, loaded(file), null);
+
+		Edits plainEdits = new Edits();
+		Edits mappedEdits = new Edits();
+		plain.addUndoableEditListener(plainEdits);
+		mapped.addUndoableEditListener(mappedEdits);
+		List<Position> plainMarks = new ArrayList<Position>();
+		List<Position> mappedMarks = new ArrayList<Position>();
+		assertSame(plain, mapped, content, plainMarks, mappedMarks);
+		assertChars(plain, content, random);
+
+		for (int step = 0; step < 300; step++) {
+			int choice = random.nextInt(10);
+			int length = plain.getLength();
+			if (choice < 3) {
+				int where = random.nextInt(length + 1);
+				String str = randomLines(random, 1 + random.nextInt(3), "\n", random.nextBoolean());
+				plain.insertString(where, str, null);
+				mapped.insertString(where, str, null);
+			} else if (choice < 6 && length > 0) {
+				int where = random.nextInt(length);
+				int count = random.nextInt(Math.min(40, length - where) + 1);
+				plain.remove(where, count);
+				mapped.remove(where, count);
+			} else if (choice < 8 && !plainEdits.done.isEmpty()) {
+				plainEdits.undo();
+				mappedEdits.undo();
+			} else if (choice < 9 && !plainEdits.undone.isEmpty()) {
+				plainEdits.redo();
+				mappedEdits.redo();
+			} else {
+				int offset = random.nextInt(length + 1);
+				plainMarks.add(plain.createPosition(offset));
+				mappedMarks.add(mapped.createPosition(offset));
+			}
+			assertSame(plain, mapped, content, plainMarks, mappedMarks);
+			assertChars(plain, content, random);
+		}
+	}
+
+	@Test
+	public void newlines() throws Exception {
+		check(randomLines(new Random(1), 200, "\n", true));
+	}
+
+	@Test
+	public void carriageReturnNewlines() throws Exception {
+		check(randomLines(new Random(2), 200, "\r\n", true));
+	}
+
+	@Test
+	public void noTrailingNewline() throws Exception {
+		check(randomLines(new Random(3), 200, "\n", false));
+	}
+
+	@Test
+	public void carriageReturnsNoTrailingNewline() throws Exception {
+		check(randomLines(new Random(4), 200, "\r\n", false));
+	}
+
+	@Test
+	public void savedAsLoaded() throws Exception {
+		String file = randomLines(new Random(5), 200, "\r\n", false);
+		MappedGCodeDocument mapped = new MappedGCodeDocument(new PieceTableContent(new MappedGCodeSource(write(file))));
+		File saved = File.createTempFile("saved", ".gcode");
+		saved.deleteOnExit();
+		mapped.save(saved);
+		Document reloaded = new MappedGCodeDocument(new PieceTableContent(new MappedGCodeSource(saved)));
+		assertEquals(mapped.getText(0, mapped.getLength()), reloaded.getText(0, reloaded.getLength()));
+	}
+}